@@ -1,48 +1,30 @@
 package me.crespel.runtastic;
 
-import java.awt.Desktop;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
-import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Function;
+import java.util.Map;
 
-import javax.activity.InvalidActivityException;
-import javax.security.sasl.AuthenticationException;
-
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.topografix.gpx._1._1.BoundsType;
 
 import me.crespel.runtastic.converter.ExportConverter;
+import me.crespel.runtastic.converter.ShardSpec;
+import me.crespel.runtastic.model.ExportManifest;
 import me.crespel.runtastic.model.ImageMetaData;
 import me.crespel.runtastic.model.SportSession;
 import me.crespel.runtastic.model.User;
-import me.crespel.strava.model.AccessTokenResponse;
-import me.crespel.strava.model.ExportMetadata;
-import me.crespel.strava.model.FailureResponse;
-import okhttp3.FormBody;
-import okhttp3.MediaType;
-import okhttp3.MultipartBody;
-import okhttp3.MultipartBody.Builder;
+import me.crespel.strava.StravaRateLimiter;
+import me.crespel.strava.StravaUploader;
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
-import okhttp3.ResponseBody;
 
 /**
  * Runtastic export converter main class.
@@ -53,7 +35,8 @@ import okhttp3.ResponseBody;
 public class RuntasticExportConverter
 {
 
-	protected final ExportConverter converter = new ExportConverter();
+	protected final ExportConverter		converter	= new ExportConverter();
+	protected final Map<String, String>	options		= new HashMap<>();
 
 	public static void main(String[] args)
 	{
@@ -72,6 +55,7 @@ public class RuntasticExportConverter
 
 	public void run(String[] args) throws Exception
 	{
+		args = parseOptions(args);
 		String action = args.length > 0 ? args[0] : "";
 		switch (action)
 		{
@@ -108,7 +92,7 @@ public class RuntasticExportConverter
 				{
 					throw new IllegalArgumentException("Missing arguments for action 'convert'");
 				}
-				doConvert(new File(args[1]), args[2], new File(args[3]), args.length > 4 ? args[4] : null, args.length > 5 ? "meta".equalsIgnoreCase(args[5]) : false);
+				doConvert(new File(args[1]), args[2], new File(args[3]), args.length > 4 ? args[4] : null, hasOption(args, 5, "meta"), getArchiveOption(args, 5));
 				break;
 			case "overlap":
 				if (args.length < 3)
@@ -124,12 +108,19 @@ public class RuntasticExportConverter
 				}
 				doCompound(new File(args[2]), args[1], args.length > 3 ? new File(args[3]) : null, args.length > 4 ? args[4] : "gpx");
 				break;
+			case "merge-manifests":
+				if (args.length < 2)
+				{
+					throw new IllegalArgumentException("Missing argument for action 'merge-manifests'");
+				}
+				doMergeManifests(new File(args[1]), args.length > 2 ? new File(args[2]) : new File(args[1]));
+				break;
 			case "upload-strava":
 				if (args.length < 5)
 				{
 					throw new IllegalArgumentException("Missing argument for action 'upload-strava'");
 				}
-				doUploadStrava(Paths.get(args[1]), args[2], args[3], args[4]);
+				doUploadStrava(Paths.get(args[1]), args[2], args[3], args[4], hasOption(args, 5, "wait"));
 				break;
 			case "help":
 			default:
@@ -145,57 +136,111 @@ public class RuntasticExportConverter
 		System.out.println("  list     <export path> <filter>");
 		System.out.println("  user     <export path>");
 		System.out.println("  info     <export path> <activity id>");
-		System.out.println("  convert  <export path> <activity id | 'all'> <destination path> ['gpx' | 'tcx' | 'auto'] ['meta']");
-		System.out.println("  overlap  <export path> <activity id | 'all'> <destination path> ['gpx' | 'tcx']");
-		System.out.println("  compound <export path> <activity id | 'all'> <destination path> ['gpx' | 'tcx']");
-		System.out.println("  upload-strava <converted path> <client_id> <client_secret> <code>");
+		System.out.println("  convert  <export path> <activity id | 'all'> <destination path> ['gpx' | 'tcx' | 'fit' | 'geojson' | 'columnar' | 'auto' | <formats, e.g. 'gpx,tcx'>] ['meta'] ['zip' | 'zip-year' | 'ndjson']");
+		System.out.println("  overlap  <export path> <activity id | 'all'> <destination path> ['gpx' | 'tcx' | 'fit' | 'geojson']");
+		System.out.println("  compound <export path> <activity id | 'all'> <destination path> ['gpx' | 'tcx' | 'fit' | 'geojson']");
+		System.out.println("  upload-strava <converted path> <client_id> <client_secret> <code> ['wait']");
+		System.out.println("  merge-manifests <manifest path> [<destination path>]");
 		System.out.println("  help");
+		System.out.println("Options:");
+		System.out.println("  --shard <k/n>   Only process the k-th of n deterministic shards of sessions (check, convert)");
+		System.out.println("  --progress <s>  Progress report interval in seconds, 0 to disable (convert, upload-strava; default: 10)");
+		System.out.println("  --simplify <m>  Simplify GPS tracks, dropping points closer than <m> metres to the simplified track (convert, overlap, compound)");
+		System.out.println("  --concurrency <n> Number of concurrent uploads, within Strava rate limits (upload-strava; default: " + StravaUploader.DEFAULT_CONCURRENCY + ")");
+		System.out.println("  --strava-url <url> Base URL of the Strava API, e.g. a local stand-in (upload-strava; default: " + StravaUploader.DEFAULT_API_URL + ")");
+	}
+
+	/**
+	 * Extract "--name value" or "--name=value" options, and return remaining positional arguments.
+	 */
+	protected String[] parseOptions(String[] args)
+	{
+		List<String> positional = new ArrayList<>();
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (!arg.startsWith("--"))
+			{
+				positional.add(arg);
+				continue;
+			}
+			int eq = arg.indexOf('=');
+			if (eq > 0)
+				options.put(arg.substring(2, eq), arg.substring(eq + 1));
+			else if (i + 1 < args.length)
+				options.put(arg.substring(2), args[++i]);
+			else
+				throw new IllegalArgumentException("Missing value for option '" + arg + "'");
+		}
+		if (options.containsKey("shard"))
+			converter.shard = ShardSpec.parse(options.get("shard"));
+		if (options.containsKey("progress"))
+			converter.progressInterval = Duration.ofSeconds(Long.parseLong(options.get("progress")));
+		if (options.containsKey("simplify"))
+			converter.setSimplifyTolerance(Double.parseDouble(options.get("simplify")));
+		return positional.toArray(new String[positional.size()]);
 	}
 
 	private void doCheck(File path) throws FileNotFoundException, IOException
 	{
 		System.out.println("Check curent export and provide some statistics ...");
+		if (converter.shard != null)
+			System.out.println("      Restricted to shard " + converter.shard);
 		List<SportSession> sessions = converter.listSportSessions(path, false);
 		System.out.println("      " + sessions.size() + " Sport Sessions found.");
 
 		System.out.println("Load full list of sport session (inclusive all sub-data), this requires some time ...");
 		List<SportSession> fullsessions = converter.convertSportSessions(path, "gpx");
 
+		if (converter.shard == null)
+		{
+			// Calculate overlapping sessions
+			converter.doOverlap(fullsessions);
+			displaySummary(fullsessions, false);
+		}
+		else
+		{
+			System.out.println("Overlapping sessions are not calculated for a single shard, use the 'overlap' action without '--shard' instead.");
+		}
+
 		// Calculate statistics ..
-		Integer gpxSessionCount = 0;
-		Integer heartRateDataCount = 0;
-		Integer imageSessionCount = 0;
-		Integer imageCount = 0;
-		Integer minDistance = Integer.MAX_VALUE, maxDistance = 0, totDistance = 0;
+		ExportManifest manifest = converter.createManifest("check");
+		manifest.statistics.overlapSkipped = converter.shard != null;
 		for (SportSession session : fullsessions)
 		{
-			if (session == null)
-				continue;
-			if (session.getGpx() != null)
-				gpxSessionCount += 1;
-			if (session.getHeartRateData() != null)
-				heartRateDataCount += 1;
-			if (session.getImages() != null)
-			{
-				imageSessionCount += 1;
-				imageCount += session.getImages().size();
-			}
-			minDistance = Integer.min(minDistance, session.getDistance());
-			maxDistance = Integer.max(maxDistance, session.getDistance());
-			totDistance += session.getDistance();
+			if (session != null)
+				manifest.statistics.add(session);
 		}
+		displayStatistics(manifest.statistics);
+		if (converter.shard != null)
+			System.out.println("Manifest written to '" + converter.writeManifest(manifest, new File(".")) + "'");
+	}
 
-		// Calculate overlapping sessions
-		converter.doOverlap(fullsessions);
-		displaySummary(fullsessions, false);
-
+	protected void displayStatistics(ExportManifest.Statistics statistics)
+	{
 		System.out.println("Session statistics ...");
-		System.out.println("      " + fullsessions.size() + " Sport Sessions found.");
-		System.out.println("      " + gpxSessionCount + " Sport Sessions found with GPX data assigned. ");
-		System.out.println("      " + heartRateDataCount + " Sport Sessions found with heart rate data assigned.");
-		System.out.println("      " + imageSessionCount + " Sport Sessions found with totally " + imageCount + " photo(s) assigned.");
-		System.out.println("      Total Distance: " + totDistance / 1000.0 + " [km],  Minimum distance: " + minDistance / 1000.0 + " [km],  Maximum distance: " + maxDistance / 1000.0 + " [km]");
+		System.out.println("      " + statistics.sessions + " Sport Sessions found.");
+		System.out.println("      " + statistics.gpxSessions + " Sport Sessions found with GPX data assigned. ");
+		System.out.println("      " + statistics.heartRateSessions + " Sport Sessions found with heart rate data assigned.");
+		System.out.println("      " + statistics.imageSessions + " Sport Sessions found with totally " + statistics.images + " photo(s) assigned.");
+		if (statistics.overlapSkipped)
+			System.out.println("      Overlapping and compound sessions not calculated (sharded check).");
+		else if (statistics.overlapSessions > 0 || statistics.compoundSessions > 0)
+			System.out.println("      " + statistics.overlapSessions + " Sport Sessions found with overlapping sessions, " + statistics.compoundSessions + " with compound sessions.");
+		System.out.println("      Total Distance: " + statistics.totalDistance / 1000.0 + " [km],  Minimum distance: " + (statistics.sessions > 0 ? statistics.minDistance : 0) / 1000.0 + " [km],  Maximum distance: " + statistics.maxDistance / 1000.0 + " [km]");
+	}
 
+	protected void doMergeManifests(File path, File dest) throws IOException
+	{
+		List<ExportManifest> manifests = converter.mergeManifests(path);
+		if (manifests.isEmpty())
+			System.out.println("No shard manifest found in '" + path + "'");
+		for (ExportManifest manifest : manifests)
+		{
+			System.out.println("Merged '" + manifest.action + "' shards " + manifest.shards + " (" + manifest.sessions.size() + " sessions)");
+			displayStatistics(manifest.statistics);
+			System.out.println("Manifest written to '" + converter.writeManifest(manifest, dest) + "'");
+		}
 	}
 
 	protected void doList(File path) throws FileNotFoundException, IOException
@@ -242,7 +287,7 @@ public class RuntasticExportConverter
 			System.out.println("      Start: " + sdf.format(session.getStartTime()) + ", End: " + sdf.format(session.getEndTime()) + ", Created: " + sdf.format(session.getCreatedAt()) + ", Updated: " + sdf.format(session.getUpdatedAt()));
 			System.out.println("      Elevation: (+) " + session.getElevationGain() + " m , (-) " + session.getElevationLoss() + " m  /  " + (session.getLatitude() != null ? "Latitude: " + session.getLatitude() + ", Longitude: " + session.getLongitude() + "  ( http://maps.google.com/maps?q=" + session.getLatitude() + "," + session.getLongitude() + " )" : "No GPS information available."));
 			System.out.println("      Notes: " + session.getNotes());
-			System.out.println("      Waypoints: " + ((session.getGpsData() == null) ? "0" : session.getGpsData().size()) + " JSON points, " + ((session.getGpx() == null) ? "0" : session.getGpx().getTrk().get(0).getTrkseg().get(0).getTrkpt().size()) + " GPX points.");
+			System.out.println("      Waypoints: " + ((session.getGpsData() == null) ? "0" : session.getGpsData().size()) + " JSON points, " + ((session.getGpx() != null) ? session.getGpx().getTrk().get(0).getTrkseg().get(0).getTrkpt().size() : (session.getRawGpx() != null) ? session.getRawGpx().getPoints() : 0) + " GPX points.");
 			System.out.println("      Photos:" + (session.getImages() != null ? session.getImages().size() : "none"));
 			if (session.getImages() != null)
 			{
@@ -262,13 +307,39 @@ public class RuntasticExportConverter
 		}
 	}
 
-	protected void doConvert(File path, String id, File dest, String format, boolean withMetadata) throws FileNotFoundException, IOException
+	protected static boolean hasOption(String[] args, int from, String option)
+	{
+		for (int i = from; i < args.length; i++)
+		{
+			if (option.equalsIgnoreCase(args[i]))
+				return true;
+		}
+		return false;
+	}
+
+	protected static String getArchiveOption(String[] args, int from)
+	{
+		if (hasOption(args, from, ExportConverter.ARCHIVE_ZIP_PER_YEAR))
+			return ExportConverter.ARCHIVE_ZIP_PER_YEAR;
+		if (hasOption(args, from, ExportConverter.ARCHIVE_ZIP))
+			return ExportConverter.ARCHIVE_ZIP;
+		if (hasOption(args, from, ExportConverter.ARCHIVE_NDJSON))
+			return ExportConverter.ARCHIVE_NDJSON;
+		if (hasOption(args, from, ExportConverter.ARCHIVE_COLUMNAR))
+			return ExportConverter.ARCHIVE_COLUMNAR;
+		return null;
+	}
+
+	protected void doConvert(File path, String id, File dest, String format, boolean withMetadata, String archive) throws FileNotFoundException, IOException
 	{
 		if ("all".equalsIgnoreCase(id))
 		{
 			long startTime = System.currentTimeMillis();
-			int count = converter.exportSportSessions(path, dest, format, withMetadata);
+			ExportManifest manifest = converter.shard != null ? converter.createManifest("convert") : null;
+			int count = converter.exportSportSessions(path, dest, format, withMetadata, archive, manifest);
 			System.out.println(count + " activities successfully written to '" + dest + "' in " + Duration.ofMillis(System.currentTimeMillis() - startTime));
+			if (manifest != null)
+				System.out.println("Manifest written to '" + converter.writeManifest(manifest, dest.getName().toLowerCase().matches(".*\\.(zip|ndjson|rtcol)") ? dest.getAbsoluteFile().getParentFile() : dest) + "'");
 		}
 		else
 		{
@@ -279,6 +350,8 @@ public class RuntasticExportConverter
 
 	private void doOverlap(File path, String id, File dest, String format) throws FileNotFoundException, IOException
 	{
+		if (converter.shard != null)
+			throw new IllegalArgumentException("Option '--shard' is not supported by action 'overlap', which compares every session with all others");
 		long startTime = System.currentTimeMillis();
 		System.out.println("Load full list of sport session (inclusive all sub-data), this requires some time ...");
 		List<SportSession> sessions = converter.convertSportSessions(path, format);
@@ -307,6 +380,8 @@ public class RuntasticExportConverter
 
 	private void doCompound(File path, String id, File dest, String format) throws FileNotFoundException, IOException
 	{
+		if (converter.shard != null)
+			throw new IllegalArgumentException("Option '--shard' is not supported by action 'compound', which compares every session with all others");
 		long startTime = System.currentTimeMillis();
 		System.out.println("Load full list of sport session (inclusive all sub-data), this requires some time ...");
 		List<SportSession> sessions = converter.convertSportSessions(path, format);
@@ -348,7 +423,7 @@ public class RuntasticExportConverter
 		Integer emptyGPXTrackSessionCount = 0;
 		for (SportSession session : sessions)
 		{
-			if (session.getGpx() == null)
+			if (session.getGpsData() == null && !session.hasSourceGpx())
 			{
 				System.out.println("      " + sdf.format(session.getStartTime()) + " - ID: " + session.getId() + ", Sport Type: " + session.getSportTypeId() + ", duration: " + Duration.ofMillis(session.getDuration()).toString() + " (" + session.getDuration() / 60000 + " min), Notes: '" + session.getNotes() + "'");
 				emptyGPXTrackSessionCount += 1;
@@ -421,9 +496,9 @@ public class RuntasticExportConverter
 				}
 
 				// check bounds ..
-				if ((session.getGpx() != null) && (session.getGpx().getMetadata() != null) && (session.getGpx().getMetadata().getBounds() != null))
+				if (session.getBounds() != null)
 				{
-					BoundsType sessionBound = session.getGpx().getMetadata().getBounds();
+					BoundsType sessionBound = session.getBounds();
 					if ((session.getInnerBound() != null) && (session.getOuterBound() != null))
 					{
 						if (sessionBound.getMinlat().compareTo(session.getInnerBound().getMinlat()) == 1)
@@ -488,20 +563,20 @@ public class RuntasticExportConverter
 				compoundSessionCount += 1;
 				if (full)
 					System.out.println("      " + sdf.format(session.getStartTime()) + "[" + compoundSessionCount + "] - ID: " + session.getId() + ", Sport Type: " + session.getSportTypeId() + ", Notes: '" + session.getNotes()
-						+ "', Bounds[MinLat=" + session.getGpx().getMetadata().getBounds().getMinlat()
-						+ ", MaxLat=" + session.getGpx().getMetadata().getBounds().getMaxlat()
-						+ ", MinLon=" + session.getGpx().getMetadata().getBounds().getMinlon()
-						+ ", MaxLon=" + session.getGpx().getMetadata().getBounds().getMaxlon() + "]");
+						+ "', Bounds[MinLat=" + session.getBounds().getMinlat()
+						+ ", MaxLat=" + session.getBounds().getMaxlat()
+						+ ", MinLon=" + session.getBounds().getMinlon()
+						+ ", MaxLon=" + session.getBounds().getMaxlon() + "]");
 				if (full)
 				{
 					for (SportSession compoundSession : compoundSessions)
 					{
 						System.out.println("            ID: " + compoundSession.getId() + ", Sport Type: " + compoundSession.getSportTypeId()
 							+ ", Notes: '" + compoundSession.getNotes()
-							+ "', Bounds[MinLat=" + compoundSession.getGpx().getMetadata().getBounds().getMinlat()
-							+ ", MaxLat=" + compoundSession.getGpx().getMetadata().getBounds().getMaxlat()
-							+ ", MinLon=" + compoundSession.getGpx().getMetadata().getBounds().getMinlon()
-							+ ", MaxLon=" + compoundSession.getGpx().getMetadata().getBounds().getMaxlon() + "]");
+							+ "', Bounds[MinLat=" + compoundSession.getBounds().getMinlat()
+							+ ", MaxLat=" + compoundSession.getBounds().getMaxlat()
+							+ ", MinLon=" + compoundSession.getBounds().getMinlon()
+							+ ", MaxLon=" + compoundSession.getBounds().getMaxlon() + "]");
 					}
 				}
 			}
@@ -996,287 +1071,26 @@ public class RuntasticExportConverter
 		return "Workout";
 	}
 
-	private static final int		STRAVA_15M_RATE_LIMIT		= 100;
-	private static final int		UNIFORM_INTER_UPLOAD_WAIT	= 15 * 60 * 1000 / STRAVA_15M_RATE_LIMIT;
-	private static final MediaType	MEDIA_TYPE_GZIP				= MediaType.parse("application/gzip");
-
-	private void doUploadStrava(Path convertedFolder, String clientID, String clientSecret, String code) throws FileNotFoundException, IOException
+	private void doUploadStrava(Path convertedFolder, String clientID, String clientSecret, String code, boolean waitForNextDay) throws IOException, InterruptedException
 	{
 		if (!Files.exists(convertedFolder) || !Files.isDirectory(convertedFolder))
 			throw new FileNotFoundException("No such directory '" + convertedFolder.toString() + "'");
 
-		File uploadedFolder = convertedFolder.resolve("uploaded").toFile();
-
 		long startTime = System.nanoTime();
 		System.out.println("Uploading converted activities to Strava");
 
-		int total = (int) Files.list(convertedFolder)
-			.parallel()
-			.filter(f -> "meta".equals(FilenameUtils.getExtension(f.getFileName().toString())))
-			.count();
-
-		System.out.println(" o Found " + total + " activities to be uploaded");
-		OkHttpClient client = new OkHttpClient();
-		ObjectMapper mapper = converter.parser.mapper;
-
-		AccessTokenResponse accessToken;
-		Path accessTokenFile = convertedFolder.resolve("access.token");
-		if (Files.exists(accessTokenFile))
+		int concurrency = options.containsKey("concurrency") ? Integer.parseInt(options.get("concurrency")) : StravaUploader.DEFAULT_CONCURRENCY;
+		StravaRateLimiter rateLimiter = new StravaRateLimiter();
+		rateLimiter.setWaitForNextDay(waitForNextDay);
+		int uploaded;
+		try (StravaUploader uploader = new StravaUploader(new OkHttpClient(), converter.parser.mapper, clientID, clientSecret, convertedFolder.resolve("access.token"), rateLimiter, concurrency))
 		{
-			System.out.println(" o Found a previously saved Strava acceess token");
-			accessToken = converter.parser.mapper.readValue(accessTokenFile.toFile(), AccessTokenResponse.class);
-			accessToken = checkAndRefreshAccessToken(client, mapper, accessTokenFile, accessToken, clientID, clientSecret);
+			if (options.containsKey("strava-url"))
+				uploader.setApiUrl(options.get("strava-url"));
+			uploader.authorize(code);
+			uploaded = uploader.upload(convertedFolder, converter.progressInterval);
 		}
-		else
-		{
-			System.out.println(" o Obtaining access token from Strava ...");
-
-			FormBody formBody = new FormBody.Builder()
-				.add("client_id", clientID)
-				.add("client_secret", clientSecret)
-				.add("code", code)
-				.add("grant_type", "authorization_code")
-				.build();
-
-			Request request = new Request.Builder()
-				.url("https://www.strava.com/api/v3/oauth/token")
-				.post(formBody)
-				.build();
-
-			try (Response response = client.newCall(request).execute())
-			{
-				accessToken = mapper.readValue(handleFailure(mapper, response, clientID), AccessTokenResponse.class);
-			}
-			mapper.writeValue(accessTokenFile.toFile(), accessToken);
-			System.out.println("   - Obtained and saved access token");
-		}
-
-		AtomicBoolean stopNotified = new AtomicBoolean();
-		AtomicInteger counter = new AtomicInteger();
-		AtomicInteger throttleCounter = new AtomicInteger();
-		AccessTokenResponse[] finalAccessToken = new AccessTokenResponse[1];
-		finalAccessToken[0] = accessToken;
-		int rtotal = (int) Files.list(convertedFolder)
-			.filter(f -> !stopNotified.get() && "meta".equals(FilenameUtils.getExtension(f.getFileName().toString())))
-			.map(new Function<Path, Path>()
-			{
-
-				Path metaDataFile;
-
-				private boolean throttle()
-				{
-					int failures = throttleCounter.incrementAndGet();
-					int c = counter.get();
-					if (failures > 3)
-					{
-						stopNotified.set(true);
-						System.err.println("   - Upload terminated at " + c + " uploads (" + metaDataFile.getFileName() + ") since daily upload limit is reached");
-						return false;
-					}
-					Duration duration = Duration.ofNanos(System.nanoTime() - startTime);
-					double per15m = (duration.getSeconds() == 0 ? 0d : c / ((double) duration.getSeconds())) * 60 * 15;
-					int pause = (15 - (int) (duration.toMinutes() % 15)) + 1;
-					System.out.println("   - Waiting after " + c + " uploads for " + pause + "m to adjust current upload rate of " + (int) per15m + "/15m");
-					try
-					{
-						Thread.sleep(pause * 60 * 1000);
-					}
-					catch (Exception ex)
-					{}
-					return true;
-				}
-
-				@Override
-				public Path apply(Path metaDataFile)
-				{
-					if (stopNotified.get())
-						return null;
-					this.metaDataFile = metaDataFile;
-					while (true)
-					{
-						try
-						{
-							finalAccessToken[0] = checkAndRefreshAccessToken(client, mapper, accessTokenFile, finalAccessToken[0], clientID, clientSecret);
-						}
-						catch (InvalidActivityException ex)
-						{
-							if (throttle())
-								continue;
-							stopNotified.set(true);
-							ex.printStackTrace();
-							return null;
-						}
-						catch (Exception ex)
-						{
-							if (throttle())
-								continue;
-							stopNotified.set(true);
-							ex.printStackTrace();
-							return null;
-						}
-
-						try
-						{
-							ExportMetadata metaData = mapper.readValue(metaDataFile.toFile(), ExportMetadata.class);
-
-							File activityFile = metaDataFile.resolveSibling(metaData.fileName).toFile();
-							if (!activityFile.exists())
-							{
-								System.out.println("   - Skipping " + metaDataFile);
-								return null;
-							}
-
-							Builder postBodyBuilder = new MultipartBody.Builder()
-								.addFormDataPart("name", metaData.name)
-								.addFormDataPart("description", metaData.description)
-								.addFormDataPart("external_id", metaData.externalId)
-								.addFormDataPart("sport_type", metaData.sportType)
-								.addFormDataPart("data_type", metaData.dataType)
-								.addFormDataPart("commute", "false")
-								.addFormDataPart("trainer", "false")
-								.addFormDataPart("trainer", "false")
-								.addFormDataPart("file", metaData.fileName, RequestBody.create(activityFile, MEDIA_TYPE_GZIP));
-							if (metaData.gearId != null)
-								postBodyBuilder.addFormDataPart("gear_id", metaData.gearId);
-							Request request = new Request.Builder()
-								.url("https://www.strava.com/api/v3/uploads")
-								.addHeader("Authorization", finalAccessToken[0].token_type + " " + finalAccessToken[0].access_token)
-								.post(postBodyBuilder.build())
-								.build();
-
-							try (Response response = client.newCall(request).execute())
-							{
-								handleFailure(mapper, response, clientID);
-							}
-							throttleCounter.set(0);
-
-							FileUtils.moveFileToDirectory(metaDataFile.toFile(), uploadedFolder, true);
-							FileUtils.moveFileToDirectory(activityFile, uploadedFolder, false);
-							File rawActivityFile = metaDataFile.resolveSibling(FilenameUtils.getBaseName(activityFile.getName())).toFile();
-							if (rawActivityFile.exists())
-								FileUtils.moveFileToDirectory(rawActivityFile, uploadedFolder, false);
-
-							int c = counter.incrementAndGet();
-							if (c % 5 == 0)
-							{
-								Duration duration = Duration.ofNanos(System.nanoTime() - startTime);
-								double per15m = (duration.getSeconds() == 0 ? 0d : c / ((double) duration.getSeconds())) * 60 * 15;
-								System.out.println("   - " + ZonedDateTime.now() + ": Uploaded " + c + " / " + total + " (" + (c * 100 / total) + "%) activities (" + ((int) per15m) + "/15m)");
-							}
-						}
-						catch (AuthenticationException ex)
-						{
-							stopNotified.set(true);
-							ex.printStackTrace();
-							return null;
-						}
-						catch (InvalidActivityException ex)
-						{
-							if (throttle())
-								continue;
-							stopNotified.set(true);
-							ex.printStackTrace();
-							return null;
-						}
-						catch (Exception ex)
-						{
-							if (throttle())
-								continue;
-							stopNotified.set(true);
-							ex.printStackTrace();
-							return null;
-						}
-						return metaDataFile;
-					}
-				}
-			})
-			.filter(f -> f != null)
-			.count();
-
-		System.out.println(rtotal + " activities successfully uploaded in " + Duration.ofNanos(System.nanoTime() - startTime));
-	}
-
-	private static String handleFailure(ObjectMapper mapper, Response response, String clientID) throws IOException
-	{
-		try (ResponseBody body = response.body())
-		{
-			String bodyString = body.string().trim();
-			if (response.isSuccessful())
-				return bodyString;
-			FailureResponse errorResponse = null;
-			try
-			{
-				errorResponse = mapper.readValue(bodyString, FailureResponse.class);
-			}
-			catch (Exception ex)
-			{}
-			if (errorResponse == null)
-				throw new IOException("HTTP failure (" + response.code() + ")");
-			if ("Rate Limit Exceeded".equalsIgnoreCase(errorResponse.message))
-				throw new InvalidActivityException("Strava API rate limit reached");
-			if ("Bad Request".equalsIgnoreCase(errorResponse.message) &&
-				errorResponse.errors != null && errorResponse.errors.length != 0
-				&& "AuthorizationCode".equalsIgnoreCase(errorResponse.errors[0].resource)
-				&& "code".equalsIgnoreCase(errorResponse.errors[0].field))
-			{
-				URI oauthUrl = null;
-				try
-				{
-					oauthUrl = new URI("https://www.strava.com/oauth/authorize?client_id=" + clientID + "&redirect_uri=https://localhost/response&response_type=code&scope=read,read_all,profile:read_all,profile:write,activity:read_all,activity:write");
-					Desktop.getDesktop().browse(oauthUrl);
-				}
-				catch (URISyntaxException ex)
-				{
-					// TODO Auto-generated catch block
-					ex.printStackTrace();
-				}
-				throw new AuthenticationException("Supplied Strava OAuth authentication 'code' is not valid. Please acquire a new one:\r\n" + oauthUrl);
-			}
-			throw new IOException("Strava API failure '" + errorResponse.message + "' (" + response.code() + ")");
-		}
-	}
-
-	private static synchronized AccessTokenResponse checkAndRefreshAccessToken(OkHttpClient client, ObjectMapper mapper, Path accessTokenFile, AccessTokenResponse accessToken, String clientID, String clientSecret) throws IOException
-	{
-		if (!accessToken.isExpired())
-			return accessToken;
-		System.out.println("   - Access token is expired and needs a refresh");
-		accessToken = refreshAccessToken(client, mapper, accessTokenFile, accessToken, clientID, clientSecret);
-		System.out.println("   - Refreshed and saved access token");
-		return accessToken;
-	}
-
-	private static AccessTokenResponse refreshAccessToken(OkHttpClient client, ObjectMapper mapper, Path accessTokenFile, AccessTokenResponse accessToken, String clientID, String clientSecret) throws IOException
-	{
-		FormBody formBody = new FormBody.Builder()
-			.add("client_id", clientID)
-			.add("client_secret", clientSecret)
-			.add("refresh_token", accessToken.refresh_token)
-			.add("grant_type", "refresh_token")
-			.build();
-
-		Request request = new Request.Builder()
-			.url("https://www.strava.com/api/v3/oauth/token")
-			.post(formBody)
-			.build();
-
-		try (Response response = client.newCall(request).execute())
-		{
-			accessToken = mapper.readValue(handleFailure(mapper, response, clientID), AccessTokenResponse.class);
-		}
-		catch (Exception ex)
-		{
-			try
-			{
-				Files.deleteIfExists(accessTokenFile);
-			}
-			catch (Exception ex1)
-			{}
-			throw ex;
-		}
-
-		mapper.writeValue(accessTokenFile.toFile(), accessToken);
 
-		return accessToken;
+		System.out.println(uploaded + " activities successfully uploaded in " + Duration.ofNanos(System.nanoTime() - startTime));
 	}
 }
@@ -0,0 +1,418 @@
+package me.crespel.runtastic.converter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.DatatypeConverter;
+
+import com.topografix.gpx._1._1.GpxType;
+import com.topografix.gpx._1._1.TrkType;
+import com.topografix.gpx._1._1.TrksegType;
+import com.topografix.gpx._1._1.WptType;
+
+import me.crespel.runtastic.mapper.RawGpxReader;
+import me.crespel.runtastic.mapper.SampleMerger;
+import me.crespel.runtastic.mapper.Trackpoint;
+import me.crespel.runtastic.model.GpsData;
+import me.crespel.runtastic.model.HeartRateData;
+import me.crespel.runtastic.model.RawGpxTrack;
+import me.crespel.runtastic.model.SportSession;
+import me.crespel.runtastic.monitoring.StageEvents;
+
+/**
+ * Columnar track point dataset writer.
+ * All GPS and heart-rate samples of an export are written as rows of a single file, one row per merged trackpoint
+ * (samples sharing a timestamp, as in TCX files), without track simplification. Sessions are encoded into column
+ * chunks on the calling (worker) thread, only the append of encoded row groups to the file is serialized.
+ * <p>
+ * File layout (all numbers little-endian):
+ * <pre>
+ * file      := MAGIC rowGroup* footer footerLength:int32 MAGIC
+ * rowGroup  := chunk[columnCount]             (rows of a single session, at most {@link #ROW_GROUP_ROWS})
+ * chunk     := value[rows]                    (plain fixed-width values of the column type)
+ * footer    := columnCount:int32 column[columnCount]
+ *              dictionarySize:int32 string[dictionarySize]
+ *              rowGroupCount:int32 rowGroupMeta[rowGroupCount]
+ * column    := type:int8 name:string
+ * string    := length:int16 UTF-8 bytes
+ * rowGroupMeta := rows:int32 chunkMeta[columnCount]
+ * chunkMeta := offset:int64 length:int32 hasStats:int8 min:8 bytes max:8 bytes
+ * </pre>
+ * Chunk statistics ignore null values, and are stored as int64 for integer columns and float64 for floating-point ones.
+ * Nulls are NaN for floating-point columns and the minimum value of the type for integer columns.
+ * The session column holds indexes into the session ID dictionary of the footer.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class ColumnarExportWriter implements Closeable
+{
+
+	public static final byte[]	MAGIC			= "RTCOLS01".getBytes(StandardCharsets.US_ASCII);
+	public static final int		ROW_GROUP_ROWS	= 64 * 1024;
+
+	public static final byte	INT16			= 1;
+	public static final byte	INT32			= 2;
+	public static final byte	INT64			= 3;
+	public static final byte	FLOAT32			= 4;
+	public static final byte	FLOAT64			= 5;
+
+	public static final String[]	COLUMNS		= { "session", "time", "latitude", "longitude", "altitude", "distance", "heart_rate", "speed_kmh" };
+	public static final byte[]		TYPES		= { INT32, INT64, FLOAT64, FLOAT64, FLOAT32, INT32, INT16, FLOAT32 };
+
+	private final Path					file;
+	private final OutputStream			os;
+	private final Map<String, Integer>	dictionary	= new HashMap<>();
+	private final List<String>			ids			= new ArrayList<>();
+	private final List<RowGroup>		rowGroups	= new ArrayList<>();
+	private long						offset;
+	private long						rows;
+	private boolean						closed;
+
+	public ColumnarExportWriter(Path file) throws IOException
+	{
+		this.file = file;
+		this.os = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+		os.write(MAGIC);
+		offset = MAGIC.length;
+	}
+
+	public Path getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Number of rows written so far.
+	 */
+	public synchronized long getRows()
+	{
+		return rows;
+	}
+
+	/**
+	 * Encode the samples of a session and append them as one or more row groups.
+	 * Sessions without JSON GPS data use the points of their source GPX track, if any.
+	 * @return number of written rows
+	 */
+	public long write(SportSession session) throws IOException
+	{
+		try (StageEvents.MarshalSession event = new StageEvents.MarshalSession("columnar"))
+		{
+			event.start();
+			List<GpsData> gpsData = session.getGpsData() != null ? session.getGpsData()
+				: session.getGpx() == null && session.getRawGpx() != null ? toGpsData(session.getRawGpx()) : toGpsData(session.getGpx());
+			List<HeartRateData> heartRateData = session.getHeartRateData();
+			SampleMerger merger = SampleMerger.of(gpsData, GpsData::getTimestamp, heartRateData, HeartRateData::getTimestamp);
+			int count = 0;
+			while (merger.next())
+				count++;
+			merger.reset();
+			if (count == 0)
+			{
+				event.end(session.getId(), 0, 0);
+				return 0;
+			}
+
+			int code = code(session.getId() != null ? session.getId() : "");
+			Trackpoint point = new Trackpoint();
+			long bytes = 0;
+			for (int start = 0; start < count; start += ROW_GROUP_ROWS)
+			{
+				int n = Math.min(ROW_GROUP_ROWS, count - start);
+				ColumnChunk[] chunks = new ColumnChunk[COLUMNS.length];
+				for (int c = 0; c < chunks.length; c++)
+					chunks[c] = new ColumnChunk(TYPES[c], n);
+				for (int i = 0; i < n; i++)
+				{
+					merger.next();
+					point.fill(merger, gpsData, heartRateData);
+					chunks[0].putInt(code);
+					chunks[1].putLong(point.getTime());
+					chunks[2].putDouble(point.getLatitude());
+					chunks[3].putDouble(point.getLongitude());
+					chunks[4].putFloat(point.getAltitude());
+					chunks[5].putInt(point.getDistance());
+					chunks[6].putShort(point.getHeartRate());
+					chunks[7].putFloat(point.getSpeed());
+				}
+				bytes += append(n, chunks);
+			}
+			event.end(session.getId(), bytes, count);
+			return count;
+		}
+	}
+
+	private synchronized int code(String id)
+	{
+		Integer code = dictionary.get(id);
+		if (code == null)
+		{
+			code = ids.size();
+			dictionary.put(id, code);
+			ids.add(id);
+		}
+		return code;
+	}
+
+	private synchronized long append(int n, ColumnChunk[] chunks) throws IOException
+	{
+		if (closed)
+			throw new IOException("Export '" + file + "' is already closed");
+		long start = offset;
+		long[] offsets = new long[chunks.length];
+		for (int c = 0; c < chunks.length; c++)
+		{
+			offsets[c] = offset;
+			chunks[c].length = chunks[c].buffer.position();
+			os.write(chunks[c].buffer.array(), 0, chunks[c].length);
+			chunks[c].buffer = null;
+			offset += chunks[c].length;
+		}
+		rowGroups.add(new RowGroup(n, offsets, chunks));
+		rows += n;
+		return offset - start;
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (closed)
+			return;
+		closed = true;
+		try
+		{
+			ByteArrayOutputStream footer = new ByteArrayOutputStream();
+			writeInt(footer, COLUMNS.length);
+			for (int c = 0; c < COLUMNS.length; c++)
+			{
+				footer.write(TYPES[c]);
+				writeString(footer, COLUMNS[c]);
+			}
+			writeInt(footer, ids.size());
+			for (String id : ids)
+				writeString(footer, id);
+			writeInt(footer, rowGroups.size());
+			for (RowGroup rowGroup : rowGroups)
+			{
+				writeInt(footer, rowGroup.rows);
+				for (int c = 0; c < COLUMNS.length; c++)
+				{
+					ColumnChunk chunk = rowGroup.chunks[c];
+					writeLong(footer, rowGroup.offsets[c]);
+					writeInt(footer, chunk.length);
+					footer.write(chunk.hasStats ? 1 : 0);
+					writeLong(footer, chunk.minBits());
+					writeLong(footer, chunk.maxBits());
+				}
+			}
+			footer.writeTo(os);
+			writeInt(os, footer.size());
+			os.write(MAGIC);
+		}
+		finally
+		{
+			os.close();
+		}
+	}
+
+	/**
+	 * Convert the points of a source GPX track to GPS samples, skipping points without time.
+	 */
+	private static List<GpsData> toGpsData(GpxType gpx)
+	{
+		if (gpx == null)
+			return Collections.emptyList();
+		List<GpsData> gpsData = new ArrayList<>();
+		for (TrkType trk : gpx.getTrk())
+		{
+			for (TrksegType trkseg : trk.getTrkseg())
+			{
+				for (WptType wpt : trkseg.getTrkpt())
+				{
+					if (wpt.getTime() == null)
+						continue;
+					GpsData gps = new GpsData();
+					gps.setTimestamp(new Date(wpt.getTime().toGregorianCalendar().getTimeInMillis()));
+					gps.setLatitude(wpt.getLat());
+					gps.setLongitude(wpt.getLon());
+					gps.setAltitude(wpt.getEle());
+					gpsData.add(gps);
+				}
+			}
+		}
+		return gpsData;
+	}
+
+	/**
+	 * Read the points of a source GPX file as GPS samples, skipping points without time.
+	 */
+	private static List<GpsData> toGpsData(RawGpxTrack track) throws IOException
+	{
+		List<GpsData> gpsData = new ArrayList<>((int) track.getPoints());
+		RawGpxReader.forEachTrackpoint(track.getFile(), (lat, lon, ele, time) -> {
+			if (time == null)
+				return;
+			GpsData gps = new GpsData();
+			gps.setTimestamp(DatatypeConverter.parseDateTime(time).getTime());
+			gps.setLatitude(lat);
+			gps.setLongitude(lon);
+			gps.setAltitude(ele);
+			gpsData.add(gps);
+		});
+		return gpsData;
+	}
+
+	private static void writeString(OutputStream os, String value) throws IOException
+	{
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeShort(os, bytes.length);
+		os.write(bytes);
+	}
+
+	private static void writeShort(OutputStream os, int v) throws IOException
+	{
+		os.write(v & 0xFF);
+		os.write((v >>> 8) & 0xFF);
+	}
+
+	private static void writeInt(OutputStream os, long v) throws IOException
+	{
+		writeShort(os, (int) (v & 0xFFFF));
+		writeShort(os, (int) ((v >>> 16) & 0xFFFF));
+	}
+
+	private static void writeLong(OutputStream os, long v) throws IOException
+	{
+		writeInt(os, v & 0xFFFFFFFFL);
+		writeInt(os, v >>> 32);
+	}
+
+	private static class RowGroup
+	{
+		final int			rows;
+		final long[]		offsets;
+		final ColumnChunk[]	chunks;
+
+		RowGroup(int rows, long[] offsets, ColumnChunk[] chunks)
+		{
+			this.rows = rows;
+			this.offsets = offsets;
+			this.chunks = chunks;
+		}
+	}
+
+	/**
+	 * Column chunk being encoded, with its min/max statistics. Only statistics are kept once the chunk is written.
+	 */
+	private static class ColumnChunk
+	{
+		final byte	type;
+		ByteBuffer	buffer;
+		int			length;
+		boolean		hasStats;
+		long		minLong		= Long.MAX_VALUE;
+		long		maxLong		= Long.MIN_VALUE;
+		double		minDouble	= Double.POSITIVE_INFINITY;
+		double		maxDouble	= Double.NEGATIVE_INFINITY;
+
+		ColumnChunk(byte type, int rows)
+		{
+			this.type = type;
+			this.buffer = ByteBuffer.allocate(rows * width(type)).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		static int width(byte type)
+		{
+			switch (type)
+			{
+				case INT16:
+					return 2;
+				case INT32:
+				case FLOAT32:
+					return 4;
+				default:
+					return 8;
+			}
+		}
+
+		void putShort(Integer value)
+		{
+			short s = value != null ? (short) Math.max(Short.MIN_VALUE + 1, Math.min(Short.MAX_VALUE, value)) : Short.MIN_VALUE;
+			if (value != null)
+				stats(s);
+			buffer.putShort(s);
+		}
+
+		void putInt(Integer value)
+		{
+			if (value != null)
+				stats(value);
+			buffer.putInt(value != null ? value : Integer.MIN_VALUE);
+		}
+
+		void putLong(long value)
+		{
+			stats(value);
+			buffer.putLong(value);
+		}
+
+		void putFloat(BigDecimal value)
+		{
+			float f = value != null ? value.floatValue() : Float.NaN;
+			if (!Float.isNaN(f))
+				stats(f);
+			buffer.putFloat(f);
+		}
+
+		void putDouble(BigDecimal value)
+		{
+			double d = value != null ? value.doubleValue() : Double.NaN;
+			if (!Double.isNaN(d))
+				stats(d);
+			buffer.putDouble(d);
+		}
+
+		private void stats(long value)
+		{
+			hasStats = true;
+			minLong = Math.min(minLong, value);
+			maxLong = Math.max(maxLong, value);
+		}
+
+		private void stats(double value)
+		{
+			hasStats = true;
+			minDouble = Math.min(minDouble, value);
+			maxDouble = Math.max(maxDouble, value);
+		}
+
+		long minBits()
+		{
+			if (!hasStats)
+				return 0;
+			return type == FLOAT32 || type == FLOAT64 ? Double.doubleToLongBits(minDouble) : minLong;
+		}
+
+		long maxBits()
+		{
+			if (!hasStats)
+				return 0;
+			return type == FLOAT32 || type == FLOAT64 ? Double.doubleToLongBits(maxDouble) : maxLong;
+		}
+	}
+}
@@ -1,36 +1,64 @@
 package me.crespel.runtastic.converter;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import java.util.zip.GZIPOutputStream;
 
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.filefilter.SuffixFileFilter;
 
 import com.topografix.gpx._1._1.BoundsType;
 
 import me.crespel.runtastic.RuntasticExportConverter;
 import me.crespel.runtastic.mapper.DelegatingSportSessionMapper;
-import me.crespel.runtastic.mapper.SportSessionMapper;
+import me.crespel.runtastic.mapper.SampleOrderException;
+import me.crespel.runtastic.mapper.TrackpointCursor;
+import me.crespel.runtastic.model.ExportManifest;
 import me.crespel.runtastic.model.Shoe;
 import me.crespel.runtastic.model.SportSession;
 import me.crespel.runtastic.model.User;
+import me.crespel.runtastic.monitoring.ConverterMetrics;
+import me.crespel.runtastic.monitoring.ProgressReporter;
+import me.crespel.runtastic.monitoring.StageEvents;
 import me.crespel.runtastic.parser.SportSessionParser;
 import me.crespel.strava.model.ExportMetadata;
 
@@ -53,14 +81,44 @@ public class ExportConverter
 	public static final String	DEFAULT_FORMAT					= "tcx";
 	public static final String	SHOES_DIR						= USER_DIR + File.separator + "Shoes";
 	public static final String	GEAR_MAP						= SHOES_DIR + File.separator + "gear_map.properties";
+	public static final String	ARCHIVE_ZIP						= "zip";
+	public static final String	ARCHIVE_ZIP_PER_YEAR			= "zip-year";
+	public static final String	ARCHIVE_NDJSON					= "ndjson";
+	public static final String	ARCHIVE_COLUMNAR				= "columnar";
+	public static final String	GEOJSON_FORMAT					= "geojson";
+	public static final String	MANIFEST_PREFIX					= "manifest-";
 
-	public final SportSessionParser			parser	= new SportSessionParser();
-	protected final SportSessionMapper<?>	mapper	= new DelegatingSportSessionMapper();
+	public final SportSessionParser					parser				= new SportSessionParser(true);	// source GPX tracks are copied, not unmarshalled
+	protected final DelegatingSportSessionMapper	mapper				= new DelegatingSportSessionMapper();
+	public ShardSpec								shard;	// optional subset of sessions to process (null for all)
+	public Duration									progressInterval	= ProgressReporter.DEFAULT_INTERVAL;	// null or zero to disable progress reports
 
-	public List<SportSession> listSportSessions(File path, boolean full) throws FileNotFoundException, IOException
+	/**
+	 * Simplify GPS tracks of converted sessions, with the given tolerance in metres (0 to disable).
+	 */
+	public void setSimplifyTolerance(double tolerance)
+	{
+		mapper.setSimplifyTolerance(tolerance);
+	}
+
+	/**
+	 * List sport session files of an export, restricted to the current shard if any.
+	 */
+	public Stream<Path> listSportSessionFiles(File path) throws FileNotFoundException, IOException
+	{
+		return listSportSessionFiles(path, shard);
+	}
+
+	public Stream<Path> listSportSessionFiles(File path, ShardSpec shard) throws FileNotFoundException, IOException
 	{
 		return Files.list(normalizeExportPath(path, SPORT_SESSIONS_DIR).toPath())
-			.filter(file -> file.getFileName().toString().endsWith(".json"))
+			.filter(p -> p.getFileName().toString().endsWith(".json"))
+			.filter(p -> shard == null || shard.accepts(FilenameUtils.getBaseName(p.getFileName().toString())));
+	}
+
+	public List<SportSession> listSportSessions(File path, boolean full) throws FileNotFoundException, IOException
+	{
+		return listSportSessionFiles(path)
 			.parallel()
 			.map(file -> {
 				try
@@ -90,48 +148,182 @@ public class ExportConverter
 
 	public List<SportSession> convertSportSessions(File path, String format) throws FileNotFoundException, IOException
 	{
-		return Files.list(normalizeExportPath(path, SPORT_SESSIONS_DIR).toPath())
-			.filter(p -> p.getFileName().toString().endsWith(".json"))
-			.parallel()
-			.map(file -> {
-				try
-				{
-					return parser.parseSportSession(file.toFile(), true);
-				}
-				catch (IOException ex)
-				{
-					ex.printStackTrace();
-					return null;
-				}
-			})
-			.filter(s -> s != null)
-			.map(session -> {
-				if (session.getGpsData() != null || session.getHeartRateData() != null || session.getGpx() != null)
+		return convertSportSessions(path, format, shard);
+	}
+
+	public List<SportSession> convertSportSessions(File path, String format, ShardSpec shard) throws FileNotFoundException, IOException
+	{
+		List<SportSessionFile> files = scanSportSessionFiles(path, shard);
+		ConverterMetrics metrics = ConverterMetrics.get();
+		metrics.conversionQueued(files.size());
+		return LargestFirstScheduler.map(files, SportSessionFile::getSize, file -> {
+			metrics.conversionStarted();
+			SportSession session = parseSportSession(file);
+			if (session != null && (session.getGpsData() != null || session.getHeartRateData() != null || session.hasSourceGpx()))
+			{
+				// bounds of sessions with a source GPX track only are already known from its scan
+				if (session.getGpsData() != null || session.getRawGpx() == null)
 					mapper.mapSportSession(session, format);
-				return session;
-			}).collect(Collectors.toList());
+				metrics.sessionConverted(countPoints(session));
+			}
+			return session;
+		});
+	}
+
+	/**
+	 * Scan sport session files of an export, along with the total size of their sidecar data files.
+	 * @return session files restricted to the given shard (if any), largest first
+	 */
+	public List<SportSessionFile> scanSportSessionFiles(File path, ShardSpec shard) throws FileNotFoundException, IOException
+	{
+		File dir = normalizeExportPath(path, SPORT_SESSIONS_DIR);
+		Map<String, Long> sizes = new HashMap<>();
+		for (String sidecarDir : new String[] { SportSessionParser.GPS_DATA_DIR, SportSessionParser.HEARTRATE_DATA_DIR, SportSessionParser.ELEVATION_DATA_DIR })
+		{
+			Path sidecarPath = new File(dir, sidecarDir).toPath();
+			if (Files.isDirectory(sidecarPath))
+				scanFileSizes(sidecarPath, (p, size) -> sizes.merge(FilenameUtils.getBaseName(p.getFileName().toString()), size, Long::sum));
+		}
+		List<SportSessionFile> files = new ArrayList<>();
+		scanFileSizes(dir.toPath(), (p, size) -> {
+			String name = p.getFileName().toString();
+			if (!name.endsWith(".json"))
+				return;
+			String id = FilenameUtils.getBaseName(name);
+			if (shard == null || shard.accepts(id))
+				files.add(new SportSessionFile(id, p, size + sizes.getOrDefault(id, 0L)));
+		});
+		files.sort(Comparator.comparingLong(SportSessionFile::getSize).reversed());
+		return files;
+	}
+
+	private static void scanFileSizes(Path dir, BiConsumer<Path, Long> consumer) throws IOException
+	{
+		Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+			{
+				if (attrs.isRegularFile())
+					consumer.accept(file, attrs.size());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private SportSession parseSportSession(SportSessionFile file)
+	{
+		try
+		{
+			return parser.parseSportSession(file.getFile().toFile(), true);
+		}
+		catch (IOException ex)
+		{
+			ex.printStackTrace();
+			ConverterMetrics.get().sessionFailed();
+			return null;
+		}
 	}
 
+	/**
+	 * Export a sport session to a file, or to a directory in one or more comma-separated formats.
+	 */
 	public void exportSportSession(SportSession session, File dest, String format) throws FileNotFoundException, IOException
 	{
-		if (dest.isDirectory())
+		List<String> formats = parseFormats(format);
+		if (formats.size() > 1 && !dest.isDirectory())
+			throw new IllegalArgumentException("Destination '" + dest + "' must be a directory to export several formats");
+		for (String f : formats)
 		{
-			dest = new File(dest, buildFileName(session, format));
+			File file = dest.isDirectory() ? new File(dest, buildFileName(session, f)) : dest;
+			mapper.mapSportSession(session, f, file);
 		}
-		mapper.mapSportSession(session, format, dest);
 	}
 
+	/**
+	 * Export a sport session of an export. Without track simplification, formats supported by point-oriented mappers
+	 * (GPX, TCX) are written from a cursor over the sidecar files, without loading the samples of the session in memory.
+	 * Sessions with samples too far out of time order to be merged on the fly are written from memory instead, so that
+	 * the output is the same as when exporting all sessions.
+	 */
 	public void exportSportSession(File path, String id, File dest, String format) throws FileNotFoundException, IOException
 	{
-		SportSession session = parser.parseSportSession(new File(normalizeExportPath(path, SPORT_SESSIONS_DIR), id + ".json"), true);
-		exportSportSession(session, dest, format);
+		File file = new File(normalizeExportPath(path, SPORT_SESSIONS_DIR), id + ".json");
+		List<String> formats = parseFormats(format);
+		if (mapper.getSimplifyTolerance() > 0 || !formats.stream().allMatch(mapper::supportsTrackpoints))
+		{
+			exportSportSession(parser.parseSportSession(file, true), dest, format);
+			return;
+		}
+		if (formats.size() > 1 && !dest.isDirectory())
+			throw new IllegalArgumentException("Destination '" + dest + "' must be a directory to export several formats");
+		SportSession header = parser.parseSportSessionHeader(file);
+		SportSession session = null;
+		for (String f : formats)
+		{
+			File out = dest.isDirectory() ? new File(dest, buildFileName(header, f)) : dest;
+			try (TrackpointCursor trackpoints = parser.openTrackpoints(file, mapper.mergesHeartRate(f));
+				OutputStream os = new BufferedOutputStream(new FileOutputStream(out), 64 * 1024))
+			{
+				mapper.mapSportSession(header, trackpoints, f, os);
+				continue;
+			}
+			catch (SampleOrderException e)
+			{
+				// Fall back to merging the samples in memory, after a full sort
+			}
+			if (session == null)
+				session = parser.parseSportSession(file, true);
+			mapper.mapSportSession(session, f, out);
+		}
 	}
 
 	public int exportSportSessions(File path, File dest, String format, boolean withMetadata) throws FileNotFoundException, IOException
 	{
+		return exportSportSessions(path, dest, format, withMetadata, null);
+	}
+
+	public int exportSportSessions(File path, File dest, String format, boolean withMetadata, String archive) throws FileNotFoundException, IOException
+	{
+		return exportSportSessions(path, dest, format, withMetadata, archive, null);
+	}
+
+	/**
+	 * Export all sport sessions.
+	 * @param format output format, or a comma-separated list of formats: each session is then parsed once, and
+	 *        written in all formats concurrently (e.g. 'gpx,tcx'), except in NDJSON and columnar modes
+	 * @param archive null to write one file per session in the destination directory,
+	 *        {@link #ARCHIVE_ZIP} to stream all sessions into a single ZIP archive,
+	 *        {@link #ARCHIVE_ZIP_PER_YEAR} to stream sessions into one ZIP archive per year,
+	 *        {@link #ARCHIVE_NDJSON} to write all sessions as GeoJSON features into a single newline-delimited file (without metadata),
+	 *        {@link #ARCHIVE_COLUMNAR} (also accepted as format) to write all samples into a single columnar dataset, see {@link ColumnarExportWriter}
+	 * @param manifest optional manifest receiving exported sessions and statistics
+	 */
+	public int exportSportSessions(File path, File dest, String format, boolean withMetadata, String archive, ExportManifest manifest) throws FileNotFoundException, IOException
+	{
+		boolean zipPerYear = ARCHIVE_ZIP_PER_YEAR.equalsIgnoreCase(archive);
+		boolean zip = zipPerYear || ARCHIVE_ZIP.equalsIgnoreCase(archive);
+		boolean ndjson = ARCHIVE_NDJSON.equalsIgnoreCase(archive);
+		boolean columnar = ARCHIVE_COLUMNAR.equalsIgnoreCase(archive) || ARCHIVE_COLUMNAR.equalsIgnoreCase(format);
+		File singleArchive = null;
+		if ((zip && !zipPerYear && dest.getName().toLowerCase().endsWith(".zip")) || (ndjson && dest.getName().toLowerCase().endsWith(".ndjson"))
+			|| (columnar && dest.getName().toLowerCase().endsWith(".rtcol")))
+		{
+			singleArchive = dest;
+			dest = dest.getAbsoluteFile().getParentFile();
+		}
+		if (ndjson)
+		{
+			if (format == null || "auto".equalsIgnoreCase(format))
+				format = GEOJSON_FORMAT;
+			else if (!GEOJSON_FORMAT.equalsIgnoreCase(format))
+				throw new IllegalArgumentException("NDJSON export only supports the '" + GEOJSON_FORMAT + "' format");
+		}
 		if (dest.exists() && !dest.isDirectory())
 			throw new IllegalArgumentException("Destination '" + dest + "' is not a valid directory");
-		boolean autoFormat = "auto".equalsIgnoreCase(format);
+		List<String> formats = parseFormats(format);
+		if ((ndjson || columnar) && formats.size() > 1)
+			throw new IllegalArgumentException("Several formats cannot be exported in NDJSON or columnar mode");
 		dest.mkdirs();
 		File gearMapFile = new File(path, GEAR_MAP);
 		Properties gearMap = null;
@@ -178,86 +370,358 @@ public class ExportConverter
 		}
 		Map<String, Shoe> activityToShoeMapFinal = activityToShoeMap;
 		Properties gearMapFinal = gearMap;
-		int total = (int) Files.list(normalizeExportPath(path, SPORT_SESSIONS_DIR).toPath())
-			.filter(p -> p.getFileName().toString().endsWith(".json"))
-			.count();
-		AtomicInteger counter = new AtomicInteger();
-		return (int) Files.list(normalizeExportPath(path, SPORT_SESSIONS_DIR).toPath())
-			.filter(p -> p.getFileName().toString().endsWith(".json"))
-			.parallel()
-			.map(file -> {
-				try
-				{
-					return parser.parseSportSession(file.toFile(), true);
-				}
-				catch (IOException ex)
+		File destFinal = dest;
+		File singleArchiveFinal = singleArchive;
+		Map<String, ZipExportWriter> archives = new ConcurrentHashMap<>();
+		NdjsonExportWriter ndjsonWriter = ndjson ? new NdjsonExportWriter(new File(dest, singleArchive != null ? singleArchive.getName() : "runtastic.ndjson").toPath()) : null;
+		ColumnarExportWriter columnarWriter = columnar ? new ColumnarExportWriter(new File(dest, singleArchive != null ? singleArchive.getName() : "runtastic.rtcol").toPath()) : null;
+		String formatFinal = format;
+		List<SportSessionFile> files = scanSportSessionFiles(path, shard);
+		ConverterMetrics metrics = ConverterMetrics.get();
+		metrics.conversionQueued(files.size());
+		ProgressReporter progress = ProgressReporter.forConversion(files.size(), progressInterval);
+		try
+		{
+			return LargestFirstScheduler.mapIndexed(files, SportSessionFile::getSize, (index, file) -> {
+				metrics.conversionStarted();
+				SportSession session = parseSportSession(file);
+				if (session == null)
 				{
-					ex.printStackTrace();
+					if (ndjsonWriter != null)
+						releaseLine(ndjsonWriter, index);
 					return null;
 				}
-			})
-			.filter(s -> s != null)
-			.map(session -> {
 				ZonedDateTime now = ZonedDateTime.now();
-				String effFormat = format;
-				if (autoFormat)
+				Shoe shoe = activityToShoeMapFinal != null ? activityToShoeMapFinal.get(session.id) : null;
+				ExportManifest.Entry entry = ExportManifest.Entry.of(session);
+				if (columnar)
 				{
-					if (session.distance > 0 && (session.gpx != null || session.gpsData != null))
-						effFormat = "gpx";
-					else
-						effFormat = "tcx";
+					try
+					{
+						columnarWriter.write(session);
+						entry.files.add(columnarWriter.getFile().getFileName().toString());
+					}
+					catch (IOException ex)
+					{
+						ex.printStackTrace();
+						metrics.sessionFailed();
+						return null;
+					}
 				}
-				String fileName = buildFileName(session, effFormat);
-				Path activityFile = new File(dest, fileName).toPath();
-				mapper.mapSportSession(session, effFormat, activityFile.toFile());
-				if (withMetadata)
+				else if (ndjson)
 				{
-					ExportMetadata metaData = new ExportMetadata();
-					metaData.name = RuntasticExportConverter.mapPartOfDay(session.startTime) + " " + RuntasticExportConverter.mapSportType(session.sportTypeId);
-					metaData.externalId = session.id;
-					metaData.description = "Imported from Adidas Running (Runtastic) at " + now + " through my automated script (original:" + session.id + ")";
-					metaData.sportType = RuntasticExportConverter.mapToStravaSportType(session.sportTypeId);
-					metaData.dataType = effFormat;
 					try
 					{
-						activityFile = gzip(activityFile);
-						metaData.dataType += ".gz";
+						ByteArrayOutputStream bos = new ByteArrayOutputStream(64 * 1024);
+						mapper.mapSportSession(session, formatFinal, bos);
+						bos.write('\n');
+						ndjsonWriter.write(index, bos.toByteArray());
+						entry.files.add(ndjsonWriter.getFile().getFileName().toString());
 					}
 					catch (IOException ex)
 					{
 						ex.printStackTrace();
+						metrics.sessionFailed();
+						return null;
 					}
-					metaData.fileName = activityFile.getFileName().toString();
-					if (activityToShoeMapFinal != null)
+					finally
 					{
-						Shoe shoe = activityToShoeMapFinal.get(session.id);
-						if (shoe != null)
-						{
-							metaData.shoe = shoe.id;
-							if (gearMapFinal != null)
-							{
-								String gearID = gearMapFinal.getProperty(shoe.id);
-								if (gearID != null)
-									metaData.gearId = gearID;
-							}
-						}
+						releaseLine(ndjsonWriter, index);
 					}
+				}
+				else
+				{
 					try
 					{
-						this.parser.mapper.writeValue(dest.toPath().resolve(fileName + ".meta").toFile(), metaData);
+						List<String> effFormats = resolveFormats(formats, session);
+						if (zip)
+						{
+							ZipExportWriter archiveWriter = getArchive(archives, destFinal, singleArchiveFinal, zipPerYear ? session : null);
+							ExportManifest.Entry indexEntry = ExportManifest.Entry.of(session);
+							indexEntry.files.addAll(exportFormats(session, effFormats, withMetadata, now, shoe, gearMapFinal, null, archiveWriter));
+							archiveWriter.index(indexEntry);
+							for (String name : indexEntry.files)
+								entry.files.add(archiveWriter.getFile().getFileName() + "!/" + name);
+						}
+						else
+						{
+							entry.files.addAll(exportFormats(session, effFormats, withMetadata, now, shoe, gearMapFinal, destFinal, null));
+						}
 					}
-					catch (Exception ex)
+					catch (IOException ex)
 					{
 						ex.printStackTrace();
+						metrics.sessionFailed();
+						return null;
 					}
 				}
-				int c = counter.incrementAndGet();
-				if (c % 5 == 0)
-					System.out.println(ZonedDateTime.now() + " - Converted " + c + " / " + total + " (" + (c * 100 / total) + "%) sessions");
+				if (manifest != null)
+				{
+					manifest.add(entry);
+					manifest.statistics.add(session);
+				}
+				metrics.sessionConverted(countPoints(session));
 				return session;
-			})
-			.filter(s -> s != null)
-			.count();
+			}).size();
+		}
+		finally
+		{
+			progress.close();
+			for (ZipExportWriter archiveWriter : archives.values())
+			{
+				archiveWriter.close();
+				System.out.println(" + Written archive '" + archiveWriter.getFile() + "'");
+			}
+			if (columnarWriter != null)
+			{
+				columnarWriter.close();
+				System.out.println(" + Written " + columnarWriter.getRows() + " track point(s) to '" + columnarWriter.getFile() + "'");
+			}
+			if (ndjsonWriter != null)
+			{
+				ndjsonWriter.close();
+				System.out.println(" + Written " + ndjsonWriter.getLines() + " feature(s) to '" + ndjsonWriter.getFile() + "'");
+			}
+		}
+	}
+
+	/**
+	 * Count the GPS (from JSON or GPX) and heart rate samples of a session.
+	 */
+	private static long countPoints(SportSession session)
+	{
+		long points = 0;
+		if (session.getGpsData() != null)
+			points += session.getGpsData().size();
+		else if (session.getGpx() != null)
+			points += SportSessionParser.countTrackPoints(session.getGpx());
+		else if (session.getRawGpx() != null)
+			points += session.getRawGpx().getPoints();
+		if (session.getHeartRateData() != null)
+			points += session.getHeartRateData().size();
+		return points;
+	}
+
+	/**
+	 * Release the line of a session that was not written, so that later lines can be committed.
+	 */
+	private static void releaseLine(NdjsonExportWriter writer, int index)
+	{
+		try
+		{
+			writer.release(index);
+		}
+		catch (IOException ex)
+		{
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Export a sport session in several formats concurrently, either into a ZIP archive or as files of a directory.
+	 * The session is only read by the mappers, so that they can share it without copying.
+	 * @return names of the written files or archive entries, in format order
+	 */
+	protected List<String> exportFormats(SportSession session, List<String> formats, boolean withMetadata, ZonedDateTime now, Shoe shoe, Properties gearMap, File dest, ZipExportWriter archive) throws IOException
+	{
+		AtomicReferenceArray<List<String>> written = new AtomicReferenceArray<>(formats.size());
+		try
+		{
+			IntStream.range(0, formats.size()).parallel().forEach(i -> {
+				String format = formats.get(i);
+				String fileName = buildFileName(session, format);
+				try
+				{
+					if (archive != null)
+						written.set(i, exportSportSession(session, format, fileName, withMetadata, now, shoe, gearMap, archive));
+					else
+						written.set(i, exportSportSession(session, format, fileName, withMetadata, now, shoe, gearMap, dest));
+				}
+				catch (IOException ex)
+				{
+					throw new UncheckedIOException(ex);
+				}
+			});
+		}
+		catch (UncheckedIOException ex)
+		{
+			throw ex.getCause();
+		}
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < written.length(); i++)
+			names.addAll(written.get(i));
+		return names;
+	}
+
+	/**
+	 * Export a single sport session as files of a directory, along with its gzipped copy and metadata if requested.
+	 * @return names of the written files
+	 */
+	protected List<String> exportSportSession(SportSession session, String format, String fileName, boolean withMetadata, ZonedDateTime now, Shoe shoe, Properties gearMap, File dest)
+	{
+		List<String> names = new ArrayList<>();
+		Path activityFile = new File(dest, fileName).toPath();
+		mapper.mapSportSession(session, format, activityFile.toFile());
+		names.add(fileName);
+		if (withMetadata)
+		{
+			ExportMetadata metaData = buildMetadata(session, format, now, shoe, gearMap);
+			try
+			{
+				try (StageEvents.Gzip gzipEvent = new StageEvents.Gzip())
+				{
+					gzipEvent.start();
+					activityFile = gzip(activityFile);
+					gzipEvent.end(session.getId(), Files.size(activityFile), 0);
+				}
+				metaData.dataType += ".gz";
+				names.add(activityFile.getFileName().toString());
+			}
+			catch (IOException ex)
+			{
+				ex.printStackTrace();
+			}
+			metaData.fileName = activityFile.getFileName().toString();
+			try
+			{
+				try (StageEvents.WriteMeta metaEvent = new StageEvents.WriteMeta())
+				{
+					metaEvent.start();
+					File metaFile = dest.toPath().resolve(fileName + ".meta").toFile();
+					this.parser.mapper.writeValue(metaFile, metaData);
+					metaEvent.end(session.getId(), metaFile.length(), 0);
+				}
+				names.add(fileName + ".meta");
+			}
+			catch (Exception ex)
+			{
+				ex.printStackTrace();
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Export a single sport session as entries of a ZIP archive, without writing any intermediate file.
+	 * @return names of the written entries
+	 */
+	protected List<String> exportSportSession(SportSession session, String format, String fileName, boolean withMetadata, ZonedDateTime now, Shoe shoe, Properties gearMap, ZipExportWriter archive) throws IOException
+	{
+		List<String> names = new ArrayList<>();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(64 * 1024);
+		mapper.mapSportSession(session, format, bos);
+		byte[] activity = bos.toByteArray();
+		archive.write(fileName, activity, true);
+		names.add(fileName);
+		if (withMetadata)
+		{
+			ExportMetadata metaData = buildMetadata(session, format, now, shoe, gearMap);
+			byte[] gzipped;
+			try (StageEvents.Gzip gzipEvent = new StageEvents.Gzip())
+			{
+				gzipEvent.start();
+				gzipped = gzip(activity);
+				gzipEvent.end(session.getId(), gzipped.length, 0);
+			}
+			archive.write(fileName + ".gz", gzipped, false);
+			names.add(fileName + ".gz");
+			metaData.dataType += ".gz";
+			metaData.fileName = fileName + ".gz";
+			try (StageEvents.WriteMeta metaEvent = new StageEvents.WriteMeta())
+			{
+				metaEvent.start();
+				byte[] meta = parser.mapper.writeValueAsBytes(metaData);
+				archive.write(fileName + ".meta", meta, true);
+				metaEvent.end(session.getId(), meta.length, 0);
+			}
+			names.add(fileName + ".meta");
+		}
+		return names;
+	}
+
+	/**
+	 * Split a comma-separated list of formats, {@link #DEFAULT_FORMAT} if none.
+	 */
+	protected static List<String> parseFormats(String format)
+	{
+		List<String> formats = new ArrayList<>();
+		if (format != null)
+		{
+			for (String f : format.split(","))
+			{
+				if (!f.trim().isEmpty())
+					formats.add(f.trim());
+			}
+		}
+		if (formats.isEmpty())
+			formats.add(DEFAULT_FORMAT);
+		return formats;
+	}
+
+	/**
+	 * Resolve 'auto' formats of a session (GPX for sessions with a track, TCX otherwise), removing duplicates.
+	 */
+	protected static List<String> resolveFormats(List<String> formats, SportSession session)
+	{
+		Set<String> resolved = new LinkedHashSet<>();
+		for (String format : formats)
+		{
+			if ("auto".equalsIgnoreCase(format))
+			{
+				if (session.distance > 0 && (session.hasSourceGpx() || session.gpsData != null))
+					format = "gpx";
+				else
+					format = "tcx";
+			}
+			resolved.add(format);
+		}
+		return new ArrayList<>(resolved);
+	}
+
+	protected ExportMetadata buildMetadata(SportSession session, String format, ZonedDateTime now, Shoe shoe, Properties gearMap)
+	{
+		ExportMetadata metaData = new ExportMetadata();
+		metaData.name = RuntasticExportConverter.mapPartOfDay(session.startTime) + " " + RuntasticExportConverter.mapSportType(session.sportTypeId);
+		metaData.externalId = session.id;
+		if (session.startTime != null)
+			metaData.startDate = session.startTime.toInstant().truncatedTo(ChronoUnit.SECONDS).toString();
+		metaData.description = "Imported from Adidas Running (Runtastic) at " + now + " through my automated script (original:" + session.id + ")";
+		metaData.sportType = RuntasticExportConverter.mapToStravaSportType(session.sportTypeId);
+		metaData.dataType = format;
+		if (shoe != null)
+		{
+			metaData.shoe = shoe.id;
+			if (gearMap != null)
+			{
+				String gearID = gearMap.getProperty(shoe.id);
+				if (gearID != null)
+					metaData.gearId = gearID;
+			}
+		}
+		return metaData;
+	}
+
+	private ZipExportWriter getArchive(Map<String, ZipExportWriter> archives, File dest, File singleArchive, SportSession yearOf) throws IOException
+	{
+		String name;
+		if (yearOf != null)
+			name = "runtastic_" + new SimpleDateFormat("yyyy").format(yearOf.getStartTime()) + ".zip";
+		else
+			name = singleArchive != null ? singleArchive.getName() : "runtastic.zip";
+		ZipExportWriter archive = archives.get(name);
+		if (archive == null)
+		{
+			synchronized (archives)
+			{
+				archive = archives.get(name);
+				if (archive == null)
+				{
+					archive = new ZipExportWriter(new File(dest, name).toPath(), parser.mapper);
+					archives.put(name, archive);
+				}
+			}
+		}
+		return archive;
 	}
 
 	// Loop through all sport session and add "overlapping" session to each sport session
@@ -269,63 +733,64 @@ public class ExportConverter
 		// - Session D, overlaps only with B and C (this because B & C are in range of D, but not of A)
 		// but expected is that all mention sessions above are calculated as "overlapping"
 		// This circumstance will be "normalized" in a second step.
-		BoundsType bounds;
-		BoundsType bounds2;
-		BigDecimal diffMaxlat;
-		BigDecimal diffMaxlon;
-		BigDecimal diffMinlat;
-		BigDecimal diffMinlon;
-		List<SportSession> overlapSessions = null;
-		for (SportSession session : sessions)
+		try (StageEvents.OverlapAnalysis event = new StageEvents.OverlapAnalysis())
 		{
-			if (session.getGpx() == null ||
-				session.getGpx().getMetadata() == null ||
-				session.getGpx().getMetadata().getBounds() == null)
-				continue;
-			overlapSessions = null;
-			for (SportSession session2 : sessions)
+			event.start();
+			BoundsType bounds;
+			BoundsType bounds2;
+			BigDecimal diffMaxlat;
+			BigDecimal diffMaxlon;
+			BigDecimal diffMinlat;
+			BigDecimal diffMinlon;
+			List<SportSession> overlapSessions = null;
+			for (SportSession session : sessions)
 			{
-				if (session.getId().equals(session2.getId()) ||
-					!session.hasTimeOverlap(session2, 5 * 60) ||
-					session2.getGpx() == null ||
-					session2.getGpx().getMetadata() == null ||
-					session2.getGpx().getMetadata().getBounds() == null)
+				if (session.getBounds() == null)
 					continue;
+				overlapSessions = null;
+				for (SportSession session2 : sessions)
+				{
+					if (session.getId().equals(session2.getId()) ||
+						!session.hasTimeOverlap(session2, 5 * 60) ||
+						session2.getBounds() == null)
+						continue;
 
-				bounds = session.getGpx().getMetadata().getBounds();
-				bounds2 = session2.getGpx().getMetadata().getBounds();
-				if (bounds.getMaxlat() == null || bounds2.getMaxlat() == null)
-					continue;
+					bounds = session.getBounds();
+					bounds2 = session2.getBounds();
+					if (bounds.getMaxlat() == null || bounds2.getMaxlat() == null)
+						continue;
 
-				diffMaxlat = bounds.getMaxlat().subtract(bounds2.getMaxlat()).abs();
-				diffMaxlon = bounds.getMaxlon().subtract(bounds2.getMaxlon()).abs();
-				diffMinlat = bounds.getMinlat().subtract(bounds2.getMinlat()).abs();
-				diffMinlon = bounds.getMinlon().subtract(bounds2.getMinlon()).abs();
-				if ((diffMaxlat.compareTo(diff) < 0) &&
-					(diffMaxlon.compareTo(diff) < 0) &&
-					(diffMinlat.compareTo(diff) < 0) &&
-					(diffMinlon.compareTo(diff) < 0))
-				{
-					if (overlapSessions == null)
-						overlapSessions = new ArrayList<>();
-					// overlapping sport session found
-					overlapSessions.add(session2);
+					diffMaxlat = bounds.getMaxlat().subtract(bounds2.getMaxlat()).abs();
+					diffMaxlon = bounds.getMaxlon().subtract(bounds2.getMaxlon()).abs();
+					diffMinlat = bounds.getMinlat().subtract(bounds2.getMinlat()).abs();
+					diffMinlon = bounds.getMinlon().subtract(bounds2.getMinlon()).abs();
+					if ((diffMaxlat.compareTo(diff) < 0) &&
+						(diffMaxlon.compareTo(diff) < 0) &&
+						(diffMinlat.compareTo(diff) < 0) &&
+						(diffMinlon.compareTo(diff) < 0))
+					{
+						if (overlapSessions == null)
+							overlapSessions = new ArrayList<>();
+						// overlapping sport session found
+						overlapSessions.add(session2);
+					}
 				}
+				if (overlapSessions != null)
+					session.setOverlapSessions(overlapSessions);
 			}
-			if (overlapSessions != null)
-				session.setOverlapSessions(overlapSessions);
-		}
-		// (2) Normalize overlapping sport sessions
-		for (SportSession session : sessions)
-		{
-			if (session.getOverlapSessions() == null)
-				continue;
-			List<SportSession> normalizedOverlapSessions = new ArrayList<>();
-			for (SportSession overlapSession : session.getOverlapSessions())
-				addOverlapSessions(normalizedOverlapSessions, overlapSession);
-			session.setOverlapSessions(normalizedOverlapSessions);
-			// (3) Calculate inner and outer bound (of normalized overlapping sessions)
-			calculateInnerAndOuterBound(session);
+			// (2) Normalize overlapping sport sessions
+			for (SportSession session : sessions)
+			{
+				if (session.getOverlapSessions() == null)
+					continue;
+				List<SportSession> normalizedOverlapSessions = new ArrayList<>();
+				for (SportSession overlapSession : session.getOverlapSessions())
+					addOverlapSessions(normalizedOverlapSessions, overlapSession);
+				session.setOverlapSessions(normalizedOverlapSessions);
+				// (3) Calculate inner and outer bound (of normalized overlapping sessions)
+				calculateInnerAndOuterBound(session);
+			}
+			event.end(null, 0, sessions.size());
 		}
 	}
 
@@ -352,7 +817,7 @@ public class ExportConverter
 			BoundsType outerBounds = null;
 			for (SportSession overlapSession : session.getOverlapSessions())
 			{
-				BoundsType sessionBounds = overlapSession.getGpx().getMetadata().getBounds();;
+				BoundsType sessionBounds = overlapSession.getBounds();
 				if ((innerBounds == null) && (outerBounds == null))
 				{
 					// init bounds with "any" existing bounds from sessions
@@ -402,7 +867,7 @@ public class ExportConverter
 		// (1) search per session for all "adjuncted sessions
 		for (SportSession session : sessions)
 		{
-			if (session.getGpx() != null && session.getGpx().getMetadata() != null && session.getGpx().getMetadata().getBounds() != null)
+			if (session.getBounds() != null)
 			{
 				List<SportSession> compoundSessions = new ArrayList<>();
 				for (SportSession session2 : sessions)
@@ -444,10 +909,10 @@ public class ExportConverter
 
 	public boolean isCompound(SportSession session, SportSession session2)
 	{
-		if ((session2.getGpx() != null && session2.getGpx().getMetadata() != null && session2.getGpx().getMetadata().getBounds() != null))
+		if (session2.getBounds() != null)
 		{
-			BoundsType bounds = session.getGpx().getMetadata().getBounds();
-			BoundsType bounds2 = session2.getGpx().getMetadata().getBounds();
+			BoundsType bounds = session.getBounds();
+			BoundsType bounds2 = session2.getBounds();
 			BigDecimal diffTop = bounds.getMaxlat().subtract(bounds2.getMinlat()).abs();
 			BigDecimal diffRight = bounds.getMaxlon().subtract(bounds2.getMinlon()).abs();
 			BigDecimal diffDown = bounds.getMinlat().subtract(bounds2.getMaxlat()).abs();
@@ -479,6 +944,84 @@ public class ExportConverter
 		}
 	}
 
+	public ExportManifest createManifest(String action)
+	{
+		ExportManifest manifest = new ExportManifest();
+		manifest.action = action;
+		manifest.createdAt = new Date();
+		if (shard != null)
+		{
+			manifest.shard = shard.toString();
+			manifest.shards.add(manifest.shard);
+		}
+		return manifest;
+	}
+
+	public File writeManifest(ExportManifest manifest, File dir) throws IOException
+	{
+		StringBuilder name = new StringBuilder(MANIFEST_PREFIX).append(manifest.action);
+		if (manifest.shard != null)
+			name.append("-shard-").append(manifest.shard.replace("/", "-of-"));
+		File file = new File(dir, name.append(".json").toString());
+		dir.mkdirs();
+		Collections.sort(manifest.sessions, Comparator.comparing((ExportManifest.Entry e) -> e.startTime, Comparator.nullsFirst(Comparator.naturalOrder()))
+			.thenComparing(e -> e.id, Comparator.nullsFirst(Comparator.naturalOrder())));
+		parser.mapper.writerWithDefaultPrettyPrinter().writeValue(file, manifest);
+		return file;
+	}
+
+	/**
+	 * Merge all shard manifests found in a directory, one merged manifest per action.
+	 * @throws IllegalStateException if shards of an action are inconsistent or incomplete
+	 */
+	public List<ExportManifest> mergeManifests(File dir) throws IOException
+	{
+		Map<String, List<ExportManifest>> byAction = new TreeMap<>();
+		for (Path p : Files.list(dir.toPath())
+			.filter(p -> p.getFileName().toString().startsWith(MANIFEST_PREFIX) && p.getFileName().toString().endsWith(".json"))
+			.sorted()
+			.collect(Collectors.toList()))
+		{
+			ExportManifest manifest = parser.mapper.readValue(p.toFile(), ExportManifest.class);
+			if (manifest.shard == null)
+				continue;
+			byAction.computeIfAbsent(manifest.action, a -> new ArrayList<>()).add(manifest);
+		}
+		List<ExportManifest> merged = new ArrayList<>();
+		for (Map.Entry<String, List<ExportManifest>> e : byAction.entrySet())
+		{
+			ExportManifest result = new ExportManifest();
+			result.action = e.getKey();
+			result.createdAt = new Date();
+			Set<Integer> indexes = new TreeSet<>();
+			int count = -1;
+			for (ExportManifest manifest : e.getValue())
+			{
+				ShardSpec spec = ShardSpec.parse(manifest.shard);
+				if (count != -1 && count != spec.getCount())
+					throw new IllegalStateException("Inconsistent shard counts for action '" + e.getKey() + "': " + count + " vs. " + spec.getCount());
+				count = spec.getCount();
+				if (!indexes.add(spec.getIndex()))
+					throw new IllegalStateException("Duplicate manifest for shard " + spec + " of action '" + e.getKey() + "'");
+				result.shards.add(manifest.shard);
+				result.statistics.merge(manifest.statistics);
+				result.sessions.addAll(manifest.sessions);
+			}
+			if (indexes.size() != count)
+			{
+				List<String> missing = new ArrayList<>();
+				for (int i = 1; i <= count; i++)
+				{
+					if (!indexes.contains(i))
+						missing.add(i + "/" + count);
+				}
+				throw new IllegalStateException("Missing shard manifest(s) " + missing + " for action '" + e.getKey() + "'");
+			}
+			merged.add(result);
+		}
+		return merged;
+	}
+
 	protected static File normalizeExportPath(File path, String subpath)
 	{
 		// check if "Sport Session" sub-directory is provided ...
@@ -521,6 +1064,16 @@ public class ExportConverter
 		return files[0];
 	}
 
+	public static byte[] gzip(byte[] input) throws IOException
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(input.length / 4 + 64);
+		try (GZIPOutputStream gzo = new GZIPOutputStream(bos))
+		{
+			gzo.write(input);
+		}
+		return bos.toByteArray();
+	}
+
 	public static Path gzip(Path input) throws IOException
 	{
 		Path compressedFile = input.resolveSibling(input.getFileName().toString() + ".gz");
@@ -0,0 +1,75 @@
+package me.crespel.runtastic.converter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Largest-first parallel work scheduler.
+ * Items are sorted by decreasing weight (e.g. byte size), and worker threads of the common fork/join pool
+ * repeatedly claim the next heaviest remaining item from a shared cursor. Large items are thus started first,
+ * and small items fill the gaps at the end, which keeps a few huge items from finishing last on a single thread.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class LargestFirstScheduler
+{
+
+	private LargestFirstScheduler()
+	{}
+
+	/**
+	 * Function receiving the position of an item in processing order along with the item.
+	 */
+	@FunctionalInterface
+	public interface IndexedFunction<T, R>
+	{
+		R apply(int index, T item);
+	}
+
+	/**
+	 * Apply a function to all items, largest first.
+	 * @return non-null results, in decreasing weight order of their items
+	 */
+	public static <T, R> List<R> map(List<T> items, ToLongFunction<T> weight, Function<T, R> function)
+	{
+		return mapIndexed(items, weight, (index, item) -> function.apply(item));
+	}
+
+	/**
+	 * Apply a function to all items, largest first, passing the position of each item in decreasing weight order.
+	 * Items are claimed in increasing position order, so all items before a given position have already been started
+	 * when it is processed (e.g. to commit results in order with a bounded reordering window).
+	 * @return non-null results, in decreasing weight order of their items
+	 */
+	public static <T, R> List<R> mapIndexed(List<T> items, ToLongFunction<T> weight, IndexedFunction<T, R> function)
+	{
+		List<T> sorted = new ArrayList<>(items);
+		sorted.sort(Comparator.comparingLong(weight).reversed());
+		Object[] results = new Object[sorted.size()];
+		AtomicInteger cursor = new AtomicInteger();
+		int workers = Math.min(sorted.size(), ForkJoinPool.getCommonPoolParallelism() + 1);
+		IntStream.range(0, workers).parallel().forEach(worker -> {
+			int i;
+			while ((i = cursor.getAndIncrement()) < results.length)
+				results[i] = function.apply(i, sorted.get(i));
+		});
+		List<R> list = new ArrayList<>(results.length);
+		for (Object result : Arrays.asList(results))
+		{
+			if (result != null)
+			{
+				@SuppressWarnings("unchecked")
+				R r = (R) result;
+				list.add(r);
+			}
+		}
+		return list;
+	}
+}
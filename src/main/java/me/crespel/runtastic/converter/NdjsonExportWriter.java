@@ -0,0 +1,133 @@
+package me.crespel.runtastic.converter;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Newline-delimited export writer, committing lines produced in parallel in sequence order.
+ * Each sequence number (e.g. the position of a session in processing order) must be either written or released exactly once.
+ * Lines completed ahead of the next sequence to commit are kept in memory, and writers more than {@code window}
+ * sequences ahead wait for the commit to catch up, which bounds memory use whatever the order of completion.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class NdjsonExportWriter implements Closeable
+{
+
+	public static final int	DEFAULT_WINDOW	= 256;
+
+	private static final byte[]	RELEASED	= new byte[0];
+
+	private final Path					file;
+	private final OutputStream			os;
+	private final int					window;
+	private final Map<Integer, byte[]>	pending	= new HashMap<>();
+	private int							next;
+	private long						lines;
+	private boolean						closed;
+
+	public NdjsonExportWriter(Path file) throws IOException
+	{
+		this(file, DEFAULT_WINDOW);
+	}
+
+	public NdjsonExportWriter(Path file, int window) throws IOException
+	{
+		this.file = file;
+		this.window = window;
+		this.os = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+	}
+
+	public Path getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Number of lines written so far.
+	 */
+	public synchronized long getLines()
+	{
+		return lines;
+	}
+
+	/**
+	 * Commit a line, waiting while the sequence is too far ahead of the next one to commit.
+	 * @param sequence sequence number, starting at 0
+	 * @param line line content, including its trailing newline
+	 */
+	public synchronized void write(int sequence, byte[] line) throws IOException
+	{
+		while (sequence - next >= window && !closed)
+		{
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for sequence " + next + " of '" + file + "'");
+			}
+		}
+		if (closed)
+			throw new IOException("Export '" + file + "' is already closed");
+		if (sequence < next || pending.containsKey(sequence))
+			throw new IllegalStateException("Sequence " + sequence + " of '" + file + "' is already committed");
+		pending.put(sequence, line);
+		drain();
+	}
+
+	/**
+	 * Mark a sequence as done without output (e.g. a failed session), unless it was already written.
+	 * This never waits, so that a sequence holding back the commit can always be released.
+	 */
+	public synchronized void release(int sequence) throws IOException
+	{
+		if (closed || sequence < next || pending.containsKey(sequence))
+			return;
+		pending.put(sequence, RELEASED);
+		drain();
+	}
+
+	private void drain() throws IOException
+	{
+		byte[] line;
+		boolean advanced = false;
+		while ((line = pending.remove(next)) != null)
+		{
+			if (line != RELEASED)
+			{
+				os.write(line);
+				lines++;
+			}
+			next++;
+			advanced = true;
+		}
+		if (advanced)
+			notifyAll();
+	}
+
+	/**
+	 * Close the export. Lines still waiting for an earlier sequence are discarded.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (closed)
+			return;
+		closed = true;
+		notifyAll();
+		if (!pending.isEmpty())
+			System.err.println("Discarding " + pending.size() + " uncommitted line(s) of '" + file + "'");
+		pending.clear();
+		os.close();
+	}
+}
@@ -0,0 +1,75 @@
+package me.crespel.runtastic.converter;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Shard specification ("k/n"), selecting a deterministic subset of sport sessions.
+ * Sessions are assigned to shards using a stable hash of their ID, so that N processes
+ * (possibly on different machines) given shards 1/N .. N/N cover each session exactly once.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class ShardSpec
+{
+
+	private final int	index;
+	private final int	count;
+
+	public ShardSpec(int index, int count)
+	{
+		if (count < 1 || index < 1 || index > count)
+			throw new IllegalArgumentException("Invalid shard " + index + "/" + count + ", expected 1 <= k <= n");
+		this.index = index;
+		this.count = count;
+	}
+
+	public static ShardSpec parse(String spec)
+	{
+		int i = spec != null ? spec.indexOf('/') : -1;
+		if (i <= 0 || i == spec.length() - 1)
+			throw new IllegalArgumentException("Invalid shard '" + spec + "', expected 'k/n'");
+		try
+		{
+			return new ShardSpec(Integer.parseInt(spec.substring(0, i).trim()), Integer.parseInt(spec.substring(i + 1).trim()));
+		}
+		catch (NumberFormatException ex)
+		{
+			throw new IllegalArgumentException("Invalid shard '" + spec + "', expected 'k/n'", ex);
+		}
+	}
+
+	public int getIndex()
+	{
+		return index;
+	}
+
+	public int getCount()
+	{
+		return count;
+	}
+
+	public boolean accepts(String sessionId)
+	{
+		return count == 1 || shardOf(sessionId, count) == index;
+	}
+
+	/**
+	 * Compute the (1-based) shard of a session ID, using a 64-bit FNV-1a hash of its UTF-8 bytes.
+	 */
+	public static int shardOf(String sessionId, int count)
+	{
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : sessionId.getBytes(StandardCharsets.UTF_8))
+		{
+			hash ^= (b & 0xFF);
+			hash *= 0x100000001b3L;
+		}
+		return (int) Long.remainderUnsigned(hash, count) + 1;
+	}
+
+	@Override
+	public String toString()
+	{
+		return index + "/" + count;
+	}
+}
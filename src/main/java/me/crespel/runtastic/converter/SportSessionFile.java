@@ -0,0 +1,45 @@
+package me.crespel.runtastic.converter;
+
+import java.nio.file.Path;
+
+/**
+ * Sport session file of an export, along with the total byte size of the session and its sidecar files
+ * (GPS, heart rate and elevation data), as collected during the export directory scan.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class SportSessionFile
+{
+
+	private final String	id;
+	private final Path		file;
+	private final long		size;
+
+	public SportSessionFile(String id, Path file, long size)
+	{
+		this.id = id;
+		this.file = file;
+		this.size = size;
+	}
+
+	public String getId()
+	{
+		return id;
+	}
+
+	public Path getFile()
+	{
+		return file;
+	}
+
+	public long getSize()
+	{
+		return size;
+	}
+
+	@Override
+	public String toString()
+	{
+		return file + " (" + size + " bytes)";
+	}
+}
@@ -0,0 +1,295 @@
+package me.crespel.runtastic.converter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import me.crespel.runtastic.model.ExportManifest;
+
+/**
+ * Streaming ZIP archive writer for exported sport sessions.
+ * Entries are compressed on the calling (worker) thread, only the append of
+ * the already compressed bytes to the archive is serialized. An index entry
+ * listing all exported sessions is added when the archive is closed.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class ZipExportWriter implements Closeable
+{
+
+	public static final String	INDEX_ENTRY		= "index.json";
+
+	private static final int	LOCAL_HEADER	= 0x04034b50;
+	private static final int	CENTRAL_HEADER	= 0x02014b50;
+	private static final int	END_HEADER		= 0x06054b50;
+	private static final int	ZIP64_END		= 0x06064b50;
+	private static final int	ZIP64_LOCATOR	= 0x07064b50;
+	private static final int	FLAG_UTF8		= 0x0800;
+	private static final int	STORED			= 0;
+	private static final int	DEFLATED		= 8;
+	private static final long	ZIP64_MAGIC		= 0xFFFFFFFFL;
+
+	private final Path								file;
+	private final OutputStream						os;
+	private final List<CentralEntry>				entries	= new ArrayList<>();
+	private final ConcurrentLinkedQueue<ExportManifest.Entry>	index	= new ConcurrentLinkedQueue<>();
+	private final ObjectMapper						mapper;
+	private final long								dosTime	= dosTime(System.currentTimeMillis());
+	private long									offset;
+	private boolean									closed;
+
+	public ZipExportWriter(Path file, ObjectMapper mapper) throws IOException
+	{
+		this.file = file;
+		this.mapper = mapper;
+		this.os = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+	}
+
+	public Path getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Add an entry to the archive.
+	 * @param name entry name
+	 * @param data uncompressed entry content
+	 * @param compress true to deflate the content, false to store it as-is (e.g. already gzipped data)
+	 */
+	public void write(String name, byte[] data, boolean compress) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		byte[] payload = compress ? deflate(data) : data;
+		int method = compress ? DEFLATED : STORED;
+		if (compress && payload.length >= data.length)
+		{
+			// incompressible content, store it instead
+			payload = data;
+			method = STORED;
+		}
+		append(new CentralEntry(name, method, crc.getValue(), payload.length, data.length, dosTime), payload);
+	}
+
+	/**
+	 * Register an exported session in the archive index.
+	 */
+	public void index(ExportManifest.Entry entry)
+	{
+		index.add(entry);
+	}
+
+	private synchronized void append(CentralEntry entry, byte[] payload) throws IOException
+	{
+		if (closed)
+			throw new IOException("Archive '" + file + "' is already closed");
+		entry.offset = offset;
+		offset += writeLocalHeader(entry);
+		os.write(payload);
+		offset += payload.length;
+		entries.add(entry);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		synchronized (this)
+		{
+			if (closed)
+				return;
+		}
+		try
+		{
+			List<ExportManifest.Entry> sortedIndex = new ArrayList<>(index);
+			Collections.sort(sortedIndex, Comparator.comparing((ExportManifest.Entry e) -> e.startTime, Comparator.nullsFirst(Comparator.naturalOrder()))
+				.thenComparing(e -> e.id, Comparator.nullsFirst(Comparator.naturalOrder())));
+			write(INDEX_ENTRY, mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(sortedIndex), true);
+		}
+		finally
+		{
+			// Even without its index, the archive gets its central directory and the file is released
+			synchronized (this)
+			{
+				closed = true;
+				try
+				{
+					writeCentralDirectory();
+				}
+				finally
+				{
+					os.close();
+				}
+			}
+		}
+	}
+
+	private int writeLocalHeader(CentralEntry entry) throws IOException
+	{
+		writeInt(LOCAL_HEADER);
+		writeShort(20);
+		writeShort(FLAG_UTF8);
+		writeShort(entry.method);
+		writeInt(entry.dosTime);
+		writeInt(entry.crc);
+		writeInt(entry.compressedSize);
+		writeInt(entry.size);
+		writeShort(entry.name.length);
+		writeShort(0);
+		os.write(entry.name);
+		return 30 + entry.name.length;
+	}
+
+	private void writeCentralDirectory() throws IOException
+	{
+		long cdOffset = offset;
+		long cdSize = 0;
+		for (CentralEntry entry : entries)
+		{
+			boolean zip64 = entry.offset >= ZIP64_MAGIC;
+			writeInt(CENTRAL_HEADER);
+			writeShort(zip64 ? 45 : 20);
+			writeShort(zip64 ? 45 : 20);
+			writeShort(FLAG_UTF8);
+			writeShort(entry.method);
+			writeInt(entry.dosTime);
+			writeInt(entry.crc);
+			writeInt(entry.compressedSize);
+			writeInt(entry.size);
+			writeShort(entry.name.length);
+			writeShort(zip64 ? 12 : 0);
+			writeShort(0);
+			writeShort(0);
+			writeShort(0);
+			writeInt(0);
+			writeInt(zip64 ? ZIP64_MAGIC : entry.offset);
+			os.write(entry.name);
+			if (zip64)
+			{
+				writeShort(0x0001);
+				writeShort(8);
+				writeLong(entry.offset);
+			}
+			cdSize += 46 + entry.name.length + (zip64 ? 12 : 0);
+		}
+		offset += cdSize;
+
+		boolean zip64 = entries.size() >= 0xFFFF || cdOffset >= ZIP64_MAGIC || cdSize >= ZIP64_MAGIC;
+		if (zip64)
+		{
+			long zip64EndOffset = offset;
+			writeInt(ZIP64_END);
+			writeLong(44);
+			writeShort(45);
+			writeShort(45);
+			writeInt(0);
+			writeInt(0);
+			writeLong(entries.size());
+			writeLong(entries.size());
+			writeLong(cdSize);
+			writeLong(cdOffset);
+			writeInt(ZIP64_LOCATOR);
+			writeInt(0);
+			writeLong(zip64EndOffset);
+			writeInt(1);
+		}
+		writeInt(END_HEADER);
+		writeShort(0);
+		writeShort(0);
+		writeShort(zip64 ? 0xFFFF : entries.size());
+		writeShort(zip64 ? 0xFFFF : entries.size());
+		writeInt(zip64 ? ZIP64_MAGIC : cdSize);
+		writeInt(zip64 ? ZIP64_MAGIC : cdOffset);
+		writeShort(0);
+	}
+
+	private void writeShort(int v) throws IOException
+	{
+		os.write(v & 0xFF);
+		os.write((v >>> 8) & 0xFF);
+	}
+
+	private void writeInt(long v) throws IOException
+	{
+		writeShort((int) (v & 0xFFFF));
+		writeShort((int) ((v >>> 16) & 0xFFFF));
+	}
+
+	private void writeLong(long v) throws IOException
+	{
+		writeInt(v & 0xFFFFFFFFL);
+		writeInt(v >>> 32);
+	}
+
+	private static byte[] deflate(byte[] data)
+	{
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try
+		{
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+			byte[] buffer = new byte[16 * 1024];
+			while (!deflater.finished())
+			{
+				int len = deflater.deflate(buffer);
+				bos.write(buffer, 0, len);
+			}
+			return bos.toByteArray();
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+
+	private static long dosTime(long time)
+	{
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(time);
+		int year = cal.get(Calendar.YEAR);
+		if (year < 1980)
+			return (1 << 21) | (1 << 16);
+		return ((long) (year - 1980) << 25)
+			| ((cal.get(Calendar.MONTH) + 1) << 21)
+			| (cal.get(Calendar.DAY_OF_MONTH) << 16)
+			| (cal.get(Calendar.HOUR_OF_DAY) << 11)
+			| (cal.get(Calendar.MINUTE) << 5)
+			| (cal.get(Calendar.SECOND) >> 1);
+	}
+
+	private static class CentralEntry
+	{
+		final byte[]	name;
+		final int		method;
+		final long		crc;
+		final long		compressedSize;
+		final long		size;
+		final long		dosTime;
+		long			offset;
+
+		CentralEntry(String name, int method, long crc, long compressedSize, long size, long dosTime)
+		{
+			this.name = name.getBytes(StandardCharsets.UTF_8);
+			this.method = method;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.dosTime = dosTime;
+		}
+	}
+}
@@ -10,9 +10,27 @@ import me.crespel.runtastic.model.SportSession;
  * This class delegates the actual mapping to a supported mapper.
  * @author Fabien CRESPEL (fabien@crespel.net)
  */
-public class DelegatingSportSessionMapper implements SportSessionMapper<Object> {
+public class DelegatingSportSessionMapper implements SportSessionMapper<Object>, StreamingSportSessionMapper {
 
-	private final SportSessionMapper<?>[] mappers = { new GpxSportSessionMapper(), new TcxSportSessionMapper() };
+	private final SportSessionMapper<?>[] mappers = { new GpxSportSessionMapper(), new TcxSportSessionMapper(), new FitSportSessionMapper(), new GeoJsonSportSessionMapper() };
+	private double simplifyTolerance;
+
+	public double getSimplifyTolerance() {
+		return simplifyTolerance;
+	}
+
+	/**
+	 * Set the track simplification tolerance of all mappers supporting it.
+	 * @param tolerance maximum distance in metres between a removed point and the simplified track, 0 to disable simplification
+	 */
+	public void setSimplifyTolerance(double tolerance) {
+		this.simplifyTolerance = tolerance;
+		for (SportSessionMapper<?> mapper : mappers) {
+			if (mapper instanceof SimplifyingMapper) {
+				((SimplifyingMapper) mapper).setSimplifyTolerance(tolerance);
+			}
+		}
+	}
 
 	@Override
 	public boolean supports(String format) {
@@ -24,6 +42,30 @@ public class DelegatingSportSessionMapper implements SportSessionMapper<Object>
 		return false;
 	}
 
+	/**
+	 * Whether the mapper supporting a format can write sessions from a trackpoint cursor.
+	 */
+	public boolean supportsTrackpoints(String format) {
+		for (SportSessionMapper<?> mapper : mappers) {
+			if (mapper.supports(format)) {
+				return mapper instanceof StreamingSportSessionMapper;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether the streaming mapper supporting a format merges GPS and heart-rate samples into its trackpoints.
+	 */
+	public boolean mergesHeartRate(String format) {
+		for (SportSessionMapper<?> mapper : mappers) {
+			if (mapper.supports(format) && mapper instanceof StreamingSportSessionMapper) {
+				return ((StreamingSportSessionMapper) mapper).mergesHeartRate(format);
+			}
+		}
+		return true;
+	}
+
 	@Override
 	public Object mapSportSession(SportSession session, String format) {
 		for (SportSessionMapper<?> mapper : mappers) {
@@ -54,4 +96,14 @@ public class DelegatingSportSessionMapper implements SportSessionMapper<Object>
 		throw new UnsupportedOperationException("Unsupported export format '" + format + "'");
 	}
 
+	@Override
+	public long mapSportSession(SportSession header, TrackpointCursor trackpoints, String format, OutputStream dest) {
+		for (SportSessionMapper<?> mapper : mappers) {
+			if (mapper.supports(format) && mapper instanceof StreamingSportSessionMapper) {
+				return ((StreamingSportSessionMapper) mapper).mapSportSession(header, trackpoints, format, dest);
+			}
+		}
+		throw new UnsupportedOperationException("Unsupported streaming export format '" + format + "'");
+	}
+
 }
@@ -0,0 +1,93 @@
+package me.crespel.runtastic.mapper;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+import me.crespel.runtastic.model.SportSession;
+import me.crespel.runtastic.monitoring.StageEvents;
+
+/**
+ * FIT sport session mapper.
+ * FIT is a binary format without an object model, so sessions are always encoded by the streaming writer.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class FitSportSessionMapper implements SportSessionMapper<byte[]>, SimplifyingMapper {
+
+	protected final FitStreamWriter streamWriter = new FitStreamWriter(this);
+	protected double simplifyTolerance;
+
+	@Override
+	public double getSimplifyTolerance() {
+		return simplifyTolerance;
+	}
+
+	@Override
+	public void setSimplifyTolerance(double simplifyTolerance) {
+		this.simplifyTolerance = simplifyTolerance;
+	}
+
+	@Override
+	public boolean supports(String format) {
+		return format != null && format.toLowerCase().endsWith("fit");
+	}
+
+	/**
+	 * Encode a sport session as a FIT activity file in memory.
+	 * @return FIT file content
+	 */
+	@Override
+	public byte[] mapSportSession(SportSession session, String format) {
+		try (StageEvents.MapSession event = new StageEvents.MapSession(format)) {
+			event.start();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			long points;
+			try {
+				points = streamWriter.write(session, bos);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			event.end(session.getId(), bos.size(), points);
+			return bos.toByteArray();
+		}
+	}
+
+	/**
+	 * Write a sport session to a FIT file, using the streaming writer.
+	 * @return null, as the file content is not kept
+	 */
+	@Override
+	public byte[] mapSportSession(SportSession session, String format, File dest) {
+		try (OutputStream os = new BufferedOutputStream(new FileOutputStream(dest), 64 * 1024)) {
+			return mapSportSession(session, format, os);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a sport session to a FIT stream, using the streaming writer.
+	 * @return null, as the file content is not kept
+	 */
+	@Override
+	public byte[] mapSportSession(SportSession session, String format, OutputStream dest) {
+		try (StageEvents.MarshalSession event = new StageEvents.MarshalSession(format)) {
+			event.start();
+			CountingOutputStream counter = new CountingOutputStream(dest);
+			long points;
+			try {
+				points = streamWriter.write(session, counter);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			event.end(session.getId(), counter.getByteCount(), points);
+			return null;
+		}
+	}
+
+}
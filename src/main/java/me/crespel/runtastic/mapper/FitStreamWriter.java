@@ -0,0 +1,386 @@
+package me.crespel.runtastic.mapper;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.List;
+
+import me.crespel.runtastic.model.GpsData;
+import me.crespel.runtastic.model.HeartRateData;
+import me.crespel.runtastic.model.SportSession;
+
+/**
+ * Streaming FIT activity file writer.
+ * Writes the file header, then file_id, record (one per trackpoint, merged from GPS and heart-rate samples as for TCX),
+ * lap, session and activity messages, and the file CRC, in a single pass over the samples.
+ * Only normal record headers and little-endian fixed-size messages are used, so the data size is known before writing.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class FitStreamWriter {
+
+	/** Seconds between the Unix epoch and the FIT epoch (1989-12-31T00:00:00Z) */
+	public static final long FIT_EPOCH = 631065600L;
+
+	private static final int PROTOCOL_VERSION = 0x10;
+	private static final int PROFILE_VERSION = 2100;
+	private static final int HEADER_SIZE = 14;
+
+	private static final int ENUM = 0x00;
+	private static final int UINT8 = 0x02;
+	private static final int UINT16 = 0x84;
+	private static final int SINT32 = 0x85;
+	private static final int UINT32 = 0x86;
+	private static final int UINT32Z = 0x8C;
+
+	private static final int TIMESTAMP = 253;
+	private static final double SEMICIRCLES = Math.pow(2, 31) / 180d;
+
+	private static final int[] CRC_TABLE = {
+		0x0000, 0xCC01, 0xD801, 0x1400, 0xF001, 0x3C00, 0x2800, 0xE401,
+		0xA001, 0x6C00, 0x7800, 0xB401, 0x5000, 0x9C01, 0x8801, 0x4400
+	};
+
+	// message definitions: local type, global number, then (field number, size, base type) triples
+	private static final Definition FILE_ID = new Definition(0, 0,
+		0, 1, ENUM,			// type
+		1, 2, UINT16,		// manufacturer
+		2, 2, UINT16,		// product
+		3, 4, UINT32Z,		// serial_number
+		4, 4, UINT32);		// time_created
+	private static final Definition RECORD = new Definition(1, 20,
+		TIMESTAMP, 4, UINT32,
+		0, 4, SINT32,		// position_lat
+		1, 4, SINT32,		// position_long
+		2, 2, UINT16,		// altitude
+		3, 1, UINT8,		// heart_rate
+		5, 4, UINT32);		// distance
+	private static final Definition LAP = new Definition(2, 19,
+		TIMESTAMP, 4, UINT32,
+		2, 4, UINT32,		// start_time
+		7, 4, UINT32,		// total_elapsed_time
+		8, 4, UINT32,		// total_timer_time
+		9, 4, UINT32,		// total_distance
+		11, 2, UINT16,		// total_calories
+		13, 2, UINT16,		// avg_speed
+		14, 2, UINT16,		// max_speed
+		21, 2, UINT16,		// total_ascent
+		22, 2, UINT16,		// total_descent
+		15, 1, UINT8,		// avg_heart_rate
+		16, 1, UINT8,		// max_heart_rate
+		0, 1, ENUM,			// event
+		1, 1, ENUM,			// event_type
+		24, 1, ENUM,		// lap_trigger
+		25, 1, ENUM);		// sport
+	private static final Definition SESSION = new Definition(3, 18,
+		TIMESTAMP, 4, UINT32,
+		2, 4, UINT32,		// start_time
+		7, 4, UINT32,		// total_elapsed_time
+		8, 4, UINT32,		// total_timer_time
+		9, 4, UINT32,		// total_distance
+		11, 2, UINT16,		// total_calories
+		14, 2, UINT16,		// avg_speed
+		15, 2, UINT16,		// max_speed
+		22, 2, UINT16,		// total_ascent
+		23, 2, UINT16,		// total_descent
+		16, 1, UINT8,		// avg_heart_rate
+		17, 1, UINT8,		// max_heart_rate
+		25, 2, UINT16,		// first_lap_index
+		26, 2, UINT16,		// num_laps
+		0, 1, ENUM,			// event
+		1, 1, ENUM,			// event_type
+		5, 1, ENUM,			// sport
+		28, 1, ENUM);		// trigger
+	private static final Definition ACTIVITY = new Definition(4, 34,
+		TIMESTAMP, 4, UINT32,
+		0, 4, UINT32,		// total_timer_time
+		5, 4, UINT32,		// local_timestamp
+		1, 2, UINT16,		// num_sessions
+		2, 1, ENUM,			// type
+		3, 1, ENUM,			// event
+		4, 1, ENUM);		// event_type
+
+	protected final FitSportSessionMapper mapper;
+
+	public FitStreamWriter(FitSportSessionMapper mapper) {
+		this.mapper = mapper;
+	}
+
+	/**
+	 * Write a sport session as a FIT activity file.
+	 * @return number of written record messages
+	 */
+	public long write(SportSession session, OutputStream os) throws IOException {
+		List<GpsData> gpsData = TrackSimplifier.simplify(session.getGpsData(), mapper.getSimplifyTolerance());
+		List<HeartRateData> heartRateData = gpsData != session.getGpsData() ? TrackSimplifier.resample(session.getHeartRateData(), gpsData) : session.getHeartRateData();
+		SampleMerger merger = SampleMerger.of(gpsData, GpsData::getTimestamp, heartRateData, HeartRateData::getTimestamp);
+		long records = 0;
+		while (merger.next()) {
+			records++;
+		}
+		merger.reset();
+
+		long dataSize = FILE_ID.definitionSize() + FILE_ID.dataSize()
+			+ RECORD.definitionSize() + records * RECORD.dataSize()
+			+ LAP.definitionSize() + LAP.dataSize()
+			+ SESSION.definitionSize() + SESSION.dataSize()
+			+ ACTIVITY.definitionSize() + ACTIVITY.dataSize();
+		FitOutput out = new FitOutput(os);
+		writeHeader(out, dataSize);
+
+		long startTime = timestamp(session.getStartTime());
+		long endTime = session.getEndTime() != null ? timestamp(session.getEndTime())
+			: startTime + (session.getDuration() != null ? session.getDuration() / 1000 : 0);
+		long elapsedTime = session.getDuration() != null ? session.getDuration() : (endTime - startTime) * 1000;
+		long timerTime = Math.max(0, elapsedTime - (session.getPauseDuration() != null ? session.getPauseDuration() : 0));
+		int sport = mapSport(session.getSportTypeId());
+
+		FILE_ID.writeDefinition(out);
+		out.header(FILE_ID);
+		out.u8(4);			// activity
+		out.u16(255);		// development
+		out.u16(0);
+		out.u32(session.getId() != null ? (session.getId().hashCode() & 0x7FFFFFFFL) | 1 : 1);
+		out.u32(startTime);
+
+		RECORD.writeDefinition(out);
+		Trackpoint point = new Trackpoint();
+		while (merger.next()) {
+			point.fill(merger, gpsData, heartRateData);
+			writeRecord(out, point);
+		}
+
+		LAP.writeDefinition(out);
+		out.header(LAP);
+		out.u32(endTime);
+		out.u32(startTime);
+		out.u32(elapsedTime);
+		out.u32(timerTime);
+		writeTotals(out, session);
+		out.u8(9);			// event: lap
+		out.u8(1);			// event_type: stop
+		out.u8(7);			// lap_trigger: session_end
+		out.u8(sport);
+
+		SESSION.writeDefinition(out);
+		out.header(SESSION);
+		out.u32(endTime);
+		out.u32(startTime);
+		out.u32(elapsedTime);
+		out.u32(timerTime);
+		writeTotals(out, session);
+		out.u16(0);			// first_lap_index
+		out.u16(1);			// num_laps
+		out.u8(8);			// event: session
+		out.u8(1);			// event_type: stop
+		out.u8(sport);
+		out.u8(0);			// trigger: activity_end
+
+		ACTIVITY.writeDefinition(out);
+		out.header(ACTIVITY);
+		out.u32(endTime);
+		out.u32(timerTime);
+		out.u32(endTime + (session.getEndTimeTimezoneOffset() != null ? session.getEndTimeTimezoneOffset() / 1000 : 0));
+		out.u16(1);			// num_sessions
+		out.u8(0);			// type: manual
+		out.u8(26);			// event: activity
+		out.u8(1);			// event_type: stop
+
+		out.finish();
+		return records;
+	}
+
+	/**
+	 * Write the totals shared by LAP and SESSION messages, in field order from total_distance to max_heart_rate.
+	 */
+	private void writeTotals(FitOutput out, SportSession session) throws IOException {
+		out.u32(session.getDistance() != null ? session.getDistance() * 100L : 0xFFFFFFFFL);
+		out.u16(uint16(session.getCalories()));
+		out.u16(speed(session.getAverageSpeed()));
+		out.u16(speed(session.getMaxSpeed()));
+		out.u16(uint16(session.getElevationGain()));
+		out.u16(uint16(session.getElevationLoss()));
+		out.u8(uint8(session.getPulseAvg()));
+		out.u8(uint8(session.getPulseMax()));
+	}
+
+	private void writeHeader(FitOutput out, long dataSize) throws IOException {
+		if (dataSize > 0xFFFFFFFFL) {
+			throw new IOException("FIT data size exceeds 4 GB");
+		}
+		out.u8(HEADER_SIZE);
+		out.u8(PROTOCOL_VERSION);
+		out.u16(PROFILE_VERSION);
+		out.u32(dataSize);
+		out.u8('.');
+		out.u8('F');
+		out.u8('I');
+		out.u8('T');
+		out.u16(out.crc);
+	}
+
+	private void writeRecord(FitOutput out, Trackpoint point) throws IOException {
+		out.header(RECORD);
+		out.u32(timestamp(point.time));
+		if (point.latitude != null && point.longitude != null) {
+			out.u32(Math.round(point.latitude.doubleValue() * SEMICIRCLES));
+			out.u32(Math.round(point.longitude.doubleValue() * SEMICIRCLES));
+		} else {
+			out.u32(0x7FFFFFFF);
+			out.u32(0x7FFFFFFF);
+		}
+		out.u16(point.altitude != null ? clamp(Math.round((point.altitude.doubleValue() + 500) * 5), 0xFFFE) : 0xFFFF);
+		out.u8(uint8(point.heartRate));
+		out.u32(point.distance != null && point.distance >= 0 ? point.distance * 100L : 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Map a Runtastic sport type to a FIT sport.
+	 */
+	protected int mapSport(String sportTypeId) {
+		switch (sportTypeId != null ? sportTypeId : "") {
+		case "1":
+			return 1;	// running
+		case "2":
+			return 11;	// walking
+		case "3":
+		case "4":
+		case "11":
+		case "20":
+		case "22":
+			return 2;	// cycling
+		case "6":
+			return 30;	// inline_skating
+		case "7":
+			return 17;	// hiking
+		case "8":
+			return 13;	// alpine_skiing
+		case "9":
+			return 12;	// cross_country_skiing
+		case "10":
+			return 14;	// snowboarding
+		default:
+			return 0;	// generic
+		}
+	}
+
+	/**
+	 * Update a FIT CRC-16 with a byte.
+	 */
+	public static int crc(int crc, int b) {
+		int tmp = CRC_TABLE[crc & 0xF];
+		crc = (crc >> 4) & 0x0FFF;
+		crc = crc ^ tmp ^ CRC_TABLE[b & 0xF];
+		tmp = CRC_TABLE[crc & 0xF];
+		crc = (crc >> 4) & 0x0FFF;
+		return crc ^ tmp ^ CRC_TABLE[(b >> 4) & 0xF];
+	}
+
+	private static long timestamp(Date date) {
+		return timestamp(date.getTime());
+	}
+
+	private static long timestamp(long millis) {
+		return Math.floorDiv(millis, 1000L) - FIT_EPOCH;
+	}
+
+	/**
+	 * Convert a speed in km/h to a FIT speed (m/s, scale 1000).
+	 */
+	private static int speed(BigDecimal kmh) {
+		return kmh != null ? clamp(Math.round(kmh.doubleValue() / 3.6d * 1000d), 0xFFFE) : 0xFFFF;
+	}
+
+	private static int uint16(Integer value) {
+		return value != null ? clamp(value, 0xFFFE) : 0xFFFF;
+	}
+
+	private static int uint8(Integer value) {
+		return value != null ? clamp(value, 0xFE) : 0xFF;
+	}
+
+	private static int clamp(long value, int max) {
+		return (int) Math.max(0, Math.min(max, value));
+	}
+
+	/**
+	 * Fixed-size message definition.
+	 */
+	private static class Definition {
+		final int local;
+		final int global;
+		final int[] fields;
+
+		Definition(int local, int global, int... fields) {
+			this.local = local;
+			this.global = global;
+			this.fields = fields;
+		}
+
+		int definitionSize() {
+			return 6 + fields.length;
+		}
+
+		int dataSize() {
+			int size = 1;
+			for (int i = 1; i < fields.length; i += 3) {
+				size += fields[i];
+			}
+			return size;
+		}
+
+		void writeDefinition(FitOutput out) throws IOException {
+			out.u8(0x40 | local);
+			out.u8(0);		// reserved
+			out.u8(0);		// little endian
+			out.u16(global);
+			out.u8(fields.length / 3);
+			for (int field : fields) {
+				out.u8(field);
+			}
+		}
+	}
+
+	/**
+	 * Little-endian output, computing the CRC of written bytes.
+	 */
+	private static class FitOutput {
+		final OutputStream os;
+		int crc;
+
+		FitOutput(OutputStream os) {
+			this.os = new BufferedOutputStream(os, 16 * 1024);
+		}
+
+		void header(Definition definition) throws IOException {
+			u8(definition.local);
+		}
+
+		void u8(int value) throws IOException {
+			os.write(value);
+			crc = crc(crc, value & 0xFF);
+		}
+
+		void u16(int value) throws IOException {
+			u8(value);
+			u8(value >>> 8);
+		}
+
+		void u32(long value) throws IOException {
+			u16((int) value);
+			u16((int) (value >>> 16));
+		}
+
+		/**
+		 * Write the file CRC and flush the underlying stream (which is left open).
+		 */
+		void finish() throws IOException {
+			int fileCrc = crc;
+			os.write(fileCrc);
+			os.write(fileCrc >>> 8);
+			os.flush();
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+package me.crespel.runtastic.mapper;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+import me.crespel.runtastic.model.SportSession;
+import me.crespel.runtastic.monitoring.StageEvents;
+
+/**
+ * GeoJSON sport session mapper.
+ * Sessions are written as LineString Features by the streaming writer, without an intermediate object model.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class GeoJsonSportSessionMapper implements SportSessionMapper<byte[]>, SimplifyingMapper {
+
+	protected final ThreadLocal<TimestampFormatter> timestamps = ThreadLocal.withInitial(TimestampFormatter::new);
+	protected final GeoJsonStreamWriter streamWriter = new GeoJsonStreamWriter(this);
+	protected double simplifyTolerance;
+
+	@Override
+	public double getSimplifyTolerance() {
+		return simplifyTolerance;
+	}
+
+	@Override
+	public void setSimplifyTolerance(double simplifyTolerance) {
+		this.simplifyTolerance = simplifyTolerance;
+	}
+
+	@Override
+	public boolean supports(String format) {
+		return format != null && format.toLowerCase().endsWith("geojson");
+	}
+
+	/**
+	 * Write a sport session as a GeoJSON Feature in memory.
+	 * @return UTF-8 encoded Feature
+	 */
+	@Override
+	public byte[] mapSportSession(SportSession session, String format) {
+		try (StageEvents.MapSession event = new StageEvents.MapSession(format)) {
+			event.start();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			long points;
+			try {
+				points = streamWriter.write(session, bos);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			event.end(session.getId(), bos.size(), points);
+			return bos.toByteArray();
+		}
+	}
+
+	/**
+	 * Write a sport session to a GeoJSON file, using the streaming writer.
+	 * @return null, as the file content is not kept
+	 */
+	@Override
+	public byte[] mapSportSession(SportSession session, String format, File dest) {
+		try (OutputStream os = new BufferedOutputStream(new FileOutputStream(dest), 64 * 1024)) {
+			return mapSportSession(session, format, os);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a sport session to a GeoJSON stream, using the streaming writer.
+	 * @return null, as the stream content is not kept
+	 */
+	@Override
+	public byte[] mapSportSession(SportSession session, String format, OutputStream dest) {
+		try (StageEvents.MarshalSession event = new StageEvents.MarshalSession(format)) {
+			event.start();
+			CountingOutputStream counter = new CountingOutputStream(dest);
+			long points;
+			try {
+				points = streamWriter.write(session, counter);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			event.end(session.getId(), counter.getByteCount(), points);
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+package me.crespel.runtastic.mapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.Date;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.topografix.gpx._1._1.TrkType;
+import com.topografix.gpx._1._1.TrksegType;
+import com.topografix.gpx._1._1.WptType;
+
+import me.crespel.runtastic.RuntasticExportConverter;
+import me.crespel.runtastic.model.GpsData;
+import me.crespel.runtastic.model.SportSession;
+
+/**
+ * Streaming GeoJSON writer.
+ * Writes a sport session as a single compact Feature with a LineString geometry ({@code [lon, lat, ele]} positions,
+ * from GPS samples or the source GPX track), or a null geometry when the session has no position.
+ * Compact output without line breaks can be used as is for newline-delimited GeoJSON.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class GeoJsonStreamWriter {
+
+	protected final GeoJsonSportSessionMapper mapper;
+	protected final JsonFactory factory = new JsonFactory()
+		.enable(JsonGenerator.Feature.WRITE_BIGDECIMAL_AS_PLAIN)
+		.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+	public GeoJsonStreamWriter(GeoJsonSportSessionMapper mapper) {
+		this.mapper = mapper;
+	}
+
+	/**
+	 * Write a sport session as a GeoJSON Feature, leaving the stream open.
+	 * @return number of written positions
+	 */
+	public long write(SportSession session, OutputStream os) throws IOException {
+		try (JsonGenerator json = factory.createGenerator(os, JsonEncoding.UTF8)) {
+			return write(session, json);
+		}
+	}
+
+	/**
+	 * Write a sport session as a GeoJSON Feature.
+	 * @return number of written positions
+	 */
+	public long write(SportSession session, JsonGenerator json) throws IOException {
+		json.writeStartObject();
+		json.writeStringField("type", "Feature");
+		if (session.getId() != null) {
+			json.writeStringField("id", session.getId());
+		}
+
+		long points = 0;
+		json.writeFieldName("geometry");
+		if (hasPositions(session)) {
+			json.writeStartObject();
+			json.writeStringField("type", "LineString");
+			json.writeArrayFieldStart("coordinates");
+			if (session.getGpsData() != null) {
+				for (GpsData gps : TrackSimplifier.simplify(session.getGpsData(), mapper.getSimplifyTolerance())) {
+					writePosition(json, gps.getLongitude(), gps.getLatitude(), gps.getAltitude());
+					points++;
+				}
+			} else if (session.getGpx() == null) {
+				long[] count = new long[1];
+				RawGpxReader.forEachTrackpoint(session.getRawGpx().getFile(), (lat, lon, ele, time) -> {
+					writePosition(json, lon, lat, ele);
+					count[0]++;
+				});
+				points = count[0];
+			} else {
+				for (TrkType trk : session.getGpx().getTrk()) {
+					for (TrksegType trkseg : trk.getTrkseg()) {
+						for (WptType wpt : trkseg.getTrkpt()) {
+							writePosition(json, wpt.getLon(), wpt.getLat(), wpt.getEle());
+							points++;
+						}
+					}
+				}
+			}
+			json.writeEndArray();
+			json.writeEndObject();
+		} else {
+			json.writeNull();
+		}
+
+		json.writeObjectFieldStart("properties");
+		writeString(json, "id", session.getId());
+		writeString(json, "sport", session.getSportTypeId() != null ? RuntasticExportConverter.mapSportType(session.getSportTypeId()) : null);
+		writeString(json, "sportTypeId", session.getSportTypeId());
+		writeDate(json, "startTime", session.getStartTime());
+		writeDate(json, "endTime", session.getEndTime());
+		writeNumber(json, "duration", session.getDuration());
+		writeNumber(json, "distance", session.getDistance());
+		writeNumber(json, "heartRateAvg", session.getPulseAvg());
+		writeNumber(json, "heartRateMax", session.getPulseMax());
+		json.writeEndObject();
+
+		json.writeEndObject();
+		return points;
+	}
+
+	protected boolean hasPositions(SportSession session) {
+		if (session.getGpsData() != null) {
+			return !session.getGpsData().isEmpty();
+		}
+		if (session.getGpx() != null) {
+			for (TrkType trk : session.getGpx().getTrk()) {
+				for (TrksegType trkseg : trk.getTrkseg()) {
+					if (!trkseg.getTrkpt().isEmpty()) {
+						return true;
+					}
+				}
+			}
+		}
+		if (session.getRawGpx() != null) {
+			return session.getRawGpx().getPoints() > 0;
+		}
+		return false;
+	}
+
+	protected void writePosition(JsonGenerator json, BigDecimal lon, BigDecimal lat, BigDecimal ele) throws IOException {
+		json.writeStartArray();
+		json.writeNumber(lon);
+		json.writeNumber(lat);
+		if (ele != null) {
+			json.writeNumber(ele);
+		}
+		json.writeEndArray();
+	}
+
+	private void writeString(JsonGenerator json, String name, String value) throws IOException {
+		if (value != null) {
+			json.writeStringField(name, value);
+		}
+	}
+
+	private void writeNumber(JsonGenerator json, String name, Integer value) throws IOException {
+		if (value != null) {
+			json.writeNumberField(name, value);
+		}
+	}
+
+	private void writeDate(JsonGenerator json, String name, Date value) throws IOException {
+		if (value != null) {
+			json.writeFieldName(name);
+			json.writeString(mapper.timestamps.get().format(value.getTime()), 0, TimestampFormatter.LENGTH);
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+package me.crespel.runtastic.mapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+
+import me.crespel.runtastic.model.GpsData;
+
+/**
+ * Trackpoint cursor over GPS samples read incrementally (e.g. from a sidecar file), one trackpoint per sample in source order.
+ * Samples are neither reordered nor merged, as GPX documents list all GPS samples of a session as they are.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class GpsTrackpointCursor implements TrackpointCursor {
+
+	private final Iterator<GpsData> gpsData;
+	private final Trackpoint current = new Trackpoint();
+
+	/**
+	 * @param gpsData GPS samples, or null; closed with this cursor if closeable
+	 */
+	public GpsTrackpointCursor(Iterator<GpsData> gpsData) {
+		this.gpsData = gpsData != null ? gpsData : Collections.emptyIterator();
+	}
+
+	@Override
+	public boolean next() {
+		if (!gpsData.hasNext()) {
+			return false;
+		}
+		GpsData gps = gpsData.next();
+		current.reset(gps.getTimestamp().getTime());
+		current.fill(gps);
+		return true;
+	}
+
+	@Override
+	public Trackpoint current() {
+		return current;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (gpsData instanceof Closeable) {
+			((Closeable) gpsData).close();
+		}
+	}
+
+}
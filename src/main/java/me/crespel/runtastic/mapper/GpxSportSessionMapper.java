@@ -1,19 +1,22 @@
 package me.crespel.runtastic.mapper;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.List;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.io.output.CountingOutputStream;
 
 import com.topografix.gpx._1._1.BoundsType;
 import com.topografix.gpx._1._1.EmailType;
@@ -29,6 +32,8 @@ import com.topografix.gpx._1._1.WptType;
 import me.crespel.runtastic.model.GpsData;
 import me.crespel.runtastic.model.ImageMetaData;
 import me.crespel.runtastic.model.SportSession;
+import me.crespel.runtastic.monitoring.StageEvents;
+import me.crespel.runtastic.parser.SportSessionParser;
 
 /**
  * GPX sport session mapper.
@@ -36,10 +41,13 @@ import me.crespel.runtastic.model.SportSession;
  * @author Fabien CRESPEL (fabien@crespel.net)
  * @author Christian IMFELD (imfeldc@gmail.com)
  */
-public class GpxSportSessionMapper implements SportSessionMapper<GpxType> {
+public class GpxSportSessionMapper implements SportSessionMapper<GpxType>, StreamingSportSessionMapper, SimplifyingMapper {
 
 	protected final DatatypeFactory dtf;
 	protected final ObjectFactory factory = new ObjectFactory();
+	protected final ThreadLocal<TimestampFormatter> timestamps = ThreadLocal.withInitial(TimestampFormatter::new);
+	protected final GpxStreamWriter streamWriter = new GpxStreamWriter(this);
+	protected double simplifyTolerance;
 
 	public GpxSportSessionMapper() {
 		try {
@@ -49,36 +57,58 @@ public class GpxSportSessionMapper implements SportSessionMapper<GpxType> {
 		}
 	}
 
+	@Override
+	public double getSimplifyTolerance() {
+		return simplifyTolerance;
+	}
+
+	@Override
+	public void setSimplifyTolerance(double simplifyTolerance) {
+		this.simplifyTolerance = simplifyTolerance;
+	}
+
 	@Override
 	public boolean supports(String format) {
 		return format != null && format.toLowerCase().endsWith("gpx");
 	}
 
+	/**
+	 * GPX tracks list all GPS samples in source order, without heart rate, as the in-memory mapping does.
+	 */
+	@Override
+	public boolean mergesHeartRate(String format) {
+		return false;
+	}
+
 	@Override
 	public GpxType mapSportSession(SportSession session, String format) {
+		try (StageEvents.MapSession event = new StageEvents.MapSession(format)) {
+			event.start();
 
-		GpxType gpx = factory.createGpxType();
-		gpx.setVersion("1.1");
-		gpx.setCreator("RuntasticExportConverter");
+			GpxType gpx = factory.createGpxType();
+			gpx.setVersion("1.1");
+			gpx.setCreator("RuntasticExportConverter");
 
-		mapMetadata(session, gpx);
+			mapMetadata(session, gpx);
 
-		mapImages(session, gpx);
+			mapImages(session, gpx);
 
-		mapGPSdata(session, gpx);
+			mapGPSdata(session, gpx);
 
-		mapGPXdata(session, gpx);
+			mapGPXdata(session, gpx);
 
-		mapBoundsdata(session, gpx);
+			mapBoundsdata(session, gpx);
 
-		mapOverlapSessions(session, gpx);
+			mapOverlapSessions(session, gpx);
 
-		mapCompoundSessions(session, gpx);
+			mapCompoundSessions(session, gpx);
 
-		// store gpx data in session
-		session.setGpx(gpx);
+			// only keep derived bounds in session, the returned document is not retained
+			session.setBounds(gpx.getMetadata().getBounds());
 
-		return gpx;
+			event.end(session.getId(), 0, SportSessionParser.countTrackPoints(gpx));
+			return gpx;
+		}
 	}
 
 	private void mapMetadata(SportSession session, GpxType gpx) {
@@ -121,28 +151,19 @@ public class GpxSportSessionMapper implements SportSessionMapper<GpxType> {
 			trk.setName(session.getNotes());
 			trk.setType(mapSport(session.getSportTypeId()));
 			// handling JSON GPS data
-			TrksegType trkseg = factory.createTrksegType();
-			for (GpsData gps : session.getGpsData()) {
-				WptType wpt = factory.createWptType();
-				wpt.setLat(gps.getLatitude());
-				wpt.setLon(gps.getLongitude());
-				wpt.setEle(gps.getAltitude());
-				wpt.setTime(mapDate(gps.getTimestamp()));
-				trkseg.getTrkpt().add(wpt);
-			}
-			trk.getTrkseg().add(trkseg);
+			trk.getTrkseg().add(mapTrkseg(session.getGpsData()));
 			gpx.getTrk().add(trk);
 		}
 	}
 
 	private void mapGPXdata(SportSession session, GpxType gpx) {
-		if (session.getGpx() != null) {
+		if (session.hasSourceGpx()) {
 			TrkType trk = factory.createTrkType();
 			trk.setName(session.getNotes() + " (" + session.getId() + ")");
 			trk.setDesc(session.getNotes() + " (" + session.getId() + ")");
 			trk.setType(mapSport(session.getSportTypeId()));
 			// handling GPX GPS data
-			trk.getTrkseg().addAll(session.getGpx().getTrk().get(0).getTrkseg());
+			trk.getTrkseg().addAll(sourceTrksegs(session));
 			gpx.getTrk().add(trk);
 		}
 	}
@@ -193,7 +214,7 @@ public class GpxSportSessionMapper implements SportSessionMapper<GpxType> {
 				trk.setName("Overlap Session " + overlapSessionCount + ": " + overlapSession.getId());
 				trk.setDesc("Overlap Session " + overlapSessionCount + ": " + overlapSession.getNotes());
 				trk.setType(mapSport(overlapSession.getSportTypeId()));
-				trk.getTrkseg().addAll(overlapSession.getGpx().getTrk().get(0).getTrkseg());
+				trk.getTrkseg().addAll(mapTrksegs(overlapSession));
 				gpx.getTrk().add(trk);
 			}
 		}
@@ -225,46 +246,106 @@ public class GpxSportSessionMapper implements SportSessionMapper<GpxType> {
 				trk.setName("Compound Session " + compoundSessionCount + ": " + compoundSession.getId());
 				trk.setDesc("Compound Session " + compoundSessionCount + ": " + compoundSession.getNotes());
 				trk.setType(mapSport(compoundSession.getSportTypeId()));
-				trk.getTrkseg().addAll(compoundSession.getGpx().getTrk().get(0).getTrkseg());
+				trk.getTrkseg().addAll(mapTrksegs(compoundSession));
 				gpx.getTrk().add(trk);
 			}
 		}
 	}
 
+	/**
+	 * Map the track segments of an overlap or compound member session, from its JSON GPS data or its source GPX track.
+	 */
+	private List<TrksegType> mapTrksegs(SportSession session) {
+		if (session.getGpsData() != null) {
+			return Collections.singletonList(mapTrkseg(session.getGpsData()));
+		}
+		return sourceTrksegs(session);
+	}
 
+	/**
+	 * Track segments of the first track of the source GPX document, unmarshalled from its file if needed.
+	 */
+	private List<TrksegType> sourceTrksegs(SportSession session) {
+		GpxType source = session.getGpx();
+		if (source == null && session.getRawGpx() != null) {
+			try {
+				source = RawGpxReader.load(session.getRawGpx());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return source != null ? source.getTrk().get(0).getTrkseg() : Collections.emptyList();
+	}
+
+	private TrksegType mapTrkseg(List<GpsData> gpsData) {
+		TrksegType trkseg = factory.createTrksegType();
+		for (GpsData gps : TrackSimplifier.simplify(gpsData, simplifyTolerance)) {
+			WptType wpt = factory.createWptType();
+			wpt.setLat(gps.getLatitude());
+			wpt.setLon(gps.getLongitude());
+			wpt.setEle(gps.getAltitude());
+			wpt.setTime(mapDate(gps.getTimestamp()));
+			trkseg.getTrkpt().add(wpt);
+		}
+		return trkseg;
+	}
+
+
+	/**
+	 * Write a sport session to a GPX file, using the streaming writer.
+	 * @return null, as no {@code GpxType} is built
+	 */
 	@Override
 	public GpxType mapSportSession(SportSession session, String format, File dest) {
-		GpxType gpx = mapSportSession(session, format);
-		try {
-			JAXBContext ctx = JAXBContext.newInstance(GpxType.class);
-			Marshaller m = ctx.createMarshaller();
-			m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-			m.marshal(factory.createGpx(gpx), dest);
-		} catch (JAXBException e) {
+		try (OutputStream os = new BufferedOutputStream(new FileOutputStream(dest), 64 * 1024)) {
+			return mapSportSession(session, format, os);
+		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-		return gpx;
 	}
 
+	/**
+	 * Write a sport session to a GPX stream, using the streaming writer.
+	 * @return null, as no {@code GpxType} is built
+	 */
 	@Override
 	public GpxType mapSportSession(SportSession session, String format, OutputStream dest) {
-		GpxType gpx = mapSportSession(session, format);
-		try {
-			JAXBContext ctx = JAXBContext.newInstance(GpxType.class);
-			Marshaller m = ctx.createMarshaller();
-			m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-			m.marshal(factory.createGpx(gpx), dest);
-		} catch (JAXBException e) {
-			throw new RuntimeException(e);
+		try (StageEvents.MarshalSession event = new StageEvents.MarshalSession(format)) {
+			event.start();
+			CountingOutputStream counter = new CountingOutputStream(dest);
+			long points;
+			try {
+				points = streamWriter.write(session, counter);
+			} catch (XMLStreamException | IOException e) {
+				throw new RuntimeException(e);
+			}
+			event.end(session.getId(), counter.getByteCount(), points);
+			return null;
+		}
+	}
+
+	/**
+	 * Write a sport session to a GPX stream from its header and a cursor over its trackpoints, using the streaming writer.
+	 */
+	@Override
+	public long mapSportSession(SportSession header, TrackpointCursor trackpoints, String format, OutputStream dest) {
+		try (StageEvents.MarshalSession event = new StageEvents.MarshalSession(format)) {
+			event.start();
+			CountingOutputStream counter = new CountingOutputStream(dest);
+			long points;
+			try {
+				points = streamWriter.write(header, trackpoints, counter);
+			} catch (XMLStreamException | IOException e) {
+				throw new RuntimeException(e);
+			}
+			event.end(header.getId(), counter.getByteCount(), points);
+			return points;
 		}
-		return gpx;
 	}
 
 	protected XMLGregorianCalendar mapDate(Date date) {
 		if (date != null) {
-			GregorianCalendar cal = new GregorianCalendar();
-			cal.setTime(date);
-			return dtf.newXMLGregorianCalendar(cal);
+			return timestamps.get().toXMLGregorianCalendar(dtf, date.getTime());
 		}
 		return null;
 	}
@@ -0,0 +1,451 @@
+package me.crespel.runtastic.mapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+
+import com.topografix.gpx._1._1.BoundsType;
+import com.topografix.gpx._1._1.ExtensionsType;
+import com.topografix.gpx._1._1.GpxType;
+import com.topografix.gpx._1._1.LinkType;
+import com.topografix.gpx._1._1.TrkType;
+import com.topografix.gpx._1._1.TrksegType;
+import com.topografix.gpx._1._1.WptType;
+
+import me.crespel.runtastic.model.GpsData;
+import me.crespel.runtastic.model.ImageMetaData;
+import me.crespel.runtastic.model.RawGpxTrack;
+import me.crespel.runtastic.model.SportSession;
+
+/**
+ * Streaming GPX 1.1 writer.
+ * Writes the same document as {@link GpxSportSessionMapper} marshalled through JAXB, directly from the session
+ * sample data, without building a {@code GpxType} object graph for the output.
+ * Extensions of source GPX track points are copied through JAXB, without indentation, by a marshaller created once per document.
+ * Source GPX tracks referenced by file ({@link RawGpxTrack}) are copied as XML events, without being unmarshalled.
+ * GPS samples can also be read from a {@link TrackpointCursor}, e.g. straight from sidecar files.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class GpxStreamWriter {
+
+	public static final String NAMESPACE = "http://www.topografix.com/GPX/1/1";
+
+	static final JAXBContext CONTEXT;
+
+	static {
+		try {
+			CONTEXT = JAXBContext.newInstance(GpxType.class);
+		} catch (JAXBException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	protected final GpxSportSessionMapper mapper;
+
+	public GpxStreamWriter(GpxSportSessionMapper mapper) {
+		this.mapper = mapper;
+	}
+
+	/**
+	 * Write a sport session as a GPX document.
+	 * @return number of written track points
+	 */
+	public long write(SportSession session, OutputStream os) throws XMLStreamException, IOException {
+		IndentingXmlWriter xml = new IndentingXmlWriter(os);
+		writeHeader(xml, session, calculateBounds(session));
+
+		long points = 0;
+		if (session.getGpsData() != null) {
+			xml.start("trk")
+				.leaf("name", session.getNotes())
+				.leaf("type", mapper.mapSport(session.getSportTypeId()))
+				.start("trkseg");
+			for (GpsData gps : TrackSimplifier.simplify(session.getGpsData(), mapper.getSimplifyTolerance())) {
+				writeTrackpoint(xml, gps);
+				points++;
+			}
+			xml.end().end();
+		}
+		points += writeSourceTracks(xml, session);
+
+		xml.finish();
+		return points;
+	}
+
+	/**
+	 * Write a sport session as a GPX document, from its header and a cursor over its trackpoints.
+	 * Metadata bounds are those of the header, which must thus include its GPS samples.
+	 * Trackpoints without position (heart-rate samples only) are skipped, and the GPS track is omitted if there is none.
+	 * @return number of written track points
+	 */
+	public long write(SportSession header, TrackpointCursor trackpoints, OutputStream os) throws XMLStreamException, IOException {
+		IndentingXmlWriter xml = new IndentingXmlWriter(os);
+		writeHeader(xml, header, header.getBounds() != null ? header.getBounds() : calculateBounds(header));
+
+		long points = 0;
+		while (trackpoints.next()) {
+			Trackpoint point = trackpoints.current();
+			if (point.latitude == null) {
+				continue;
+			}
+			if (points++ == 0) {
+				xml.start("trk")
+					.leaf("name", header.getNotes())
+					.leaf("type", mapper.mapSport(header.getSportTypeId()))
+					.start("trkseg");
+			}
+			writeTrackpoint(xml, point);
+		}
+		if (points > 0) {
+			xml.end().end();
+		}
+		points += writeSourceTracks(xml, header);
+
+		xml.finish();
+		return points;
+	}
+
+	/**
+	 * Write the root element, metadata, waypoints and routes, i.e. everything preceding tracks.
+	 */
+	protected void writeHeader(IndentingXmlWriter xml, SportSession session, BoundsType bounds) throws XMLStreamException {
+		xml.root("gpx", NAMESPACE)
+			.attribute("version", "1.1")
+			.attribute("creator", "RuntasticExportConverter");
+
+		writeMetadata(xml, session, bounds);
+
+		writeImages(xml, session.getImages(), "");
+		writeBoundsAsWpt(xml, bounds, "Session bounds");
+		if (session.getOverlapSessions() != null) {
+			int count = 0;
+			for (SportSession overlapSession : session.getOverlapSessions()) {
+				writeImages(xml, overlapSession.getImages(), "Overlap Session " + (++count) + ": ");
+			}
+		}
+		if (session.getCompoundSessions() != null) {
+			int count = 0;
+			for (SportSession compoundSession : session.getCompoundSessions()) {
+				writeImages(xml, compoundSession.getImages(), "Compound Session " + (++count) + ": ");
+			}
+		}
+
+		writeBoundsAsRte(xml, bounds, "Session bounds");
+		if (session.getInnerBound() != null) {
+			writeBoundsAsRte(xml, session.getInnerBound(), "Inner bounds of all overlapping sessions");
+		}
+		if (session.getOuterBound() != null) {
+			writeBoundsAsRte(xml, session.getOuterBound(), "Outer bounds of all overlapping sessions");
+		}
+	}
+
+	/**
+	 * Write the source GPX track of a session, and the tracks of its overlap and compound members.
+	 * @return number of written track points
+	 */
+	protected long writeSourceTracks(IndentingXmlWriter xml, SportSession session) throws XMLStreamException {
+		Marshaller marshaller = createExtensionsMarshaller();
+		long points = 0;
+		if (session.getGpx() != null) {
+			String name = session.getNotes() + " (" + session.getId() + ")";
+			points += writeTrack(xml, name, name, session.getSportTypeId(), session.getGpx().getTrk().get(0).getTrkseg(), marshaller);
+		} else if (session.getRawGpx() != null) {
+			String name = session.getNotes() + " (" + session.getId() + ")";
+			points += writeRawTrack(xml, name, name, session.getSportTypeId(), session.getRawGpx());
+		}
+		if (session.getOverlapSessions() != null) {
+			int count = 0;
+			for (SportSession overlapSession : session.getOverlapSessions()) {
+				count++;
+				points += writeMemberTrack(xml, "Overlap Session " + count + ": " + overlapSession.getId(), "Overlap Session " + count + ": " + overlapSession.getNotes(),
+					overlapSession, marshaller);
+			}
+		}
+		if (session.getCompoundSessions() != null) {
+			int count = 0;
+			for (SportSession compoundSession : session.getCompoundSessions()) {
+				count++;
+				points += writeMemberTrack(xml, "Compound Session " + count + ": " + compoundSession.getId(), "Compound Session " + count + ": " + compoundSession.getNotes(),
+					compoundSession, marshaller);
+			}
+		}
+		return points;
+	}
+
+	protected void writeMetadata(IndentingXmlWriter xml, SportSession session, BoundsType bounds) throws XMLStreamException {
+		xml.start("metadata")
+			.leaf("desc", session.getNotes() + " (ID:" + session.getId() + ")");
+		if (session.getUser() != null) {
+			xml.start("author")
+				.leaf("name", session.getUser().getFirstName() + " " + session.getUser().getLastName())
+				.empty("email").attribute("id", session.getUser().getEmail())
+				.end();
+		}
+		xml.leaf("time", session.getCreatedAt())
+			.leaf("keywords", "runtastic")
+			.empty("bounds")
+			.attribute("minlat", bounds.getMinlat())
+			.attribute("minlon", bounds.getMinlon())
+			.attribute("maxlat", bounds.getMaxlat())
+			.attribute("maxlon", bounds.getMaxlon())
+			.end();
+	}
+
+	protected void writeImages(IndentingXmlWriter xml, List<ImageMetaData> images, String prefix) throws XMLStreamException {
+		if (images != null) {
+			for (ImageMetaData image : images) {
+				xml.start("wpt");
+				if (image.getLocation() != null) {
+					xml.attribute("lat", image.getLocation().getLatitude())
+						.attribute("lon", image.getLocation().getLongitude());
+				}
+				xml.leaf("time", image.getCreatedAt())
+					.leaf("name", prefix + "Photo: " + image.getId() + ".jpg")
+					.leaf("type", "photo")
+					.end();
+			}
+		}
+	}
+
+	protected void writeBoundsAsWpt(IndentingXmlWriter xml, BoundsType bounds, String boundName) throws XMLStreamException {
+		writeCorner(xml, "wpt", bounds.getMaxlat(), bounds.getMaxlon(), boundName + ": top-right corner");
+		writeCorner(xml, "wpt", bounds.getMinlat(), bounds.getMaxlon(), boundName + ": down-right corner");
+		writeCorner(xml, "wpt", bounds.getMaxlat(), bounds.getMinlon(), boundName + ": top-left corner");
+		writeCorner(xml, "wpt", bounds.getMinlat(), bounds.getMinlon(), boundName + ": down-left corner");
+	}
+
+	protected void writeBoundsAsRte(IndentingXmlWriter xml, BoundsType bounds, String boundName) throws XMLStreamException {
+		xml.start("rte")
+			.leaf("name", boundName)
+			.leaf("desc", boundName + ": Bounds of this sport session.");
+		writeCorner(xml, "rtept", bounds.getMaxlat(), bounds.getMaxlon(), boundName + ": top-right corner");
+		writeCorner(xml, "rtept", bounds.getMinlat(), bounds.getMaxlon(), boundName + ": down-right corner");
+		writeCorner(xml, "rtept", bounds.getMinlat(), bounds.getMinlon(), boundName + ": down-left corner");
+		writeCorner(xml, "rtept", bounds.getMaxlat(), bounds.getMinlon(), boundName + ": top-left corner");
+		writeCorner(xml, "rtept", bounds.getMaxlat(), bounds.getMaxlon(), boundName + ": top-right corner");
+		xml.end();
+	}
+
+	private void writeCorner(IndentingXmlWriter xml, String element, BigDecimal lat, BigDecimal lon, String name) throws XMLStreamException {
+		xml.start(element)
+			.attribute("lat", lat)
+			.attribute("lon", lon)
+			.leaf("name", name)
+			.leaf("type", "bounds")
+			.end();
+	}
+
+	protected void writeTrackpoint(IndentingXmlWriter xml, GpsData gps) throws XMLStreamException {
+		if (gps.getAltitude() == null && gps.getTimestamp() == null) {
+			xml.empty("trkpt");
+		} else {
+			xml.start("trkpt");
+		}
+		xml.attribute("lat", gps.getLatitude())
+			.attribute("lon", gps.getLongitude());
+		if (gps.getAltitude() != null || gps.getTimestamp() != null) {
+			xml.leaf("ele", gps.getAltitude())
+				.leaf("time", gps.getTimestamp())
+				.end();
+		}
+	}
+
+	protected void writeTrackpoint(IndentingXmlWriter xml, Trackpoint point) throws XMLStreamException {
+		xml.start("trkpt")
+			.attribute("lat", point.latitude)
+			.attribute("lon", point.longitude)
+			.leaf("ele", point.altitude)
+			.timestamp("time", point.time)
+			.end();
+	}
+
+	/**
+	 * Write the track of an overlap or compound member session, from its JSON GPS data or its source GPX track.
+	 */
+	protected long writeMemberTrack(IndentingXmlWriter xml, String name, String desc, SportSession member, Marshaller marshaller) throws XMLStreamException {
+		if (member.getGpsData() == null) {
+			if (member.getGpx() == null && member.getRawGpx() != null) {
+				return writeRawTrack(xml, name, desc, member.getSportTypeId(), member.getRawGpx());
+			}
+			return writeTrack(xml, name, desc, member.getSportTypeId(), member.getGpx() != null ? member.getGpx().getTrk().get(0).getTrkseg() : Collections.emptyList(), marshaller);
+		}
+		long points = 0;
+		xml.start("trk")
+			.leaf("name", name)
+			.leaf("desc", desc)
+			.leaf("type", mapper.mapSport(member.getSportTypeId()))
+			.start("trkseg");
+		for (GpsData gps : TrackSimplifier.simplify(member.getGpsData(), mapper.getSimplifyTolerance())) {
+			writeTrackpoint(xml, gps);
+			points++;
+		}
+		xml.end().end();
+		return points;
+	}
+
+	/**
+	 * Write a track with the segments of a source GPX file, copied as XML events.
+	 */
+	protected long writeRawTrack(IndentingXmlWriter xml, String name, String desc, String sportTypeId, RawGpxTrack track) throws XMLStreamException {
+		xml.start("trk")
+			.leaf("name", name)
+			.leaf("desc", desc)
+			.leaf("type", mapper.mapSport(sportTypeId));
+		long points;
+		try {
+			points = RawGpxReader.copyTrksegs(track, xml);
+		} catch (IOException e) {
+			throw new XMLStreamException(e);
+		}
+		xml.end();
+		return points;
+	}
+
+	protected long writeTrack(IndentingXmlWriter xml, String name, String desc, String sportTypeId, List<TrksegType> trksegs, Marshaller marshaller) throws XMLStreamException {
+		long points = 0;
+		xml.start("trk")
+			.leaf("name", name)
+			.leaf("desc", desc)
+			.leaf("type", mapper.mapSport(sportTypeId));
+		for (TrksegType trkseg : trksegs) {
+			if (trkseg.getTrkpt().isEmpty() && trkseg.getExtensions() == null) {
+				xml.empty("trkseg");
+				continue;
+			}
+			xml.start("trkseg");
+			for (WptType wpt : trkseg.getTrkpt()) {
+				writeWpt(xml, "trkpt", wpt, marshaller);
+				points++;
+			}
+			writeExtensions(xml, trkseg.getExtensions(), marshaller);
+			xml.end();
+		}
+		xml.end();
+		return points;
+	}
+
+	/**
+	 * Write a source waypoint, with all simple GPX 1.1 fields in schema order.
+	 */
+	protected void writeWpt(IndentingXmlWriter xml, String element, WptType wpt, Marshaller marshaller) throws XMLStreamException {
+		boolean empty = wpt.getEle() == null && wpt.getTime() == null && wpt.getMagvar() == null && wpt.getGeoidheight() == null
+			&& wpt.getName() == null && wpt.getCmt() == null && wpt.getDesc() == null && wpt.getSrc() == null && wpt.getLink().isEmpty()
+			&& wpt.getSym() == null && wpt.getType() == null && wpt.getFix() == null && wpt.getSat() == null
+			&& wpt.getHdop() == null && wpt.getVdop() == null && wpt.getPdop() == null && wpt.getAgeofdgpsdata() == null && wpt.getDgpsid() == null
+			&& wpt.getExtensions() == null;
+		if (empty) {
+			xml.empty(element).attribute("lat", wpt.getLat()).attribute("lon", wpt.getLon());
+			return;
+		}
+		xml.start(element)
+			.attribute("lat", wpt.getLat())
+			.attribute("lon", wpt.getLon())
+			.leaf("ele", wpt.getEle())
+			.leaf("time", toXMLFormat(wpt.getTime()))
+			.leaf("magvar", wpt.getMagvar())
+			.leaf("geoidheight", wpt.getGeoidheight())
+			.leaf("name", wpt.getName())
+			.leaf("cmt", wpt.getCmt())
+			.leaf("desc", wpt.getDesc())
+			.leaf("src", wpt.getSrc());
+		for (LinkType link : wpt.getLink()) {
+			if (link.getText() == null && link.getType() == null) {
+				xml.empty("link").attribute("href", link.getHref());
+			} else {
+				xml.start("link")
+					.attribute("href", link.getHref())
+					.leaf("text", link.getText())
+					.leaf("type", link.getType())
+					.end();
+			}
+		}
+		xml.leaf("sym", wpt.getSym())
+			.leaf("type", wpt.getType())
+			.leaf("fix", wpt.getFix())
+			.leaf("sat", wpt.getSat())
+			.leaf("hdop", wpt.getHdop())
+			.leaf("vdop", wpt.getVdop())
+			.leaf("pdop", wpt.getPdop())
+			.leaf("ageofdgpsdata", wpt.getAgeofdgpsdata())
+			.leaf("dgpsid", wpt.getDgpsid());
+		writeExtensions(xml, wpt.getExtensions(), marshaller);
+		xml.end();
+	}
+
+	protected void writeExtensions(IndentingXmlWriter xml, ExtensionsType extensions, Marshaller marshaller) throws XMLStreamException {
+		if (extensions != null) {
+			xml.fragment(marshaller, new JAXBElement<>(new QName(NAMESPACE, "extensions"), ExtensionsType.class, extensions));
+		}
+	}
+
+	/**
+	 * Create the marshaller of source extensions for one document, as marshallers are not thread-safe.
+	 */
+	protected Marshaller createExtensionsMarshaller() throws XMLStreamException {
+		try {
+			Marshaller marshaller = CONTEXT.createMarshaller();
+			marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+			return marshaller;
+		} catch (JAXBException e) {
+			throw new XMLStreamException(e);
+		}
+	}
+
+	/**
+	 * Calculate session bounds from its own track points, as {@link GpxSportSessionMapper#calculateBounds} does.
+	 */
+	protected BoundsType calculateBounds(SportSession session) {
+		BoundsType bounds = new BoundsType();
+		if (session.getGpsData() != null) {
+			for (GpsData gps : session.getGpsData()) {
+				extendBounds(bounds, gps.getLatitude(), gps.getLongitude());
+			}
+		}
+		if (session.getGpx() != null) {
+			TrkType trk = session.getGpx().getTrk().get(0);
+			for (TrksegType trkseg : trk.getTrkseg()) {
+				for (WptType wpt : trkseg.getTrkpt()) {
+					extendBounds(bounds, wpt.getLat(), wpt.getLon());
+				}
+			}
+		} else if (session.getRawGpx() != null && session.getRawGpx().getBounds() != null) {
+			BoundsType raw = session.getRawGpx().getBounds();
+			extendBounds(bounds, raw.getMinlat(), raw.getMinlon());
+			extendBounds(bounds, raw.getMaxlat(), raw.getMaxlon());
+		}
+		return bounds;
+	}
+
+	/**
+	 * Extend bounds (possibly empty) to include a position.
+	 */
+	public static void extendBounds(BoundsType bounds, BigDecimal lat, BigDecimal lon) {
+		if (bounds.getMaxlat() == null || bounds.getMaxlat().compareTo(lat) < 0) {
+			bounds.setMaxlat(lat);
+		}
+		if (bounds.getMinlat() == null || bounds.getMinlat().compareTo(lat) > 0) {
+			bounds.setMinlat(lat);
+		}
+		if (bounds.getMaxlon() == null || bounds.getMaxlon().compareTo(lon) < 0) {
+			bounds.setMaxlon(lon);
+		}
+		if (bounds.getMinlon() == null || bounds.getMinlon().compareTo(lon) > 0) {
+			bounds.setMinlon(lon);
+		}
+	}
+
+	private static String toXMLFormat(XMLGregorianCalendar cal) {
+		return cal != null ? cal.toXMLFormat() : null;
+	}
+
+}
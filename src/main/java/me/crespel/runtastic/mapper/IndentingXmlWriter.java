@@ -0,0 +1,309 @@
+package me.crespel.runtastic.mapper;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Thin {@link XMLStreamWriter} wrapper producing the same layout as the JAXB formatted output
+ * (standalone XML declaration, 4-space indentation, leaf elements on a single line).
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class IndentingXmlWriter {
+
+	private static final XMLOutputFactory FACTORY = XMLOutputFactory.newInstance();
+	private static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+
+	private final Writer out;
+	private final XMLStreamWriter writer;
+	private final TimestampFormatter timestamps = new TimestampFormatter();
+	private char[] indent = new char[0];
+	private boolean[] children = new boolean[16];
+	private int depth;
+
+	public IndentingXmlWriter(OutputStream os) throws XMLStreamException, IOException {
+		this.out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 32 * 1024);
+		out.write(DECLARATION);
+		this.writer = FACTORY.createXMLStreamWriter(out);
+	}
+
+	/**
+	 * Start the root element, declaring the given default namespace.
+	 */
+	public IndentingXmlWriter root(String name, String namespace) throws XMLStreamException {
+		start(name);
+		writer.writeDefaultNamespace(namespace);
+		return this;
+	}
+
+	public IndentingXmlWriter start(String name) throws XMLStreamException {
+		newChild();
+		writer.writeStartElement(name);
+		if (depth == children.length) {
+			children = Arrays.copyOf(children, depth * 2);
+		}
+		children[depth++] = false;
+		return this;
+	}
+
+	/**
+	 * Write an element without content. Attributes may be written afterwards.
+	 */
+	public IndentingXmlWriter empty(String name) throws XMLStreamException {
+		newChild();
+		writer.writeEmptyElement(name);
+		return this;
+	}
+
+	public IndentingXmlWriter attribute(String name, String value) throws XMLStreamException {
+		if (value != null) {
+			writer.writeAttribute(name, value);
+		}
+		return this;
+	}
+
+	public IndentingXmlWriter attribute(String name, BigDecimal value) throws XMLStreamException {
+		if (value != null) {
+			writer.writeAttribute(name, value.toPlainString());
+		}
+		return this;
+	}
+
+	public IndentingXmlWriter attribute(String name, Date value) throws XMLStreamException {
+		if (value != null) {
+			writer.writeAttribute(name, timestamps.formatString(value.getTime()));
+		}
+		return this;
+	}
+
+	public IndentingXmlWriter end() throws XMLStreamException {
+		if (children[--depth]) {
+			writeIndent();
+		}
+		writer.writeEndElement();
+		return this;
+	}
+
+	/**
+	 * Write a text-only element, skipped when the value is null.
+	 */
+	public IndentingXmlWriter leaf(String name, String value) throws XMLStreamException {
+		if (value != null) {
+			newChild();
+			writer.writeStartElement(name);
+			writer.writeCharacters(value);
+			writer.writeEndElement();
+		}
+		return this;
+	}
+
+	public IndentingXmlWriter leaf(String name, BigDecimal value) throws XMLStreamException {
+		return value != null ? leaf(name, value.toPlainString()) : this;
+	}
+
+	public IndentingXmlWriter leaf(String name, Number value) throws XMLStreamException {
+		return value != null ? leaf(name, value.toString()) : this;
+	}
+
+	/**
+	 * Write a double element, formatted as JAXB does for {@code xsd:double} values.
+	 */
+	public IndentingXmlWriter leaf(String name, double value) throws XMLStreamException {
+		return leaf(name, Double.toString(value));
+	}
+
+	/**
+	 * Write a timestamp element, formatted as an ISO-8601 UTC xsd:dateTime with milliseconds.
+	 */
+	public IndentingXmlWriter leaf(String name, Date value) throws XMLStreamException {
+		return value != null ? timestamp(name, value.getTime()) : this;
+	}
+
+	/**
+	 * Write a timestamp element from epoch millis, formatted as an ISO-8601 UTC xsd:dateTime with milliseconds.
+	 */
+	public IndentingXmlWriter timestamp(String name, long millis) throws XMLStreamException {
+		newChild();
+		writer.writeStartElement(name);
+		writer.writeCharacters(timestamps.format(millis), 0, TimestampFormatter.LENGTH);
+		writer.writeEndElement();
+		return this;
+	}
+
+	/**
+	 * Write a JAXB element as-is (without indentation), e.g. to copy opaque extensions of a source document.
+	 */
+	public IndentingXmlWriter fragment(Marshaller marshaller, Object element) throws XMLStreamException {
+		newChild();
+		try {
+			marshaller.marshal(element, writer);
+		} catch (JAXBException e) {
+			throw new XMLStreamException(e);
+		}
+		return this;
+	}
+
+	/**
+	 * Copy an element of a source document with its content, re-indented like the rest of the output.
+	 * Elements of the given (default) namespace are written unprefixed, other elements keep their prefix and get their
+	 * namespace declared. Whitespace-only text, comments and processing instructions are dropped.
+	 * @param reader source positioned on the start of the element, left on its end
+	 */
+	public IndentingXmlWriter copy(XMLStreamReader reader, String namespace) throws XMLStreamException {
+		Deque<String> namespaces = new ArrayDeque<>();
+		namespaces.push(namespace);
+		SourceElement pending = new SourceElement(reader);
+		while (true) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				if (pending != null) {
+					copyStart(pending, false, namespaces, namespace);
+				}
+				pending = new SourceElement(reader);
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				if (pending != null) {
+					copyStart(pending, true, namespaces, namespace);
+					pending = null;
+				} else {
+					namespaces.pop();
+					end();
+				}
+				if (namespaces.size() == 1) {
+					return this;
+				}
+			} else if ((event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) && !reader.getText().trim().isEmpty()) {
+				if (pending != null) {
+					copyStart(pending, false, namespaces, namespace);
+					pending = null;
+				}
+				writer.writeCharacters(reader.getText());
+			}
+		}
+	}
+
+	/**
+	 * Write a copied start element, unprefixed if it belongs to the default namespace of the output, and declaring its
+	 * namespace if it differs from the one of its parent.
+	 */
+	private void copyStart(SourceElement element, boolean empty, Deque<String> namespaces, String namespace) throws XMLStreamException {
+		QName name = element.name;
+		String uri = name.getNamespaceURI();
+		boolean declare = !uri.equals(namespaces.peek());
+		newChild();
+		if (uri.equals(namespace)) {
+			if (empty) {
+				writer.writeEmptyElement(name.getLocalPart());
+			} else {
+				writer.writeStartElement(name.getLocalPart());
+			}
+		} else {
+			if (empty) {
+				writer.writeEmptyElement(name.getPrefix(), name.getLocalPart(), uri);
+			} else {
+				writer.writeStartElement(name.getPrefix(), name.getLocalPart(), uri);
+			}
+			if (declare && name.getPrefix().isEmpty()) {
+				writer.writeDefaultNamespace(uri);
+			} else if (declare) {
+				writer.writeNamespace(name.getPrefix(), uri);
+			}
+		}
+		for (int i = 0; i < element.namespaces.length; i += 2) {
+			String prefix = element.namespaces[i];
+			if (!element.namespaces[i + 1].equals(namespace) && !(declare && prefix.equals(name.getPrefix()))) {
+				writer.writeNamespace(prefix, element.namespaces[i + 1]);
+			}
+		}
+		for (int i = 0; i < element.attributes.length; i++) {
+			QName attribute = element.attributes[i];
+			if (attribute.getNamespaceURI().isEmpty()) {
+				writer.writeAttribute(attribute.getLocalPart(), element.values[i]);
+			} else {
+				writer.writeAttribute(attribute.getPrefix(), attribute.getNamespaceURI(), attribute.getLocalPart(), element.values[i]);
+			}
+		}
+		if (!empty) {
+			namespaces.push(uri);
+			if (depth == children.length) {
+				children = Arrays.copyOf(children, depth * 2);
+			}
+			children[depth++] = false;
+		}
+	}
+
+	/**
+	 * Close remaining elements and flush the underlying stream (which is left open).
+	 */
+	public void finish() throws XMLStreamException, IOException {
+		while (depth > 0) {
+			end();
+		}
+		writer.writeEndDocument();
+		writer.flush();
+		out.write('\n');
+		out.flush();
+	}
+
+	private void newChild() throws XMLStreamException {
+		if (depth > 0) {
+			children[depth - 1] = true;
+			writeIndent();
+		}
+	}
+
+	private void writeIndent() throws XMLStreamException {
+		int len = 1 + depth * 4;
+		if (indent.length < len) {
+			indent = new char[len + 16];
+			Arrays.fill(indent, ' ');
+			indent[0] = '\n';
+		}
+		writer.writeCharacters(indent, 0, len);
+	}
+
+	/**
+	 * Start element read from a source document, kept until it is known whether it has content.
+	 */
+	private static class SourceElement {
+
+		final QName name;
+		final String[] namespaces;
+		final QName[] attributes;
+		final String[] values;
+
+		SourceElement(XMLStreamReader reader) {
+			name = reader.getName();
+			namespaces = new String[reader.getNamespaceCount() * 2];
+			for (int i = 0; i < reader.getNamespaceCount(); i++) {
+				String prefix = reader.getNamespacePrefix(i);
+				namespaces[2 * i] = prefix != null ? prefix : "";
+				namespaces[2 * i + 1] = reader.getNamespaceURI(i);
+			}
+			attributes = new QName[reader.getAttributeCount()];
+			values = new String[attributes.length];
+			for (int i = 0; i < attributes.length; i++) {
+				attributes[i] = reader.getAttributeName(i);
+				values[i] = reader.getAttributeValue(i);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,134 @@
+package me.crespel.runtastic.mapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+import me.crespel.runtastic.model.GpsData;
+import me.crespel.runtastic.model.HeartRateData;
+
+/**
+ * Trackpoint cursor merging GPS and heart-rate samples read incrementally (e.g. from sidecar files), in constant memory.
+ * Each sequence goes through a reorder buffer of {@link SampleMerger#MAX_DISPLACEMENT} samples, so that slightly
+ * out-of-order samples are merged in time order as in memory. Samples more displaced than that can no longer be merged
+ * as {@link SampleMerger} does after a full sort, and fail with a {@link SampleOrderException}.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class MergingTrackpointCursor implements TrackpointCursor {
+
+	private final ReorderBuffer<GpsData> gpsData;
+	private final ReorderBuffer<HeartRateData> heartRateData;
+	private final Trackpoint current = new Trackpoint();
+	private long last = Long.MIN_VALUE;
+
+	/**
+	 * @param gpsData GPS samples, or null; closed with this cursor if closeable
+	 * @param heartRateData heart-rate samples, or null; closed with this cursor if closeable
+	 */
+	public MergingTrackpointCursor(Iterator<GpsData> gpsData, Iterator<HeartRateData> heartRateData) {
+		this.gpsData = new ReorderBuffer<>(gpsData, GpsData::getTimestamp);
+		this.heartRateData = new ReorderBuffer<>(heartRateData, HeartRateData::getTimestamp);
+	}
+
+	@Override
+	public boolean next() {
+		long a = gpsData.peekTime();
+		long b = heartRateData.peekTime();
+		if (a == Long.MAX_VALUE && b == Long.MAX_VALUE) {
+			return false;
+		}
+		long time = Math.min(a, b);
+		if (time <= last) {
+			throw new SampleOrderException("Sample at " + time + " read after trackpoint at " + last
+				+ ", more than " + SampleMerger.MAX_DISPLACEMENT + " samples out of order");
+		}
+		last = time;
+		current.reset(time);
+		while (gpsData.peekTime() == time) {
+			current.fill(gpsData.poll());
+		}
+		while (heartRateData.peekTime() == time) {
+			current.fill(heartRateData.poll());
+		}
+		return true;
+	}
+
+	@Override
+	public Trackpoint current() {
+		return current;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			gpsData.close();
+		} finally {
+			heartRateData.close();
+		}
+	}
+
+	/**
+	 * Bounded buffer releasing samples of a sequence in time order (then sequence order for equal times).
+	 */
+	private static class ReorderBuffer<T> implements Closeable {
+
+		private final Iterator<T> source;
+		private final Function<? super T, Date> timestamp;
+		private final PriorityQueue<Entry<T>> queue = new PriorityQueue<>(SampleMerger.MAX_DISPLACEMENT + 1);
+		private long sequence;
+
+		ReorderBuffer(Iterator<T> source, Function<? super T, Date> timestamp) {
+			this.source = source != null ? source : Collections.emptyIterator();
+			this.timestamp = timestamp;
+		}
+
+		/**
+		 * Epoch millis of the next sample, {@link Long#MAX_VALUE} if there is none.
+		 */
+		long peekTime() {
+			while (queue.size() <= SampleMerger.MAX_DISPLACEMENT && source.hasNext()) {
+				T sample = source.next();
+				queue.add(new Entry<>(timestamp.apply(sample).getTime(), sequence++, sample));
+			}
+			return queue.isEmpty() ? Long.MAX_VALUE : queue.peek().time;
+		}
+
+		T poll() {
+			return queue.poll().sample;
+		}
+
+		@Override
+		public void close() throws IOException {
+			queue.clear();
+			if (source instanceof Closeable) {
+				((Closeable) source).close();
+			}
+		}
+
+	}
+
+	private static class Entry<T> implements Comparable<Entry<T>> {
+
+		final long time;
+		final long sequence;
+		final T sample;
+
+		Entry(long time, long sequence, T sample) {
+			this.time = time;
+			this.sequence = sequence;
+			this.sample = sample;
+		}
+
+		@Override
+		public int compareTo(Entry<T> o) {
+			int c = Long.compare(time, o.time);
+			return c != 0 ? c : Long.compare(sequence, o.sequence);
+		}
+
+	}
+
+}
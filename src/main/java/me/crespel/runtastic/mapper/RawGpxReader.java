@@ -0,0 +1,207 @@
+package me.crespel.runtastic.mapper;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.topografix.gpx._1._1.BoundsType;
+import com.topografix.gpx._1._1.GpxType;
+
+import me.crespel.runtastic.model.RawGpxTrack;
+
+/**
+ * StAX access to source GPX tracks referenced by {@link RawGpxTrack}.
+ * Only the first track of a source document is considered, as the GPX mapper does for unmarshalled documents.
+ * Track segments are copied to the output as StAX events, without building a {@code GpxType} object graph.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class RawGpxReader {
+
+	private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+	static {
+		FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+	}
+
+	/**
+	 * Handler of source track points, called in document order.
+	 */
+	@FunctionalInterface
+	public interface TrackpointHandler {
+		void trackpoint(BigDecimal lat, BigDecimal lon, BigDecimal ele, String time) throws IOException;
+	}
+
+	private RawGpxReader() {
+	}
+
+	/**
+	 * Scan a source GPX file for the bounds and point count of its first track.
+	 */
+	public static RawGpxTrack scan(File file) throws IOException {
+		BoundsType bounds = new BoundsType();
+		long[] points = new long[1];
+		forEachTrackpoint(file, (lat, lon, ele, time) -> {
+			GpxStreamWriter.extendBounds(bounds, lat, lon);
+			points[0]++;
+		});
+		return new RawGpxTrack(file, points[0] > 0 ? bounds : null, points[0]);
+	}
+
+	/**
+	 * Read the points of the first track of a source GPX file.
+	 * A missing, empty or invalid elevation is read as null, whereas an invalid position fails with an {@link IOException}.
+	 */
+	public static void forEachTrackpoint(File file, TrackpointHandler handler) throws IOException {
+		try (InputStream is = open(file)) {
+			XMLStreamReader reader = FACTORY.createXMLStreamReader(is);
+			try {
+				if (!seekTrack(reader)) {
+					return;
+				}
+				int depth = 1;
+				BigDecimal lat = null, lon = null, ele = null;
+				String time = null;
+				while (depth > 0) {
+					int event = reader.next();
+					if (event == XMLStreamConstants.START_ELEMENT) {
+						depth++;
+						String name = reader.getLocalName();
+						if (depth == 3 && "trkpt".equals(name)) {
+							lat = parsePosition(file, reader, "lat");
+							lon = parsePosition(file, reader, "lon");
+							ele = null;
+							time = null;
+						} else if (depth == 4 && "ele".equals(name)) {
+							ele = parseDecimal(reader.getElementText());
+							depth--;
+						} else if (depth == 4 && "time".equals(name)) {
+							time = reader.getElementText().trim();
+							depth--;
+						}
+					} else if (event == XMLStreamConstants.END_ELEMENT) {
+						if (depth == 3 && "trkpt".equals(reader.getLocalName())) {
+							handler.trackpoint(lat, lon, ele, time);
+						}
+						depth--;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Failed to read GPX file '" + file + "'", e);
+		}
+	}
+
+	/**
+	 * Copy the track segments of the first track of a source GPX file.
+	 * @return number of copied track points
+	 */
+	public static long copyTrksegs(RawGpxTrack track, IndentingXmlWriter xml) throws XMLStreamException, IOException {
+		try (InputStream is = open(track.getFile())) {
+			XMLStreamReader reader = FACTORY.createXMLStreamReader(is);
+			try {
+				if (!seekTrack(reader)) {
+					return 0;
+				}
+				int event;
+				while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT) {
+					if (event != XMLStreamConstants.START_ELEMENT) {
+						continue;
+					}
+					if ("trkseg".equals(reader.getLocalName())) {
+						xml.copy(reader, GpxStreamWriter.NAMESPACE);
+					} else {
+						skip(reader);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return track.getPoints();
+	}
+
+	/**
+	 * Unmarshal a source GPX file, for callers needing the full object graph (e.g. the in-memory GPX mapping).
+	 */
+	@SuppressWarnings("unchecked")
+	public static GpxType load(RawGpxTrack track) throws IOException {
+		try {
+			return ((JAXBElement<GpxType>) GpxStreamWriter.CONTEXT.createUnmarshaller().unmarshal(track.getFile())).getValue();
+		} catch (JAXBException e) {
+			throw new IOException("Failed to read GPX file '" + track.getFile() + "'", e);
+		}
+	}
+
+	private static BigDecimal parsePosition(File file, XMLStreamReader reader, String attribute) throws IOException {
+		String value = reader.getAttributeValue(null, attribute);
+		BigDecimal position = parseDecimal(value);
+		if (position == null) {
+			throw new IOException("Invalid track point " + attribute + " '" + value + "' in GPX file '" + file + "' (line " + reader.getLocation().getLineNumber() + ")");
+		}
+		return position;
+	}
+
+	/**
+	 * Parse a decimal value, as null if missing, empty or invalid.
+	 */
+	private static BigDecimal parseDecimal(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return null;
+		}
+		try {
+			return new BigDecimal(value.trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static InputStream open(File file) throws IOException {
+		return new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+	}
+
+	/**
+	 * Move past the start of the first track (a child of the root element).
+	 * @return false if the document has no track
+	 */
+	private static boolean seekTrack(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 0;
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				if (++depth == 2 && "trk".equals(reader.getLocalName())) {
+					return true;
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Move past the end of the current element.
+	 */
+	private static void skip(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+}
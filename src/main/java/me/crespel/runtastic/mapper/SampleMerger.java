@@ -0,0 +1,159 @@
+package me.crespel.runtastic.mapper;
+
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * Linear two-way merge of time-ordered sample sequences (e.g. GPS and heart-rate samples), on epoch millis.
+ * Samples sharing a timestamp are grouped together: after each {@link #next()}, the current group holds
+ * {@link #countA()} samples of the first sequence and {@link #countB()} samples of the second one.
+ * Slightly out-of-order sequences (no sample more than {@link #MAX_DISPLACEMENT} positions too late) are
+ * reordered in a single bounded insertion pass; a full sort is only used when that check fails.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class SampleMerger {
+
+	public static final int MAX_DISPLACEMENT = 16;
+
+	private final long[] timesA;
+	private final long[] timesB;
+	private final int[] orderA;
+	private final int[] orderB;
+	private int startA, endA;
+	private int startB, endB;
+	private long time;
+
+	public SampleMerger(long[] timesA, long[] timesB) {
+		this.timesA = timesA;
+		this.timesB = timesB;
+		this.orderA = order(timesA);
+		this.orderB = order(timesB);
+	}
+
+	public static <A, B> SampleMerger of(List<A> a, Function<? super A, Date> timestampA, List<B> b, Function<? super B, Date> timestampB) {
+		return new SampleMerger(times(a, timestampA), times(b, timestampB));
+	}
+
+	/**
+	 * Extract the epoch millis of samples, an empty array if there are none.
+	 */
+	public static <T> long[] times(List<T> samples, Function<? super T, Date> timestamp) {
+		if (samples == null) {
+			return new long[0];
+		}
+		long[] times = new long[samples.size()];
+		int i = 0;
+		for (T sample : samples) {
+			times[i++] = timestamp.apply(sample).getTime();
+		}
+		return times;
+	}
+
+	/**
+	 * Advance to the next group of samples sharing a timestamp.
+	 * @return false when both sequences are exhausted
+	 */
+	public boolean next() {
+		startA = endA;
+		startB = endB;
+		boolean hasA = startA < timesA.length;
+		boolean hasB = startB < timesB.length;
+		if (!hasA && !hasB) {
+			return false;
+		}
+		long a = hasA ? timesA[indexOf(orderA, startA)] : Long.MAX_VALUE;
+		long b = hasB ? timesB[indexOf(orderB, startB)] : Long.MAX_VALUE;
+		time = hasA && (!hasB || a <= b) ? a : b;
+		while (endA < timesA.length && timesA[indexOf(orderA, endA)] == time) {
+			endA++;
+		}
+		while (endB < timesB.length && timesB[indexOf(orderB, endB)] == time) {
+			endB++;
+		}
+		return true;
+	}
+
+	/**
+	 * Rewind to the start of both sequences, e.g. after counting groups.
+	 */
+	public void reset() {
+		startA = endA = 0;
+		startB = endB = 0;
+	}
+
+	/**
+	 * Epoch millis of the current group.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	public int countA() {
+		return endA - startA;
+	}
+
+	/**
+	 * Index, in the first sequence, of the n-th sample of the current group.
+	 */
+	public int indexA(int n) {
+		return indexOf(orderA, startA + n);
+	}
+
+	public int countB() {
+		return endB - startB;
+	}
+
+	/**
+	 * Index, in the second sequence, of the n-th sample of the current group.
+	 */
+	public int indexB(int n) {
+		return indexOf(orderB, startB + n);
+	}
+
+	private static int indexOf(int[] order, int position) {
+		return order != null ? order[position] : position;
+	}
+
+	/**
+	 * Compute the stable time order of a sequence.
+	 * @return null if the sequence is already ordered, or the sample indexes in time order
+	 */
+	static int[] order(long[] times) {
+		int first = 1;
+		while (first < times.length && times[first] >= times[first - 1]) {
+			first++;
+		}
+		if (first >= times.length) {
+			return null;
+		}
+		int[] order = new int[times.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		for (int i = first; i < order.length; i++) {
+			int index = order[i];
+			long t = times[index];
+			int j = i;
+			while (j > 0 && times[order[j - 1]] > t) {
+				if (i - j >= MAX_DISPLACEMENT) {
+					return sortedOrder(times);
+				}
+				order[j] = order[j - 1];
+				j--;
+			}
+			order[j] = index;
+		}
+		return order;
+	}
+
+	private static int[] sortedOrder(long[] times) {
+		return IntStream.range(0, times.length).boxed()
+			.sorted(Comparator.comparingLong(i -> times[i]))
+			.mapToInt(Integer::intValue)
+			.toArray();
+	}
+
+}
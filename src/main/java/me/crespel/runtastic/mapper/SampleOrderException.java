@@ -0,0 +1,16 @@
+package me.crespel.runtastic.mapper;
+
+/**
+ * Thrown by a streaming {@link TrackpointCursor} reading samples too far out of time order to be merged on the fly,
+ * so that the session can be converted from its samples in memory instead.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class SampleOrderException extends IllegalStateException {
+
+	private static final long serialVersionUID = 1L;
+
+	public SampleOrderException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,16 @@
+package me.crespel.runtastic.mapper;
+
+/**
+ * Mapper able to simplify GPS tracks before writing them.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public interface SimplifyingMapper {
+
+	/**
+	 * @param tolerance maximum distance in metres between a removed point and the simplified track, 0 to disable simplification
+	 */
+	void setSimplifyTolerance(double tolerance);
+
+	double getSimplifyTolerance();
+
+}
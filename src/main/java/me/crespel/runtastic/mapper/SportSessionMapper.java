@@ -17,8 +17,16 @@ public interface SportSessionMapper<T> {
 
 	T mapSportSession(SportSession session, String format);
 
+	/**
+	 * Map a sport session and write it to a file.
+	 * @return mapped object, or null if the mapper writes its output without building it
+	 */
 	T mapSportSession(SportSession session, String format, File dest);
 
+	/**
+	 * Map a sport session and write it to a stream, which is left open.
+	 * @return mapped object, or null if the mapper writes its output without building it
+	 */
 	T mapSportSession(SportSession session, String format, OutputStream dest);
 
 }
@@ -0,0 +1,33 @@
+package me.crespel.runtastic.mapper;
+
+import java.io.OutputStream;
+
+import me.crespel.runtastic.model.SportSession;
+
+/**
+ * Point-oriented sport session mapper.
+ * This interface writes a sport session from its header and a cursor over its trackpoints, so that sessions of any
+ * length can be converted without their samples in memory. Tracks are written as read, without simplification.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public interface StreamingSportSessionMapper {
+
+	boolean supports(String format);
+
+	/**
+	 * Whether trackpoints of a format merge GPS and heart-rate samples in time order (e.g. TCX), or only list GPS samples
+	 * as read (e.g. GPX), see {@link MergingTrackpointCursor} and {@link GpsTrackpointCursor}.
+	 */
+	default boolean mergesHeartRate(String format) {
+		return true;
+	}
+
+	/**
+	 * Write a sport session to a stream, which is left open.
+	 * @param header session summary, images, bounds, source GPX track and overlap/compound members; its GPS and heart-rate samples are ignored
+	 * @param trackpoints GPS and heart-rate samples of the session, left open
+	 * @return number of written trackpoints
+	 */
+	long mapSportSession(SportSession header, TrackpointCursor trackpoints, String format, OutputStream dest);
+
+}
@@ -1,19 +1,20 @@
 package me.crespel.runtastic.mapper;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.List;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.io.output.CountingOutputStream;
 
 import com.garmin.xmlschemas.trainingcenterdatabase.v2.ActivityLapT;
 import com.garmin.xmlschemas.trainingcenterdatabase.v2.ActivityListT;
@@ -30,15 +31,19 @@ import com.garmin.xmlschemas.trainingcenterdatabase.v2.TriggerMethodT;
 import me.crespel.runtastic.model.GpsData;
 import me.crespel.runtastic.model.HeartRateData;
 import me.crespel.runtastic.model.SportSession;
+import me.crespel.runtastic.monitoring.StageEvents;
 
 /**
  * TCX sport session mapper.
  * @author Fabien CRESPEL (fabien@crespel.net)
  */
-public class TcxSportSessionMapper implements SportSessionMapper<TrainingCenterDatabaseT> {
+public class TcxSportSessionMapper implements SportSessionMapper<TrainingCenterDatabaseT>, StreamingSportSessionMapper, SimplifyingMapper {
 
 	protected final DatatypeFactory dtf;
 	protected final ObjectFactory factory = new ObjectFactory();
+	protected final ThreadLocal<TimestampFormatter> timestamps = ThreadLocal.withInitial(TimestampFormatter::new);
+	protected final TcxStreamWriter streamWriter = new TcxStreamWriter(this);
+	protected double simplifyTolerance;
 
 	public TcxSportSessionMapper() {
 		try {
@@ -48,6 +53,16 @@ public class TcxSportSessionMapper implements SportSessionMapper<TrainingCenterD
 		}
 	}
 
+	@Override
+	public double getSimplifyTolerance() {
+		return simplifyTolerance;
+	}
+
+	@Override
+	public void setSimplifyTolerance(double simplifyTolerance) {
+		this.simplifyTolerance = simplifyTolerance;
+	}
+
 	@Override
 	public boolean supports(String format) {
 		return format != null && format.toLowerCase().endsWith("tcx");
@@ -55,69 +70,94 @@ public class TcxSportSessionMapper implements SportSessionMapper<TrainingCenterD
 
 	@Override
 	public TrainingCenterDatabaseT mapSportSession(SportSession session, String format) {
-		List<TrackpointT> trackpoints = new ArrayList<>();
-		trackpoints.addAll(mapGpsData(session.getGpsData()));
-		trackpoints.addAll(mapHeartRateData(session.getHeartRateData()));
-		TrackT track = factory.createTrackT();
-		track.getTrackpoint().addAll(mergeTrackpoints(trackpoints));
-
-		ActivityLapT lap = factory.createActivityLapT();
-		lap.setStartTime(mapDate(session.getStartTime()));
-		lap.setTotalTimeSeconds(session.getDuration());
-		lap.setDistanceMeters(session.getDistance());
-		lap.setCalories(session.getCalories());
-		lap.setAverageHeartRateBpm(mapHeartRate(session.getPulseAvg()));
-		lap.setMaximumHeartRateBpm(mapHeartRate(session.getPulseMax()));
-		lap.setMaximumSpeed(session.getMaxSpeed() != null ? session.getMaxSpeed().doubleValue() : 0d);
-		lap.setTriggerMethod(TriggerMethodT.MANUAL);
-		lap.getTrack().add(track);
-
-		ActivityT activity = factory.createActivityT();
-		activity.setSport(mapSport(session.getSportTypeId()));
-		activity.setId(mapDate(session.getStartTime()));
-		activity.getLap().add(lap);
-
-		ActivityListT activities = factory.createActivityListT();
-		activities.getActivity().add(activity);
-
-		TrainingCenterDatabaseT tcx = factory.createTrainingCenterDatabaseT();
-		tcx.setActivities(activities);
-		return tcx;
+		try (StageEvents.MapSession event = new StageEvents.MapSession(format)) {
+			event.start();
+			TrackT track = factory.createTrackT();
+			List<GpsData> gpsData = TrackSimplifier.simplify(session.getGpsData(), simplifyTolerance);
+			List<HeartRateData> heartRateData = gpsData != session.getGpsData() ? TrackSimplifier.resample(session.getHeartRateData(), gpsData) : session.getHeartRateData();
+			track.getTrackpoint().addAll(mergeTrackpoints(gpsData, heartRateData));
+
+			ActivityLapT lap = factory.createActivityLapT();
+			lap.setStartTime(mapDate(session.getStartTime()));
+			lap.setTotalTimeSeconds(session.getDuration());
+			lap.setDistanceMeters(session.getDistance());
+			lap.setCalories(session.getCalories());
+			lap.setAverageHeartRateBpm(mapHeartRate(session.getPulseAvg()));
+			lap.setMaximumHeartRateBpm(mapHeartRate(session.getPulseMax()));
+			lap.setMaximumSpeed(session.getMaxSpeed() != null ? session.getMaxSpeed().doubleValue() : 0d);
+			lap.setTriggerMethod(TriggerMethodT.MANUAL);
+			lap.getTrack().add(track);
+
+			ActivityT activity = factory.createActivityT();
+			activity.setSport(mapSport(session.getSportTypeId()));
+			activity.setId(mapDate(session.getStartTime()));
+			activity.getLap().add(lap);
+
+			ActivityListT activities = factory.createActivityListT();
+			activities.getActivity().add(activity);
+
+			TrainingCenterDatabaseT tcx = factory.createTrainingCenterDatabaseT();
+			tcx.setActivities(activities);
+			event.end(session.getId(), 0, track.getTrackpoint().size());
+			return tcx;
+		}
 	}
 
+	/**
+	 * Write a sport session to a TCX file, using the streaming writer.
+	 * @return null, as no {@code TrainingCenterDatabaseT} is built
+	 */
 	@Override
 	public TrainingCenterDatabaseT mapSportSession(SportSession session, String format, File dest) {
-		TrainingCenterDatabaseT tcx = mapSportSession(session, format);
-		try {
-			JAXBContext ctx = JAXBContext.newInstance(TrainingCenterDatabaseT.class);
-			Marshaller m = ctx.createMarshaller();
-			m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-			m.marshal(factory.createTrainingCenterDatabase(tcx), dest);
-		} catch (JAXBException e) {
+		try (OutputStream os = new BufferedOutputStream(new FileOutputStream(dest), 64 * 1024)) {
+			return mapSportSession(session, format, os);
+		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-		return tcx;
 	}
 
+	/**
+	 * Write a sport session to a TCX stream, using the streaming writer.
+	 * @return null, as no {@code TrainingCenterDatabaseT} is built
+	 */
 	@Override
 	public TrainingCenterDatabaseT mapSportSession(SportSession session, String format, OutputStream dest) {
-		TrainingCenterDatabaseT tcx = mapSportSession(session, format);
-		try {
-			JAXBContext ctx = JAXBContext.newInstance(TrainingCenterDatabaseT.class);
-			Marshaller m = ctx.createMarshaller();
-			m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-			m.marshal(factory.createTrainingCenterDatabase(tcx), dest);
-		} catch (JAXBException e) {
-			throw new RuntimeException(e);
+		try (StageEvents.MarshalSession event = new StageEvents.MarshalSession(format)) {
+			event.start();
+			CountingOutputStream counter = new CountingOutputStream(dest);
+			long points;
+			try {
+				points = streamWriter.write(session, counter);
+			} catch (XMLStreamException | IOException e) {
+				throw new RuntimeException(e);
+			}
+			event.end(session.getId(), counter.getByteCount(), points);
+			return null;
+		}
+	}
+
+	/**
+	 * Write a sport session to a TCX stream from its header and a cursor over its trackpoints, using the streaming writer.
+	 */
+	@Override
+	public long mapSportSession(SportSession header, TrackpointCursor trackpoints, String format, OutputStream dest) {
+		try (StageEvents.MarshalSession event = new StageEvents.MarshalSession(format)) {
+			event.start();
+			CountingOutputStream counter = new CountingOutputStream(dest);
+			long points;
+			try {
+				points = streamWriter.write(header, trackpoints, counter);
+			} catch (XMLStreamException | IOException e) {
+				throw new RuntimeException(e);
+			}
+			event.end(header.getId(), counter.getByteCount(), points);
+			return points;
 		}
-		return tcx;
 	}
 
 	protected XMLGregorianCalendar mapDate(Date date) {
 		if (date != null) {
-			GregorianCalendar cal = new GregorianCalendar();
-			cal.setTime(date);
-			return dtf.newXMLGregorianCalendar(cal);
+			return timestamps.get().toXMLGregorianCalendar(dtf, date.getTime());
 		}
 		return null;
 	}
@@ -142,62 +182,63 @@ public class TcxSportSessionMapper implements SportSessionMapper<TrainingCenterD
 		}
 	}
 
-	protected List<TrackpointT> mapGpsData(List<GpsData> gpsData) {
-		List<TrackpointT> trackpoints = new ArrayList<>();
-		if (gpsData != null) {
-			for (GpsData gps : gpsData) {
-				PositionT pos = factory.createPositionT();
-				pos.setLatitudeDegrees(gps.getLatitude().doubleValue());
-				pos.setLongitudeDegrees(gps.getLongitude().doubleValue());
-				TrackpointT trackpoint = factory.createTrackpointT();
-				trackpoint.setTime(mapDate(gps.getTimestamp()));
-				trackpoint.setDistanceMeters(gps.getDistance().doubleValue());
-				trackpoint.setAltitudeMeters(gps.getAltitude().doubleValue());
-				trackpoint.setPosition(pos);
-				trackpoints.add(trackpoint);
-			}
-		}
-		return trackpoints;
+	protected TrackpointT mapGpsData(GpsData gps) {
+		PositionT pos = factory.createPositionT();
+		pos.setLatitudeDegrees(gps.getLatitude().doubleValue());
+		pos.setLongitudeDegrees(gps.getLongitude().doubleValue());
+		TrackpointT trackpoint = factory.createTrackpointT();
+		trackpoint.setTime(mapDate(gps.getTimestamp()));
+		trackpoint.setDistanceMeters(gps.getDistance().doubleValue());
+		trackpoint.setAltitudeMeters(gps.getAltitude().doubleValue());
+		trackpoint.setPosition(pos);
+		return trackpoint;
 	}
 
-	protected List<TrackpointT> mapHeartRateData(List<HeartRateData> heartRateData) {
-		List<TrackpointT> trackpoints = new ArrayList<>();
-		if (heartRateData != null) {
-			for (HeartRateData hr : heartRateData) {
-				TrackpointT trackpoint = factory.createTrackpointT();
-				trackpoint.setTime(mapDate(hr.getTimestamp()));
-				trackpoint.setDistanceMeters(hr.getDistance().doubleValue());
-				trackpoint.setHeartRateBpm(mapHeartRate(hr.getHeartRate()));
-				trackpoints.add(trackpoint);
-			}
-		}
-		return trackpoints;
+	protected TrackpointT mapHeartRateData(HeartRateData hr) {
+		TrackpointT trackpoint = factory.createTrackpointT();
+		trackpoint.setTime(mapDate(hr.getTimestamp()));
+		trackpoint.setDistanceMeters(hr.getDistance().doubleValue());
+		trackpoint.setHeartRateBpm(mapHeartRate(hr.getHeartRate()));
+		return trackpoint;
 	}
 
-	protected List<TrackpointT> mergeTrackpoints(List<TrackpointT> trackpoints) {
+	/**
+	 * Merge GPS and heart-rate samples into time-ordered trackpoints, with a linear merge on epoch millis.
+	 * Samples sharing a timestamp are joined into a single trackpoint, GPS first.
+	 */
+	protected List<TrackpointT> mergeTrackpoints(List<GpsData> gpsData, List<HeartRateData> heartRateData) {
 		List<TrackpointT> merged = new ArrayList<>();
-		Collections.sort(trackpoints, (a, b) -> a.getTime().compare(b.getTime()));
-		TrackpointT previous = null;
-		for (TrackpointT current : trackpoints) {
-			if (previous != null && current.getTime().equals(previous.getTime())) {
-				if (previous.getDistanceMeters() == null) {
-					previous.setDistanceMeters(current.getDistanceMeters());
-				}
-				if (previous.getAltitudeMeters() == null) {
-					previous.setAltitudeMeters(current.getAltitudeMeters());
-				}
-				if (previous.getPosition() == null) {
-					previous.setPosition(current.getPosition());
-				}
-				if (previous.getHeartRateBpm() == null) {
-					previous.setHeartRateBpm(current.getHeartRateBpm());
-				}
-			} else {
-				merged.add(current);
+		SampleMerger merger = SampleMerger.of(gpsData, GpsData::getTimestamp, heartRateData, HeartRateData::getTimestamp);
+		while (merger.next()) {
+			TrackpointT trackpoint = null;
+			for (int i = 0; i < merger.countA(); i++) {
+				trackpoint = mergeTrackpoint(trackpoint, mapGpsData(gpsData.get(merger.indexA(i))));
+			}
+			for (int i = 0; i < merger.countB(); i++) {
+				trackpoint = mergeTrackpoint(trackpoint, mapHeartRateData(heartRateData.get(merger.indexB(i))));
 			}
-			previous = current;
+			merged.add(trackpoint);
 		}
 		return merged;
 	}
 
+	protected TrackpointT mergeTrackpoint(TrackpointT previous, TrackpointT current) {
+		if (previous == null) {
+			return current;
+		}
+		if (previous.getDistanceMeters() == null) {
+			previous.setDistanceMeters(current.getDistanceMeters());
+		}
+		if (previous.getAltitudeMeters() == null) {
+			previous.setAltitudeMeters(current.getAltitudeMeters());
+		}
+		if (previous.getPosition() == null) {
+			previous.setPosition(current.getPosition());
+		}
+		if (previous.getHeartRateBpm() == null) {
+			previous.setHeartRateBpm(current.getHeartRateBpm());
+		}
+		return previous;
+	}
+
 }
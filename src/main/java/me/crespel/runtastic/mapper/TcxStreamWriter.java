@@ -0,0 +1,114 @@
+package me.crespel.runtastic.mapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+
+import com.garmin.xmlschemas.trainingcenterdatabase.v2.TriggerMethodT;
+
+import me.crespel.runtastic.model.GpsData;
+import me.crespel.runtastic.model.HeartRateData;
+import me.crespel.runtastic.model.SportSession;
+
+/**
+ * Streaming TCX writer.
+ * Writes the same document as {@link TcxSportSessionMapper} marshalled through JAXB, emitting trackpoints on the fly
+ * while walking the GPS and heart-rate samples in time order, without building a {@code TrainingCenterDatabaseT}.
+ * Samples can also be read from a {@link TrackpointCursor}, e.g. straight from sidecar files.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class TcxStreamWriter {
+
+	public static final String NAMESPACE = "http://www.garmin.com/xmlschemas/TrainingCenterDatabase/v2";
+
+	protected final TcxSportSessionMapper mapper;
+
+	public TcxStreamWriter(TcxSportSessionMapper mapper) {
+		this.mapper = mapper;
+	}
+
+	/**
+	 * Write a sport session as a TCX document.
+	 * @return number of written trackpoints
+	 */
+	public long write(SportSession session, OutputStream os) throws XMLStreamException, IOException {
+		List<GpsData> gpsData = TrackSimplifier.simplify(session.getGpsData(), mapper.getSimplifyTolerance());
+		List<HeartRateData> heartRateData = gpsData != session.getGpsData() ? TrackSimplifier.resample(session.getHeartRateData(), gpsData) : session.getHeartRateData();
+		return write(session, TrackpointCursor.of(gpsData, heartRateData), os);
+	}
+
+	/**
+	 * Write a sport session as a TCX document, from its header and a cursor over its trackpoints.
+	 * @return number of written trackpoints
+	 */
+	public long write(SportSession header, TrackpointCursor trackpoints, OutputStream os) throws XMLStreamException, IOException {
+		IndentingXmlWriter xml = new IndentingXmlWriter(os);
+		xml.root("TrainingCenterDatabase", NAMESPACE)
+			.start("Activities")
+			.start("Activity").attribute("Sport", mapper.mapSport(header.getSportTypeId()).value())
+			.leaf("Id", header.getStartTime())
+			.start("Lap").attribute("StartTime", header.getStartTime())
+			.leaf("TotalTimeSeconds", header.getDuration().doubleValue())
+			.leaf("DistanceMeters", header.getDistance().doubleValue())
+			.leaf("MaximumSpeed", header.getMaxSpeed() != null ? header.getMaxSpeed().doubleValue() : 0d)
+			.leaf("Calories", header.getCalories());
+		writeHeartRate(xml, "AverageHeartRateBpm", header.getPulseAvg());
+		writeHeartRate(xml, "MaximumHeartRateBpm", header.getPulseMax());
+		xml.leaf("TriggerMethod", TriggerMethodT.MANUAL.value());
+
+		long points = 0;
+		if (!trackpoints.next()) {
+			xml.empty("Track");
+		} else {
+			xml.start("Track");
+			points = writeTrackpoints(xml, trackpoints);
+			xml.end();
+		}
+
+		xml.finish();
+		return points;
+	}
+
+	/**
+	 * Write trackpoints, starting with the current one of the cursor.
+	 * Samples sharing a timestamp are joined into a single trackpoint, GPS first, as done by {@link TcxSportSessionMapper#mergeTrackpoints(List, List)}.
+	 */
+	protected long writeTrackpoints(IndentingXmlWriter xml, TrackpointCursor trackpoints) throws XMLStreamException, IOException {
+		long points = 0;
+		do {
+			writeTrackpoint(xml, trackpoints.current());
+			points++;
+		} while (trackpoints.next());
+		return points;
+	}
+
+	protected void writeTrackpoint(IndentingXmlWriter xml, Trackpoint point) throws XMLStreamException {
+		xml.start("Trackpoint")
+			.timestamp("Time", point.time);
+		if (point.latitude != null) {
+			xml.start("Position")
+				.leaf("LatitudeDegrees", point.latitude.doubleValue())
+				.leaf("LongitudeDegrees", point.longitude.doubleValue())
+				.end();
+		}
+		if (point.altitude != null) {
+			xml.leaf("AltitudeMeters", point.altitude.doubleValue());
+		}
+		if (point.distance != null) {
+			xml.leaf("DistanceMeters", point.distance.doubleValue());
+		}
+		writeHeartRate(xml, "HeartRateBpm", point.heartRate);
+		xml.end();
+	}
+
+	protected void writeHeartRate(IndentingXmlWriter xml, String name, Integer value) throws XMLStreamException {
+		if (value != null) {
+			xml.start(name)
+				.leaf("Value", Short.toString(value.shortValue()))
+				.end();
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+package me.crespel.runtastic.mapper;
+
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Allocation-free ISO-8601 UTC timestamp formatter ({@code yyyy-MM-ddTHH:mm:ss.SSSZ}), writing epoch millis into a reused char buffer.
+ * The date part is only recomputed when a timestamp falls outside the day of the previous one, which is the common case
+ * for consecutive track points. Instances are not thread-safe.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class TimestampFormatter {
+
+	public static final int LENGTH = 24;
+
+	private static final long DAY = 86400000L;
+
+	private final char[] buffer = new char[LENGTH];
+	private long dayStart = 1;
+	private long dayEnd = 0;
+	private int year, month, day;
+
+	public TimestampFormatter() {
+		buffer[10] = 'T';
+		buffer[13] = ':';
+		buffer[16] = ':';
+		buffer[19] = '.';
+		buffer[23] = 'Z';
+	}
+
+	/**
+	 * Format a timestamp into the internal buffer.
+	 * @return the buffer, holding {@link #LENGTH} characters
+	 */
+	public char[] format(long millis) {
+		int msOfDay = updateDay(millis);
+		digits(buffer, 11, msOfDay / 3600000, 2);
+		digits(buffer, 14, (msOfDay / 60000) % 60, 2);
+		digits(buffer, 17, (msOfDay / 1000) % 60, 2);
+		digits(buffer, 20, msOfDay % 1000, 3);
+		return buffer;
+	}
+
+	/**
+	 * Format a timestamp into a new string, e.g. for attribute values.
+	 */
+	public String formatString(long millis) {
+		return new String(format(millis), 0, LENGTH);
+	}
+
+	/**
+	 * Build an UTC {@link XMLGregorianCalendar} for JAXB, without going through a {@link java.util.GregorianCalendar}.
+	 */
+	public XMLGregorianCalendar toXMLGregorianCalendar(DatatypeFactory dtf, long millis) {
+		int msOfDay = updateDay(millis);
+		return dtf.newXMLGregorianCalendar(year, month, day, msOfDay / 3600000, (msOfDay / 60000) % 60, (msOfDay / 1000) % 60,
+			msOfDay % 1000, 0);
+	}
+
+	private int updateDay(long millis) {
+		if (millis < dayStart || millis >= dayEnd) {
+			long days = Math.floorDiv(millis, DAY);
+			dayStart = days * DAY;
+			dayEnd = dayStart + DAY;
+			// civil date from days since epoch (proleptic Gregorian calendar)
+			long z = days + 719468;
+			long era = Math.floorDiv(z, 146097);
+			long doe = z - era * 146097;
+			long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+			long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+			long mp = (5 * doy + 2) / 153;
+			day = (int) (doy - (153 * mp + 2) / 5 + 1);
+			month = (int) (mp < 10 ? mp + 3 : mp - 9);
+			year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+			if (year < 0 || year > 9999) {
+				throw new IllegalArgumentException("Year out of range: " + year);
+			}
+			digits(buffer, 0, year, 4);
+			buffer[4] = '-';
+			digits(buffer, 5, month, 2);
+			buffer[7] = '-';
+			digits(buffer, 8, day, 2);
+		}
+		return (int) (millis - dayStart);
+	}
+
+	private static void digits(char[] buf, int pos, int value, int width) {
+		for (int i = pos + width - 1; i >= pos; i--) {
+			buf[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+
+}
@@ -0,0 +1,148 @@
+package me.crespel.runtastic.mapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import me.crespel.runtastic.model.GpsData;
+import me.crespel.runtastic.model.HeartRateData;
+
+/**
+ * Douglas-Peucker track simplification, with a tolerance in metres.
+ * The algorithm runs iteratively on primitive arrays without a stack: each retained point links to the next retained one,
+ * and a segment is split at its farthest point until all its points are within tolerance, then the next segment is processed.
+ * Distances are computed on a local equirectangular projection, which is accurate enough at track scale.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class TrackSimplifier {
+
+	private static final double EARTH_RADIUS = 6371008.8;
+
+	private TrackSimplifier() {
+	}
+
+	/**
+	 * Simplify a track given as latitude and longitude arrays, in degrees.
+	 * @return indexes of the retained points, in order (first and last point are always retained)
+	 */
+	public static int[] simplify(double[] lat, double[] lon, double tolerance) {
+		int n = lat.length;
+		if (n <= 2 || tolerance <= 0) {
+			int[] all = new int[n];
+			for (int i = 0; i < n; i++) {
+				all[i] = i;
+			}
+			return all;
+		}
+
+		double scale = Math.cos(Math.toRadians(lat[0]));
+		double[] x = new double[n];
+		double[] y = new double[n];
+		for (int i = 0; i < n; i++) {
+			x[i] = Math.toRadians(lon[i]) * scale * EARTH_RADIUS;
+			y[i] = Math.toRadians(lat[i]) * EARTH_RADIUS;
+		}
+
+		int[] next = new int[n];
+		next[0] = n - 1;
+		int count = 2;
+		double tolerance2 = tolerance * tolerance;
+		int start = 0;
+		while (start < n - 1) {
+			int end = next[start];
+			int farthest = -1;
+			double max = tolerance2;
+			for (int i = start + 1; i < end; i++) {
+				double d = segmentDistance2(x[i], y[i], x[start], y[start], x[end], y[end]);
+				if (d > max) {
+					max = d;
+					farthest = i;
+				}
+			}
+			if (farthest >= 0) {
+				next[farthest] = end;
+				next[start] = farthest;
+				count++;
+			} else {
+				start = end;
+			}
+		}
+
+		int[] retained = new int[count];
+		for (int i = 0, k = 0; k < count; i = next[i]) {
+			retained[k++] = i;
+		}
+		return retained;
+	}
+
+	/**
+	 * Simplify GPS samples, keeping time, altitude and distance of the retained ones.
+	 * @return retained samples, or the given list if nothing was removed
+	 */
+	public static List<GpsData> simplify(List<GpsData> gpsData, double tolerance) {
+		if (gpsData == null || gpsData.size() <= 2 || tolerance <= 0) {
+			return gpsData;
+		}
+		double[] lat = new double[gpsData.size()];
+		double[] lon = new double[gpsData.size()];
+		for (int i = 0; i < lat.length; i++) {
+			GpsData gps = gpsData.get(i);
+			lat[i] = gps.getLatitude().doubleValue();
+			lon[i] = gps.getLongitude().doubleValue();
+		}
+		int[] retained = simplify(lat, lon, tolerance);
+		if (retained.length == gpsData.size()) {
+			return gpsData;
+		}
+		List<GpsData> simplified = new ArrayList<>(retained.length);
+		for (int index : retained) {
+			simplified.add(gpsData.get(index));
+		}
+		return simplified;
+	}
+
+	/**
+	 * Reduce heart-rate samples to the timestamps of retained GPS samples, each carrying the latest heart rate measured
+	 * at or before it, so that simplified tracks keep their heart rate without a trackpoint per heart-rate sample.
+	 */
+	public static List<HeartRateData> resample(List<HeartRateData> heartRateData, List<GpsData> gpsData) {
+		if (heartRateData == null || heartRateData.isEmpty() || gpsData == null || gpsData.isEmpty()) {
+			return heartRateData;
+		}
+		List<HeartRateData> resampled = new ArrayList<>(gpsData.size());
+		SampleMerger merger = SampleMerger.of(gpsData, GpsData::getTimestamp, heartRateData, HeartRateData::getTimestamp);
+		HeartRateData latest = null;
+		while (merger.next()) {
+			if (merger.countB() > 0) {
+				latest = heartRateData.get(merger.indexB(merger.countB() - 1));
+			}
+			if (merger.countA() > 0 && latest != null) {
+				GpsData gps = gpsData.get(merger.indexA(0));
+				HeartRateData hr = new HeartRateData();
+				hr.setTimestamp(gps.getTimestamp());
+				hr.setHeartRate(latest.getHeartRate());
+				hr.setDistance(gps.getDistance());
+				resampled.add(hr);
+			}
+		}
+		return resampled;
+	}
+
+	/**
+	 * Squared distance from point p to segment [a, b].
+	 */
+	private static double segmentDistance2(double px, double py, double ax, double ay, double bx, double by) {
+		double dx = bx - ax;
+		double dy = by - ay;
+		double length2 = dx * dx + dy * dy;
+		double t = length2 > 0 ? ((px - ax) * dx + (py - ay) * dy) / length2 : 0;
+		if (t < 0) {
+			t = 0;
+		} else if (t > 1) {
+			t = 1;
+		}
+		double ex = px - (ax + t * dx);
+		double ey = py - (ay + t * dy);
+		return ex * ex + ey * ey;
+	}
+
+}
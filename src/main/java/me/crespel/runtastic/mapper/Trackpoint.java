@@ -0,0 +1,102 @@
+package me.crespel.runtastic.mapper;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import me.crespel.runtastic.model.GpsData;
+import me.crespel.runtastic.model.HeartRateData;
+
+/**
+ * Reusable trackpoint for streaming writers, filled from the GPS and heart-rate samples sharing its timestamp.
+ * Fields already set are kept, so the first sample of a group (GPS first) wins.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class Trackpoint {
+
+	long time;
+	BigDecimal latitude;
+	BigDecimal longitude;
+	BigDecimal altitude;
+	BigDecimal speed;
+	Integer distance;
+	Integer heartRate;
+
+	/**
+	 * Epoch millis of this trackpoint.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	public BigDecimal getLatitude() {
+		return latitude;
+	}
+
+	public BigDecimal getLongitude() {
+		return longitude;
+	}
+
+	public BigDecimal getAltitude() {
+		return altitude;
+	}
+
+	/**
+	 * Speed in km/h, as recorded by Runtastic.
+	 */
+	public BigDecimal getSpeed() {
+		return speed;
+	}
+
+	public Integer getDistance() {
+		return distance;
+	}
+
+	public Integer getHeartRate() {
+		return heartRate;
+	}
+
+	void reset(long time) {
+		this.time = time;
+		latitude = longitude = altitude = speed = null;
+		distance = heartRate = null;
+	}
+
+	void fill(GpsData gps) {
+		if (distance == null) {
+			distance = gps.getDistance();
+		}
+		if (altitude == null) {
+			altitude = gps.getAltitude();
+		}
+		if (speed == null) {
+			speed = gps.getSpeed();
+		}
+		if (latitude == null) {
+			latitude = gps.getLatitude();
+			longitude = gps.getLongitude();
+		}
+	}
+
+	void fill(HeartRateData hr) {
+		if (distance == null) {
+			distance = hr.getDistance();
+		}
+		if (heartRate == null) {
+			heartRate = hr.getHeartRate();
+		}
+	}
+
+	/**
+	 * Reset this trackpoint to the current group of a merger over GPS and heart-rate samples, and fill it from the group.
+	 */
+	public void fill(SampleMerger merger, List<GpsData> gpsData, List<HeartRateData> heartRateData) {
+		reset(merger.getTime());
+		for (int i = 0; i < merger.countA(); i++) {
+			fill(gpsData.get(merger.indexA(i)));
+		}
+		for (int i = 0; i < merger.countB(); i++) {
+			fill(heartRateData.get(merger.indexB(i)));
+		}
+	}
+
+}
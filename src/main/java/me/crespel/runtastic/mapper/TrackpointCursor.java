@@ -0,0 +1,59 @@
+package me.crespel.runtastic.mapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import me.crespel.runtastic.model.GpsData;
+import me.crespel.runtastic.model.HeartRateData;
+
+/**
+ * Cursor over the time-ordered trackpoints of a sport session, each merging the GPS and heart-rate samples sharing a timestamp.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public interface TrackpointCursor extends Closeable {
+
+	/**
+	 * Advance to the next trackpoint.
+	 * @return false when all samples have been read
+	 */
+	boolean next() throws IOException;
+
+	/**
+	 * Current trackpoint, reused (and overwritten) by the next call to {@link #next()}.
+	 */
+	Trackpoint current();
+
+	/**
+	 * Cursor over samples already in memory, merged as {@link SampleMerger} does (any sample order is supported).
+	 */
+	static TrackpointCursor of(List<GpsData> gpsData, List<HeartRateData> heartRateData) {
+		List<GpsData> gps = gpsData != null ? gpsData : Collections.emptyList();
+		List<HeartRateData> hr = heartRateData != null ? heartRateData : Collections.emptyList();
+		SampleMerger merger = SampleMerger.of(gps, GpsData::getTimestamp, hr, HeartRateData::getTimestamp);
+		Trackpoint current = new Trackpoint();
+		return new TrackpointCursor() {
+
+			@Override
+			public boolean next() {
+				if (!merger.next()) {
+					return false;
+				}
+				current.fill(merger, gps, hr);
+				return true;
+			}
+
+			@Override
+			public Trackpoint current() {
+				return current;
+			}
+
+			@Override
+			public void close() {
+			}
+
+		};
+	}
+
+}
@@ -0,0 +1,121 @@
+package me.crespel.runtastic.model;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.databind.annotation.JsonNaming;
+
+import lombok.Data;
+
+/**
+ * Manifest of a (possibly sharded) export run, listing processed sessions, written files and statistics.
+ * Shard manifests of the same action can be merged once all shards are complete.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+@Data
+@JsonNaming(PropertyNamingStrategy.SnakeCaseStrategy.class)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ExportManifest
+{
+
+	public String		action;
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public String		shard;
+	public List<String>	shards		= new ArrayList<>();
+	public Date			createdAt;
+	public Statistics	statistics	= new Statistics();
+	public List<Entry>	sessions	= new ArrayList<>();
+
+	public synchronized void add(Entry entry)
+	{
+		sessions.add(entry);
+	}
+
+	/**
+	 * Manifest entry, describing one processed sport session.
+	 */
+	@Data
+	@JsonNaming(PropertyNamingStrategy.SnakeCaseStrategy.class)
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	public static class Entry
+	{
+		public String		id;
+		public Date			startTime;
+		public String		sportTypeId;
+		public Integer		distance;
+		public List<String>	files	= new ArrayList<>();
+
+		public static Entry of(SportSession session)
+		{
+			Entry entry = new Entry();
+			entry.id = session.getId();
+			entry.startTime = session.getStartTime();
+			entry.sportTypeId = session.getSportTypeId();
+			entry.distance = session.getDistance();
+			return entry;
+		}
+	}
+
+	/**
+	 * Session statistics, as displayed by the 'check' action.
+	 */
+	@Data
+	@JsonNaming(PropertyNamingStrategy.SnakeCaseStrategy.class)
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	public static class Statistics
+	{
+		public int		sessions;
+		public int		gpxSessions;
+		public int		heartRateSessions;
+		public int		imageSessions;
+		public int		images;
+		public long		totalDistance;
+		public int		minDistance	= Integer.MAX_VALUE;
+		public int		maxDistance;
+		public int		overlapSessions;
+		public int		compoundSessions;
+		@JsonInclude(JsonInclude.Include.NON_DEFAULT)
+		public boolean	overlapSkipped;	// overlapping and compound sessions are not calculated by a sharded 'check'
+
+		public synchronized void add(SportSession session)
+		{
+			sessions += 1;
+			if (session.hasSourceGpx() || session.getGpsData() != null)
+				gpxSessions += 1;
+			if (session.getHeartRateData() != null)
+				heartRateSessions += 1;
+			if (session.getImages() != null)
+			{
+				imageSessions += 1;
+				images += session.getImages().size();
+			}
+			if (session.getOverlapSessions() != null && !session.getOverlapSessions().isEmpty())
+				overlapSessions += 1;
+			if (session.getCompoundSessions() != null && !session.getCompoundSessions().isEmpty())
+				compoundSessions += 1;
+			int distance = session.getDistance() != null ? session.getDistance() : 0;
+			minDistance = Integer.min(minDistance, distance);
+			maxDistance = Integer.max(maxDistance, distance);
+			totalDistance += distance;
+		}
+
+		public synchronized void merge(Statistics other)
+		{
+			sessions += other.sessions;
+			gpxSessions += other.gpxSessions;
+			heartRateSessions += other.heartRateSessions;
+			imageSessions += other.imageSessions;
+			images += other.images;
+			totalDistance += other.totalDistance;
+			minDistance = Integer.min(minDistance, other.minDistance);
+			maxDistance = Integer.max(maxDistance, other.maxDistance);
+			overlapSessions += other.overlapSessions;
+			compoundSessions += other.compoundSessions;
+			overlapSkipped |= other.overlapSkipped;
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package me.crespel.runtastic.model;
+
+import java.io.File;
+
+import com.topografix.gpx._1._1.BoundsType;
+
+import lombok.Data;
+
+/**
+ * Source GPX track of a sport session (exports starting from April-2020), referenced by file instead of being unmarshalled.
+ * Only the bounds and point count of the first track are kept, its points are read again from the file when writing.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+@Data
+public class RawGpxTrack
+{
+
+	private final File			file;
+	private final BoundsType	bounds;	// null if the track has no point
+	private final long			points;
+
+}
@@ -66,6 +66,10 @@ public class SportSession implements Comparable<SportSession>
 	@JsonIgnore
 	public GpxType gpx;
 
+	// source GPX track read on demand, instead of the unmarshalled gpx document
+	@JsonIgnore
+	private RawGpxTrack rawGpx;
+
 	@JsonIgnore
 	public List<HeartRateData> heartRateData;
 
@@ -78,6 +82,9 @@ public class SportSession implements Comparable<SportSession>
 	@JsonIgnore
 	private List<SportSession> compoundSessions;
 
+	// bounds of the session track, kept by mappers instead of their output document
+	@JsonIgnore
+	private BoundsType	bounds;
 	@JsonIgnore
 	private BoundsType	innerBound;
 	@JsonIgnore
@@ -156,6 +163,28 @@ public class SportSession implements Comparable<SportSession>
 		}
 	}
 
+	/**
+	 * Bounds of the session track, as derived by a mapper or else from the source GPX document or track.
+	 */
+	public BoundsType getBounds()
+	{
+		if (bounds != null)
+			return bounds;
+		if (gpx != null && gpx.getMetadata() != null)
+			return gpx.getMetadata().getBounds();
+		if (rawGpx != null)
+			return rawGpx.getBounds();
+		return null;
+	}
+
+	/**
+	 * Whether the session has a source GPX track, either unmarshalled or referenced by file.
+	 */
+	public boolean hasSourceGpx()
+	{
+		return gpx != null || rawGpx != null;
+	}
+
 	public boolean hasTimeOverlap(SportSession other, int toleranceSeconds)
 	{
 		if (this.startTime == null
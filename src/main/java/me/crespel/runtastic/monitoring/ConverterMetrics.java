@@ -0,0 +1,318 @@
+package me.crespel.runtastic.monitoring;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide conversion and upload metrics, exposed as a JMX MXBean (e.g. for jconsole or a JMX exporter).
+ * All counters and histograms are updated lock-free, so they can be fed from parallel worker threads.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class ConverterMetrics implements ConverterMetricsMXBean
+{
+
+	public static final String				OBJECT_NAME				= "me.crespel.runtastic:type=ConverterMetrics";
+
+	private static final ConverterMetrics	INSTANCE				= register(new ConverterMetrics());
+
+	private final LongAdder					sessionsParsed			= new LongAdder();
+	private final LongAdder					sessionsConverted		= new LongAdder();
+	private final LongAdder					sessionsFailed			= new LongAdder();
+	private final LongAdder					sessionsUploaded		= new LongAdder();
+	private final LongAdder					uploadsFailed			= new LongAdder();
+	private final LongAdder					bytesIn					= new LongAdder();
+	private final LongAdder					bytesOut				= new LongAdder();
+	private final LongAdder					bytesUploaded			= new LongAdder();
+	private final LongAdder					pointsProcessed			= new LongAdder();
+	private final LongAdder					conversionQueue			= new LongAdder();
+	private final LongAdder					uploadQueue				= new LongAdder();
+	private final AtomicLong				stravaShortTermUsage	= new AtomicLong();
+	private final AtomicLong				stravaShortTermLimit	= new AtomicLong();
+	private final AtomicLong				stravaDailyUsage		= new AtomicLong();
+	private final AtomicLong				stravaDailyLimit		= new AtomicLong();
+	private final LatencyHistogram[]		latencies				= new LatencyHistogram[Stage.values().length];
+	private final LongAdder[]				active					= new LongAdder[Stage.values().length];
+
+	protected ConverterMetrics()
+	{
+		for (int i = 0; i < latencies.length; i++)
+		{
+			latencies[i] = new LatencyHistogram();
+			active[i] = new LongAdder();
+		}
+	}
+
+	public static ConverterMetrics get()
+	{
+		return INSTANCE;
+	}
+
+	private static ConverterMetrics register(ConverterMetrics metrics)
+	{
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name))
+				server.registerMBean(metrics, name);
+		}
+		catch (JMException | SecurityException ex)
+		{
+			System.err.println("Failed to register JMX metrics: " + ex);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Record the start of a processing stage.
+	 */
+	public void started(Stage stage)
+	{
+		active[stage.ordinal()].increment();
+	}
+
+	/**
+	 * Record the failure of a processing stage, which is no longer active but has no latency nor counts.
+	 */
+	public void cancelled(Stage stage)
+	{
+		active[stage.ordinal()].decrement();
+	}
+
+	/**
+	 * Record the completion of a processing stage.
+	 */
+	public void record(Stage stage, long nanos, long bytes, long points)
+	{
+		active[stage.ordinal()].decrement();
+		latencies[stage.ordinal()].record(nanos / 1000);
+		switch (stage.getFlow())
+		{
+		case IN:
+			bytesIn.add(bytes);
+			break;
+		case OUT:
+			bytesOut.add(bytes);
+			break;
+		default:
+			break;
+		}
+		switch (stage)
+		{
+		case PARSE_SESSION:
+			sessionsParsed.increment();
+			break;
+		case HTTP_UPLOAD:
+			bytesUploaded.add(bytes);
+			break;
+		default:
+			break;
+		}
+	}
+
+	public void conversionQueued(long sessions)
+	{
+		conversionQueue.add(sessions);
+	}
+
+	public void conversionStarted()
+	{
+		conversionQueue.decrement();
+	}
+
+	/**
+	 * Record the conversion of a session, with its points counted once whatever the number of mapping stages and formats.
+	 */
+	public void sessionConverted(long points)
+	{
+		sessionsConverted.increment();
+		pointsProcessed.add(points);
+	}
+
+	public void sessionFailed()
+	{
+		sessionsFailed.increment();
+	}
+
+	public void uploadQueued(long sessions)
+	{
+		uploadQueue.add(sessions);
+	}
+
+	public void uploadStarted()
+	{
+		uploadQueue.decrement();
+	}
+
+	public void sessionUploaded()
+	{
+		sessionsUploaded.increment();
+	}
+
+	public void uploadFailed()
+	{
+		uploadsFailed.increment();
+	}
+
+	/**
+	 * Update Strava rate limit usage from the "X-RateLimit-Limit" and "X-RateLimit-Usage" response headers,
+	 * both formatted as "&lt;15-minute&gt;,&lt;daily&gt;".
+	 */
+	public void updateStravaRateLimit(String limitHeader, String usageHeader)
+	{
+		updatePair(limitHeader, stravaShortTermLimit, stravaDailyLimit);
+		updatePair(usageHeader, stravaShortTermUsage, stravaDailyUsage);
+	}
+
+	private static void updatePair(String header, AtomicLong shortTerm, AtomicLong daily)
+	{
+		if (header == null)
+			return;
+		String[] values = header.split(",");
+		try
+		{
+			if (values.length > 0)
+				shortTerm.set(Long.parseLong(values[0].trim()));
+			if (values.length > 1)
+				daily.set(Long.parseLong(values[1].trim()));
+		}
+		catch (NumberFormatException ex)
+		{
+			// ignore malformed header
+		}
+	}
+
+	public LatencyHistogram getLatency(Stage stage)
+	{
+		return latencies[stage.ordinal()];
+	}
+
+	/**
+	 * Number of sessions currently being processed by a stage.
+	 */
+	public long getActive(Stage stage)
+	{
+		return active[stage.ordinal()].sum();
+	}
+
+	@Override
+	public long getSessionsParsed()
+	{
+		return sessionsParsed.sum();
+	}
+
+	@Override
+	public long getSessionsConverted()
+	{
+		return sessionsConverted.sum();
+	}
+
+	@Override
+	public long getSessionsFailed()
+	{
+		return sessionsFailed.sum();
+	}
+
+	@Override
+	public long getSessionsUploaded()
+	{
+		return sessionsUploaded.sum();
+	}
+
+	@Override
+	public long getUploadsFailed()
+	{
+		return uploadsFailed.sum();
+	}
+
+	@Override
+	public long getBytesIn()
+	{
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut()
+	{
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getBytesUploaded()
+	{
+		return bytesUploaded.sum();
+	}
+
+	@Override
+	public long getPointsProcessed()
+	{
+		return pointsProcessed.sum();
+	}
+
+	@Override
+	public long getConversionQueueDepth()
+	{
+		return conversionQueue.sum();
+	}
+
+	@Override
+	public long getUploadQueueDepth()
+	{
+		return uploadQueue.sum();
+	}
+
+	@Override
+	public long getStravaShortTermUsage()
+	{
+		return stravaShortTermUsage.get();
+	}
+
+	@Override
+	public long getStravaShortTermLimit()
+	{
+		return stravaShortTermLimit.get();
+	}
+
+	@Override
+	public long getStravaDailyUsage()
+	{
+		return stravaDailyUsage.get();
+	}
+
+	@Override
+	public long getStravaDailyLimit()
+	{
+		return stravaDailyLimit.get();
+	}
+
+	@Override
+	public Map<String, StageLatency> getStageLatencies()
+	{
+		Map<String, StageLatency> map = new LinkedHashMap<>();
+		for (Stage stage : Stage.values())
+			map.put(stage.name(), StageLatency.of(latencies[stage.ordinal()]));
+		return map;
+	}
+
+	@Override
+	public void reset()
+	{
+		for (LongAdder adder : new LongAdder[] { sessionsParsed, sessionsConverted, sessionsFailed, sessionsUploaded, uploadsFailed,
+			bytesIn, bytesOut, bytesUploaded, pointsProcessed, conversionQueue, uploadQueue })
+			adder.reset();
+		for (AtomicLong value : new AtomicLong[] { stravaShortTermUsage, stravaShortTermLimit, stravaDailyUsage, stravaDailyLimit })
+			value.set(0);
+		for (LatencyHistogram histogram : latencies)
+			histogram.reset();
+		for (LongAdder adder : active)
+			adder.reset();
+	}
+}
@@ -0,0 +1,49 @@
+package me.crespel.runtastic.monitoring;
+
+import java.util.Map;
+
+/**
+ * JMX management interface of {@link ConverterMetrics}, registered as {@value ConverterMetrics#OBJECT_NAME}.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public interface ConverterMetricsMXBean
+{
+
+	long getSessionsParsed();
+
+	long getSessionsConverted();
+
+	long getSessionsFailed();
+
+	long getSessionsUploaded();
+
+	long getUploadsFailed();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	long getBytesUploaded();
+
+	long getPointsProcessed();
+
+	long getConversionQueueDepth();
+
+	long getUploadQueueDepth();
+
+	long getStravaShortTermUsage();
+
+	long getStravaShortTermLimit();
+
+	long getStravaDailyUsage();
+
+	long getStravaDailyLimit();
+
+	/**
+	 * Latency statistics of each processing stage, keyed by {@link Stage} name.
+	 */
+	Map<String, StageLatency> getStageLatencies();
+
+	void reset();
+}
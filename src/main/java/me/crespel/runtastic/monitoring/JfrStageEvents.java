@@ -0,0 +1,177 @@
+package me.crespel.runtastic.monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events for the processing stages of sport sessions.
+ * Only loaded by {@link StageEvents} once JFR is known to be available, as the <code>jdk.jfr</code> package is missing
+ * from Java 8 before 8u262.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+final class JfrStageEvents
+{
+
+	private JfrStageEvents()
+	{}
+
+	/**
+	 * Create and begin the Flight Recorder event of a started stage.
+	 */
+	static StageEvents.Recording begin(StageEvents.StageEvent stageEvent)
+	{
+		StageEvent event;
+		switch (stageEvent.getStage())
+		{
+		case PARSE_SESSION:
+			event = new ParseSession();
+			break;
+		case PARSE_SIDECAR:
+			event = new ParseSidecar();
+			break;
+		case MAP:
+			event = new MapSession();
+			break;
+		case MARSHAL:
+			event = new MarshalSession();
+			break;
+		case GZIP:
+			event = new Gzip();
+			break;
+		case WRITE_META:
+			event = new WriteMeta();
+			break;
+		case OVERLAP_ANALYSIS:
+			event = new OverlapAnalysis();
+			break;
+		case HTTP_UPLOAD:
+			event = new HttpUpload();
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown stage " + stageEvent.getStage());
+		}
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Base class of stage events, carrying the session ID along with the processed byte and point counts.
+	 */
+	@Category("Runtastic Export Converter")
+	@StackTrace(false)
+	abstract static class StageEvent extends Event implements StageEvents.Recording
+	{
+		@Label("Session ID")
+		public String	sessionId;
+
+		@Label("Bytes")
+		@DataAmount
+		public long		bytes;
+
+		@Label("Points")
+		@Description("Number of GPS and heart rate samples, or sessions for whole-export stages")
+		public long		points;
+
+		@Override
+		public void complete(StageEvents.StageEvent stageEvent, String sessionId, long bytes, long points)
+		{
+			end();
+			if (shouldCommit())
+			{
+				this.sessionId = sessionId;
+				this.bytes = bytes;
+				this.points = points;
+				copyAttributes(stageEvent);
+				commit();
+			}
+		}
+
+		/**
+		 * Copy the stage specific attributes of a completed stage event.
+		 */
+		protected void copyAttributes(StageEvents.StageEvent stageEvent)
+		{}
+	}
+
+	@Name("me.crespel.runtastic.ParseSession")
+	@Label("Parse Session")
+	static class ParseSession extends StageEvent
+	{}
+
+	@Name("me.crespel.runtastic.ParseSidecar")
+	@Label("Parse Sidecar")
+	static class ParseSidecar extends StageEvent
+	{
+		@Label("Sidecar Type")
+		public String sidecar;
+
+		@Override
+		protected void copyAttributes(StageEvents.StageEvent stageEvent)
+		{
+			sidecar = ((StageEvents.ParseSidecar) stageEvent).sidecar;
+		}
+	}
+
+	@Name("me.crespel.runtastic.MapSession")
+	@Label("Map Session")
+	static class MapSession extends StageEvent
+	{
+		@Label("Format")
+		public String format;
+
+		@Override
+		protected void copyAttributes(StageEvents.StageEvent stageEvent)
+		{
+			format = ((StageEvents.MapSession) stageEvent).format;
+		}
+	}
+
+	@Name("me.crespel.runtastic.MarshalSession")
+	@Label("Marshal Session")
+	static class MarshalSession extends StageEvent
+	{
+		@Label("Format")
+		public String format;
+
+		@Override
+		protected void copyAttributes(StageEvents.StageEvent stageEvent)
+		{
+			format = ((StageEvents.MarshalSession) stageEvent).format;
+		}
+	}
+
+	@Name("me.crespel.runtastic.Gzip")
+	@Label("Gzip Activity")
+	static class Gzip extends StageEvent
+	{}
+
+	@Name("me.crespel.runtastic.WriteMeta")
+	@Label("Write Metadata")
+	static class WriteMeta extends StageEvent
+	{}
+
+	@Name("me.crespel.runtastic.OverlapAnalysis")
+	@Label("Overlap Analysis")
+	static class OverlapAnalysis extends StageEvent
+	{}
+
+	@Name("me.crespel.runtastic.HttpUpload")
+	@Label("HTTP Upload")
+	static class HttpUpload extends StageEvent
+	{
+		@Label("HTTP Status")
+		public int status;
+
+		@Override
+		protected void copyAttributes(StageEvents.StageEvent stageEvent)
+		{
+			status = ((StageEvents.HttpUpload) stageEvent).status;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package me.crespel.runtastic.monitoring;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear latency histogram, recording values in microseconds.
+ * Values below 16 have their own bucket, larger values are split into 8 sub-buckets per power of two,
+ * which bounds the relative error of reported percentiles to 12.5%.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class LatencyHistogram
+{
+
+	private static final int	LINEAR_BUCKETS	= 16;
+	private static final int	SUB_BUCKET_BITS	= 3;
+	private static final int	SUB_BUCKETS		= 1 << SUB_BUCKET_BITS;
+	private static final int	BUCKETS			= LINEAR_BUCKETS + (63 - 4 + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray	counts	= new AtomicLongArray(BUCKETS);
+	private final LongAdder			count	= new LongAdder();
+	private final LongAdder			sum		= new LongAdder();
+	private final AtomicLong		max		= new AtomicLong();
+
+	public void record(long micros)
+	{
+		if (micros < 0)
+			micros = 0;
+		counts.incrementAndGet(bucketOf(micros));
+		count.increment();
+		sum.add(micros);
+		long current;
+		while (micros > (current = max.get()) && !max.compareAndSet(current, micros))
+		{}
+	}
+
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	public double getMean()
+	{
+		long n = count.sum();
+		return n == 0 ? 0d : sum.sum() / (double) n;
+	}
+
+	/**
+	 * Compute a percentile from the current bucket counts.
+	 * @param percentile percentile between 0 and 100
+	 * @return upper bound of the bucket containing the percentile, in microseconds (capped to the max value)
+	 */
+	public long getPercentile(double percentile)
+	{
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(total * percentile / 100d));
+		long cumulated = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			cumulated += snapshot[i];
+			if (cumulated >= target)
+				return Math.min(upperBoundOf(i), max.get());
+		}
+		return max.get();
+	}
+
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	static int bucketOf(long value)
+	{
+		if (value < LINEAR_BUCKETS)
+			return (int) value;
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (magnitude - 4) * SUB_BUCKETS + sub;
+	}
+
+	static long upperBoundOf(int bucket)
+	{
+		if (bucket < LINEAR_BUCKETS)
+			return bucket;
+		int magnitude = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+		int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		long upper = ((long) (SUB_BUCKETS + sub + 1) << (magnitude - SUB_BUCKET_BITS)) - 1;
+		return upper < 0 ? Long.MAX_VALUE : upper;
+	}
+}
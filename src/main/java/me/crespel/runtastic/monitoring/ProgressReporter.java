@@ -0,0 +1,213 @@
+package me.crespel.runtastic.monitoring;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Periodic progress reporter for conversions and uploads.
+ * A single timer thread samples the lock-free {@link ConverterMetrics} counters and prints throughput
+ * (sessions/s, points/s, MB/s over the last interval), ETA (from the average rate since start) and per-stage backlog,
+ * so that worker threads never contend on the console. Reports are written as JSON lines when not attached to a terminal.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class ProgressReporter implements Closeable
+{
+
+	public static final Duration			DEFAULT_INTERVAL	= Duration.ofSeconds(10);
+
+	private static final ObjectMapper		JSON				= new ObjectMapper();
+
+	private final String					action;
+	private final long						total;
+	private final LongSupplier				completed;
+	private final LongSupplier				points;
+	private final LongSupplier				bytes;
+	private final Map<String, LongSupplier>	backlog;
+	private final PrintStream				out;
+	private final boolean					json;
+	private final long						startNanos;
+	private final ScheduledExecutorService	timer;
+	private long							lastNanos;
+	private long							lastCompleted;
+	private long							lastPoints;
+	private long							lastBytes;
+
+	public ProgressReporter(String action, long total, LongSupplier completed, LongSupplier points, LongSupplier bytes, Map<String, LongSupplier> backlog, Duration interval, PrintStream out, boolean json)
+	{
+		this.action = action;
+		this.total = total;
+		this.completed = completed;
+		this.points = points;
+		this.bytes = bytes;
+		this.backlog = backlog;
+		this.out = out;
+		this.json = json;
+		this.startNanos = System.nanoTime();
+		this.lastNanos = startNanos;
+		this.lastCompleted = completed.getAsLong();
+		this.lastPoints = points.getAsLong();
+		this.lastBytes = bytes.getAsLong();
+		if (interval != null && !interval.isZero() && !interval.isNegative())
+		{
+			timer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "progress-reporter");
+				thread.setDaemon(true);
+				return thread;
+			});
+			timer.scheduleAtFixedRate(this::report, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+		}
+		else
+		{
+			timer = null;
+		}
+	}
+
+	/**
+	 * Report conversion progress (sessions converted or failed, points processed, bytes read from the export).
+	 */
+	public static ProgressReporter forConversion(long total, Duration interval)
+	{
+		ConverterMetrics metrics = ConverterMetrics.get();
+		long completed = metrics.getSessionsConverted() + metrics.getSessionsFailed();
+		long points = metrics.getPointsProcessed();
+		long bytes = metrics.getBytesIn();
+		Map<String, LongSupplier> backlog = new LinkedHashMap<>();
+		backlog.put("queued", metrics::getConversionQueueDepth);
+		for (Stage stage : new Stage[] { Stage.PARSE_SESSION, Stage.PARSE_SIDECAR, Stage.MAP, Stage.MARSHAL, Stage.GZIP, Stage.WRITE_META })
+			backlog.put(stage.name().toLowerCase(), () -> metrics.getActive(stage));
+		return new ProgressReporter("convert", total,
+			() -> metrics.getSessionsConverted() + metrics.getSessionsFailed() - completed,
+			() -> metrics.getPointsProcessed() - points,
+			() -> metrics.getBytesIn() - bytes,
+			backlog, interval, System.out, System.console() == null);
+	}
+
+	/**
+	 * Report upload progress (sessions uploaded or failed, bytes uploaded).
+	 */
+	public static ProgressReporter forUpload(long total, Duration interval)
+	{
+		ConverterMetrics metrics = ConverterMetrics.get();
+		long completed = metrics.getSessionsUploaded() + metrics.getUploadsFailed();
+		long bytes = metrics.getBytesUploaded();
+		Map<String, LongSupplier> backlog = new LinkedHashMap<>();
+		backlog.put("queued", metrics::getUploadQueueDepth);
+		backlog.put(Stage.HTTP_UPLOAD.name().toLowerCase(), () -> metrics.getActive(Stage.HTTP_UPLOAD));
+		return new ProgressReporter("upload", total,
+			() -> metrics.getSessionsUploaded() + metrics.getUploadsFailed() - completed,
+			() -> 0L,
+			() -> metrics.getBytesUploaded() - bytes,
+			backlog, interval, System.out, System.console() == null);
+	}
+
+	/**
+	 * Print a progress report. Called from the timer thread, and once more on close.
+	 */
+	public synchronized void report()
+	{
+		long now = System.nanoTime();
+		long done = completed.getAsLong();
+		long pointCount = points.getAsLong();
+		long byteCount = bytes.getAsLong();
+		double seconds = (now - lastNanos) / 1e9d;
+		double sessionsPerSec = rate(done - lastCompleted, seconds);
+		double pointsPerSec = rate(pointCount - lastPoints, seconds);
+		double mbPerSec = rate(byteCount - lastBytes, seconds) / (1024d * 1024d);
+		double averageRate = rate(done, (now - startNanos) / 1e9d);
+		long eta = done >= total ? 0 : averageRate > 0 ? (long) Math.ceil((total - done) / averageRate) : -1;
+		lastNanos = now;
+		lastCompleted = done;
+		lastPoints = pointCount;
+		lastBytes = byteCount;
+
+		Map<String, Long> stages = new LinkedHashMap<>();
+		for (Map.Entry<String, LongSupplier> entry : backlog.entrySet())
+			stages.put(entry.getKey(), entry.getValue().getAsLong());
+		int percent = total > 0 ? (int) (done * 100 / total) : 100;
+
+		if (json)
+		{
+			Map<String, Object> line = new LinkedHashMap<>();
+			line.put("time", ZonedDateTime.now().toString());
+			line.put("action", action);
+			line.put("completed", done);
+			line.put("total", total);
+			line.put("percent", percent);
+			line.put("sessions_per_sec", round(sessionsPerSec));
+			line.put("points_per_sec", round(pointsPerSec));
+			line.put("mb_per_sec", round(mbPerSec));
+			line.put("eta_seconds", eta);
+			line.put("backlog", stages);
+			try
+			{
+				out.println(JSON.writeValueAsString(line));
+			}
+			catch (JsonProcessingException ex)
+			{
+				ex.printStackTrace();
+			}
+		}
+		else
+		{
+			StringBuilder sb = new StringBuilder("   - ").append(ZonedDateTime.now()).append(": ")
+				.append("upload".equals(action) ? "Uploaded " : "Converted ").append(done).append(" / ").append(total)
+				.append(" (").append(percent).append("%) sessions, ")
+				.append(String.format("%.1f sessions/s, %.0f points/s, %.2f MB/s", sessionsPerSec, pointsPerSec, mbPerSec))
+				.append(", ETA ").append(eta < 0 ? "unknown" : formatDuration(eta));
+			StringBuilder backlogText = new StringBuilder();
+			for (Map.Entry<String, Long> entry : stages.entrySet())
+			{
+				if (entry.getValue() > 0)
+					backlogText.append(backlogText.length() == 0 ? "" : ", ").append(entry.getKey()).append(' ').append(entry.getValue());
+			}
+			if (backlogText.length() > 0)
+				sb.append(" [").append(backlogText).append(']');
+			out.println(sb);
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		if (timer != null)
+		{
+			timer.shutdownNow();
+			try
+			{
+				timer.awaitTermination(1, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+			report();
+		}
+	}
+
+	private static double rate(long count, double seconds)
+	{
+		return seconds > 0 ? count / seconds : 0d;
+	}
+
+	private static double round(double value)
+	{
+		return Math.round(value * 100) / 100d;
+	}
+
+	private static String formatDuration(long seconds)
+	{
+		return String.format("%02d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+	}
+}
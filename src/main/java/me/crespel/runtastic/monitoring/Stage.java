@@ -0,0 +1,38 @@
+package me.crespel.runtastic.monitoring;
+
+/**
+ * Processing stages of sport sessions, as reported by {@link StageEvents} and {@link ConverterMetrics}.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public enum Stage
+{
+	PARSE_SESSION(Flow.IN),
+	PARSE_SIDECAR(Flow.IN),
+	MAP(Flow.NONE),
+	MARSHAL(Flow.OUT),
+	GZIP(Flow.OUT),
+	WRITE_META(Flow.OUT),
+	OVERLAP_ANALYSIS(Flow.NONE),
+	HTTP_UPLOAD(Flow.NONE);
+
+	/**
+	 * Whether the bytes reported by a stage were read from the export, written to the destination, or neither.
+	 */
+	public enum Flow
+	{
+		IN, OUT, NONE
+	}
+
+	private final Flow flow;
+
+	Stage(Flow flow)
+	{
+		this.flow = flow;
+	}
+
+	public Flow getFlow()
+	{
+		return flow;
+	}
+}
@@ -0,0 +1,181 @@
+package me.crespel.runtastic.monitoring;
+
+/**
+ * Processing stages of sport sessions, timed into the {@link ConverterMetrics} counters and latency histograms.
+ * When the JVM provides JDK Flight Recorder (Java 8u262 or later), completed stages are also committed as JFR events
+ * (see {@link JfrStageEvents}), whereas older JVMs only record them in metrics.
+ * Record a run with e.g. <code>java -XX:StartFlightRecording=filename=run.jfr -jar ...</code>
+ * and inspect the "Runtastic Export Converter" category in JDK Mission Control.
+ * Events are opened with try-with-resources, so that a stage failing before {@link StageEvent#end(String, long, long)}
+ * is still removed from the active stage gauges.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public final class StageEvents
+{
+
+	private static final boolean JFR_AVAILABLE = isJfrAvailable();
+
+	private StageEvents()
+	{}
+
+	/**
+	 * Flight Recorder event of a started stage, created only if JFR is available.
+	 */
+	interface Recording
+	{
+		void complete(StageEvent event, String sessionId, long bytes, long points);
+	}
+
+	/**
+	 * Base class of stage events, completed with the session ID along with the processed byte and point counts.
+	 */
+	public abstract static class StageEvent implements AutoCloseable
+	{
+		private final Stage	stage;
+		private long		startNanos;
+		private boolean		running;
+		private Recording	recording;
+
+		protected StageEvent(Stage stage)
+		{
+			this.stage = stage;
+		}
+
+		public Stage getStage()
+		{
+			return stage;
+		}
+
+		/**
+		 * Start timing this event.
+		 */
+		public void start()
+		{
+			ConverterMetrics.get().started(stage);
+			startNanos = System.nanoTime();
+			running = true;
+			if (JFR_AVAILABLE)
+				recording = JfrStageEvents.begin(this);
+		}
+
+		/**
+		 * Complete this event, record it in metrics and commit it to Flight Recorder.
+		 */
+		public void end(String sessionId, long bytes, long points)
+		{
+			running = false;
+			ConverterMetrics.get().record(stage, System.nanoTime() - startNanos, bytes, points);
+			if (recording != null)
+			{
+				recording.complete(this, sessionId, bytes, points);
+				recording = null;
+			}
+		}
+
+		/**
+		 * Cancel this event if it was started but not completed (e.g. the stage failed), without recording nor committing it.
+		 */
+		@Override
+		public void close()
+		{
+			if (running)
+			{
+				running = false;
+				recording = null;
+				ConverterMetrics.get().cancelled(stage);
+			}
+		}
+	}
+
+	public static class ParseSession extends StageEvent
+	{
+		public ParseSession()
+		{
+			super(Stage.PARSE_SESSION);
+		}
+	}
+
+	public static class ParseSidecar extends StageEvent
+	{
+		public final String sidecar;
+
+		public ParseSidecar(String sidecar)
+		{
+			super(Stage.PARSE_SIDECAR);
+			this.sidecar = sidecar;
+		}
+	}
+
+	public static class MapSession extends StageEvent
+	{
+		public final String format;
+
+		public MapSession(String format)
+		{
+			super(Stage.MAP);
+			this.format = format;
+		}
+	}
+
+	public static class MarshalSession extends StageEvent
+	{
+		public final String format;
+
+		public MarshalSession(String format)
+		{
+			super(Stage.MARSHAL);
+			this.format = format;
+		}
+	}
+
+	public static class Gzip extends StageEvent
+	{
+		public Gzip()
+		{
+			super(Stage.GZIP);
+		}
+	}
+
+	public static class WriteMeta extends StageEvent
+	{
+		public WriteMeta()
+		{
+			super(Stage.WRITE_META);
+		}
+	}
+
+	public static class OverlapAnalysis extends StageEvent
+	{
+		public OverlapAnalysis()
+		{
+			super(Stage.OVERLAP_ANALYSIS);
+		}
+	}
+
+	public static class HttpUpload extends StageEvent
+	{
+		public int status;
+
+		public HttpUpload()
+		{
+			super(Stage.HTTP_UPLOAD);
+		}
+	}
+
+	/**
+	 * Check whether the JVM provides Flight Recorder events, which Java 8 only does from 8u262.
+	 */
+	private static boolean isJfrAvailable()
+	{
+		try
+		{
+			Class.forName("jdk.jfr.Event", false, StageEvents.class.getClassLoader());
+			return true;
+		}
+		catch (ClassNotFoundException | LinkageError ex)
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package me.crespel.runtastic.monitoring;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Latency statistics snapshot of a processing stage, in milliseconds.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class StageLatency
+{
+
+	private final long		count;
+	private final double	meanMillis;
+	private final double	p50Millis;
+	private final double	p90Millis;
+	private final double	p99Millis;
+	private final double	maxMillis;
+
+	@ConstructorProperties({ "count", "meanMillis", "p50Millis", "p90Millis", "p99Millis", "maxMillis" })
+	public StageLatency(long count, double meanMillis, double p50Millis, double p90Millis, double p99Millis, double maxMillis)
+	{
+		this.count = count;
+		this.meanMillis = meanMillis;
+		this.p50Millis = p50Millis;
+		this.p90Millis = p90Millis;
+		this.p99Millis = p99Millis;
+		this.maxMillis = maxMillis;
+	}
+
+	public static StageLatency of(LatencyHistogram histogram)
+	{
+		return new StageLatency(histogram.getCount(), histogram.getMean() / 1000d,
+			histogram.getPercentile(50) / 1000d, histogram.getPercentile(90) / 1000d,
+			histogram.getPercentile(99) / 1000d, histogram.getMax() / 1000d);
+	}
+
+	public long getCount()
+	{
+		return count;
+	}
+
+	public double getMeanMillis()
+	{
+		return meanMillis;
+	}
+
+	public double getP50Millis()
+	{
+		return p50Millis;
+	}
+
+	public double getP90Millis()
+	{
+		return p90Millis;
+	}
+
+	public double getP99Millis()
+	{
+		return p99Millis;
+	}
+
+	public double getMaxMillis()
+	{
+		return maxMillis;
+	}
+}
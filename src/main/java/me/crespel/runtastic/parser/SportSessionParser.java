@@ -23,17 +23,28 @@ import javax.xml.bind.Unmarshaller;
 import org.apache.commons.io.FilenameUtils;
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.topografix.gpx._1._1.BoundsType;
 import com.topografix.gpx._1._1.GpxType;
+import com.topografix.gpx._1._1.TrkType;
+import com.topografix.gpx._1._1.TrksegType;
 
 import me.crespel.runtastic.converter.ExportConverter;
+import me.crespel.runtastic.mapper.GpsTrackpointCursor;
+import me.crespel.runtastic.mapper.GpxStreamWriter;
+import me.crespel.runtastic.mapper.MergingTrackpointCursor;
+import me.crespel.runtastic.mapper.RawGpxReader;
+import me.crespel.runtastic.mapper.TrackpointCursor;
 import me.crespel.runtastic.model.ElevationData;
 import me.crespel.runtastic.model.GpsData;
 import me.crespel.runtastic.model.HeartRateData;
 import me.crespel.runtastic.model.ImageMetaData;
+import me.crespel.runtastic.model.RawGpxTrack;
 import me.crespel.runtastic.model.Shoe;
 import me.crespel.runtastic.model.SportSession;
 import me.crespel.runtastic.model.User;
+import me.crespel.runtastic.monitoring.StageEvents;
 
 /**
  * Sport session parser.
@@ -54,6 +65,22 @@ public class SportSessionParser
 
 	public final ObjectMapper mapper = new ObjectMapper();
 
+	// reference source GPX files instead of unmarshalling them
+	private final boolean rawGpx;
+
+	public SportSessionParser()
+	{
+		this(false);
+	}
+
+	/**
+	 * @param rawGpx reference source GPX files (April-2020 and later exports) as {@link RawGpxTrack}s instead of unmarshalling them
+	 */
+	public SportSessionParser(boolean rawGpx)
+	{
+		this.rawGpx = rawGpx;
+	}
+
 	private static Map<String, List<ImageMetaData>> imagesCache;
 
 	private Map<String, List<ImageMetaData>> buildImagesCache(File exportRoot) throws IOException
@@ -115,42 +142,76 @@ public class SportSessionParser
 	{
 		try (InputStream is = new BufferedInputStream(new FileInputStream(file)))
 		{
-			SportSession sportSession = parseSportSession(is);
+			SportSession sportSession;
+			try (StageEvents.ParseSession event = new StageEvents.ParseSession())
+			{
+				event.start();
+				sportSession = parseSportSession(is);
+				event.end(sportSession.getId(), file.length(), 0);
+			}
 			if (full)
 			{
 				File elevationDataFile = new File(new File(file.getParentFile(), ELEVATION_DATA_DIR), file.getName());
 				if (elevationDataFile.exists())
 				{
-					sportSession.setElevationData(parseElevationData(elevationDataFile));
+					try (StageEvents.ParseSidecar sidecarEvent = new StageEvents.ParseSidecar("elevation"))
+					{
+						sidecarEvent.start();
+						sportSession.setElevationData(parseElevationData(elevationDataFile));
+						sidecarEvent.end(sportSession.getId(), elevationDataFile.length(), sportSession.getElevationData().size());
+					}
 				}
 				// read GPS data from JSON file
 				File gpsDataFileJSON = new File(new File(file.getParentFile(), GPS_DATA_DIR), file.getName());
 				if (gpsDataFileJSON.exists())
 				{
-					sportSession.setGpsData(parseGpsData(gpsDataFileJSON));
+					try (StageEvents.ParseSidecar sidecarEvent = new StageEvents.ParseSidecar("gps"))
+					{
+						sidecarEvent.start();
+						sportSession.setGpsData(parseGpsData(gpsDataFileJSON));
+						sidecarEvent.end(sportSession.getId(), gpsDataFileJSON.length(), sportSession.getGpsData().size());
+					}
 				}
 				// read GPS data from GPX file (the runtastic export contains GPS data as GPX files, starting from April-2020)
 				File gpsDataFileGPX = new File(new File(file.getParentFile(), GPS_DATA_DIR), FilenameUtils.getBaseName(file.getName()) + ".gpx");
 				if (gpsDataFileGPX.exists())
 				{
 					// Load GPX file
-					try
+					try (StageEvents.ParseSidecar sidecarEvent = new StageEvents.ParseSidecar("gpx"))
 					{
-						JAXBContext ctx = JAXBContext.newInstance(GpxType.class);
-						Unmarshaller um = ctx.createUnmarshaller();
-						JAXBElement<GpxType> root = (JAXBElement<GpxType>) um.unmarshal(gpsDataFileGPX);
-						GpxType gpx = root.getValue();
-						sportSession.setGpx(gpx);
-					}
-					catch (JAXBException e)
-					{
-						throw new RuntimeException(e);
+						sidecarEvent.start();
+						if (rawGpx)
+						{
+							sportSession.setRawGpx(RawGpxReader.scan(gpsDataFileGPX));
+							sidecarEvent.end(sportSession.getId(), gpsDataFileGPX.length(), sportSession.getRawGpx().getPoints());
+						}
+						else
+						{
+							try
+							{
+								JAXBContext ctx = JAXBContext.newInstance(GpxType.class);
+								Unmarshaller um = ctx.createUnmarshaller();
+								JAXBElement<GpxType> root = (JAXBElement<GpxType>) um.unmarshal(gpsDataFileGPX);
+								GpxType gpx = root.getValue();
+								sportSession.setGpx(gpx);
+							}
+							catch (JAXBException e)
+							{
+								throw new RuntimeException(e);
+							}
+							sidecarEvent.end(sportSession.getId(), gpsDataFileGPX.length(), countTrackPoints(sportSession.getGpx()));
+						}
 					}
 				}
 				File heartRateDataFile = new File(new File(file.getParentFile(), HEARTRATE_DATA_DIR), file.getName());
 				if (heartRateDataFile.exists())
 				{
-					sportSession.setHeartRateData(parseHeartRateData(heartRateDataFile));
+					try (StageEvents.ParseSidecar sidecarEvent = new StageEvents.ParseSidecar("heart-rate"))
+					{
+						sidecarEvent.start();
+						sportSession.setHeartRateData(parseHeartRateData(heartRateDataFile));
+						sidecarEvent.end(sportSession.getId(), heartRateDataFile.length(), sportSession.getHeartRateData().size());
+					}
 				}
 			}
 
@@ -176,6 +237,91 @@ public class SportSessionParser
 		}
 	}
 
+	/**
+	 * Parse a sport session without its samples, as header for point-oriented mappers (see {@link #openTrackpoints(File)}).
+	 * Bounds are computed by a streaming pass over its GPS data, and its source GPX track (if any) is referenced by file.
+	 */
+	public SportSession parseSportSessionHeader(File file) throws FileNotFoundException, IOException
+	{
+		SportSession header = parseSportSession(file, false);
+		BoundsType bounds = new BoundsType();
+		File gpsDataFileJSON = new File(new File(file.getParentFile(), GPS_DATA_DIR), file.getName());
+		if (gpsDataFileJSON.exists())
+		{
+			try (MappingIterator<GpsData> gpsData = readValues(gpsDataFileJSON, GpsData.class))
+			{
+				while (gpsData.hasNext())
+				{
+					GpsData gps = gpsData.next();
+					GpxStreamWriter.extendBounds(bounds, gps.getLatitude(), gps.getLongitude());
+				}
+			}
+		}
+		File gpsDataFileGPX = new File(new File(file.getParentFile(), GPS_DATA_DIR), FilenameUtils.getBaseName(file.getName()) + ".gpx");
+		if (gpsDataFileGPX.exists())
+		{
+			header.setRawGpx(RawGpxReader.scan(gpsDataFileGPX));
+			if (header.getRawGpx().getBounds() != null)
+			{
+				GpxStreamWriter.extendBounds(bounds, header.getRawGpx().getBounds().getMinlat(), header.getRawGpx().getBounds().getMinlon());
+				GpxStreamWriter.extendBounds(bounds, header.getRawGpx().getBounds().getMaxlat(), header.getRawGpx().getBounds().getMaxlon());
+			}
+		}
+		if (bounds.getMinlat() != null)
+			header.setBounds(bounds);
+		return header;
+	}
+
+	/**
+	 * Open a cursor over the GPS and heart-rate samples of a sport session, read incrementally from its JSON sidecar files.
+	 */
+	public TrackpointCursor openTrackpoints(File file) throws FileNotFoundException, IOException
+	{
+		return openTrackpoints(file, true);
+	}
+
+	/**
+	 * Open a cursor over the samples of a sport session, read incrementally from its JSON sidecar files.
+	 * @param mergeHeartRate true to merge GPS and heart-rate samples in time order, false to read GPS samples only, in source order
+	 */
+	public TrackpointCursor openTrackpoints(File file, boolean mergeHeartRate) throws FileNotFoundException, IOException
+	{
+		File gpsDataFileJSON = new File(new File(file.getParentFile(), GPS_DATA_DIR), file.getName());
+		File heartRateDataFile = new File(new File(file.getParentFile(), HEARTRATE_DATA_DIR), file.getName());
+		MappingIterator<GpsData> gpsData = gpsDataFileJSON.exists() ? readValues(gpsDataFileJSON, GpsData.class) : null;
+		if (!mergeHeartRate)
+			return new GpsTrackpointCursor(gpsData);
+		try
+		{
+			return new MergingTrackpointCursor(gpsData, heartRateDataFile.exists() ? readValues(heartRateDataFile, HeartRateData.class) : null);
+		}
+		catch (IOException e)
+		{
+			if (gpsData != null)
+				gpsData.close();
+			throw e;
+		}
+	}
+
+	private <T> MappingIterator<T> readValues(File file, Class<T> type) throws IOException
+	{
+		return mapper.readerFor(type).readValues(new BufferedInputStream(new FileInputStream(file)));
+	}
+
+	public static long countTrackPoints(GpxType gpx)
+	{
+		long count = 0;
+		if (gpx != null)
+		{
+			for (TrkType trk : gpx.getTrk())
+			{
+				for (TrksegType trkseg : trk.getTrkseg())
+					count += trkseg.getTrkpt().size();
+			}
+		}
+		return count;
+	}
+
 	public SportSession parseSportSession(InputStream is) throws FileNotFoundException, IOException
 	{
 		return mapper.readValue(is, SportSession.class);
@@ -0,0 +1,21 @@
+package me.crespel.strava;
+
+import java.io.IOException;
+
+/**
+ * Strava API request rejected because a rate limit is exceeded ("429 Too Many Requests").
+ * Such a request can be retried once the rate limit window resets.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class RateLimitExceededException extends IOException
+{
+
+	private static final long serialVersionUID = 1L;
+
+	public RateLimitExceededException(String message)
+	{
+		super(message);
+	}
+
+}
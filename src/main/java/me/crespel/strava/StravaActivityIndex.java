@@ -0,0 +1,192 @@
+package me.crespel.strava;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FilenameUtils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import me.crespel.runtastic.monitoring.ConverterMetrics;
+import me.crespel.strava.model.AccessTokenResponse;
+import me.crespel.strava.model.ExportMetadata;
+import me.crespel.strava.model.SummaryActivity;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Index of the activities already on a Strava account, used to filter duplicates out of an upload queue before spending
+ * rate limit budget on them. Activities are listed once with "GET /athlete/activities" in pages of {@link #PAGE_SIZE},
+ * fetched concurrently in waves of {@code concurrency} pages (each taking a token from the {@link StravaRateLimiter})
+ * until a page is not full. Activities are keyed by external ID and by start time (to the second).
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class StravaActivityIndex
+{
+
+	public static final int										PAGE_SIZE		= 200;
+	public static final int										MAX_ATTEMPTS	= 3;
+
+	private static final TypeReference<List<SummaryActivity>>	ACTIVITY_LIST	= new TypeReference<List<SummaryActivity>>() {};
+
+	private final Set<String>									externalIds		= ConcurrentHashMap.newKeySet();
+	private final Set<Long>										startTimes		= ConcurrentHashMap.newKeySet();
+	private final AtomicInteger									activities		= new AtomicInteger();
+	private volatile boolean									complete		= true;
+
+	/**
+	 * List all activities of the authenticated athlete.
+	 * The index is partial (see {@link #isComplete()}) if the daily rate limit is reached while listing.
+	 */
+	public static StravaActivityIndex load(OkHttpClient client, ObjectMapper mapper, String apiUrl, AccessTokenResponse accessToken, StravaRateLimiter rateLimiter, int concurrency) throws IOException, InterruptedException
+	{
+		StravaActivityIndex index = new StravaActivityIndex();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, concurrency), r -> {
+			Thread thread = new Thread(r, "strava-activities");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try
+		{
+			int page = 1;
+			boolean last = false;
+			while (!last)
+			{
+				List<Future<Integer>> wave = new ArrayList<>();
+				for (int i = 0; i < Math.max(1, concurrency); i++)
+				{
+					int p = page++;
+					wave.add(executor.submit(() -> index.fetch(client, mapper, apiUrl, accessToken, rateLimiter, p, 1)));
+				}
+				for (Future<Integer> future : wave)
+				{
+					int count = future.get();
+					if (count < PAGE_SIZE)
+						last = true;
+				}
+			}
+		}
+		catch (ExecutionException ex)
+		{
+			if (ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+			throw new IOException("Failed to list Strava activities", ex.getCause());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		return index;
+	}
+
+	/**
+	 * Fetch and index a page of activities, retrying server errors up to {@link #MAX_ATTEMPTS} times.
+	 * @return number of activities in the page, 0 if the daily rate limit is reached
+	 */
+	private int fetch(OkHttpClient client, ObjectMapper mapper, String apiUrl, AccessTokenResponse accessToken, StravaRateLimiter rateLimiter, int page, int attempt) throws IOException, InterruptedException
+	{
+		if (!rateLimiter.acquire())
+		{
+			complete = false;
+			return 0;
+		}
+		Request request = new Request.Builder()
+			.url(apiUrl + "/athlete/activities?page=" + page + "&per_page=" + PAGE_SIZE)
+			.addHeader("Authorization", accessToken.token_type + " " + accessToken.access_token)
+			.get()
+			.build();
+		int code;
+		try (Response response = client.newCall(request).execute(); ResponseBody body = response.body())
+		{
+			String limit = response.header("X-RateLimit-Limit");
+			String usage = response.header("X-RateLimit-Usage");
+			ConverterMetrics.get().updateStravaRateLimit(limit, usage);
+			rateLimiter.update(limit, usage);
+			code = response.code();
+			if (response.isSuccessful())
+			{
+				List<SummaryActivity> activities = mapper.readValue(body.string(), ACTIVITY_LIST);
+				for (SummaryActivity activity : activities)
+					add(activity);
+				return activities.size();
+			}
+		}
+		if (code == 429)
+		{
+			rateLimiter.exhausted();
+			return fetch(client, mapper, apiUrl, accessToken, rateLimiter, page, attempt);
+		}
+		if (code >= 500 && attempt < MAX_ATTEMPTS)
+			return fetch(client, mapper, apiUrl, accessToken, rateLimiter, page, attempt + 1);
+		throw new IOException("HTTP failure (" + code + ") while listing Strava activities");
+	}
+
+	void add(SummaryActivity activity)
+	{
+		activities.incrementAndGet();
+		if (activity.external_id != null && !activity.external_id.isEmpty())
+		{
+			externalIds.add(activity.external_id);
+			externalIds.add(FilenameUtils.getBaseName(activity.external_id));
+		}
+		Long startTime = parseStartTime(activity.start_date);
+		if (startTime != null)
+			startTimes.add(startTime);
+	}
+
+	/**
+	 * Whether a converted activity is already on Strava, by external ID or start time.
+	 */
+	public boolean contains(ExportMetadata metaData)
+	{
+		if (metaData.externalId != null && externalIds.contains(metaData.externalId))
+			return true;
+		Long startTime = parseStartTime(metaData.startDate);
+		return startTime != null && startTimes.contains(startTime);
+	}
+
+	/**
+	 * Number of indexed activities.
+	 */
+	public int size()
+	{
+		return activities.get();
+	}
+
+	/**
+	 * Whether all activities were listed.
+	 */
+	public boolean isComplete()
+	{
+		return complete;
+	}
+
+	private static Long parseStartTime(String date)
+	{
+		if (date == null)
+			return null;
+		try
+		{
+			return Instant.parse(date).getEpochSecond();
+		}
+		catch (DateTimeParseException ex)
+		{
+			return null;
+		}
+	}
+
+}
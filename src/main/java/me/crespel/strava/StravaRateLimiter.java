@@ -0,0 +1,289 @@
+package me.crespel.strava;
+
+import java.time.Clock;
+import java.time.Duration;
+
+import me.crespel.strava.model.RateLimitState;
+
+/**
+ * Client-side token bucket for the Strava API rate limits.
+ * Strava enforces a 15-minute limit, over windows starting at each quarter hour, and a daily limit, over windows starting
+ * at midnight UTC. Each window is a bucket holding its limit minus the requests already made in it: a request takes a token
+ * from both buckets, and a bucket is refilled when its window ends. Limits are seeded with defaults, then limits and usage
+ * are corrected from the "X-RateLimit-Limit" and "X-RateLimit-Usage" response headers (both formatted as
+ * "&lt;15-minute&gt;,&lt;daily&gt;"), so that concurrent uploads use the full quota without exceeding it. The last observed state
+ * can be saved and restored between runs, so that a restarted upload waits for the windows its quota was spent in.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class StravaRateLimiter
+{
+
+	public static final long		DEFAULT_SHORT_TERM_LIMIT	= 100;
+	public static final long		DEFAULT_DAILY_LIMIT			= 1000;
+	public static final Duration	SHORT_TERM_WINDOW			= Duration.ofMinutes(15);
+	public static final Duration	DAILY_WINDOW				= Duration.ofDays(1);
+
+	private final Clock				clock;
+	private final Window			shortTerm;
+	private final Window			daily;
+	private volatile boolean		waitForNextDay;
+
+	public StravaRateLimiter()
+	{
+		this(Clock.systemUTC(), DEFAULT_SHORT_TERM_LIMIT, DEFAULT_DAILY_LIMIT);
+	}
+
+	public StravaRateLimiter(Clock clock, long shortTermLimit, long dailyLimit)
+	{
+		this.clock = clock;
+		this.shortTerm = new Window(SHORT_TERM_WINDOW.toMillis(), shortTermLimit);
+		this.daily = new Window(DAILY_WINDOW.toMillis(), dailyLimit);
+	}
+
+	/**
+	 * Take a token if both windows have one left.
+	 * @return 0 if a token was taken, or else the number of milliseconds until a token may be available
+	 */
+	public synchronized long tryAcquire()
+	{
+		long now = clock.millis();
+		long delay = Math.max(shortTerm.delay(now), daily.delay(now));
+		if (delay == 0)
+		{
+			shortTerm.used++;
+			daily.used++;
+		}
+		return delay;
+	}
+
+	/**
+	 * Wait until a token is available in the 15-minute window (and in the daily window if waiting for the next day), and take it.
+	 * @return false, without waiting, if the daily limit is reached and not waiting for the next day
+	 */
+	public boolean acquire() throws InterruptedException
+	{
+		while (true)
+		{
+			long delay = tryAcquire();
+			if (delay == 0)
+				return true;
+			if (!waitForNextDay && isDailyLimitReached())
+				return false;
+			sleep(delay);
+		}
+	}
+
+	/**
+	 * Set whether {@link #acquire()} waits for the next daily window when the daily limit is reached, for long-running uploads.
+	 */
+	public void setWaitForNextDay(boolean waitForNextDay)
+	{
+		this.waitForNextDay = waitForNextDay;
+	}
+
+	public boolean isWaitForNextDay()
+	{
+		return waitForNextDay;
+	}
+
+	/**
+	 * Wait for a number of milliseconds of the limiter clock.
+	 */
+	protected void sleep(long millis) throws InterruptedException
+	{
+		Thread.sleep(millis);
+	}
+
+	/**
+	 * Current time of the limiter clock, in epoch milliseconds.
+	 */
+	public long millis()
+	{
+		return clock.millis();
+	}
+
+	/**
+	 * Correct limits and usage from the rate limit headers of a response.
+	 * Usage only grows within a window: a lower value is a response to an earlier request, still counted locally.
+	 */
+	public synchronized void update(String limitHeader, String usageHeader)
+	{
+		long now = clock.millis();
+		shortTerm.roll(now);
+		daily.roll(now);
+		long[] limits = parse(limitHeader);
+		if (limits != null)
+		{
+			shortTerm.limit = limits[0];
+			daily.limit = limits[1];
+		}
+		long[] usage = parse(usageHeader);
+		if (usage != null)
+		{
+			shortTerm.used = Math.max(shortTerm.used, usage[0]);
+			daily.used = Math.max(daily.used, usage[1]);
+		}
+	}
+
+	/**
+	 * Empty the 15-minute bucket after a "Rate Limit Exceeded" response, e.g. when the quota is shared with other clients.
+	 */
+	public synchronized void exhausted()
+	{
+		shortTerm.roll(clock.millis());
+		shortTerm.used = Math.max(shortTerm.used, shortTerm.limit);
+	}
+
+	public synchronized boolean isDailyLimitReached()
+	{
+		return daily.delay(clock.millis()) > 0;
+	}
+
+	public synchronized long getShortTermUsage()
+	{
+		shortTerm.roll(clock.millis());
+		return shortTerm.used;
+	}
+
+	public synchronized long getShortTermLimit()
+	{
+		return shortTerm.limit;
+	}
+
+	/**
+	 * Number of tokens left in both windows.
+	 */
+	public synchronized long getRemaining()
+	{
+		long now = clock.millis();
+		shortTerm.roll(now);
+		daily.roll(now);
+		return Math.max(0, Math.min(shortTerm.limit - shortTerm.used, daily.limit - daily.used));
+	}
+
+	/**
+	 * Milliseconds until the current 15-minute window ends.
+	 */
+	public synchronized long getShortTermReset()
+	{
+		long now = clock.millis();
+		shortTerm.roll(now);
+		return shortTerm.start + shortTerm.length - now;
+	}
+
+	public synchronized long getDailyUsage()
+	{
+		daily.roll(clock.millis());
+		return daily.used;
+	}
+
+	public synchronized long getDailyLimit()
+	{
+		return daily.limit;
+	}
+
+	/**
+	 * Milliseconds until the current daily window ends.
+	 */
+	public synchronized long getDailyReset()
+	{
+		long now = clock.millis();
+		daily.roll(now);
+		return daily.start + daily.length - now;
+	}
+
+	/**
+	 * Current limits, usage and window resets, to be saved for the next run.
+	 */
+	public synchronized RateLimitState getState()
+	{
+		long now = clock.millis();
+		shortTerm.roll(now);
+		daily.roll(now);
+		RateLimitState state = new RateLimitState();
+		state.time = now;
+		state.short_term_limit = shortTerm.limit;
+		state.short_term_usage = shortTerm.used;
+		state.short_term_reset = shortTerm.start + shortTerm.length;
+		state.daily_limit = daily.limit;
+		state.daily_usage = daily.used;
+		state.daily_reset = daily.start + daily.length;
+		return state;
+	}
+
+	/**
+	 * Restore the limits and usage saved by a previous run. Usage is only restored in windows which are not over yet.
+	 */
+	public synchronized void restore(RateLimitState state)
+	{
+		long now = clock.millis();
+		shortTerm.restore(now, state.short_term_limit, state.short_term_usage, state.short_term_reset);
+		daily.restore(now, state.daily_limit, state.daily_usage, state.daily_reset);
+	}
+
+	private static long[] parse(String header)
+	{
+		if (header == null)
+			return null;
+		String[] values = header.split(",");
+		if (values.length < 2)
+			return null;
+		try
+		{
+			return new long[] { Long.parseLong(values[0].trim()), Long.parseLong(values[1].trim()) };
+		}
+		catch (NumberFormatException ex)
+		{
+			return null; // ignore malformed header
+		}
+	}
+
+	/**
+	 * Fixed rate limit window, aligned on multiples of its length since the epoch.
+	 */
+	private static class Window
+	{
+
+		final long	length;
+		long		limit;
+		long		used;
+		long		start;
+
+		Window(long length, long limit)
+		{
+			this.length = length;
+			this.limit = limit;
+		}
+
+		void roll(long now)
+		{
+			long windowStart = now - Math.floorMod(now, length);
+			if (windowStart != start)
+			{
+				start = windowStart;
+				used = 0;
+			}
+		}
+
+		void restore(long now, long savedLimit, long savedUsage, long savedReset)
+		{
+			roll(now);
+			if (savedLimit > 0)
+				limit = savedLimit;
+			if (savedReset == start + length)
+				used = Math.max(used, savedUsage);
+		}
+
+		/**
+		 * Milliseconds until this window has a token left, 0 if it has one.
+		 */
+		long delay(long now)
+		{
+			roll(now);
+			return used < limit ? 0 : start + length - now;
+		}
+
+	}
+
+}
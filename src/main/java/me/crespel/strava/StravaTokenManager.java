@@ -0,0 +1,245 @@
+package me.crespel.strava;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import me.crespel.strava.model.AccessTokenResponse;
+import okhttp3.FormBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Holder of the Strava OAuth access token shared by concurrent uploads and status polls.
+ * The current token is read without locking, and is refreshed in the background {@link #REFRESH_MARGIN} before it expires,
+ * so that requests never stall on an expired token. A refresh is single-flight: callers needing a new token at the same time
+ * (e.g. after a "401 Unauthorized" response) share the same in-flight refresh instead of each requesting one.
+ * Obtained and refreshed tokens are saved to the access token file.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class StravaTokenManager implements Closeable
+{
+
+	public static final Duration										REFRESH_MARGIN	= Duration.ofMinutes(10);
+	public static final Duration										RETRY_DELAY		= Duration.ofMinutes(1);
+
+	private final OkHttpClient											client;
+	private final ObjectMapper											mapper;
+	private final String												apiUrl;
+	private final Path													accessTokenFile;
+	private final String												clientID;
+	private final String												clientSecret;
+	private final Clock													clock;
+	private final AtomicReference<AccessTokenResponse>					token			= new AtomicReference<>();
+	private final AtomicReference<CompletableFuture<AccessTokenResponse>>	refresh			= new AtomicReference<>();
+	private final ScheduledExecutorService								timer;
+	private Duration													refreshMargin	= REFRESH_MARGIN;
+	private ScheduledFuture<?>											scheduled;
+
+	public StravaTokenManager(OkHttpClient client, ObjectMapper mapper, String apiUrl, Path accessTokenFile, String clientID, String clientSecret)
+	{
+		this(client, mapper, apiUrl, accessTokenFile, clientID, clientSecret, Clock.systemUTC());
+	}
+
+	public StravaTokenManager(OkHttpClient client, ObjectMapper mapper, String apiUrl, Path accessTokenFile, String clientID, String clientSecret, Clock clock)
+	{
+		this.client = client;
+		this.mapper = mapper;
+		this.apiUrl = apiUrl;
+		this.accessTokenFile = accessTokenFile;
+		this.clientID = clientID;
+		this.clientSecret = clientSecret;
+		this.clock = clock;
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "strava-token");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Set how long before expiry the token is refreshed in the background.
+	 */
+	public void setRefreshMargin(Duration refreshMargin)
+	{
+		this.refreshMargin = refreshMargin;
+	}
+
+	/**
+	 * Load (and refresh if needed) a previously saved access token, or obtain one from an OAuth authorization code.
+	 */
+	public AccessTokenResponse authorize(String code) throws IOException
+	{
+		if (Files.exists(accessTokenFile))
+		{
+			System.out.println(" o Found a previously saved Strava acceess token");
+			AccessTokenResponse saved = mapper.readValue(accessTokenFile.toFile(), AccessTokenResponse.class);
+			token.set(saved);
+			if (isExpired(saved))
+				System.out.println("   - Access token is expired and needs a refresh");
+			AccessTokenResponse current = get();
+			if (current != saved)
+				System.out.println("   - Refreshed and saved access token");
+			schedule(current);
+			return current;
+		}
+
+		System.out.println(" o Obtaining access token from Strava ...");
+		FormBody formBody = new FormBody.Builder()
+			.add("client_id", clientID)
+			.add("client_secret", clientSecret)
+			.add("code", code)
+			.add("grant_type", "authorization_code")
+			.build();
+		AccessTokenResponse obtained = requestToken(formBody);
+		token.set(obtained);
+		System.out.println("   - Obtained and saved access token");
+		schedule(obtained);
+		return obtained;
+	}
+
+	/**
+	 * Valid access token, waiting for a refresh only if the current token is already expired.
+	 */
+	public AccessTokenResponse get() throws IOException
+	{
+		AccessTokenResponse current = token.get();
+		if (!isExpired(current))
+			return current;
+		try
+		{
+			return refresh(current).get();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while refreshing Strava access token", ex);
+		}
+		catch (ExecutionException ex)
+		{
+			if (ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+			throw new IOException("Failed to refresh Strava access token", ex.getCause());
+		}
+	}
+
+	/**
+	 * Current access token, without waiting (e.g. for asynchronous calls, retried if rejected).
+	 */
+	public AccessTokenResponse getCurrent()
+	{
+		return token.get();
+	}
+
+	/**
+	 * Refresh a stale token (e.g. rejected with "401 Unauthorized"), sharing a refresh already in flight.
+	 * @return future new token, completed immediately if the stale token was already replaced
+	 */
+	public CompletableFuture<AccessTokenResponse> refresh(AccessTokenResponse stale)
+	{
+		while (true)
+		{
+			CompletableFuture<AccessTokenResponse> inFlight = refresh.get();
+			if (inFlight != null)
+				return inFlight;
+			AccessTokenResponse current = token.get();
+			if (current != stale)
+				return CompletableFuture.completedFuture(current);
+			CompletableFuture<AccessTokenResponse> future = new CompletableFuture<>();
+			if (refresh.compareAndSet(null, future))
+			{
+				timer.execute(() -> doRefresh(stale, future));
+				return future;
+			}
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		timer.shutdownNow();
+	}
+
+	private void doRefresh(AccessTokenResponse stale, CompletableFuture<AccessTokenResponse> future)
+	{
+		try
+		{
+			FormBody formBody = new FormBody.Builder()
+				.add("client_id", clientID)
+				.add("client_secret", clientSecret)
+				.add("refresh_token", stale.refresh_token)
+				.add("grant_type", "refresh_token")
+				.build();
+			AccessTokenResponse refreshed = requestToken(formBody);
+			token.set(refreshed);
+			refresh.set(null);
+			future.complete(refreshed);
+			schedule(refreshed);
+		}
+		catch (IOException | RuntimeException ex)
+		{
+			refresh.set(null);
+			future.completeExceptionally(ex);
+			if (!isExpired(stale))
+			{
+				System.err.println("   - Failed to refresh Strava access token (" + ex.getMessage() + "), retrying in " + RETRY_DELAY.getSeconds() + "s");
+				schedule(stale, RETRY_DELAY.toMillis());
+			}
+		}
+	}
+
+	/**
+	 * Schedule the background refresh of a token, ahead of its expiry.
+	 */
+	private void schedule(AccessTokenResponse current)
+	{
+		schedule(current, current.expires_at.toInstant().minus(refreshMargin).toEpochMilli() - clock.millis());
+	}
+
+	private synchronized void schedule(AccessTokenResponse current, long delay)
+	{
+		if (timer.isShutdown())
+			return;
+		if (scheduled != null)
+			scheduled.cancel(false);
+		scheduled = timer.schedule(() -> refresh(current), Math.max(0, delay), TimeUnit.MILLISECONDS);
+	}
+
+	private AccessTokenResponse requestToken(FormBody formBody) throws IOException
+	{
+		Request request = new Request.Builder()
+			.url(apiUrl + "/oauth/token")
+			.post(formBody)
+			.build();
+
+		AccessTokenResponse obtained;
+		try (Response response = client.newCall(request).execute())
+		{
+			if (response.code() == 400 || response.code() == 401)
+				Files.deleteIfExists(accessTokenFile); // refresh token revoked, a new authorization code is needed
+			obtained = mapper.readValue(StravaUploader.handleFailure(mapper, response, clientID), AccessTokenResponse.class);
+		}
+		mapper.writeValue(accessTokenFile.toFile(), obtained);
+		return obtained;
+	}
+
+	private boolean isExpired(AccessTokenResponse current)
+	{
+		return !clock.instant().isBefore(current.expires_at.toInstant());
+	}
+
+}
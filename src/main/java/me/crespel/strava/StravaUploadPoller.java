@@ -0,0 +1,278 @@
+package me.crespel.strava;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import me.crespel.runtastic.monitoring.ConverterMetrics;
+import me.crespel.strava.model.AccessTokenResponse;
+import me.crespel.strava.model.UploadResponse;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Asynchronous poller of Strava upload statuses ("GET /uploads/{id}").
+ * Posted uploads are tracked by ID and polled in batches by a single timer thread with asynchronous calls, so that new uploads
+ * are posted while previous ones are being processed by Strava. Each upload is first polled after an initial delay, then
+ * twice as late each time it is still being processed, up to {@link #MAX_DELAY}. Polls are spread over the rate limit budget
+ * remaining until the end of the 15-minute window, and each takes a token from the shared {@link StravaRateLimiter}.
+ * Final statuses (activity ready, duplicate or error) are reported once per upload to a {@link Listener}.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class StravaUploadPoller implements Closeable
+{
+
+	public static final Duration				DEFAULT_INITIAL_DELAY	= Duration.ofSeconds(5);
+	public static final Duration				MAX_DELAY				= Duration.ofMinutes(2);
+	public static final Duration				TIMEOUT					= Duration.ofMinutes(30);
+	public static final int						BATCH_SIZE				= 20;
+
+	private final OkHttpClient					client;
+	private final ObjectMapper					mapper;
+	private final String						apiUrl;
+	private final Supplier<AccessTokenResponse>	accessToken;
+	private final StravaRateLimiter				rateLimiter;
+	private final Listener						listener;
+	private final long							initialDelay;
+	private final long							tick;
+	private final ConverterMetrics				metrics					= ConverterMetrics.get();
+	private final PriorityQueue<Pending>		queue					= new PriorityQueue<>();
+	private final ScheduledExecutorService		timer;
+	private int									pending;
+	private double								credit;
+	private long								lastPoll;
+
+	/**
+	 * Receiver of final upload statuses, called from the poller threads.
+	 */
+	@FunctionalInterface
+	public interface Listener
+	{
+		/**
+		 * @param upload final status, or last status if the upload is still being processed after {@link StravaUploadPoller#TIMEOUT}
+		 */
+		void completed(String activity, UploadResponse upload);
+	}
+
+	public StravaUploadPoller(OkHttpClient client, ObjectMapper mapper, String apiUrl, Supplier<AccessTokenResponse> accessToken, StravaRateLimiter rateLimiter, Duration initialDelay, Listener listener)
+	{
+		this.client = client;
+		this.mapper = mapper;
+		this.apiUrl = apiUrl;
+		this.accessToken = accessToken;
+		this.rateLimiter = rateLimiter;
+		this.listener = listener;
+		this.initialDelay = initialDelay.toMillis();
+		this.tick = Math.max(1, Math.min(1000, this.initialDelay));
+		this.lastPoll = rateLimiter.millis();
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "strava-upload-poller");
+			thread.setDaemon(true);
+			return thread;
+		});
+		timer.scheduleWithFixedDelay(this::poll, tick, tick, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Track a posted upload until its final status, which is reported immediately if already known.
+	 */
+	public void track(String activity, UploadResponse upload)
+	{
+		if (!upload.isProcessing())
+		{
+			listener.completed(activity, upload);
+			return;
+		}
+		long now = System.currentTimeMillis();
+		synchronized (this)
+		{
+			pending++;
+			queue.add(new Pending(activity, upload, now, initialDelay));
+		}
+	}
+
+	/**
+	 * Number of tracked uploads still being processed.
+	 */
+	public synchronized int getPending()
+	{
+		return pending;
+	}
+
+	/**
+	 * Wait until all tracked uploads have a final status (or timed out), or until the daily rate limit is reached
+	 * (unless the rate limiter waits for the next day).
+	 * @return false if uploads are left pending since they cannot be polled before the next day
+	 */
+	public synchronized boolean awaitCompletion() throws InterruptedException
+	{
+		while (pending > 0)
+		{
+			if (!rateLimiter.isWaitForNextDay() && rateLimiter.isDailyLimitReached())
+				return false;
+			wait(tick);
+		}
+		return true;
+	}
+
+	@Override
+	public void close()
+	{
+		timer.shutdownNow();
+	}
+
+	/**
+	 * Poll a batch of due uploads, within their share of the remaining rate limit budget.
+	 */
+	private void poll()
+	{
+		List<Pending> batch = new ArrayList<>();
+		synchronized (this)
+		{
+			long now = System.currentTimeMillis();
+			long elapsed = rateLimiter.millis() - lastPoll;
+			lastPoll += elapsed;
+			if (queue.isEmpty() || queue.peek().due > now)
+				return;
+			credit = Math.min(BATCH_SIZE, credit + (double) rateLimiter.getRemaining() * elapsed / Math.max(elapsed, rateLimiter.getShortTermReset()));
+			while (credit >= 1 && !queue.isEmpty() && queue.peek().due <= now && rateLimiter.tryAcquire() == 0)
+			{
+				batch.add(queue.poll());
+				credit--;
+			}
+		}
+		for (Pending upload : batch)
+			request(upload);
+	}
+
+	private void request(Pending upload)
+	{
+		AccessTokenResponse token = accessToken.get();
+		Request request = new Request.Builder()
+			.url(apiUrl + "/uploads/" + upload.status.id)
+			.addHeader("Authorization", token.token_type + " " + token.access_token)
+			.get()
+			.build();
+		client.newCall(request).enqueue(new Callback()
+		{
+
+			@Override
+			public void onFailure(Call call, IOException ex)
+			{
+				reschedule(upload);
+			}
+
+			@Override
+			public void onResponse(Call call, Response response)
+			{
+				UploadResponse status;
+				try (ResponseBody body = response.body())
+				{
+					String limit = response.header("X-RateLimit-Limit");
+					String usage = response.header("X-RateLimit-Usage");
+					metrics.updateStravaRateLimit(limit, usage);
+					rateLimiter.update(limit, usage);
+					if (response.code() == 429)
+						rateLimiter.exhausted();
+					if (!response.isSuccessful())
+					{
+						reschedule(upload);
+						return;
+					}
+					status = mapper.readValue(body.string(), UploadResponse.class);
+				}
+				catch (IOException | RuntimeException ex)
+				{
+					reschedule(upload);
+					return;
+				}
+				if (status.isProcessing())
+				{
+					upload.status = status;
+					reschedule(upload);
+				}
+				else
+				{
+					complete(upload.activity, status);
+				}
+			}
+
+		});
+	}
+
+	/**
+	 * Poll an upload again later, twice as late as previously.
+	 */
+	private void reschedule(Pending upload)
+	{
+		long now = System.currentTimeMillis();
+		if (now - upload.start > TIMEOUT.toMillis())
+		{
+			complete(upload.activity, upload.status);
+			return;
+		}
+		synchronized (this)
+		{
+			upload.delay = Math.min(upload.delay * 2, MAX_DELAY.toMillis());
+			upload.due = now + upload.delay;
+			queue.add(upload);
+		}
+	}
+
+	private void complete(String activity, UploadResponse status)
+	{
+		try
+		{
+			listener.completed(activity, status);
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				pending--;
+				notifyAll();
+			}
+		}
+	}
+
+	private static class Pending implements Comparable<Pending>
+	{
+
+		final String	activity;
+		final long		start;
+		UploadResponse	status;
+		long			delay;
+		long			due;
+
+		Pending(String activity, UploadResponse status, long start, long delay)
+		{
+			this.activity = activity;
+			this.status = status;
+			this.start = start;
+			this.delay = delay;
+			this.due = start + delay;
+		}
+
+		@Override
+		public int compareTo(Pending o)
+		{
+			return Long.compare(due, o.due);
+		}
+
+	}
+
+}
@@ -0,0 +1,593 @@
+package me.crespel.strava;
+
+import java.awt.Desktop;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.security.sasl.AuthenticationException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import me.crespel.runtastic.monitoring.ConverterMetrics;
+import me.crespel.runtastic.monitoring.ProgressReporter;
+import me.crespel.runtastic.monitoring.StageEvents;
+import me.crespel.strava.model.AccessTokenResponse;
+import me.crespel.strava.model.ExportMetadata;
+import me.crespel.strava.model.FailureResponse;
+import me.crespel.strava.model.RateLimitState;
+import me.crespel.strava.model.UploadJournalEntry;
+import me.crespel.strava.model.UploadResponse;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.MultipartBody.Builder;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Concurrent uploader of converted activities (".meta" files and their activity files) to Strava.
+ * Up to {@code concurrency} uploads are in flight at once, each taking a token from a {@link StravaRateLimiter} first,
+ * so that a backlog drains as fast as the rate limits allow. Uploaded files are moved to an "uploaded" sub-folder,
+ * and their processing status is then followed by a {@link StravaUploadPoller} while the next files are uploaded.
+ * The state of each activity is recorded in an {@link UploadJournal}, so that a restarted upload skips posted activities,
+ * and the last observed rate limit state is saved next to the access token, so that it starts when budget is available.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class StravaUploader implements Closeable
+{
+
+	public static final int				DEFAULT_CONCURRENCY	= 4;
+	public static final String			DEFAULT_API_URL		= "https://www.strava.com/api/v3";
+	public static final String			RATE_LIMIT_FILE		= "ratelimit.json";
+
+	private static final MediaType		MEDIA_TYPE_GZIP		= MediaType.parse("application/gzip");
+	private static final int			MAX_FAILURES		= 3;
+	private static final Duration		FAILURE_BACKOFF		= Duration.ofSeconds(5);
+
+	private final OkHttpClient			client;
+	private final ObjectMapper			mapper;
+	private final String				clientID;
+	private final String				clientSecret;
+	private final Path					accessTokenFile;
+	private final Path					rateLimitFile;
+	private final StravaRateLimiter		rateLimiter;
+	private final int					concurrency;
+	private final ConverterMetrics		metrics				= ConverterMetrics.get();
+	private final AtomicBoolean			stopped				= new AtomicBoolean();
+	private final AtomicInteger			uploaded			= new AtomicInteger();
+	private final AtomicInteger			processed			= new AtomicInteger();
+	private final AtomicInteger			duplicates			= new AtomicInteger();
+	private final AtomicInteger			errors				= new AtomicInteger();
+	private final AtomicInteger			retries				= new AtomicInteger();
+	private final AtomicLong			dailyWait			= new AtomicLong();
+	private String						apiUrl				= DEFAULT_API_URL;
+	private Duration					pollDelay			= StravaUploadPoller.DEFAULT_INITIAL_DELAY;
+	private Duration					failureBackoff		= FAILURE_BACKOFF;
+	private StravaUploadPoller			poller;
+	private UploadJournal				journal;
+	private StravaTokenManager			tokens;
+
+	public StravaUploader(OkHttpClient client, ObjectMapper mapper, String clientID, String clientSecret, Path accessTokenFile, StravaRateLimiter rateLimiter, int concurrency)
+	{
+		this.client = client;
+		this.mapper = mapper;
+		this.clientID = clientID;
+		this.clientSecret = clientSecret;
+		this.accessTokenFile = accessTokenFile;
+		this.rateLimitFile = accessTokenFile.resolveSibling(RATE_LIMIT_FILE);
+		this.rateLimiter = rateLimiter;
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	 * Set the base URL of the Strava API (e.g. a local stand-in for tests and benchmarks).
+	 */
+	public void setApiUrl(String apiUrl)
+	{
+		this.apiUrl = apiUrl;
+	}
+
+	public void setPollDelay(Duration pollDelay)
+	{
+		this.pollDelay = pollDelay;
+	}
+
+	public void setFailureBackoff(Duration failureBackoff)
+	{
+		this.failureBackoff = failureBackoff;
+	}
+
+	public int getProcessed()
+	{
+		return processed.get();
+	}
+
+	public int getDuplicates()
+	{
+		return duplicates.get();
+	}
+
+	public int getErrors()
+	{
+		return errors.get();
+	}
+
+	/**
+	 * Number of upload attempts retried after a rate limit or transient failure.
+	 */
+	public int getRetries()
+	{
+		return retries.get();
+	}
+
+	/**
+	 * Load (and refresh if needed) a previously saved access token, or obtain one from an OAuth authorization code.
+	 */
+	public void authorize(String code) throws IOException
+	{
+		if (tokens != null)
+			tokens.close();
+		tokens = new StravaTokenManager(client, mapper, apiUrl, accessTokenFile, clientID, clientSecret);
+		tokens.authorize(code);
+	}
+
+	/**
+	 * Stop refreshing the access token in the background.
+	 */
+	@Override
+	public void close()
+	{
+		if (tokens != null)
+			tokens.close();
+	}
+
+	/**
+	 * Upload all converted activities of a folder.
+	 * @return number of successfully uploaded activities
+	 */
+	public int upload(Path convertedFolder, Duration progressInterval) throws IOException, InterruptedException
+	{
+		if (!Files.exists(convertedFolder) || !Files.isDirectory(convertedFolder))
+			throw new FileNotFoundException("No such directory '" + convertedFolder.toString() + "'");
+
+		if (!restoreRateLimit())
+			return 0;
+
+		File uploadedFolder = convertedFolder.resolve("uploaded").toFile();
+		List<Path> metaDataFiles;
+		try (Stream<Path> files = Files.list(convertedFolder))
+		{
+			metaDataFiles = files
+				.filter(f -> "meta".equals(FilenameUtils.getExtension(f.getFileName().toString())))
+				.sorted()
+				.collect(Collectors.toList());
+		}
+		FileUtils.forceMkdir(uploadedFolder);
+
+		journal = new UploadJournal(convertedFolder.resolve(UploadJournal.FILE_NAME), mapper);
+		List<Path> queue = new ArrayList<>(metaDataFiles.size());
+		for (Path metaDataFile : metaDataFiles)
+		{
+			String activity = metaDataFile.getFileName().toString();
+			UploadJournalEntry entry = journal.get(activity);
+			if (entry != null && (entry.isPosted() || entry.isFinal()))
+			{
+				// Posted (or found on Strava) by a previous run stopped before moving its files
+				ExportMetadata metaData = mapper.readValue(metaDataFile.toFile(), ExportMetadata.class);
+				moveToUploaded(metaDataFile, metaDataFile.resolveSibling(metaData.fileName).toFile(), uploadedFolder);
+				continue;
+			}
+			if (entry == null)
+				journal.append(new UploadJournalEntry(activity, UploadJournalEntry.State.QUEUED, null));
+			queue.add(metaDataFile);
+		}
+		List<UploadJournalEntry> unsettled = journal.getEntries().stream()
+			.filter(e -> e.isPosted() && !e.isFinal())
+			.collect(Collectors.toList());
+		if (metaDataFiles.size() > queue.size())
+			System.out.println(" o Skipping " + (metaDataFiles.size() - queue.size()) + " activities already posted");
+		if (!queue.isEmpty())
+			queue = filterDuplicates(queue, uploadedFolder);
+		System.out.println(" o Found " + queue.size() + " activities to be uploaded (" + concurrency + " concurrent uploads)");
+
+		metrics.uploadQueued(queue.size());
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency, r -> {
+			Thread thread = new Thread(r, "strava-upload");
+			thread.setDaemon(true);
+			return thread;
+		});
+		poller = new StravaUploadPoller(client, mapper, apiUrl, tokens::getCurrent, rateLimiter, pollDelay, this::uploadCompleted);
+		ProgressReporter progress = ProgressReporter.forUpload(queue.size(), progressInterval);
+		try
+		{
+			for (UploadJournalEntry entry : unsettled)
+			{
+				UploadResponse upload = new UploadResponse();
+				upload.id = entry.upload_id;
+				poller.track(entry.activity, upload);
+			}
+			List<Future<?>> futures = new ArrayList<>(queue.size());
+			for (Path metaDataFile : queue)
+				futures.add(executor.submit(() -> upload(metaDataFile, uploadedFolder)));
+			for (Future<?> future : futures)
+				future.get();
+			if (poller.getPending() > 0)
+			{
+				System.out.println(" o Waiting for Strava to process " + poller.getPending() + " uploads ...");
+				if (!poller.awaitCompletion())
+					System.out.println("   - Daily rate limit reached, the status of " + poller.getPending() + " uploads will be polled by the next run");
+			}
+		}
+		catch (ExecutionException ex)
+		{
+			throw new IOException("Strava upload failure", ex.getCause());
+		}
+		finally
+		{
+			progress.close();
+			executor.shutdownNow();
+			poller.close();
+			journal.close();
+			saveRateLimit();
+		}
+		System.out.println(" o Processed by Strava: " + processed.get() + " activities, " + duplicates.get() + " duplicates, " + errors.get() + " errors");
+		return uploaded.get();
+	}
+
+	/**
+	 * Remove activities already on Strava (by external ID or start time) from an upload queue, and journal them as duplicates.
+	 * The queue is left unfiltered if activities cannot be listed, since Strava rejects duplicates anyway.
+	 */
+	private List<Path> filterDuplicates(List<Path> queue, File uploadedFolder) throws IOException, InterruptedException
+	{
+		System.out.println(" o Listing activities already on Strava ...");
+		StravaActivityIndex index;
+		try
+		{
+			index = StravaActivityIndex.load(client, mapper, apiUrl, tokens.get(), rateLimiter, concurrency);
+		}
+		catch (IOException ex)
+		{
+			System.err.println("   - Failed to list activities (" + ex.getMessage() + "), duplicates will be rejected by Strava");
+			return queue;
+		}
+		List<Path> filtered = new ArrayList<>(queue.size());
+		for (Path metaDataFile : queue)
+		{
+			ExportMetadata metaData = mapper.readValue(metaDataFile.toFile(), ExportMetadata.class);
+			if (!index.contains(metaData))
+			{
+				filtered.add(metaDataFile);
+				continue;
+			}
+			UploadJournalEntry entry = new UploadJournalEntry(metaDataFile.getFileName().toString(), UploadJournalEntry.State.DUPLICATE, null);
+			entry.error = "already on Strava";
+			journal.append(entry);
+			moveToUploaded(metaDataFile, metaDataFile.resolveSibling(metaData.fileName).toFile(), uploadedFolder);
+		}
+		System.out.println("   - Found " + index.size() + " activities" + (index.isComplete() ? "" : " (daily rate limit reached, list is partial)")
+			+ ", skipping " + (queue.size() - filtered.size()) + " duplicates");
+		return filtered;
+	}
+
+	/**
+	 * Record the final processing status of an upload.
+	 */
+	private void uploadCompleted(String activity, UploadResponse upload)
+	{
+		UploadJournalEntry entry;
+		if (upload.activity_id != null)
+		{
+			processed.incrementAndGet();
+			entry = new UploadJournalEntry(activity, UploadJournalEntry.State.PROCESSED, upload.id);
+			entry.activity_id = upload.activity_id;
+		}
+		else if (upload.isDuplicate())
+		{
+			duplicates.incrementAndGet();
+			System.out.println("   - " + activity + ": " + upload.error);
+			entry = new UploadJournalEntry(activity, UploadJournalEntry.State.DUPLICATE, upload.id);
+			entry.error = upload.error;
+		}
+		else if (upload.isProcessing())
+		{
+			System.out.println("   - " + activity + ": still being processed by Strava");
+			return;
+		}
+		else
+		{
+			errors.incrementAndGet();
+			System.out.println("   - " + activity + ": " + (upload.error != null ? upload.error : upload.status));
+			entry = new UploadJournalEntry(activity, UploadJournalEntry.State.FAILED, upload.id);
+			entry.error = upload.error != null ? upload.error : upload.status;
+		}
+		appendJournal(entry);
+	}
+
+	private void appendJournal(UploadJournalEntry entry)
+	{
+		try
+		{
+			journal.append(entry);
+		}
+		catch (IOException ex)
+		{
+			System.err.println("   - Failed to journal " + entry.activity + " as " + entry.state + ": " + ex.getMessage());
+		}
+	}
+
+	private static void moveToUploaded(Path metaDataFile, File activityFile, File uploadedFolder) throws IOException
+	{
+		FileUtils.moveFileToDirectory(metaDataFile.toFile(), uploadedFolder, true);
+		if (activityFile.exists())
+			FileUtils.moveFileToDirectory(activityFile, uploadedFolder, false);
+		File rawActivityFile = metaDataFile.resolveSibling(FilenameUtils.getBaseName(activityFile.getName())).toFile();
+		if (rawActivityFile.exists())
+			FileUtils.moveFileToDirectory(rawActivityFile, uploadedFolder, false);
+	}
+
+	/**
+	 * Upload a single activity, retrying after rate limit or transient failures.
+	 */
+	private void upload(Path metaDataFile, File uploadedFolder)
+	{
+		metrics.uploadStarted();
+		boolean reauthorized = false;
+		// Consecutive failures of this upload only: concurrent uploads failing at once (e.g. server error burst) each get their retries
+		int failures = 0;
+		while (!stopped.get())
+		{
+			try
+			{
+				ExportMetadata metaData = mapper.readValue(metaDataFile.toFile(), ExportMetadata.class);
+				File activityFile = metaDataFile.resolveSibling(metaData.fileName).toFile();
+				if (!activityFile.exists())
+				{
+					System.out.println("   - Skipping " + metaDataFile);
+					return;
+				}
+
+				if (rateLimiter.isWaitForNextDay() && rateLimiter.isDailyLimitReached())
+					announceDailyWait();
+				if (!rateLimiter.acquire())
+				{
+					if (!stopped.getAndSet(true))
+						System.err.println("   - Upload terminated at " + uploaded.get() + " uploads (" + metaDataFile.getFileName() + ") since daily upload limit is reached");
+					return;
+				}
+				AccessTokenResponse token = tokens.get();
+
+				Builder postBodyBuilder = new MultipartBody.Builder()
+					.addFormDataPart("name", metaData.name)
+					.addFormDataPart("description", metaData.description)
+					.addFormDataPart("external_id", metaData.externalId)
+					.addFormDataPart("sport_type", metaData.sportType)
+					.addFormDataPart("data_type", metaData.dataType)
+					.addFormDataPart("commute", "false")
+					.addFormDataPart("trainer", "false")
+					.addFormDataPart("file", metaData.fileName, RequestBody.create(activityFile, MEDIA_TYPE_GZIP));
+				if (metaData.gearId != null)
+					postBodyBuilder.addFormDataPart("gear_id", metaData.gearId);
+				Request request = new Request.Builder()
+					.url(apiUrl + "/uploads")
+					.addHeader("Authorization", token.token_type + " " + token.access_token)
+					.post(postBodyBuilder.build())
+					.build();
+
+				UploadResponse upload;
+				try (StageEvents.HttpUpload uploadEvent = new StageEvents.HttpUpload())
+				{
+					uploadEvent.start();
+					try (Response response = client.newCall(request).execute())
+					{
+						uploadEvent.status = response.code();
+						uploadEvent.end(metaData.externalId, activityFile.length(), 0);
+						updateRateLimit(response);
+						if (response.code() == 401 && !reauthorized)
+						{
+							// Token revoked or expired early: retry once with a new token, refreshed once for all concurrent uploads
+							tokens.refresh(token).get();
+							reauthorized = true;
+							retries.incrementAndGet();
+							continue;
+						}
+						upload = mapper.readValue(handleFailure(mapper, response, clientID), UploadResponse.class);
+					}
+				}
+				metrics.sessionUploaded();
+				String activity = metaDataFile.getFileName().toString();
+				// Posted: failures from here on must not retry the POST, the next run moves the files of journaled uploads
+				appendJournal(new UploadJournalEntry(activity, UploadJournalEntry.State.POSTED, upload.id));
+				try
+				{
+					moveToUploaded(metaDataFile, activityFile, uploadedFolder);
+				}
+				catch (IOException ex)
+				{
+					System.err.println("   - Failed to move uploaded " + activity + " (" + ex.getMessage() + ")");
+				}
+
+				uploaded.incrementAndGet();
+				poller.track(activity, upload);
+				return;
+			}
+			catch (AuthenticationException ex)
+			{
+				fail(metaDataFile, ex);
+				return;
+			}
+			catch (RateLimitExceededException ex)
+			{
+				// Rate limit exceeded despite the local bucket (e.g. quota shared with other clients): wait for the next window
+				rateLimiter.exhausted();
+				retries.incrementAndGet();
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				stopped.set(true);
+				return;
+			}
+			catch (Exception ex)
+			{
+				if (++failures > MAX_FAILURES)
+				{
+					fail(metaDataFile, ex);
+					return;
+				}
+				long backoff = failureBackoff.toMillis() << (failures - 1);
+				System.out.println("   - Upload of " + metaDataFile.getFileName() + " failed (" + ex.getMessage() + "), retrying in " + backoff / 1000d + "s");
+				retries.incrementAndGet();
+				try
+				{
+					Thread.sleep(backoff);
+				}
+				catch (InterruptedException ex1)
+				{
+					Thread.currentThread().interrupt();
+					stopped.set(true);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Restore the rate limit state saved by a previous run, and report when the first request can be made.
+	 * @return false if the daily limit is still reached and the upload should be run again the next day
+	 */
+	private boolean restoreRateLimit()
+	{
+		if (Files.exists(rateLimitFile))
+		{
+			try
+			{
+				rateLimiter.restore(mapper.readValue(rateLimitFile.toFile(), RateLimitState.class));
+			}
+			catch (IOException ex)
+			{
+				System.err.println(" o Ignoring unreadable rate limit state " + rateLimitFile + " (" + ex.getMessage() + ")");
+			}
+		}
+		if (rateLimiter.isDailyLimitReached())
+		{
+			if (!rateLimiter.isWaitForNextDay())
+			{
+				System.out.println(" o Daily rate limit (" + rateLimiter.getDailyLimit() + " requests) reached by the previous run, upload can be run again after " + Instant.ofEpochMilli(rateLimiter.millis() + rateLimiter.getDailyReset()));
+				return false;
+			}
+			announceDailyWait();
+		}
+		else if (rateLimiter.getRemaining() == 0)
+		{
+			System.out.println(" o 15-minute rate limit (" + rateLimiter.getShortTermLimit() + " requests) reached by the previous run, first request scheduled at " + Instant.ofEpochMilli(rateLimiter.millis() + rateLimiter.getShortTermReset()));
+		}
+		return true;
+	}
+
+	/**
+	 * Report (once per day) that uploads are waiting for the next daily window, and save the rate limit state meanwhile.
+	 */
+	private void announceDailyWait()
+	{
+		long reset = rateLimiter.millis() + rateLimiter.getDailyReset();
+		if (dailyWait.getAndSet(reset) != reset)
+		{
+			System.out.println("   - Daily rate limit (" + rateLimiter.getDailyLimit() + " requests) reached, waiting until " + Instant.ofEpochMilli(reset));
+			saveRateLimit();
+		}
+	}
+
+	private void saveRateLimit()
+	{
+		try
+		{
+			mapper.writeValue(rateLimitFile.toFile(), rateLimiter.getState());
+		}
+		catch (IOException ex)
+		{
+			System.err.println("   - Failed to save rate limit state (" + ex.getMessage() + ")");
+		}
+	}
+
+	private void fail(Path metaDataFile, Exception ex)
+	{
+		stopped.set(true);
+		metrics.uploadFailed();
+		UploadJournalEntry entry = new UploadJournalEntry(metaDataFile.getFileName().toString(), UploadJournalEntry.State.FAILED, null);
+		entry.error = ex.getMessage();
+		appendJournal(entry);
+		ex.printStackTrace();
+	}
+
+	private void updateRateLimit(Response response)
+	{
+		String limit = response.header("X-RateLimit-Limit");
+		String usage = response.header("X-RateLimit-Usage");
+		metrics.updateStravaRateLimit(limit, usage);
+		rateLimiter.update(limit, usage);
+	}
+
+	static String handleFailure(ObjectMapper mapper, Response response, String clientID) throws IOException
+	{
+		try (ResponseBody body = response.body())
+		{
+			String bodyString = body.string().trim();
+			if (response.isSuccessful())
+				return bodyString;
+			FailureResponse errorResponse = null;
+			try
+			{
+				errorResponse = mapper.readValue(bodyString, FailureResponse.class);
+			}
+			catch (Exception ex)
+			{}
+			if (response.code() == 429 || errorResponse != null && "Rate Limit Exceeded".equalsIgnoreCase(errorResponse.message))
+				throw new RateLimitExceededException("Strava API rate limit reached");
+			if (errorResponse == null)
+				throw new IOException("HTTP failure (" + response.code() + ")");
+			if ("Bad Request".equalsIgnoreCase(errorResponse.message) &&
+				errorResponse.errors != null && errorResponse.errors.length != 0
+				&& "AuthorizationCode".equalsIgnoreCase(errorResponse.errors[0].resource)
+				&& "code".equalsIgnoreCase(errorResponse.errors[0].field))
+			{
+				String oauthUrl = "https://www.strava.com/oauth/authorize?client_id=" + clientID + "&redirect_uri=https://localhost/response&response_type=code&scope=read,read_all,profile:read_all,profile:write,activity:read_all,activity:write";
+				try
+				{
+					Desktop.getDesktop().browse(new URI(oauthUrl));
+				}
+				catch (IOException | URISyntaxException | UnsupportedOperationException ex)
+				{
+					// No browser to open (e.g. headless environment): the URL is part of the message
+				}
+				throw new AuthenticationException("Supplied Strava OAuth authentication 'code' is not valid. Please acquire a new one:\r\n" + oauthUrl);
+			}
+			throw new IOException("Strava API failure '" + errorResponse.message + "' (" + response.code() + ")");
+		}
+	}
+}
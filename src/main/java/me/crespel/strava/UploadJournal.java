@@ -0,0 +1,133 @@
+package me.crespel.strava;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import me.crespel.strava.model.UploadJournalEntry;
+
+/**
+ * Append-only journal of Strava uploads, written as JSON lines in the converted folder.
+ * Each state change of an activity (queued, posted with its upload ID, then processed, duplicate or failed) is appended,
+ * and the journal is replayed on start so that a restarted upload skips activities already posted, even if it was stopped
+ * between posting an activity and moving its files. Writes are synced to disk in batches of {@link #SYNC_ENTRIES} entries
+ * or every {@link #SYNC_INTERVAL}, whichever comes first, and a truncated last line (e.g. after a crash) is ignored.
+ *
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class UploadJournal implements Closeable
+{
+
+	public static final String						FILE_NAME		= "uploads.journal";
+	public static final int							SYNC_ENTRIES	= 32;
+	public static final Duration					SYNC_INTERVAL	= Duration.ofSeconds(1);
+
+	private final ObjectMapper						mapper;
+	private final FileChannel						channel;
+	private final Map<String, UploadJournalEntry>	latest			= new LinkedHashMap<>();
+	private int										unsynced;
+	private long									lastSync		= System.nanoTime();
+
+	public UploadJournal(Path file, ObjectMapper mapper) throws IOException
+	{
+		this.mapper = mapper;
+		if (Files.exists(file))
+			replay(file);
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = channel.size();
+		ByteBuffer last = ByteBuffer.allocate(1);
+		if (size > 0 && channel.read(last, size - 1) == 1 && last.get(0) != '\n')
+			channel.write(ByteBuffer.wrap(new byte[] { '\n' }), size); // terminate a truncated line
+		channel.position(channel.size());
+	}
+
+	private void replay(Path file) throws IOException
+	{
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				if (line.isEmpty())
+					continue;
+				try
+				{
+					UploadJournalEntry entry = mapper.readValue(line, UploadJournalEntry.class);
+					latest.put(entry.activity, entry);
+				}
+				catch (IOException ex)
+				{
+					// ignore truncated line
+				}
+			}
+		}
+	}
+
+	/**
+	 * Latest entry of an activity, null if it was never journaled.
+	 */
+	public synchronized UploadJournalEntry get(String activity)
+	{
+		return latest.get(activity);
+	}
+
+	/**
+	 * Latest entries of all journaled activities.
+	 */
+	public synchronized Collection<UploadJournalEntry> getEntries()
+	{
+		return Collections.unmodifiableCollection(latest.values());
+	}
+
+	/**
+	 * Append an entry, synced to disk with the next batch.
+	 */
+	public synchronized void append(UploadJournalEntry entry) throws IOException
+	{
+		byte[] line = (mapper.writeValueAsString(entry) + "\n").getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.wrap(line);
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		latest.put(entry.activity, entry);
+		if (++unsynced >= SYNC_ENTRIES || System.nanoTime() - lastSync >= SYNC_INTERVAL.toNanos())
+			sync();
+	}
+
+	/**
+	 * Force appended entries to disk.
+	 */
+	public synchronized void sync() throws IOException
+	{
+		if (unsynced > 0)
+			channel.force(false);
+		unsynced = 0;
+		lastSync = System.nanoTime();
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		try
+		{
+			sync();
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+}
@@ -21,6 +21,8 @@ public class ExportMetadata
 	@JsonInclude(JsonInclude.Include.NON_NULL)
 	public String	gearId;
 	public String	externalId;
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public String	startDate;	// ISO-8601 UTC, as the "start_date" of Strava activities
 
 	public String	fileName;
 	@JsonInclude(JsonInclude.Include.NON_NULL)
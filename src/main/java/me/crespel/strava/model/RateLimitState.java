@@ -0,0 +1,24 @@
+package me.crespel.strava.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.databind.annotation.JsonNaming;
+
+import lombok.Data;
+
+/**
+ * Last observed Strava rate limits, usage and window resets (in epoch milliseconds), saved between runs.
+ */
+@Data
+@JsonNaming(PropertyNamingStrategy.SnakeCaseStrategy.class)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class RateLimitState
+{
+	public long	time;
+	public long	short_term_limit;
+	public long	short_term_usage;
+	public long	short_term_reset;
+	public long	daily_limit;
+	public long	daily_usage;
+	public long	daily_reset;
+}
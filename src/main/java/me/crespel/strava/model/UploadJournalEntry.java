@@ -0,0 +1,70 @@
+package me.crespel.strava.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.databind.annotation.JsonNaming;
+
+import lombok.Data;
+
+/**
+ * Upload journal line, recording a state change of an activity (identified by its ".meta" file name).
+ */
+@Data
+@JsonNaming(PropertyNamingStrategy.SnakeCaseStrategy.class)
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class UploadJournalEntry
+{
+	public enum State
+	{
+		@JsonProperty("queued")
+		QUEUED,
+		@JsonProperty("posted")
+		POSTED,
+		@JsonProperty("processed")
+		PROCESSED,
+		@JsonProperty("duplicate")
+		DUPLICATE,
+		@JsonProperty("failed")
+		FAILED
+	}
+
+	public long		time;
+	public String	activity;
+	public State	state;
+	public Long		upload_id;
+	public Long		activity_id;
+	public String	error;
+
+	public UploadJournalEntry()
+	{}
+
+	public UploadJournalEntry(String activity, State state, Long upload_id)
+	{
+		this.time = System.currentTimeMillis();
+		this.activity = activity;
+		this.state = state;
+		this.upload_id = upload_id;
+	}
+
+	/**
+	 * Whether the activity was posted to Strava, whatever its processing outcome.
+	 */
+	@JsonIgnore
+	public boolean isPosted()
+	{
+		return upload_id != null;
+	}
+
+	/**
+	 * Whether the outcome of the activity is final (processed, duplicate, or failed after being posted).
+	 */
+	@JsonIgnore
+	public boolean isFinal()
+	{
+		return state == State.PROCESSED || state == State.DUPLICATE || state == State.FAILED && upload_id != null;
+	}
+}
@@ -0,0 +1,38 @@
+package me.crespel.strava.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.databind.annotation.JsonNaming;
+
+import lombok.Data;
+
+@Data
+@JsonNaming(PropertyNamingStrategy.SnakeCaseStrategy.class)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class UploadResponse
+{
+	public long		id;
+	public String	external_id;
+	public String	error;
+	public String	status;
+	public Long		activity_id;
+
+	/**
+	 * Whether Strava is still processing the uploaded file (no activity nor error yet).
+	 */
+	@JsonIgnore
+	public boolean isProcessing()
+	{
+		return error == null && activity_id == null && (status == null || status.toLowerCase().contains("still being processed"));
+	}
+
+	/**
+	 * Whether the upload was rejected as a duplicate of an existing activity.
+	 */
+	@JsonIgnore
+	public boolean isDuplicate()
+	{
+		return error != null && error.toLowerCase().contains("duplicate of");
+	}
+}
@@ -0,0 +1,348 @@
+package me.crespel.runtastic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded local stand-in for the Strava API, for upload tests and benchmarks.
+ * It serves the OAuth token, upload, upload status and athlete activities endpoints under "/api/v3", with a configurable
+ * latency, injected server errors, and 15-minute and daily rate limits (over windows of the given clock) answered with the
+ * "X-RateLimit-Limit" and "X-RateLimit-Usage" headers and "429 Rate Limit Exceeded" responses, as Strava does.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class StravaStandIn implements Closeable {
+
+	private static final Pattern EXTERNAL_ID = Pattern.compile("name=\"external_id\"\r\n(?:[^\r\n]+\r\n)*\r\n([^\r\n]*)\r\n");
+	private static final long SHORT_TERM_WINDOW = Duration.ofMinutes(15).toMillis();
+	private static final long DAILY_WINDOW = Duration.ofDays(1).toMillis();
+
+	public volatile long latencyMillis;
+	public volatile double errorRate;
+	public volatile long processingMillis;
+	public volatile Duration tokenLifetime = Duration.ofHours(6);
+	public volatile long shortTermLimit = 100;
+	public volatile long dailyLimit = 1000;
+
+	public final AtomicInteger tokenRequests = new AtomicInteger();
+	public final AtomicInteger uploadRequests = new AtomicInteger();
+	public final AtomicInteger statusRequests = new AtomicInteger();
+	public final AtomicInteger activityRequests = new AtomicInteger();
+	public final AtomicInteger rateLimited = new AtomicInteger();
+	public final AtomicInteger injectedErrors = new AtomicInteger();
+	/** Number of next upload requests answered with a server error, e.g. to fail all concurrent uploads at once */
+	public final AtomicInteger failingUploads = new AtomicInteger();
+	public final AtomicInteger unauthorized = new AtomicInteger();
+
+	private final Clock clock;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final Random random = new Random(42);
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newFixedThreadPool(32);
+	private final AtomicLong ids = new AtomicLong(1000);
+	private final Map<String, Long> accessTokens = new ConcurrentHashMap<>();
+	private final Map<Long, Upload> uploads = new ConcurrentHashMap<>();
+	private final List<ObjectNode> activities = new ArrayList<>();
+	private long shortTermStart;
+	private long shortTermUsage;
+	private long dailyStart;
+	private long dailyUsage;
+	private long maxShortTermUsage;
+
+	public StravaStandIn(Clock clock) throws IOException {
+		this.clock = clock;
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(executor);
+		server.createContext("/api/v3/oauth/token", this::token);
+		server.createContext("/api/v3/uploads", exchange -> limited(exchange, this::upload));
+		server.createContext("/api/v3/athlete/activities", exchange -> limited(exchange, this::activities));
+		server.start();
+	}
+
+	public String getApiUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/api/v3";
+	}
+
+	/**
+	 * Add an activity already on the account (e.g. uploaded manually).
+	 */
+	public synchronized void addActivity(String externalId, Instant startDate) {
+		ObjectNode activity = mapper.createObjectNode();
+		activity.put("id", ids.incrementAndGet());
+		activity.put("external_id", externalId);
+		activity.put("start_date", startDate.toString());
+		activities.add(activity);
+	}
+
+	/**
+	 * Consume part of the rate limits, as other clients of the same application would.
+	 */
+	public synchronized void setUsage(long shortTerm, long daily) {
+		roll();
+		shortTermUsage = shortTerm;
+		dailyUsage = daily;
+	}
+
+	/**
+	 * Number of requests counted in the rate limits.
+	 */
+	public synchronized long getDailyUsage() {
+		roll();
+		return dailyUsage;
+	}
+
+	/**
+	 * Highest number of requests counted in a 15-minute window.
+	 */
+	public synchronized long getMaxShortTermUsage() {
+		return maxShortTermUsage;
+	}
+
+	/**
+	 * Number of created uploads, including duplicates.
+	 */
+	public int getUploads() {
+		return uploads.size();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	@FunctionalInterface
+	private interface Handler {
+		void handle(HttpExchange exchange) throws IOException;
+	}
+
+	private void token(HttpExchange exchange) throws IOException {
+		delay();
+		tokenRequests.incrementAndGet();
+		Map<String, String> form = parseQuery(new String(read(exchange.getRequestBody()), StandardCharsets.UTF_8));
+		if (!"authorization_code".equals(form.get("grant_type")) && !"refresh_token".equals(form.get("grant_type"))) {
+			respond(exchange, 400, "{\"message\":\"Bad Request\",\"errors\":[{\"resource\":\"AuthorizationCode\",\"field\":\"code\",\"code\":\"invalid\"}]}");
+			return;
+		}
+		long id = ids.incrementAndGet();
+		long expiresAt = Instant.now().plus(tokenLifetime).getEpochSecond();
+		String accessToken = "access-" + id;
+		accessTokens.put(accessToken, expiresAt);
+		ObjectNode json = mapper.createObjectNode();
+		json.put("token_type", "Bearer");
+		json.put("access_token", accessToken);
+		json.put("refresh_token", "refresh-" + id);
+		json.put("expires_at", expiresAt);
+		json.put("expires_in", tokenLifetime.getSeconds());
+		respond(exchange, 200, json.toString());
+	}
+
+	/**
+	 * Serve a rate limited endpoint, after checking the access token.
+	 */
+	private void limited(HttpExchange exchange, Handler handler) throws IOException {
+		delay();
+		String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+		Long expiresAt = authorization != null && authorization.startsWith("Bearer ") ? accessTokens.get(authorization.substring(7)) : null;
+		if (expiresAt == null || expiresAt < Instant.now().getEpochSecond()) {
+			unauthorized.incrementAndGet();
+			respond(exchange, 401, "{\"message\":\"Authorization Error\",\"errors\":[{\"resource\":\"Athlete\",\"field\":\"access_token\",\"code\":\"invalid\"}]}");
+			return;
+		}
+		boolean allowed;
+		synchronized (this) {
+			roll();
+			allowed = shortTermUsage < shortTermLimit && dailyUsage < dailyLimit;
+			if (allowed) {
+				shortTermUsage++;
+				dailyUsage++;
+				maxShortTermUsage = Math.max(maxShortTermUsage, shortTermUsage);
+			}
+			exchange.getResponseHeaders().add("X-RateLimit-Limit", shortTermLimit + "," + dailyLimit);
+			exchange.getResponseHeaders().add("X-RateLimit-Usage", shortTermUsage + "," + dailyUsage);
+		}
+		if (!allowed) {
+			rateLimited.incrementAndGet();
+			respond(exchange, 429, "{\"message\":\"Rate Limit Exceeded\",\"errors\":[{\"resource\":\"Application\",\"field\":\"rate limit\",\"code\":\"exceeded\"}]}");
+			return;
+		}
+		if (errorRate > 0 && nextDouble() < errorRate) {
+			injectedErrors.incrementAndGet();
+			respond(exchange, 500, "{\"message\":\"Internal Server Error\",\"errors\":[]}");
+			return;
+		}
+		handler.handle(exchange);
+	}
+
+	private void upload(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		if ("POST".equals(exchange.getRequestMethod())) {
+			uploadRequests.incrementAndGet();
+			if (failingUploads.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+				injectedErrors.incrementAndGet();
+				respond(exchange, 500, "{\"message\":\"Internal Server Error\",\"errors\":[]}");
+				return;
+			}
+			Matcher matcher = EXTERNAL_ID.matcher(new String(read(exchange.getRequestBody()), StandardCharsets.ISO_8859_1));
+			Upload upload = new Upload(ids.incrementAndGet(), matcher.find() ? matcher.group(1) : null);
+			synchronized (this) {
+				for (ObjectNode activity : activities) {
+					if (upload.externalId != null && upload.externalId.equals(activity.get("external_id").asText())) {
+						upload.duplicateOf = activity.get("id").asLong();
+					}
+				}
+				if (upload.duplicateOf == null) {
+					addActivity(upload.externalId, clock.instant());
+					upload.activityId = activities.get(activities.size() - 1).get("id").asLong();
+				}
+			}
+			uploads.put(upload.id, upload);
+			respond(exchange, 201, upload.toJson().toString());
+		} else {
+			statusRequests.incrementAndGet();
+			Upload upload = uploads.get(Long.parseLong(path.substring(path.lastIndexOf('/') + 1)));
+			if (upload == null) {
+				respond(exchange, 404, "{\"message\":\"Record Not Found\",\"errors\":[]}");
+			} else {
+				respond(exchange, 200, upload.toJson().toString());
+			}
+		}
+	}
+
+	private void activities(HttpExchange exchange) throws IOException {
+		activityRequests.incrementAndGet();
+		Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+		int page = Integer.parseInt(query.getOrDefault("page", "1"));
+		int perPage = Math.min(200, Integer.parseInt(query.getOrDefault("per_page", "30")));
+		ArrayNode json = mapper.createArrayNode();
+		synchronized (this) {
+			for (int i = (page - 1) * perPage; i < Math.min(activities.size(), page * perPage); i++) {
+				json.add(activities.get(i));
+			}
+		}
+		respond(exchange, 200, json.toString());
+	}
+
+	private void roll() {
+		long now = clock.millis();
+		long shortTerm = now - Math.floorMod(now, SHORT_TERM_WINDOW);
+		if (shortTerm != shortTermStart) {
+			shortTermStart = shortTerm;
+			shortTermUsage = 0;
+		}
+		long daily = now - Math.floorMod(now, DAILY_WINDOW);
+		if (daily != dailyStart) {
+			dailyStart = daily;
+			dailyUsage = 0;
+		}
+	}
+
+	private void delay() {
+		if (latencyMillis > 0) {
+			try {
+				Thread.sleep(latencyMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private synchronized double nextDouble() {
+		return random.nextDouble();
+	}
+
+	private static Map<String, String> parseQuery(String query) throws IOException {
+		Map<String, String> params = new HashMap<>();
+		if (query != null) {
+			for (String param : query.split("&")) {
+				int eq = param.indexOf('=');
+				if (eq > 0) {
+					params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+				}
+			}
+		}
+		return params;
+	}
+
+	private static byte[] read(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = is.read(buffer)) > 0) {
+			bos.write(buffer, 0, n);
+		}
+		return bos.toByteArray();
+	}
+
+	private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	private class Upload {
+
+		final long id;
+		final String externalId;
+		final long ready = System.nanoTime() + processingMillis * 1000000;
+		Long duplicateOf;
+		Long activityId;
+
+		Upload(long id, String externalId) {
+			this.id = id;
+			this.externalId = externalId;
+		}
+
+		ObjectNode toJson() {
+			ObjectNode json = mapper.createObjectNode();
+			json.put("id", id);
+			json.put("id_str", String.valueOf(id));
+			json.put("external_id", externalId);
+			if (System.nanoTime() < ready) {
+				json.putNull("error");
+				json.put("status", "Your activity is still being processed.");
+				json.putNull("activity_id");
+			} else if (duplicateOf != null) {
+				json.put("error", externalId + " duplicate of activity " + duplicateOf);
+				json.put("status", "There was an error processing your activity.");
+				json.putNull("activity_id");
+			} else {
+				json.putNull("error");
+				json.put("status", "Your activity is ready.");
+				json.put("activity_id", activityId);
+			}
+			return json;
+		}
+
+	}
+
+}
@@ -0,0 +1,174 @@
+package me.crespel.runtastic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import me.crespel.runtastic.converter.ExportConverter;
+import me.crespel.runtastic.monitoring.ConverterMetrics;
+import me.crespel.runtastic.monitoring.LatencyHistogram;
+import me.crespel.runtastic.monitoring.ProgressReporter;
+import me.crespel.runtastic.monitoring.Stage;
+import me.crespel.runtastic.monitoring.StageEvents;
+
+/**
+ * ConverterMetrics and ProgressReporter tests.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class TestConverterMetrics {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void testLatencyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000000, histogram.getMax());
+		assertEquals(500500d, histogram.getMean(), 0.001);
+		assertPercentile(500000, histogram.getPercentile(50));
+		assertPercentile(900000, histogram.getPercentile(90));
+		assertPercentile(990000, histogram.getPercentile(99));
+		assertEquals(1000000, histogram.getPercentile(100));
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(50));
+	}
+
+	@Test
+	public void testProgressReporterJson() throws Exception {
+		AtomicLong completed = new AtomicLong();
+		Map<String, LongSupplier> backlog = new LinkedHashMap<>();
+		backlog.put("queued", () -> 10 - completed.get());
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (ProgressReporter progress = new ProgressReporter("convert", 10, completed::get, () -> completed.get() * 100, () -> 0L, backlog, null, new PrintStream(bos, true, "UTF-8"), true)) {
+			completed.set(4);
+			progress.report();
+		}
+		String[] lines = bos.toString("UTF-8").split("\\r?\\n");
+		assertEquals("No timer report expected when disabled", 1, lines.length);
+		JsonNode json = new ObjectMapper().readTree(lines[0]);
+		assertEquals("convert", json.get("action").asText());
+		assertEquals(4, json.get("completed").asLong());
+		assertEquals(40, json.get("percent").asInt());
+		assertEquals(6, json.get("backlog").get("queued").asLong());
+		assertTrue(json.get("sessions_per_sec").asDouble() > 0);
+		assertTrue(json.get("eta_seconds").asLong() >= 0);
+	}
+
+	private static void assertPercentile(long expected, long actual) {
+		assertTrue("Expected ~" + expected + " but was " + actual, actual >= expected && actual <= expected * 1.125);
+	}
+
+	@Test
+	public void testExportMetrics() throws Exception {
+		ConverterMetrics metrics = ConverterMetrics.get();
+		long parsed = metrics.getSessionsParsed();
+		long converted = metrics.getSessionsConverted();
+		long points = metrics.getPointsProcessed();
+		long bytesOut = metrics.getBytesOut();
+		long marshalCount = metrics.getLatency(Stage.MARSHAL).getCount();
+
+		File export = TestExportSportSessions.createExport(tmp.newFolder("export"));
+		new ExportConverter().exportSportSessions(export, tmp.newFolder("dest"), "gpx", true);
+
+		assertEquals(parsed + 2, metrics.getSessionsParsed());
+		assertEquals(converted + 2, metrics.getSessionsConverted());
+		assertEquals(marshalCount + 2, metrics.getLatency(Stage.MARSHAL).getCount());
+		assertTrue(metrics.getPointsProcessed() > points);
+		assertTrue(metrics.getBytesOut() > bytesOut);
+		assertEquals(0, metrics.getConversionQueueDepth());
+
+		// Points are counted once per session, whatever the number of formats (999 GPS and 994 heart rate samples)
+		points = metrics.getPointsProcessed();
+		new ExportConverter().exportSportSessions(export, tmp.newFolder("formats"), "gpx,tcx,fit", true);
+		assertEquals(points + 2 * (999 + 994), metrics.getPointsProcessed());
+
+		metrics.updateStravaRateLimit("600,30000", "12,345");
+		assertEquals(600, metrics.getStravaShortTermLimit());
+		assertEquals(345, metrics.getStravaDailyUsage());
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(ConverterMetrics.OBJECT_NAME);
+		assertEquals(metrics.getSessionsConverted(), server.getAttribute(name, "SessionsConverted"));
+		TabularData latencies = (TabularData) server.getAttribute(name, "StageLatencies");
+		CompositeData marshal = (CompositeData) latencies.get(new Object[] { Stage.MARSHAL.name() }).get("value");
+		assertEquals(metrics.getLatency(Stage.MARSHAL).getCount(), marshal.get("count"));
+	}
+
+	@Test
+	public void testStageEventFailure() {
+		ConverterMetrics metrics = ConverterMetrics.get();
+		long active = metrics.getActive(Stage.GZIP);
+		long count = metrics.getLatency(Stage.GZIP).getCount();
+
+		try (StageEvents.Gzip event = new StageEvents.Gzip()) {
+			event.start();
+			assertEquals(active + 1, metrics.getActive(Stage.GZIP));
+			throw new IllegalStateException("gzip failed");
+		} catch (IllegalStateException e) {
+			assertEquals(active, metrics.getActive(Stage.GZIP));
+		}
+		assertEquals(count, metrics.getLatency(Stage.GZIP).getCount());
+
+		try (StageEvents.Gzip event = new StageEvents.Gzip()) {
+			event.start();
+			event.end("1", 10, 0);
+		}
+		assertEquals(active, metrics.getActive(Stage.GZIP));
+		assertEquals(count + 1, metrics.getLatency(Stage.GZIP).getCount());
+	}
+
+	@Test
+	public void testStageEventRecording() throws Exception {
+		Path file = tmp.newFile("stages.jfr").toPath();
+		try (Recording recording = new Recording()) {
+			recording.enable("me.crespel.runtastic.MarshalSession");
+			recording.start();
+			try (StageEvents.MarshalSession event = new StageEvents.MarshalSession("gpx")) {
+				event.start();
+				event.end("session-1", 100, 10);
+			}
+			try (StageEvents.MarshalSession event = new StageEvents.MarshalSession("tcx")) {
+				event.start();
+			}
+			recording.stop();
+			recording.dump(file);
+		}
+		List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+		assertEquals(1, events.size());
+		assertEquals("session-1", events.get(0).getString("sessionId"));
+		assertEquals("gpx", events.get(0).getString("format"));
+		assertEquals(10, events.get(0).getLong("points"));
+	}
+
+}
@@ -0,0 +1,466 @@
+package me.crespel.runtastic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import me.crespel.runtastic.converter.ColumnarExportWriter;
+import me.crespel.runtastic.converter.ExportConverter;
+import me.crespel.runtastic.converter.LargestFirstScheduler;
+import me.crespel.runtastic.converter.NdjsonExportWriter;
+import me.crespel.runtastic.converter.ShardSpec;
+import me.crespel.runtastic.converter.SportSessionFile;
+import me.crespel.runtastic.converter.ZipExportWriter;
+import me.crespel.runtastic.mapper.DelegatingSportSessionMapper;
+import me.crespel.runtastic.mapper.SampleMerger;
+import me.crespel.runtastic.model.ExportManifest;
+import me.crespel.runtastic.model.GpsData;
+import me.crespel.runtastic.model.HeartRateData;
+import me.crespel.runtastic.model.SportSession;
+import me.crespel.runtastic.parser.SportSessionParser;
+
+/**
+ * ExportConverter whole-export tests, run against a small export directory built from test resources.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class TestExportSportSessions {
+
+	static final String SESSION_2018 = "fdd2f131-ef65-4e6c-b27e-50b8ecf465d4";
+	static final String SESSION_2019 = "0b8f7a3e-2a6c-4d51-9a57-41e0f0e5c2b1";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private final ExportConverter converter = new ExportConverter();
+
+	@Test
+	public void testExportSportSessionsToZip() throws Exception {
+		File export = createExport(tmp.newFolder("export"));
+		File dest = new File(tmp.getRoot(), "all.zip");
+		int count = converter.exportSportSessions(export, dest, "gpx", true, ExportConverter.ARCHIVE_ZIP);
+		assertEquals(2, count);
+		assertTrue(dest.isFile());
+		assertEquals("No per-session file expected next to the archive", 0, tmp.getRoot().listFiles((d, n) -> n.startsWith("runtastic_")).length);
+
+		try (ZipFile zip = new ZipFile(dest)) {
+			List<String> names = new ArrayList<>();
+			Collections.list(zip.entries()).forEach(e -> names.add(e.getName()));
+			assertEquals(7, names.size());
+			assertTrue(names.contains(ZipExportWriter.INDEX_ENTRY));
+
+			String gpxName = names.stream().filter(n -> n.endsWith(SESSION_2018 + ".gpx")).findFirst().get();
+			byte[] gpx = IOUtils.toByteArray(zip.getInputStream(zip.getEntry(gpxName)));
+			assertTrue(new String(gpx, "UTF-8").contains("<trkseg>"));
+			ZipEntry gz = zip.getEntry(gpxName + ".gz");
+			assertEquals(ZipEntry.STORED, gz.getMethod());
+			try (InputStream is = new GZIPInputStream(zip.getInputStream(gz))) {
+				assertTrue(Arrays.equals(gpx, IOUtils.toByteArray(is)));
+			}
+			JsonNode meta = new ObjectMapper().readTree(zip.getInputStream(zip.getEntry(gpxName + ".meta")));
+			assertEquals("gpx.gz", meta.get("data_type").asText());
+			assertEquals(SESSION_2018, meta.get("external_id").asText());
+
+			JsonNode index = new ObjectMapper().readTree(zip.getInputStream(zip.getEntry(ZipExportWriter.INDEX_ENTRY)));
+			assertEquals(2, index.size());
+			assertEquals(SESSION_2018, index.get(0).get("id").asText());
+			assertEquals(3, index.get(0).get("files").size());
+		}
+	}
+
+	@Test
+	public void testZipExportWriterZip64() throws Exception {
+		// More entries than the 16-bit count of the end of central directory record
+		int count = 0x10000 + 10;
+		File zip = new File(tmp.getRoot(), "many.zip");
+		try (ZipExportWriter writer = new ZipExportWriter(zip.toPath(), new ObjectMapper())) {
+			for (int i = 0; i < count; i++) {
+				writer.write("entry-" + i + ".txt", ("content " + i).getBytes(StandardCharsets.UTF_8), i % 2 == 0);
+			}
+		}
+		ByteBuffer end = ByteBuffer.wrap(Files.readAllBytes(zip.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(0xFFFF, end.getShort((int) zip.length() - 12) & 0xFFFF);
+		try (ZipFile zipFile = new ZipFile(zip)) {
+			assertEquals(count + 1, zipFile.size());
+			ZipEntry last = zipFile.getEntry("entry-" + (count - 1) + ".txt");
+			assertEquals("content " + (count - 1), IOUtils.toString(zipFile.getInputStream(last), StandardCharsets.UTF_8));
+			assertNotNull(zipFile.getEntry(ZipExportWriter.INDEX_ENTRY));
+		}
+	}
+
+	@Test
+	public void testExportSportSessionsInSeveralFormats() throws Exception {
+		File export = createExport(tmp.newFolder("export"));
+		File dest = tmp.newFolder("dest");
+		ExportManifest manifest = converter.createManifest("convert");
+		assertEquals(2, converter.exportSportSessions(export, dest, "gpx, tcx,fit,auto", true, null, manifest));
+		assertEquals(2 * 3 * 3, dest.list().length);
+		for (ExportManifest.Entry entry : manifest.sessions) {
+			assertEquals(9, entry.files.size());
+			assertTrue(entry.files.get(0).endsWith(".gpx"));
+			assertTrue(entry.files.get(3).endsWith(".tcx"));
+			assertTrue(entry.files.get(6).endsWith(".fit"));
+			for (String name : entry.files)
+				assertTrue(name, new File(dest, name).isFile());
+			JsonNode meta = new ObjectMapper().readTree(new File(dest, entry.files.get(8)));
+			assertEquals("fit.gz", meta.get("data_type").asText());
+		}
+
+		File zip = new File(tmp.getRoot(), "all.zip");
+		converter.exportSportSessions(export, zip, "tcx,gpx", false, ExportConverter.ARCHIVE_ZIP);
+		try (ZipFile zipFile = new ZipFile(zip)) {
+			JsonNode index = new ObjectMapper().readTree(zipFile.getInputStream(zipFile.getEntry(ZipExportWriter.INDEX_ENTRY)));
+			assertEquals(2, index.size());
+			assertEquals(2, index.get(0).get("files").size());
+			assertEquals(5, zipFile.size());
+		}
+	}
+
+	@Test
+	public void testAutoFormatWithGpxSidecar() throws Exception {
+		File export = createExport(tmp.newFolder("export"));
+		File gpsDir = new File(export, ExportConverter.SPORT_SESSIONS_DIR + File.separator + SportSessionParser.GPS_DATA_DIR);
+		File converted = tmp.newFolder("converted");
+		converter.exportSportSessions(export, converted, "gpx", false);
+		File[] gpxFiles = converted.listFiles((dir, name) -> name.endsWith(SESSION_2019 + ".gpx"));
+		assertEquals(1, gpxFiles.length);
+		Files.copy(gpxFiles[0].toPath(), new File(gpsDir, SESSION_2019 + ".gpx").toPath());
+		assertTrue(new File(gpsDir, SESSION_2019 + ".json").delete());
+
+		File dest = tmp.newFolder("dest");
+		ExportManifest manifest = converter.createManifest("convert");
+		assertEquals(2, converter.exportSportSessions(export, dest, "auto", false, null, manifest));
+		for (ExportManifest.Entry entry : manifest.sessions) {
+			assertEquals(1, entry.files.size());
+			assertTrue(entry.files.get(0), entry.files.get(0).endsWith(".gpx"));
+		}
+		assertEquals(2, manifest.statistics.gpxSessions);
+		String gpx = new String(Files.readAllBytes(new File(dest, manifest.sessions.stream()
+			.filter(e -> SESSION_2019.equals(e.id)).findFirst().get().files.get(0)).toPath()), StandardCharsets.UTF_8);
+		assertTrue(gpx.contains("<trkpt"));
+	}
+
+	@Test
+	public void testExportSportSessionsToNdjson() throws Exception {
+		File export = createExport(tmp.newFolder("export"));
+		File dest = new File(tmp.getRoot(), "all.ndjson");
+		int count = converter.exportSportSessions(export, dest, ExportConverter.GEOJSON_FORMAT, false, ExportConverter.ARCHIVE_NDJSON);
+		assertEquals(2, count);
+
+		List<String> lines = Files.readAllLines(dest.toPath());
+		assertEquals(2, lines.size());
+		List<String> ids = new ArrayList<>();
+		for (String line : lines) {
+			JsonNode feature = new ObjectMapper().readTree(line);
+			assertEquals("Feature", feature.get("type").asText());
+			assertEquals("LineString", feature.get("geometry").get("type").asText());
+			assertTrue(feature.get("geometry").get("coordinates").size() > 100);
+			assertEquals(10110, feature.get("properties").get("distance").asInt());
+			ids.add(feature.get("id").asText());
+		}
+		List<String> expected = new ArrayList<>();
+		for (SportSessionFile file : converter.scanSportSessionFiles(export, null))
+			expected.add(file.getId());
+		assertEquals(expected, ids);
+	}
+
+	@Test
+	public void testExportSportSessionsToColumnar() throws Exception {
+		File export = createExport(tmp.newFolder("export"));
+		File dest = new File(tmp.getRoot(), "all.rtcol");
+		assertEquals(2, converter.exportSportSessions(export, dest, ExportConverter.ARCHIVE_COLUMNAR, false));
+
+		ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(dest.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		byte[] magic = new byte[8];
+		buf.get(magic);
+		assertTrue(Arrays.equals(ColumnarExportWriter.MAGIC, magic));
+		buf.position(buf.limit() - 8);
+		buf.get(magic);
+		assertTrue(Arrays.equals(ColumnarExportWriter.MAGIC, magic));
+		int footerLength = buf.getInt(buf.limit() - 12);
+		buf.position(buf.limit() - 12 - footerLength);
+
+		int columns = buf.getInt();
+		assertEquals(ColumnarExportWriter.COLUMNS.length, columns);
+		for (int c = 0; c < columns; c++) {
+			assertEquals(ColumnarExportWriter.TYPES[c], buf.get());
+			assertEquals(ColumnarExportWriter.COLUMNS[c], readString(buf));
+		}
+		List<String> ids = new ArrayList<>();
+		for (int i = buf.getInt(); i > 0; i--)
+			ids.add(readString(buf));
+		assertEquals(new HashSet<>(Arrays.asList(SESSION_2018, SESSION_2019)), new HashSet<>(ids));
+
+		SportSessionParser parser = new SportSessionParser();
+		SampleMerger merger = SampleMerger.of(parser.parseGpsData(getClass().getResourceAsStream("GpsData.json")), GpsData::getTimestamp,
+			parser.parseHeartRateData(getClass().getResourceAsStream("HeartRateData.json")), HeartRateData::getTimestamp);
+		int expectedRows = 0;
+		while (merger.next())
+			expectedRows++;
+
+		int rowGroups = buf.getInt();
+		assertEquals(2, rowGroups);
+		for (int g = 0; g < rowGroups; g++) {
+			int rows = buf.getInt();
+			assertEquals(expectedRows, rows);
+			int session = -1;
+			for (int c = 0; c < columns; c++) {
+				long offset = buf.getLong();
+				int length = buf.getInt();
+				boolean hasStats = buf.get() == 1;
+				long min = buf.getLong();
+				long max = buf.getLong();
+				assertTrue(hasStats);
+				if (c == 0) {
+					assertEquals(min, max);
+					session = (int) min;
+					assertEquals(session, buf.getInt((int) offset));
+				} else if (c == 1) {
+					// time chunk: ordered epoch millis matching its statistics (both sessions share the same samples)
+					assertEquals(rows * 8, length);
+					assertEquals(min, buf.getLong((int) offset));
+					assertEquals(max, buf.getLong((int) offset + length - 8));
+					assertEquals(merger.getTime(), max);
+				} else if (c == 2) {
+					double minLat = Double.longBitsToDouble(min);
+					double maxLat = Double.longBitsToDouble(max);
+					assertTrue(minLat > 50 && minLat < maxLat && maxLat < 51);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testNdjsonExportWriterCommitsInOrder() throws Exception {
+		File file = tmp.newFile("ordered.ndjson");
+		int lines = 200;
+		try (NdjsonExportWriter writer = new NdjsonExportWriter(file.toPath(), 8)) {
+			AtomicInteger cursor = new AtomicInteger();
+			List<Thread> threads = new ArrayList<>();
+			for (int t = 0; t < 6; t++) {
+				Thread thread = new Thread(() -> {
+					Random random = new Random();
+					int i;
+					while ((i = cursor.getAndIncrement()) < lines) {
+						try {
+							Thread.sleep(random.nextInt(3));
+							if (i % 10 == 3)
+								writer.release(i);
+							else
+								writer.write(i, (i + "\n").getBytes());
+						} catch (Exception ex) {
+							throw new RuntimeException(ex);
+						}
+					}
+				});
+				thread.start();
+				threads.add(thread);
+			}
+			for (Thread thread : threads)
+				thread.join();
+			assertEquals(lines - lines / 10, writer.getLines());
+		}
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < lines; i++) {
+			if (i % 10 != 3)
+				expected.add(Integer.toString(i));
+		}
+		assertEquals(expected, Files.readAllLines(file.toPath()));
+	}
+
+	@Test
+	public void testExportSportSessionsToZipPerYear() throws Exception {
+		File export = createExport(tmp.newFolder("export"));
+		File dest = tmp.newFolder("dest");
+		converter.exportSportSessions(export, dest, "tcx", false, ExportConverter.ARCHIVE_ZIP_PER_YEAR);
+		String[] files = dest.list();
+		assertNotNull(files);
+		assertEquals(2, files.length);
+		for (String year : new String[] { "2018", "2019" }) {
+			try (ZipFile zip = new ZipFile(new File(dest, "runtastic_" + year + ".zip"))) {
+				assertEquals(2, zip.size());
+				assertFalse(zip.stream().anyMatch(e -> e.getName().endsWith(".meta")));
+			}
+		}
+	}
+
+	@Test
+	public void testShardedExportAndMergeManifests() throws Exception {
+		File export = createExport(tmp.newFolder("export"));
+		File dest = tmp.newFolder("dest");
+		int total = 0;
+		for (int k = 1; k <= 3; k++) {
+			ExportConverter shardConverter = new ExportConverter();
+			shardConverter.shard = new ShardSpec(k, 3);
+			ExportManifest manifest = shardConverter.createManifest("convert");
+			total += shardConverter.exportSportSessions(export, dest, "tcx", false, null, manifest);
+			for (ExportManifest.Entry entry : manifest.sessions)
+				assertEquals(k, ShardSpec.shardOf(entry.id, 3));
+			shardConverter.writeManifest(manifest, dest);
+			if (k == 1) {
+				try {
+					converter.mergeManifests(dest);
+					fail("Incomplete shards must not be merged");
+				} catch (IllegalStateException ex) {
+					assertTrue(ex.getMessage().contains("2/3"));
+				}
+			}
+		}
+		assertEquals(2, total);
+
+		List<ExportManifest> merged = converter.mergeManifests(dest);
+		assertEquals(1, merged.size());
+		assertEquals(2, merged.get(0).sessions.size());
+		assertEquals(2, merged.get(0).statistics.sessions);
+		assertEquals(3, merged.get(0).shards.size());
+		assertEquals(2 * 10110, merged.get(0).statistics.totalDistance);
+		assertFalse(merged.get(0).statistics.overlapSkipped);
+
+		// Sharded 'check' statistics do not count overlapping sessions, and say so once merged
+		ExportManifest.Statistics shardStatistics = new ExportManifest.Statistics();
+		shardStatistics.overlapSkipped = true;
+		merged.get(0).statistics.merge(shardStatistics);
+		assertTrue(merged.get(0).statistics.overlapSkipped);
+	}
+
+	@Test
+	public void testScanSportSessionFilesLargestFirst() throws Exception {
+		File export = createExport(tmp.newFolder("export"));
+		File gps = new File(export, ExportConverter.SPORT_SESSIONS_DIR + File.separator + SportSessionParser.GPS_DATA_DIR + File.separator + SESSION_2019 + ".json");
+		Files.write(gps.toPath(), "[]".getBytes());
+		List<SportSessionFile> files = converter.scanSportSessionFiles(export, null);
+		assertEquals(2, files.size());
+		assertEquals(SESSION_2018, files.get(0).getId());
+		assertTrue(files.get(0).getSize() > files.get(1).getSize() + 100000);
+
+		List<Long> order = LargestFirstScheduler.map(Arrays.asList(3L, 10L, 1L, 7L), Long::longValue, w -> w == 1L ? null : w);
+		assertEquals(Arrays.asList(10L, 7L, 3L), order);
+	}
+
+	@Test
+	public void testShardSpec() {
+		ShardSpec spec = ShardSpec.parse("2/4");
+		assertEquals(2, spec.getIndex());
+		assertEquals(4, spec.getCount());
+		int[] counts = new int[4];
+		for (int i = 0; i < 4000; i++) {
+			String id = UUID.nameUUIDFromBytes(Integer.toString(i).getBytes()).toString();
+			int shard = ShardSpec.shardOf(id, 4);
+			assertEquals(shard, ShardSpec.shardOf(id, 4));
+			assertEquals(shard == 2, spec.accepts(id));
+			counts[shard - 1]++;
+		}
+		for (int count : counts)
+			assertTrue("Unbalanced shards " + Arrays.toString(counts), count > 800);
+	}
+
+	@Test
+	public void testExportSportSessionFromTrackpointCursor() throws Exception {
+		File export = createExport(tmp.newFolder("export"));
+		File file = new File(new File(export, ExportConverter.SPORT_SESSIONS_DIR), SESSION_2018 + ".json");
+		SportSession session = converter.parser.parseSportSession(file, true);
+		for (String format : new String[] { "gpx", "tcx" }) {
+			File dest = new File(tmp.getRoot(), "streamed." + format);
+			converter.exportSportSession(export, SESSION_2018, dest, format);
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			new DelegatingSportSessionMapper().mapSportSession(session, format, expected);
+			assertEquals(format, expected.toString("UTF-8"), new String(Files.readAllBytes(dest.toPath()), StandardCharsets.UTF_8));
+		}
+	}
+
+	@Test
+	public void testExportSportSessionWithUnorderedSamples() throws Exception {
+		File export = createExport(tmp.newFolder("export"));
+		File gpsFile = new File(new File(export, ExportConverter.SPORT_SESSIONS_DIR), SportSessionParser.GPS_DATA_DIR + File.separator + SESSION_2018 + ".json");
+		ObjectMapper mapper = new ObjectMapper();
+		ArrayNode gpsData = (ArrayNode) mapper.readTree(gpsFile);
+		((ObjectNode) gpsData.get(5)).set("timestamp", gpsData.get(4).get("timestamp"));
+		((ObjectNode) gpsData.get(41)).set("timestamp", gpsData.get(40).get("timestamp"));
+		gpsData.insert(40 + SampleMerger.MAX_DISPLACEMENT * 4, gpsData.remove(40));
+		gpsData.insert(300, gpsData.remove(100));
+		mapper.writeValue(gpsFile, gpsData);
+
+		File all = tmp.newFolder("all");
+		for (String format : new String[] { "gpx", "tcx" }) {
+			converter.exportSportSessions(export, all, format, false);
+			File[] expected = all.listFiles((dir, name) -> name.endsWith(SESSION_2018 + "." + format));
+			assertEquals(1, expected.length);
+			File dest = new File(tmp.getRoot(), "single." + format);
+			converter.exportSportSession(export, SESSION_2018, dest, format);
+			assertEquals(format, new String(Files.readAllBytes(expected[0].toPath()), StandardCharsets.UTF_8),
+				new String(Files.readAllBytes(dest.toPath()), StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Build a minimal Runtastic export directory with two sessions (2018 and 2019) sharing the same samples.
+	 */
+	static File createExport(File root) throws Exception {
+		File sessions = new File(root, ExportConverter.SPORT_SESSIONS_DIR);
+		new File(sessions, SportSessionParser.GPS_DATA_DIR).mkdirs();
+		new File(sessions, SportSessionParser.HEARTRATE_DATA_DIR).mkdirs();
+		new File(root, ExportConverter.PHOTOS_META_DATA_DIR).mkdirs();
+		new File(root, ExportConverter.SHOES_DIR).mkdirs();
+		copy("user.json", new File(root, ExportConverter.USER_DIR + File.separator + "user.json"));
+		copy("Shoe.json", new File(root, ExportConverter.SHOES_DIR + File.separator + "shoe.json"));
+
+		ObjectMapper mapper = new ObjectMapper();
+		for (String id : new String[] { SESSION_2018, SESSION_2019 }) {
+			ObjectNode session = (ObjectNode) mapper.readTree(TestExportSportSessions.class.getResourceAsStream("SportSession.json"));
+			if (SESSION_2019.equals(id)) {
+				long shift = 365L * 24 * 3600 * 1000;
+				session.put("id", id);
+				session.put("start_time", session.get("start_time").asLong() + shift);
+				session.put("end_time", session.get("end_time").asLong() + shift);
+			}
+			mapper.writeValue(new File(sessions, id + ".json"), session);
+			copy("GpsData.json", new File(sessions, SportSessionParser.GPS_DATA_DIR + File.separator + id + ".json"));
+			copy("HeartRateData.json", new File(sessions, SportSessionParser.HEARTRATE_DATA_DIR + File.separator + id + ".json"));
+		}
+		return root;
+	}
+
+	private static String readString(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.getShort()];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void copy(String resource, File dest) throws Exception {
+		try (InputStream is = TestExportSportSessions.class.getResourceAsStream(resource)) {
+			Files.copy(is, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+}
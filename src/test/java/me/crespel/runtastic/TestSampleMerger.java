@@ -0,0 +1,216 @@
+package me.crespel.runtastic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Test;
+
+import me.crespel.runtastic.mapper.MergingTrackpointCursor;
+import me.crespel.runtastic.mapper.SampleMerger;
+import me.crespel.runtastic.mapper.SampleOrderException;
+import me.crespel.runtastic.mapper.TcxSportSessionMapper;
+import me.crespel.runtastic.mapper.TrackpointCursor;
+import me.crespel.runtastic.model.GpsData;
+import me.crespel.runtastic.model.HeartRateData;
+import me.crespel.runtastic.model.SportSession;
+import me.crespel.runtastic.parser.SportSessionParser;
+
+/**
+ * SampleMerger tests, with a merge benchmark on a long session.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class TestSampleMerger {
+
+	@Test
+	public void testMergeJoinsEqualTimestamps() {
+		SampleMerger merger = new SampleMerger(new long[] { 0, 1000, 2000 }, new long[] { 1000, 1500, 2000, 2000, 3000 });
+		assertEquals("0:A0 1000:A1B0 1500:B1 2000:A2B2B3 3000:B4", drain(merger));
+	}
+
+	@Test
+	public void testMergeToleratesSlightDisorder() {
+		SampleMerger merger = new SampleMerger(new long[] { 0, 2000, 1000, 3000 }, new long[] { 500, 1000, 400 });
+		assertEquals("0:A0 400:B2 500:B0 1000:A2B1 2000:A1 3000:A3", drain(merger));
+	}
+
+	@Test
+	public void testMergeFallsBackToSort() {
+		long[] times = new long[100];
+		for (int i = 0; i < times.length; i++) {
+			times[i] = (times.length - i) * 1000L;
+		}
+		SampleMerger merger = new SampleMerger(times, new long[0]);
+		long previous = Long.MIN_VALUE;
+		int count = 0;
+		while (merger.next()) {
+			assertTrue(merger.getTime() > previous);
+			assertEquals(times.length - 1 - count, merger.indexA(0));
+			previous = merger.getTime();
+			count++;
+		}
+		assertEquals(times.length, count);
+	}
+
+	@Test
+	public void testMergeEmpty() {
+		assertFalse(new SampleMerger(new long[0], SampleMerger.times(null, GpsData::getTimestamp)).next());
+	}
+
+	@Test
+	public void testStreamingCursorMatchesMerger() throws Exception {
+		List<GpsData> gpsData = new ArrayList<>();
+		List<HeartRateData> heartRateData = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			GpsData gps = new GpsData();
+			gps.setTimestamp(new Date(i * 1000L));
+			gps.setDistance(i);
+			gpsData.add(gps);
+			HeartRateData hr = new HeartRateData();
+			hr.setTimestamp(new Date(i * 1000L + (i % 3 == 0 ? 0 : 500)));
+			hr.setHeartRate(100 + i);
+			heartRateData.add(hr);
+		}
+		Collections.swap(gpsData, 10, 10 + SampleMerger.MAX_DISPLACEMENT);
+		Collections.swap(heartRateData, 50, 53);
+
+		try (TrackpointCursor expected = TrackpointCursor.of(gpsData, heartRateData);
+			TrackpointCursor actual = new MergingTrackpointCursor(gpsData.iterator(), heartRateData.iterator())) {
+			int count = 0;
+			while (expected.next()) {
+				assertTrue(actual.next());
+				assertEquals(expected.current().getTime(), actual.current().getTime());
+				assertEquals(expected.current().getDistance(), actual.current().getDistance());
+				assertEquals(expected.current().getHeartRate(), actual.current().getHeartRate());
+				count++;
+			}
+			assertFalse(actual.next());
+			assertTrue(count > gpsData.size());
+		}
+	}
+
+	@Test
+	public void testStreamingCursorRejectsDisplacedSamples() throws Exception {
+		List<GpsData> gpsData = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			GpsData gps = new GpsData();
+			gps.setTimestamp(new Date(i * 1000L));
+			gpsData.add(gps);
+		}
+		Collections.swap(gpsData, 10, 11 + SampleMerger.MAX_DISPLACEMENT);
+
+		try (TrackpointCursor cursor = new MergingTrackpointCursor(gpsData.iterator(), null)) {
+			while (cursor.next()) {
+				assertTrue(cursor.current().getTime() != 10000L);
+			}
+			fail("Displaced sample not detected");
+		} catch (SampleOrderException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Compare the linear merge with the previous concatenate and sort approach, on a 10-hour session with 1 Hz GPS and heart-rate samples
+	 * (slightly jittered), then time the JAXB and streaming TCX mappers on it.
+	 */
+	@Test
+	public void benchmarkLongSession() throws Exception {
+		SportSession session = new SportSessionParser().parseSportSession(getClass().getResourceAsStream("SportSession.json"));
+		long start = session.getStartTime().getTime();
+		List<GpsData> gpsData = new ArrayList<>();
+		List<HeartRateData> heartRateData = new ArrayList<>();
+		Random random = new Random(42);
+		for (int i = 0; i < 10 * 3600; i++) {
+			GpsData gps = new GpsData();
+			gps.setTimestamp(new Date(start + i * 1000L));
+			gps.setLatitude(new BigDecimal(50 + i / 1e5));
+			gps.setLongitude(new BigDecimal(3 + i / 1e5));
+			gps.setAltitude(new BigDecimal(36));
+			gps.setDistance(i * 3);
+			gpsData.add(gps);
+			HeartRateData hr = new HeartRateData();
+			hr.setTimestamp(new Date(start + i * 1000L + (random.nextInt(4) == 0 ? 0 : 500)));
+			hr.setHeartRate(120 + random.nextInt(60));
+			hr.setDistance(i * 3);
+			heartRateData.add(hr);
+		}
+		Collections.swap(heartRateData, 1000, 1003);
+		session.setGpsData(gpsData);
+		session.setHeartRateData(heartRateData);
+
+		DatatypeFactory dtf = DatatypeFactory.newInstance();
+		List<XMLGregorianCalendar> times = new ArrayList<>();
+		for (GpsData gps : gpsData) {
+			times.add(toCalendar(dtf, gps.getTimestamp()));
+		}
+		for (HeartRateData hr : heartRateData) {
+			times.add(toCalendar(dtf, hr.getTimestamp()));
+		}
+
+		long sortNanos = Long.MAX_VALUE, mergeNanos = Long.MAX_VALUE;
+		int groups = 0;
+		for (int run = 0; run < 5; run++) {
+			List<XMLGregorianCalendar> copy = new ArrayList<>(times);
+			long t0 = System.nanoTime();
+			Collections.sort(copy, XMLGregorianCalendar::compare);
+			sortNanos = Math.min(sortNanos, System.nanoTime() - t0);
+
+			t0 = System.nanoTime();
+			SampleMerger merger = SampleMerger.of(gpsData, GpsData::getTimestamp, heartRateData, HeartRateData::getTimestamp);
+			groups = 0;
+			while (merger.next()) {
+				groups++;
+			}
+			mergeNanos = Math.min(mergeNanos, System.nanoTime() - t0);
+		}
+		assertTrue(groups > gpsData.size() && groups < gpsData.size() + heartRateData.size());
+
+		TcxSportSessionMapper mapper = new TcxSportSessionMapper();
+		long t0 = System.nanoTime();
+		assertEquals(groups, mapper.mapSportSession(session, "tcx").getActivities().getActivity().get(0).getLap().get(0).getTrack().get(0).getTrackpoint().size());
+		long jaxbNanos = System.nanoTime() - t0;
+		t0 = System.nanoTime();
+		try (OutputStream os = new NullOutputStream()) {
+			mapper.mapSportSession(session, "tcx", os);
+		}
+		long streamNanos = System.nanoTime() - t0;
+
+		System.out.println(String.format("Merge of %d + %d samples: sort %.1f ms, linear merge %.1f ms; TCX mapping: JAXB objects %.1f ms, streamed %.1f ms",
+			gpsData.size(), heartRateData.size(), sortNanos / 1e6, mergeNanos / 1e6, jaxbNanos / 1e6, streamNanos / 1e6));
+	}
+
+	private static String drain(SampleMerger merger) {
+		StringBuilder sb = new StringBuilder();
+		while (merger.next()) {
+			sb.append(sb.length() > 0 ? " " : "").append(merger.getTime()).append(':');
+			for (int i = 0; i < merger.countA(); i++) {
+				sb.append('A').append(merger.indexA(i));
+			}
+			for (int i = 0; i < merger.countB(); i++) {
+				sb.append('B').append(merger.indexB(i));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static XMLGregorianCalendar toCalendar(DatatypeFactory dtf, Date date) {
+		GregorianCalendar cal = new GregorianCalendar();
+		cal.setTime(date);
+		return dtf.newXMLGregorianCalendar(cal);
+	}
+
+}
@@ -1,9 +1,60 @@
 package me.crespel.runtastic;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+import javax.xml.datatype.DatatypeFactory;
+
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.garmin.xmlschemas.trainingcenterdatabase.v2.TrackpointT;
+import com.garmin.xmlschemas.trainingcenterdatabase.v2.TrainingCenterDatabaseT;
+import com.topografix.gpx._1._1.GpxType;
+import com.topografix.gpx._1._1.ObjectFactory;
+import com.topografix.gpx._1._1.TrkType;
+import com.topografix.gpx._1._1.TrksegType;
+import com.topografix.gpx._1._1.WptType;
 
 import me.crespel.runtastic.mapper.DelegatingSportSessionMapper;
+import me.crespel.runtastic.mapper.FitStreamWriter;
+import me.crespel.runtastic.mapper.GpxSportSessionMapper;
+import me.crespel.runtastic.mapper.RawGpxReader;
+import me.crespel.runtastic.mapper.SampleMerger;
 import me.crespel.runtastic.mapper.SportSessionMapper;
+import me.crespel.runtastic.mapper.TcxSportSessionMapper;
+import me.crespel.runtastic.mapper.TimestampFormatter;
+import me.crespel.runtastic.mapper.TrackSimplifier;
+import me.crespel.runtastic.model.GpsData;
+import me.crespel.runtastic.model.HeartRateData;
+import me.crespel.runtastic.model.ImageMetaData;
+import me.crespel.runtastic.model.RawGpxTrack;
 import me.crespel.runtastic.model.SportSession;
 import me.crespel.runtastic.parser.SportSessionParser;
 
@@ -13,6 +64,9 @@ import me.crespel.runtastic.parser.SportSessionParser;
  */
 public class TestSportSessionMapper {
 
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
 	private final SportSessionParser parser = new SportSessionParser();
 	private final SportSessionMapper<?> mapper = new DelegatingSportSessionMapper();
 
@@ -32,4 +86,350 @@ public class TestSportSessionMapper {
 		mapper.mapSportSession(sportSession, "gpx", System.out);
 	}
 
+	@Test
+	public void testStreamedGpxMatchesJaxb() throws Exception {
+		for (int variant = 0; variant < 5; variant++) {
+			String expected = marshalGpx(createGpxSession(variant));
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			assertNull(mapper.mapSportSession(createGpxSession(variant), "gpx", bos));
+			assertEquals("Variant " + variant, expected, bos.toString("UTF-8"));
+		}
+	}
+
+	@Test
+	public void testMappingKeepsOnlyBounds() throws Exception {
+		SportSession session = createGpxSession(0);
+		GpxType gpx = new GpxSportSessionMapper().mapSportSession(session, "gpx");
+		assertNull(session.getGpx());
+		assertNotNull(session.getBounds());
+		assertSame(gpx.getMetadata().getBounds(), session.getBounds());
+		assertEquals(marshalGpx(createGpxSession(0)), marshalGpx(session));
+	}
+
+	@Test
+	public void testRawGpxMatchesUnmarshalled() throws Exception {
+		SportSession session = createGpxSession(3);
+		File file = tmp.newFile("source.gpx");
+		Marshaller m = JAXBContext.newInstance(GpxType.class).createMarshaller();
+		m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+		m.marshal(new ObjectFactory().createGpx(session.getGpx()), file);
+		RawGpxTrack raw = RawGpxReader.scan(file);
+		assertEquals(20, raw.getPoints());
+		assertEquals(new GpxSportSessionMapper().mapSportSession(createGpxSession(3), "gpx").getMetadata().getBounds().getMaxlat(), raw.getBounds().getMaxlat());
+
+		String expected = stream(session);
+		session.setGpx(null);
+		session.setRawGpx(raw);
+		assertEquals(expected, stream(session));
+		assertEquals(expected, marshalGpx(session));
+
+		// overlap and compound members referencing their source file
+		SportSession member = createGpxSession(3);
+		SportSession cluster = createGpxSession(0);
+		cluster.setOverlapSessions(Collections.singletonList(member));
+		cluster.setCompoundSessions(Collections.singletonList(member));
+		expected = stream(cluster);
+		member.setGpx(null);
+		member.setRawGpx(raw);
+		assertEquals(expected, stream(cluster));
+	}
+
+	@Test
+	public void testRawGpxInvalidValues() throws Exception {
+		String gpx = "<gpx xmlns=\"http://www.topografix.com/GPX/1/1\" version=\"1.1\"><trk><trkseg>"
+			+ "<trkpt lat=\"48.1\" lon=\"11.5\"><ele></ele></trkpt>"
+			+ "<trkpt lat=\"48.2\" lon=\"11.6\"><ele>n/a</ele><time>2020-05-01T10:00:00Z</time></trkpt>"
+			+ "%s</trkseg></trk></gpx>";
+		File file = tmp.newFile("invalid.gpx");
+		Files.write(file.toPath(), String.format(gpx, "").getBytes(StandardCharsets.UTF_8));
+		List<BigDecimal> elevations = new ArrayList<>();
+		RawGpxReader.forEachTrackpoint(file, (lat, lon, ele, time) -> elevations.add(ele));
+		assertEquals(Arrays.asList(null, null), elevations);
+		assertEquals(2, RawGpxReader.scan(file).getPoints());
+
+		Files.write(file.toPath(), String.format(gpx, "<trkpt lat=\"\" lon=\"11.7\"/>").getBytes(StandardCharsets.UTF_8));
+		try {
+			RawGpxReader.scan(file);
+			fail("Invalid latitude accepted");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(file.getName()));
+		}
+	}
+
+	@Test
+	public void testStreamedTcxMatchesJaxb() throws Exception {
+		for (int variant = 0; variant < 4; variant++) {
+			String expected = marshalTcx(createTcxSession(variant));
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			assertNull(mapper.mapSportSession(createTcxSession(variant), "tcx", bos));
+			assertEquals("Variant " + variant, expected, bos.toString("UTF-8"));
+		}
+	}
+
+	@Test
+	public void testTimestampFormatter() throws Exception {
+		DateTimeFormatter iso = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+		DatatypeFactory dtf = DatatypeFactory.newInstance();
+		TimestampFormatter formatter = new TimestampFormatter();
+		Random random = new Random(42);
+		long millis = Instant.parse("2016-02-28T23:59:58.250Z").toEpochMilli();
+		for (int i = 0; i < 20000; i++) {
+			millis = i % 1000 == 0 ? random.nextLong() % 4000000000000L : millis + random.nextInt(3000);
+			String expected = iso.format(Instant.ofEpochMilli(millis));
+			assertEquals(expected, new String(formatter.format(millis), 0, TimestampFormatter.LENGTH));
+			assertEquals(expected, formatter.toXMLGregorianCalendar(dtf, millis).toXMLFormat());
+		}
+	}
+
+	@Test
+	public void testTrackSimplifier() throws Exception {
+		// straight line with 1 m of noise, then a 20 m zigzag
+		double[] lat = new double[200];
+		double[] lon = new double[200];
+		for (int i = 0; i < lat.length; i++) {
+			lat[i] = 50 + i * 1e-4;
+			lon[i] = 3 + (i % 2) * (i < 100 ? 1e-5 : 3e-4);
+		}
+		int[] retained = TrackSimplifier.simplify(lat, lon, 5);
+		assertEquals(0, retained[0]);
+		assertEquals(100, retained[1]);
+		assertEquals(199, retained[retained.length - 1]);
+		assertEquals(101, retained.length);
+		assertEquals(lat.length, TrackSimplifier.simplify(lat, lon, 0).length);
+
+		List<GpsData> gpsData = parser.parseGpsData(getClass().getResourceAsStream("GpsData.json"));
+		List<GpsData> simplified = TrackSimplifier.simplify(gpsData, 5);
+		assertTrue(simplified.size() > 2 && simplified.size() < gpsData.size() / 2);
+		assertTrue(gpsData.get(0) == simplified.get(0) && gpsData.get(gpsData.size() - 1) == simplified.get(simplified.size() - 1));
+	}
+
+	@Test
+	public void testSimplifiedTcxKeepsHeartRate() throws Exception {
+		TcxSportSessionMapper tcxMapper = new TcxSportSessionMapper();
+		tcxMapper.setSimplifyTolerance(5);
+		SportSession session = createTcxSession(0);
+		TrainingCenterDatabaseT tcx = tcxMapper.mapSportSession(session, "tcx");
+		List<TrackpointT> trackpoints = tcx.getActivities().getActivity().get(0).getLap().get(0).getTrack().get(0).getTrackpoint();
+		assertEquals(TrackSimplifier.simplify(session.getGpsData(), 5).size(), trackpoints.size());
+		for (TrackpointT trackpoint : trackpoints) {
+			assertNotNull(trackpoint.getTime());
+			assertNotNull(trackpoint.getAltitudeMeters());
+			assertNotNull(trackpoint.getHeartRateBpm());
+		}
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		Marshaller m = JAXBContext.newInstance(TrainingCenterDatabaseT.class).createMarshaller();
+		m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+		m.marshal(new com.garmin.xmlschemas.trainingcenterdatabase.v2.ObjectFactory().createTrainingCenterDatabase(tcx), expected);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		tcxMapper.mapSportSession(session, "tcx", bos);
+		assertEquals(expected.toString("UTF-8"), bos.toString("UTF-8"));
+	}
+
+	@Test
+	public void testMapSportSessionToFIT() throws Exception {
+		for (int variant = 0; variant < 4; variant++) {
+			SportSession session = createTcxSession(variant);
+			byte[] fit = (byte[]) mapper.mapSportSession(session, "fit");
+			ByteBuffer buf = ByteBuffer.wrap(fit).order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals(14, buf.get(0));
+			assertEquals(fit.length - 16, buf.getInt(4));
+			assertEquals(".FIT", new String(fit, 8, 4, "US-ASCII"));
+			assertEquals(crc(fit, 0, 12), buf.getShort(12) & 0xFFFF);
+			assertEquals(0, crc(fit, 0, fit.length));
+
+			// walk messages, keeping the size of each local definition
+			int[] sizes = new int[16];
+			int[] globals = new int[16];
+			int records = 0;
+			Integer firstLatitude = null;
+			int pos = 14;
+			while (pos < fit.length - 2) {
+				int header = fit[pos++] & 0xFF;
+				int local = header & 0x0F;
+				if ((header & 0x40) != 0) {
+					globals[local] = buf.getShort(pos + 2) & 0xFFFF;
+					int fields = fit[pos + 4] & 0xFF;
+					sizes[local] = 0;
+					for (int i = 0; i < fields; i++) {
+						sizes[local] += fit[pos + 5 + i * 3 + 1] & 0xFF;
+					}
+					pos += 5 + fields * 3;
+				} else {
+					if (globals[local] == 20) {
+						if (records++ == 0) {
+							firstLatitude = buf.getInt(pos + 4);
+						}
+					}
+					pos += sizes[local];
+				}
+			}
+			assertEquals(fit.length - 2, pos);
+
+			SampleMerger merger = SampleMerger.of(session.getGpsData(), GpsData::getTimestamp, session.getHeartRateData(), HeartRateData::getTimestamp);
+			int groups = 0;
+			while (merger.next()) {
+				groups++;
+			}
+			assertEquals(groups, records);
+			if (variant == 0) {
+				GpsData first = session.getGpsData().get(0);
+				assertEquals(Math.round(first.getLatitude().doubleValue() * Math.pow(2, 31) / 180), firstLatitude.longValue());
+			}
+
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			assertNull(mapper.mapSportSession(session, "fit", bos));
+			assertTrue(Arrays.equals(fit, bos.toByteArray()));
+		}
+	}
+
+	@Test
+	public void testMapSportSessionToGeoJSON() throws Exception {
+		SportSession session = createTcxSession(0);
+		JsonNode feature = new ObjectMapper().readTree((byte[]) mapper.mapSportSession(session, "geojson"));
+		assertEquals("Feature", feature.get("type").asText());
+		assertEquals(session.getId(), feature.get("id").asText());
+		JsonNode coordinates = feature.get("geometry").get("coordinates");
+		assertEquals(session.getGpsData().size(), coordinates.size());
+		GpsData first = session.getGpsData().get(0);
+		assertEquals(first.getLongitude(), coordinates.get(0).get(0).decimalValue());
+		assertEquals(first.getLatitude(), coordinates.get(0).get(1).decimalValue());
+		JsonNode properties = feature.get("properties");
+		assertEquals("Run", properties.get("sport").asText());
+		assertEquals(DateTimeFormatter.ISO_INSTANT.format(session.getStartTime().toInstant()), properties.get("startTime").asText().replace(".000Z", "Z"));
+		assertEquals(session.getDistance().intValue(), properties.get("distance").asInt());
+		assertEquals(session.getPulseMax().intValue(), properties.get("heartRateMax").asInt());
+
+		feature = new ObjectMapper().readTree((byte[]) mapper.mapSportSession(createTcxSession(2), "geojson"));
+		assertTrue(feature.get("geometry").isNull());
+	}
+
+	private SportSession createTcxSession(int variant) throws Exception {
+		SportSession session = parser.parseSportSession(getClass().getResourceAsStream("SportSession.json"));
+		List<GpsData> gpsData = parser.parseGpsData(getClass().getResourceAsStream("GpsData.json"));
+		List<HeartRateData> heartRateData = parser.parseHeartRateData(getClass().getResourceAsStream("HeartRateData.json"));
+		switch (variant) {
+		case 0:
+			session.setGpsData(gpsData);
+			session.setHeartRateData(heartRateData);
+			break;
+		case 1:
+			// heart-rate only, biking
+			session.setHeartRateData(heartRateData);
+			session.setPulseAvg(null);
+			session.setSportTypeId("3");
+			break;
+		case 2:
+			// no samples
+			session.setPulseAvg(null);
+			session.setMaxSpeed(null);
+			break;
+		default:
+			// out of order heart-rate samples, duplicate GPS timestamps
+			gpsData = new ArrayList<>(gpsData.subList(0, 50));
+			gpsData.add(10, gpsData.get(10));
+			heartRateData = new ArrayList<>(heartRateData.subList(0, 80));
+			Collections.reverse(heartRateData);
+			session.setGpsData(gpsData);
+			session.setHeartRateData(heartRateData);
+			break;
+		}
+		return session;
+	}
+
+	private static int crc(byte[] data, int offset, int length) {
+		int crc = 0;
+		for (int i = offset; i < offset + length; i++) {
+			crc = FitStreamWriter.crc(crc, data[i] & 0xFF);
+		}
+		return crc;
+	}
+
+	private static String marshalTcx(SportSession session) throws Exception {
+		TrainingCenterDatabaseT tcx = new TcxSportSessionMapper().mapSportSession(session, "tcx");
+		Marshaller m = JAXBContext.newInstance(TrainingCenterDatabaseT.class).createMarshaller();
+		m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		m.marshal(new com.garmin.xmlschemas.trainingcenterdatabase.v2.ObjectFactory().createTrainingCenterDatabase(tcx), bos);
+		return bos.toString("UTF-8");
+	}
+
+	private SportSession createGpxSession(int variant) throws Exception {
+		SportSession session = parser.parseSportSession(getClass().getResourceAsStream("SportSession.json"));
+		List<GpsData> gpsData = parser.parseGpsData(getClass().getResourceAsStream("GpsData.json"));
+		switch (variant) {
+		case 0:
+			session.setGpsData(gpsData);
+			break;
+		case 1:
+			// user, photos and special characters
+			session.setGpsData(gpsData.subList(0, 10));
+			session.setNotes("Run <fast> & \"far\"");
+			session.setUser(parser.parseUser(getClass().getResourceAsStream("user.json")));
+			ImageMetaData image = parser.parseImagesMetaData(getClass().getResourceAsStream("ImagesMetaData.json"));
+			ImageMetaData noLocation = new ImageMetaData();
+			noLocation.setId("42");
+			session.setImages(new ArrayList<>(Arrays.asList(image, noLocation)));
+			break;
+		case 2:
+			// no samples, unknown sport type
+			session.setNotes(null);
+			session.setSportTypeId("2");
+			break;
+		case 3:
+			// GPX sidecar data, unknown sport type
+			session.setGpx(toGpx(gpsData.subList(0, 20)));
+			session.setSportTypeId("2");
+			break;
+		default:
+			// overlap and compound sessions
+			session.setGpsData(gpsData.subList(0, 5));
+			SportSession other = parser.parseSportSession(getClass().getResourceAsStream("SportSession.json"));
+			other.setId("other");
+			other.setGpsData(gpsData.subList(5, 15));
+			other.setImages(new ArrayList<>(Arrays.asList(parser.parseImagesMetaData(getClass().getResourceAsStream("ImagesMetaData2.json")))));
+			new GpxSportSessionMapper().mapSportSession(other, "gpx");
+			session.setOverlapSessions(new ArrayList<>(Arrays.asList(other)));
+			session.setCompoundSessions(new ArrayList<>(Arrays.asList(other, other)));
+			session.setInnerBound(other.getBounds());
+			session.setOuterBound(other.getBounds());
+			break;
+		}
+		return session;
+	}
+
+	private static GpxType toGpx(List<GpsData> gpsData) throws Exception {
+		DatatypeFactory dtf = DatatypeFactory.newInstance();
+		TrksegType trkseg = new TrksegType();
+		for (GpsData gps : gpsData) {
+			WptType wpt = new WptType();
+			wpt.setLat(gps.getLatitude());
+			wpt.setLon(gps.getLongitude());
+			wpt.setEle(gps.getAltitude());
+			wpt.setTime(dtf.newXMLGregorianCalendar("2020-05-01T10:00:00Z"));
+			trkseg.getTrkpt().add(wpt);
+		}
+		TrkType trk = new TrkType();
+		trk.getTrkseg().add(trkseg);
+		trk.getTrkseg().add(new TrksegType());
+		GpxType gpx = new GpxType();
+		gpx.getTrk().add(trk);
+		return gpx;
+	}
+
+	private String stream(SportSession session) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		mapper.mapSportSession(session, "gpx", bos);
+		return bos.toString("UTF-8");
+	}
+
+	private static String marshalGpx(SportSession session) throws Exception {
+		GpxType gpx = new GpxSportSessionMapper().mapSportSession(session, "gpx");
+		Marshaller m = JAXBContext.newInstance(GpxType.class).createMarshaller();
+		m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		m.marshal(new ObjectFactory().createGpx(gpx), bos);
+		return bos.toString("UTF-8");
+	}
+
 }
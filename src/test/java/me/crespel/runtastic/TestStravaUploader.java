@@ -0,0 +1,656 @@
+package me.crespel.runtastic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import me.crespel.strava.StravaActivityIndex;
+import me.crespel.strava.StravaRateLimiter;
+import me.crespel.strava.StravaTokenManager;
+import me.crespel.strava.StravaUploadPoller;
+import me.crespel.strava.StravaUploader;
+import me.crespel.strava.UploadJournal;
+import me.crespel.strava.model.AccessTokenResponse;
+import me.crespel.strava.model.ExportMetadata;
+import me.crespel.strava.model.RateLimitState;
+import me.crespel.strava.model.UploadJournalEntry;
+import me.crespel.strava.model.UploadJournalEntry.State;
+import me.crespel.strava.model.UploadResponse;
+import okhttp3.OkHttpClient;
+
+/**
+ * Strava uploader tests.
+ * @author Fabien CRESPEL (fabien@crespel.net)
+ */
+public class TestStravaUploader {
+
+	private static final Instant START = Instant.parse("2024-03-10T10:02:00Z");
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void testRateLimiterShortTermWindow() throws Exception {
+		MutableClock clock = new MutableClock(START);
+		StravaRateLimiter limiter = new StravaRateLimiter(clock, 3, 10);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, limiter.tryAcquire());
+		}
+		// Next quarter hour starts at 10:15
+		assertEquals(13 * 60 * 1000, limiter.tryAcquire());
+		assertEquals(3, limiter.getShortTermUsage());
+
+		clock.instant = Instant.parse("2024-03-10T10:15:00Z");
+		assertEquals(0, limiter.tryAcquire());
+		assertEquals(1, limiter.getShortTermUsage());
+		assertEquals(4, limiter.getDailyUsage());
+	}
+
+	@Test
+	public void testRateLimiterHeaders() throws Exception {
+		MutableClock clock = new MutableClock(START);
+		StravaRateLimiter limiter = new StravaRateLimiter(clock, 100, 1000);
+
+		// Seeded from the headers: limits replaced, usage of other clients counted
+		limiter.update("200,2000", "198,500");
+		assertEquals(200, limiter.getShortTermLimit());
+		assertEquals(2000, limiter.getDailyLimit());
+		assertEquals(0, limiter.tryAcquire());
+		assertEquals(0, limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire() > 0);
+
+		// Responses to earlier requests do not lower local usage
+		limiter.update("200,2000", "150,450");
+		assertEquals(200, limiter.getShortTermUsage());
+		assertEquals(502, limiter.getDailyUsage());
+
+		// Malformed headers are ignored
+		limiter.update("abc", null);
+		assertEquals(200, limiter.getShortTermLimit());
+	}
+
+	@Test
+	public void testRateLimiterDailyLimit() throws Exception {
+		MutableClock clock = new MutableClock(START);
+		StravaRateLimiter limiter = new StravaRateLimiter(clock, 100, 2);
+		assertTrue(limiter.acquire());
+		assertTrue(limiter.acquire());
+		assertTrue(limiter.isDailyLimitReached());
+		assertFalse(limiter.acquire());
+
+		clock.instant = Instant.parse("2024-03-11T00:00:00Z");
+		assertFalse(limiter.isDailyLimitReached());
+		assertTrue(limiter.acquire());
+	}
+
+	@Test
+	public void testRateLimiterState() throws Exception {
+		MutableClock clock = new MutableClock(START);
+		StravaRateLimiter limiter = new StravaRateLimiter(clock, 100, 1000);
+		limiter.update("200,2000", "40,2000");
+		RateLimitState state = limiter.getState();
+		assertEquals(Instant.parse("2024-03-10T10:15:00Z").toEpochMilli(), state.short_term_reset);
+		assertEquals(Instant.parse("2024-03-11T00:00:00Z").toEpochMilli(), state.daily_reset);
+
+		// Restored in the same windows: usage carried over
+		clock.instant = Instant.parse("2024-03-10T10:10:00Z");
+		StravaRateLimiter restarted = new StravaRateLimiter(clock, 100, 1000);
+		restarted.restore(state);
+		assertEquals(200, restarted.getShortTermLimit());
+		assertEquals(40, restarted.getShortTermUsage());
+		assertTrue(restarted.isDailyLimitReached());
+		assertFalse(restarted.acquire());
+
+		// Restored after the windows reset: limits only
+		clock.instant = Instant.parse("2024-03-11T00:05:00Z");
+		restarted = new StravaRateLimiter(clock, 100, 1000);
+		restarted.restore(state);
+		assertEquals(2000, restarted.getDailyLimit());
+		assertEquals(0, restarted.getDailyUsage());
+		assertEquals(0, restarted.getShortTermUsage());
+	}
+
+	@Test
+	public void testRateLimiterWaitForNextDay() throws Exception {
+		MutableClock clock = new MutableClock(START);
+		List<Long> sleeps = new ArrayList<>();
+		StravaRateLimiter limiter = new StravaRateLimiter(clock, 100, 1) {
+			@Override
+			protected void sleep(long millis) {
+				sleeps.add(millis);
+				clock.instant = clock.instant.plusMillis(millis);
+			}
+		};
+		limiter.setWaitForNextDay(true);
+		assertTrue(limiter.acquire());
+		assertTrue(limiter.acquire());
+		// Slept until midnight UTC
+		assertEquals(1, sleeps.size());
+		assertEquals(Instant.parse("2024-03-11T00:00:00Z"), clock.instant);
+	}
+
+	@Test
+	public void testRateLimiterExhausted() throws Exception {
+		MutableClock clock = new MutableClock(START);
+		StravaRateLimiter limiter = new StravaRateLimiter(clock, 100, 1000);
+		assertEquals(0, limiter.tryAcquire());
+		limiter.exhausted();
+		assertEquals(13 * 60 * 1000, limiter.tryAcquire());
+		assertFalse(limiter.isDailyLimitReached());
+	}
+
+	@Test
+	public void testUploadPoller() throws Exception {
+		AtomicInteger polls = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/api/v3/uploads/", exchange -> {
+			String id = exchange.getRequestURI().getPath().substring("/api/v3/uploads/".length());
+			int count = polls.incrementAndGet();
+			exchange.getResponseHeaders().add("X-RateLimit-Limit", "100000,1000000");
+			exchange.getResponseHeaders().add("X-RateLimit-Usage", count + "," + count);
+			if ("1".equals(id) && count < 4) {
+				respond(exchange, "{\"id\":1,\"status\":\"Your activity is still being processed.\"}");
+			} else if ("1".equals(id)) {
+				respond(exchange, "{\"id\":1,\"status\":\"Your activity is ready.\",\"activity_id\":42}");
+			} else {
+				respond(exchange, "{\"id\":2,\"status\":\"There was an error processing your activity.\",\"error\":\"a.gpx duplicate of activity 41\"}");
+			}
+		});
+		server.start();
+		try {
+			AccessTokenResponse token = token();
+			StravaRateLimiter limiter = new StravaRateLimiter(Clock.systemUTC(), 100000, 1000000);
+			Map<String, UploadResponse> outcomes = new ConcurrentHashMap<>();
+			String apiUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/v3";
+			try (StravaUploadPoller poller = new StravaUploadPoller(new OkHttpClient(), new ObjectMapper(), apiUrl, () -> token, limiter, Duration.ofMillis(10), outcomes::put)) {
+				poller.track("a.meta", upload(1));
+				poller.track("b.meta", upload(2));
+				assertEquals(2, poller.getPending());
+				poller.awaitCompletion();
+				assertEquals(0, poller.getPending());
+			}
+			assertEquals(Long.valueOf(42), outcomes.get("a.meta").activity_id);
+			assertFalse(outcomes.get("a.meta").isProcessing());
+			assertTrue(outcomes.get("b.meta").isDuplicate());
+			assertTrue(polls.get() >= 4);
+			assertEquals(1000000, limiter.getDailyLimit());
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testActivityIndex() throws Exception {
+		int total = 450;
+		Map<Integer, Integer> pages = new ConcurrentHashMap<>();
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newFixedThreadPool(4));
+		server.createContext("/api/v3/athlete/activities", exchange -> {
+			Map<String, String> query = new HashMap<>();
+			for (String param : exchange.getRequestURI().getQuery().split("&")) {
+				query.put(param.substring(0, param.indexOf('=')), param.substring(param.indexOf('=') + 1));
+			}
+			int page = Integer.parseInt(query.get("page"));
+			int perPage = Integer.parseInt(query.get("per_page"));
+			pages.merge(page, 1, Integer::sum);
+			StringBuilder json = new StringBuilder("[");
+			for (int i = (page - 1) * perPage; i < Math.min(total, page * perPage); i++) {
+				json.append(json.length() > 1 ? "," : "").append("{\"id\":").append(i)
+					.append(",\"external_id\":\"session-").append(i).append(".gpx\"")
+					.append(",\"start_date\":\"").append(START.plusSeconds(i * 3600L)).append("\"}");
+			}
+			exchange.getResponseHeaders().add("X-RateLimit-Limit", "100000,1000000");
+			exchange.getResponseHeaders().add("X-RateLimit-Usage", pages.size() + "," + pages.size());
+			respond(exchange, json.append("]").toString());
+		});
+		server.start();
+		try {
+			StravaRateLimiter limiter = new StravaRateLimiter(Clock.systemUTC(), 100000, 1000000);
+			String apiUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/v3";
+			StravaActivityIndex index = StravaActivityIndex.load(new OkHttpClient(), new ObjectMapper(), apiUrl, token(), limiter, 2);
+			assertEquals(total, index.size());
+			assertTrue(index.isComplete());
+			// Pages fetched once, in waves of 2 until a page is not full
+			assertEquals(4, pages.size());
+			assertTrue(pages.values().stream().allMatch(c -> c == 1));
+
+			ExportMetadata byExternalId = new ExportMetadata();
+			byExternalId.externalId = "session-12";
+			assertTrue(index.contains(byExternalId));
+			ExportMetadata byStartDate = new ExportMetadata();
+			byStartDate.externalId = "other";
+			byStartDate.startDate = START.plusSeconds(300 * 3600L).toString();
+			assertTrue(index.contains(byStartDate));
+			ExportMetadata missing = new ExportMetadata();
+			missing.externalId = "session-999";
+			missing.startDate = START.plusSeconds(1).toString();
+			assertFalse(index.contains(missing));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testUploadJournal() throws Exception {
+		ObjectMapper mapper = new ObjectMapper();
+		Path file = tmp.getRoot().toPath().resolve(UploadJournal.FILE_NAME);
+		try (UploadJournal journal = new UploadJournal(file, mapper)) {
+			journal.append(new UploadJournalEntry("a.meta", State.QUEUED, null));
+			journal.append(new UploadJournalEntry("b.meta", State.QUEUED, null));
+			journal.append(new UploadJournalEntry("c.meta", State.QUEUED, null));
+			journal.append(new UploadJournalEntry("a.meta", State.POSTED, 1L));
+			journal.append(new UploadJournalEntry("b.meta", State.POSTED, 2L));
+			journal.append(new UploadJournalEntry("b.meta", State.DUPLICATE, 2L));
+		}
+		assertTrue(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).contains("{\"time\":"));
+		assertTrue(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).contains("\"state\":\"duplicate\",\"upload_id\":2}"));
+		// Simulate a crash while appending a line
+		Files.write(file, "{\"time\":1,\"activity\":\"c.me".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+		try (UploadJournal journal = new UploadJournal(file, mapper)) {
+			UploadJournalEntry a = journal.get("a.meta");
+			assertEquals(State.POSTED, a.state);
+			assertTrue(a.isPosted());
+			assertFalse(a.isFinal());
+			assertTrue(journal.get("b.meta").isFinal());
+			assertEquals(State.QUEUED, journal.get("c.meta").state);
+			assertFalse(journal.get("c.meta").isPosted());
+			assertNull(journal.get("d.meta"));
+			journal.append(new UploadJournalEntry("c.meta", State.FAILED, null));
+		}
+		try (UploadJournal journal = new UploadJournal(file, mapper)) {
+			assertEquals(3, journal.getEntries().size());
+			assertEquals(State.FAILED, journal.get("c.meta").state);
+			assertFalse(journal.get("c.meta").isFinal());
+		}
+	}
+
+	/**
+	 * Upload harness against the local stand-in, reporting throughput, retries and quota efficiency.
+	 * Its size can be raised for benchmarks, e.g. with "-Dstrava.harness.activities=1000 -Dstrava.harness.latency=50".
+	 */
+	@Test
+	public void testUploadHarness() throws Exception {
+		int activities = Integer.getInteger("strava.harness.activities", 60);
+		try (StravaStandIn strava = new StravaStandIn(Clock.systemUTC())) {
+			strava.latencyMillis = Long.getLong("strava.harness.latency", 5L);
+			strava.errorRate = 0.02;
+			strava.processingMillis = 20;
+			strava.shortTermLimit = 100000;
+			strava.dailyLimit = 1000000;
+			// Uploaded manually, skipped by the pre-flight listing
+			strava.addActivity("session-0", START.minusSeconds(3600));
+
+			File converted = createConvertedActivities(activities);
+			StravaUploader uploader = uploader(strava, new StravaRateLimiter(), converted, Integer.getInteger("strava.harness.concurrency", 8));
+			long start = System.nanoTime();
+			uploader.authorize("code");
+			int uploaded = uploader.upload(converted.toPath(), Duration.ZERO);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("Upload harness: %d activities in %.2fs (%.1f/s), %d retries, %d injected errors, %d rate limited, %d requests (%.2f per upload)",
+				uploaded, seconds, uploaded / seconds, uploader.getRetries(), strava.injectedErrors.get(), strava.rateLimited.get(),
+				strava.getDailyUsage(), strava.getDailyUsage() / (double) Math.max(1, uploaded)));
+
+			assertEquals(activities - 1, uploaded);
+			assertEquals(activities - 1, uploader.getProcessed());
+			assertEquals(0, uploader.getDuplicates());
+			// Never posted twice, despite injected errors
+			assertEquals(activities - 1, strava.getUploads());
+			assertEquals(0, converted.list((dir, name) -> name.endsWith(".meta")).length);
+			assertEquals(activities, new File(converted, "uploaded").list((dir, name) -> name.endsWith(".meta")).length);
+		}
+	}
+
+	@Test
+	public void testUploadNotRepostedWhenMoveFails() throws Exception {
+		try (StravaStandIn strava = new StravaStandIn(Clock.systemUTC())) {
+			File converted = createConvertedActivities(3);
+			// Occupied destination: moving the posted files fails
+			File uploadedFolder = new File(converted, "uploaded");
+			assertTrue(uploadedFolder.mkdir());
+			Files.write(new File(uploadedFolder, "session-1.gpx.gz.meta").toPath(), new byte[0]);
+
+			StravaUploader uploader = uploader(strava, new StravaRateLimiter(), converted, 2);
+			uploader.authorize("code");
+			assertEquals(3, uploader.upload(converted.toPath(), Duration.ZERO));
+			assertEquals(3, uploader.getProcessed());
+			assertEquals(3, strava.getUploads());
+			assertEquals(0, uploader.getRetries());
+			assertTrue(new File(converted, "session-1.gpx.gz.meta").exists());
+		}
+	}
+
+	@Test
+	public void testUploadSurvivesErrorBurst() throws Exception {
+		try (StravaStandIn strava = new StravaStandIn(Clock.systemUTC())) {
+			strava.latencyMillis = 20;
+			// Two server errors for each of the concurrent uploads, more than allowed in a row for a single upload
+			strava.failingUploads.set(8);
+
+			File converted = createConvertedActivities(8);
+			StravaUploader uploader = uploader(strava, new StravaRateLimiter(), converted, 4);
+			uploader.authorize("code");
+			assertEquals(8, uploader.upload(converted.toPath(), Duration.ZERO));
+			assertEquals(8, uploader.getProcessed());
+			assertEquals(8, strava.getUploads());
+			assertEquals(8, strava.injectedErrors.get());
+			assertEquals(8, uploader.getRetries());
+		}
+	}
+
+	@Test
+	public void testUploadWithinRateLimitWindows() throws Exception {
+		// 15-minute windows last 0.9 second
+		ScaledClock clock = new ScaledClock(START, 1000);
+		try (StravaStandIn strava = new StravaStandIn(clock)) {
+			strava.shortTermLimit = 10;
+			strava.dailyLimit = 100000;
+			strava.setUsage(8, 8);
+
+			File converted = createConvertedActivities(20);
+			StravaRateLimiter limiter = new StravaRateLimiter(clock, StravaRateLimiter.DEFAULT_SHORT_TERM_LIMIT, StravaRateLimiter.DEFAULT_DAILY_LIMIT) {
+				@Override
+				protected void sleep(long millis) throws InterruptedException {
+					Thread.sleep(Math.max(1, millis / 1000));
+				}
+			};
+			StravaUploader uploader = uploader(strava, limiter, converted, 4);
+			uploader.authorize("code");
+			assertEquals(20, uploader.upload(converted.toPath(), Duration.ZERO));
+			assertEquals(20, uploader.getProcessed());
+			assertEquals(20, strava.getUploads());
+			assertEquals(10, limiter.getShortTermLimit());
+			assertTrue(strava.getMaxShortTermUsage() <= 10);
+		}
+	}
+
+	@Test
+	public void testUploadStopsAtDailyLimitAndResumes() throws Exception {
+		ScaledClock clock = new ScaledClock(START, 1);
+		try (StravaStandIn strava = new StravaStandIn(clock)) {
+			strava.shortTermLimit = 100;
+			strava.dailyLimit = 6;
+			File converted = createConvertedActivities(10);
+
+			StravaUploader first = uploader(strava, new StravaRateLimiter(clock, 100, 1000), converted, 2);
+			first.authorize("code");
+			int uploaded = first.upload(converted.toPath(), Duration.ZERO);
+			assertTrue(uploaded > 0 && uploaded < 10);
+			assertEquals(uploaded, strava.getUploads());
+
+			// Next day: posted activities are not posted again, and their status is polled
+			clock.skip(Duration.ofDays(1));
+			strava.dailyLimit = 1000;
+			StravaUploader second = uploader(strava, new StravaRateLimiter(clock, 100, 1000), converted, 2);
+			second.authorize(null);
+			assertEquals(10 - uploaded, second.upload(converted.toPath(), Duration.ZERO));
+			assertEquals(10, strava.getUploads());
+			assertEquals(10, first.getProcessed() + second.getProcessed());
+			assertEquals(1, strava.tokenRequests.get());
+			try (UploadJournal journal = new UploadJournal(converted.toPath().resolve(UploadJournal.FILE_NAME), new ObjectMapper())) {
+				assertEquals(10, journal.getEntries().size());
+				assertTrue(journal.getEntries().stream().allMatch(e -> e.state == State.PROCESSED));
+			}
+		}
+	}
+
+	@Test
+	public void testUploadRestartsWithSavedRateLimit() throws Exception {
+		ScaledClock clock = new ScaledClock(START, 1);
+		try (StravaStandIn strava = new StravaStandIn(clock)) {
+			strava.dailyLimit = 6;
+			File converted = createConvertedActivities(10);
+			StravaUploader first = uploader(strava, new StravaRateLimiter(clock, 100, 1000), converted, 2);
+			first.authorize("code");
+			int uploaded = first.upload(converted.toPath(), Duration.ZERO);
+			assertTrue(new File(converted, StravaUploader.RATE_LIMIT_FILE).exists());
+			long usage = strava.getDailyUsage();
+			int rateLimited = strava.rateLimited.get();
+
+			// Restarted the same day: no request is spent before the next daily window
+			StravaUploader second = uploader(strava, new StravaRateLimiter(clock, 100, 1000), converted, 2);
+			second.authorize(null);
+			assertEquals(0, second.upload(converted.toPath(), Duration.ZERO));
+			assertEquals(usage, strava.getDailyUsage());
+			assertEquals(rateLimited, strava.rateLimited.get());
+
+			clock.skip(Duration.ofDays(1));
+			strava.dailyLimit = 1000;
+			StravaUploader third = uploader(strava, new StravaRateLimiter(clock, 100, 1000), converted, 2);
+			third.authorize(null);
+			assertEquals(10 - uploaded, third.upload(converted.toPath(), Duration.ZERO));
+			assertEquals(10, strava.getUploads());
+		}
+	}
+
+	@Test
+	public void testUploadWaitsForNextDay() throws Exception {
+		// Days last 288 milliseconds
+		ScaledClock clock = new ScaledClock(START, 300000);
+		try (StravaStandIn strava = new StravaStandIn(clock)) {
+			strava.dailyLimit = 5;
+			File converted = createConvertedActivities(6);
+			StravaRateLimiter limiter = new StravaRateLimiter(clock, StravaRateLimiter.DEFAULT_SHORT_TERM_LIMIT, StravaRateLimiter.DEFAULT_DAILY_LIMIT) {
+				@Override
+				protected void sleep(long millis) throws InterruptedException {
+					Thread.sleep(Math.max(1, millis / 300000));
+				}
+			};
+			limiter.setWaitForNextDay(true);
+			StravaUploader uploader = uploader(strava, limiter, converted, 2);
+			uploader.authorize("code");
+			assertEquals(6, uploader.upload(converted.toPath(), Duration.ZERO));
+			assertEquals(6, uploader.getProcessed());
+			assertEquals(6, strava.getUploads());
+			// 7 requests at least (listing and uploads), 5 a day
+			assertTrue(clock.instant().isAfter(Instant.parse("2024-03-11T00:00:00Z")));
+		}
+	}
+
+	@Test
+	public void testTokenManagerSingleFlightRefresh() throws Exception {
+		try (StravaStandIn strava = new StravaStandIn(Clock.systemUTC());
+			StravaTokenManager tokens = tokenManager(strava)) {
+			strava.latencyMillis = 50;
+			AccessTokenResponse stale = tokens.authorize("code");
+			assertEquals(1, strava.tokenRequests.get());
+
+			// Concurrent uploads rejected with the same token share one refresh
+			int callers = 16;
+			CountDownLatch start = new CountDownLatch(1);
+			ExecutorService executor = Executors.newFixedThreadPool(callers);
+			List<Future<AccessTokenResponse>> futures = new ArrayList<>();
+			for (int i = 0; i < callers; i++) {
+				futures.add(executor.submit(() -> {
+					start.await();
+					return tokens.refresh(stale).get();
+				}));
+			}
+			start.countDown();
+			AccessTokenResponse refreshed = futures.get(0).get();
+			for (Future<AccessTokenResponse> future : futures) {
+				assertSame(refreshed, future.get());
+			}
+			executor.shutdown();
+			assertNotEquals(stale.access_token, refreshed.access_token);
+			assertEquals(2, strava.tokenRequests.get());
+			assertSame(refreshed, tokens.get());
+
+			// A stale token already replaced is not refreshed again
+			assertSame(refreshed, tokens.refresh(stale).get());
+			assertEquals(2, strava.tokenRequests.get());
+			// Refreshed token is saved
+			assertEquals(refreshed.access_token, new ObjectMapper().readValue(new File(tmp.getRoot(), "access.token"), AccessTokenResponse.class).access_token);
+		}
+	}
+
+	@Test
+	public void testTokenManagerRefreshesAheadOfExpiry() throws Exception {
+		try (StravaStandIn strava = new StravaStandIn(Clock.systemUTC());
+			StravaTokenManager tokens = tokenManager(strava)) {
+			strava.tokenLifetime = Duration.ofSeconds(4);
+			tokens.setRefreshMargin(Duration.ofSeconds(3));
+			AccessTokenResponse first = tokens.authorize("code");
+
+			long deadline = System.currentTimeMillis() + 3000;
+			while (tokens.getCurrent() == first && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			AccessTokenResponse second = tokens.getCurrent();
+			assertNotEquals(first.access_token, second.access_token);
+			// Refreshed in the background before the first token expired
+			assertFalse(first.isExpired());
+			assertSame(second, tokens.get());
+		}
+	}
+
+	private StravaTokenManager tokenManager(StravaStandIn strava) {
+		return new StravaTokenManager(new OkHttpClient(), new ObjectMapper(), strava.getApiUrl(), new File(tmp.getRoot(), "access.token").toPath(), "client", "secret");
+	}
+
+	private File createConvertedActivities(int count) throws IOException {
+		File converted = tmp.newFolder("converted");
+		ObjectMapper mapper = new ObjectMapper();
+		for (int i = 0; i < count; i++) {
+			ExportMetadata metaData = new ExportMetadata();
+			metaData.name = "Morning Run";
+			metaData.description = "Session " + i;
+			metaData.externalId = "session-" + i;
+			metaData.startDate = START.plusSeconds(i * 86400L).toString();
+			metaData.sportType = "Run";
+			metaData.dataType = "gpx.gz";
+			metaData.fileName = "session-" + i + ".gpx.gz";
+			mapper.writeValue(new File(converted, "session-" + i + ".gpx.gz.meta"), metaData);
+			Files.write(new File(converted, metaData.fileName).toPath(), ("gpx " + i).getBytes(StandardCharsets.UTF_8));
+		}
+		return converted;
+	}
+
+	private static StravaUploader uploader(StravaStandIn strava, StravaRateLimiter limiter, File converted, int concurrency) {
+		StravaUploader uploader = new StravaUploader(new OkHttpClient(), new ObjectMapper(), "client", "secret", converted.toPath().resolve("access.token"), limiter, concurrency);
+		uploader.setApiUrl(strava.getApiUrl());
+		uploader.setPollDelay(Duration.ofMillis(10));
+		uploader.setFailureBackoff(Duration.ofMillis(10));
+		return uploader;
+	}
+
+	private static AccessTokenResponse token() {
+		AccessTokenResponse token = new AccessTokenResponse();
+		token.token_type = "Bearer";
+		token.access_token = "token";
+		return token;
+	}
+
+	private static UploadResponse upload(long id) {
+		UploadResponse upload = new UploadResponse();
+		upload.id = id;
+		upload.status = "Your activity is still being processed.";
+		return upload;
+	}
+
+	private static void respond(HttpExchange exchange, String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	/**
+	 * Clock running from a start instant, faster than real time by a scale factor, and able to skip ahead.
+	 */
+	static class ScaledClock extends Clock {
+
+		private final Instant start;
+		private final long scale;
+		private final long startNanos = System.nanoTime();
+		private volatile long skipped;
+
+		ScaledClock(Instant start, long scale) {
+			this.start = start;
+			this.scale = scale;
+		}
+
+		void skip(Duration duration) {
+			skipped += duration.toMillis();
+		}
+
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return start.plusMillis(skipped + (System.nanoTime() - startNanos) / 1000000 * scale);
+		}
+
+	}
+
+	static class MutableClock extends Clock {
+
+		volatile Instant instant;
+
+		MutableClock(Instant instant) {
+			this.instant = instant;
+		}
+
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return instant;
+		}
+
+	}
+
+}